@@ -5,10 +5,7 @@ import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.Confi
 import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.MetricsProvider;
 import ar.edu.itba.pdc.chinese_whispers.connection.TCPAcceptorHandler;
 
-import java.io.IOException;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.ServerSocketChannel;
-import java.nio.channels.SocketChannel;
 
 
 public class AdminAcceptorHandler implements TCPAcceptorHandler {
@@ -47,18 +44,12 @@ public class AdminAcceptorHandler implements TCPAcceptorHandler {
 
     @Override
     public SelectionKey handleAccept(SelectionKey key) {
-        try {
-            SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
-            channel.configureBlocking(false);
-            AdminServerHandler handler = new AdminServerHandler(metricsProvider,
-                    configurationsConsumer, authenticationProvider);
-            // The handler assigned to accepted sockets won't accept new connections, it will read and write
-            // (it's writable upon creation because it might be created with data in its write messages queue)
-            SelectionKey newKey = channel.register(key.selector(),
-                    SelectionKey.OP_READ | SelectionKey.OP_WRITE, handler);
-            return newKey;
-        } catch (IOException ignored) {
-        }
-        return null;
+        AdminServerHandler handler = new AdminServerHandler(metricsProvider,
+                configurationsConsumer, authenticationProvider);
+        // The handler assigned to accepted sockets won't accept new connections, it will read and write
+        // (it's writable upon creation because it might be created with data in its write messages queue)
+        key.attach(handler);
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        return key;
     }
 }
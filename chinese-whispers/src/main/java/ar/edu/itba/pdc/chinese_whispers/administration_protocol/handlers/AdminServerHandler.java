@@ -7,6 +7,8 @@ import ar.edu.itba.pdc.chinese_whispers.application.Configurations;
 import ar.edu.itba.pdc.chinese_whispers.application.LogHelper;
 import ar.edu.itba.pdc.chinese_whispers.connection.TCPHandler;
 import ar.edu.itba.pdc.chinese_whispers.connection.TCPReadWriteHandler;
+import ar.edu.itba.pdc.chinese_whispers.connection.TCPSelector;
+import ar.edu.itba.pdc.chinese_whispers.connection.TimingWheel;
 import org.slf4j.Logger;
 
 import java.io.IOException;
@@ -38,13 +40,17 @@ public class AdminServerHandler implements TCPReadWriteHandler {
      */
     private static final String DEFAULT_WRONG_PARAMETERS_RESPONSE = "WRONG PARAMETERS";
     /**
-     * The Input and message buffers size.
+     * The message buffer size.
      */
     private static final int INPUT_BUFFER_SIZE = 1024;
     /**
      * The output buffers size.
      */
     private static final int OUTPUT_BUFFER_SIZE = 100*1024;
+    /**
+     * Input with nothing to be processed.
+     */
+    private static final ByteBuffer EMPTY_INPUT = ByteBuffer.allocate(0);
 
     private static final String OK_CODE = "A00";
 
@@ -86,18 +92,20 @@ public class AdminServerHandler implements TCPReadWriteHandler {
     private String language;
 
     // Communication stuff
+    // Note: Data is read in the reactor's read buffer, and the rest of the buffers are only allocated when needed,
+    //       so idle administrators don't hold any buffer.
     /**
-     * Contains parcial messages read
+     * Contains parcial messages read (or null if there is no partial message).
      */
-    private final ByteBuffer messageRead;
+    private ByteBuffer messageRead;
     /**
-     * Buffer from to fill when reading
+     * Contains read data that was not processed yet (or null if everything read was processed).
      */
-    private final ByteBuffer inputBuffer;
+    private ByteBuffer pendingInput;
     /**
-     * Buffer to fill when writing
+     * Buffer to fill when writing (or null if there is nothing to be written).
      */
-    private final ByteBuffer outputBuffer;
+    private ByteBuffer outputBuffer;
 
     /**
      * String builder used to construct the responses in some commands.
@@ -133,6 +141,11 @@ public class AdminServerHandler implements TCPReadWriteHandler {
      */
     private final AuthenticationProvider authenticationProvider;
 
+    /**
+     * The timeout armed by the reactor for this handler's key.
+     */
+    private TimingWheel.Timeout timeout;
+
     private final Logger logger;
 
 
@@ -141,11 +154,9 @@ public class AdminServerHandler implements TCPReadWriteHandler {
                               AuthenticationProvider authenticationProvider) {
         logger = LogHelper.getLogger(getClass());
 
-        messageRead = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
-        messageRead.clear();
-        inputBuffer = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
-        inputBuffer.flip();
-        outputBuffer = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+        messageRead = null;
+        pendingInput = null;
+        outputBuffer = null;
         responseBuilder = new StringBuilder();
         this.metricsProvider = metricsProvider;
         this.configurationsConsumer = configurationsConsumer;
@@ -190,7 +201,7 @@ public class AdminServerHandler implements TCPReadWriteHandler {
         }
 
         SocketChannel channel = (SocketChannel) key.channel();
-        inputBuffer.clear();
+        ByteBuffer inputBuffer = TCPSelector.getInstance().getReadBuffer();
         try {
             int readBytes = channel.read(inputBuffer);
 
@@ -203,24 +214,67 @@ public class AdminServerHandler implements TCPReadWriteHandler {
             if (readBytes >= 0) {
                 logger.trace("Read bytes = {}", readBytes);
                 logger.trace("Read by administrator: {}", new String(inputBuffer.array(), 0, readBytes));
-                processInput(key);
+                processInput(key, inputBuffer);
+                retainPendingInput(inputBuffer);
             } else if (readBytes == -1) {
                 closeHandler(key);
             }
         } catch (Exception e) {
             String message = INTERNAL_SERVER_ERROR_CODE + " Internal server error";
-            outputBuffer.clear();
+            outputBuffer().clear();
             for (byte b : message.getBytes()) outputBuffer.put(b);
             outputBuffer.put(new Byte("10"));
             closeHandler(key);
         }
         //Do NOT remove this if this is merged with XMPPHandler. Needs to be adapted in that case.
-        if (outputBuffer.hasRemaining()) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        if (outputBuffer == null || outputBuffer.hasRemaining()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
     }
 
+    /**
+     * Returns the output buffer, allocating it if there was nothing to be written.
+     *
+     * @return The output buffer.
+     */
+    private ByteBuffer outputBuffer() {
+        if (outputBuffer == null) {
+            outputBuffer = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+        }
+        return outputBuffer;
+    }
 
+    /**
+     * Returns the buffer holding the partial message, allocating it if there was no partial message.
+     *
+     * @return The message buffer.
+     */
+    private ByteBuffer messageRead() {
+        if (messageRead == null) {
+            messageRead = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+        }
+        return messageRead;
+    }
 
-    private void processInput(SelectionKey key) {
+    /**
+     * Keeps the bytes of the given input that were not processed yet (if any),
+     * as the reactor's read buffer is reused by the rest of its handlers.
+     *
+     * @param input The processed input.
+     */
+    private void retainPendingInput(ByteBuffer input) {
+        if (!input.hasRemaining()) {
+            pendingInput = null;
+        } else if (input != pendingInput) {
+            pendingInput = ByteBuffer.allocate(input.remaining());
+            pendingInput.put(input);
+            pendingInput.flip();
+        }
+    }
+
+
+
+    private void processInput(SelectionKey key, ByteBuffer inputBuffer) {
 
         if(!key.isValid()) return;
         key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
@@ -236,15 +290,15 @@ public class AdminServerHandler implements TCPReadWriteHandler {
             }
             if (b == 10) {
                 process(key);
-                messageRead.clear();
+                messageRead = null;
                 return;
             } else if (b != 13) {
-                messageRead.put(b);
+                messageRead().put(b);
                 if(!messageRead.hasRemaining()){
                     String message = POLICY_VIOLATION_CODE + " Request too big";
-                    for (byte messageB : message.getBytes()) outputBuffer.put(messageB);
+                    for (byte messageB : message.getBytes()) outputBuffer().put(messageB);
                     outputBuffer.put(new Byte("10"));
-                    messageRead.clear();
+                    messageRead = null;
                     //Clean rest of message until \n. If a \n wasn't found, the rest will be cleaned next time.
                     while(b!=10 && inputBuffer.hasRemaining()) b=inputBuffer.get();
                     isMessageViolatingPolicy=(b!=10);
@@ -257,7 +311,7 @@ public class AdminServerHandler implements TCPReadWriteHandler {
 
     private void process(SelectionKey key) {
 
-        messageRead.flip();
+        messageRead().flip();
 
 
         String string = new  String(messageRead.array(),0,messageRead.limit());
@@ -267,7 +321,7 @@ public class AdminServerHandler implements TCPReadWriteHandler {
 
 
         for (byte b : (response.getResponseCode() + " \"" + response.getResponseMessage() + "\"").getBytes()) {
-            outputBuffer.put(b);
+            outputBuffer().put(b);
         }
         outputBuffer.put(new Byte("10"));
     }
@@ -594,6 +648,16 @@ public class AdminServerHandler implements TCPReadWriteHandler {
             throw new IllegalStateException();
         }
 
+        if (outputBuffer == null) {
+            // Nothing to be written
+            disableWriting(key);
+            if (mustClose) {
+                handleClose(key);
+            }
+            afterWrite(key);
+            return;
+        }
+
         outputBuffer.flip(); // Makes the buffer's limit be set to its position, and it position, to 0
         int writtenBytes = 0;
         SocketChannel channel = (SocketChannel) key.channel();
@@ -617,6 +681,9 @@ public class AdminServerHandler implements TCPReadWriteHandler {
         // Makes the buffer's position be set to limit - position, and its limit, to its capacity
         // If no data remaining, it just set the position to 0 and the limit to its capacity.
         outputBuffer.compact();
+        if (outputBuffer.position() == 0) {
+            outputBuffer = null; // Nothing else to be written
+        }
 
 
 
@@ -627,9 +694,11 @@ public class AdminServerHandler implements TCPReadWriteHandler {
     }
 
     private void afterWrite(SelectionKey key) {
-        if(outputBuffer.position()==0){
-            processInput(key);
-            if(outputBuffer.position()!=0) {
+        if(outputBuffer == null){
+            ByteBuffer input = pendingInput == null ? EMPTY_INPUT : pendingInput;
+            processInput(key, input);
+            retainPendingInput(input);
+            if(outputBuffer != null && outputBuffer.position()!=0) {
                 key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
             }
 
@@ -682,6 +751,16 @@ public class AdminServerHandler implements TCPReadWriteHandler {
 
     }
 
+    @Override
+    public TimingWheel.Timeout getTimeout() {
+        return timeout;
+    }
+
+    @Override
+    public void setTimeout(TimingWheel.Timeout timeout) {
+        this.timeout = timeout;
+    }
+
 
     @Override
     public boolean handleClose(SelectionKey key) {
@@ -690,6 +769,8 @@ public class AdminServerHandler implements TCPReadWriteHandler {
         } catch (IOException e) {
             // TODO: what should we do here?
             return false;
+        } finally {
+            TCPSelector.getInstance().notifyClose(key);
         }
         return true;
     }
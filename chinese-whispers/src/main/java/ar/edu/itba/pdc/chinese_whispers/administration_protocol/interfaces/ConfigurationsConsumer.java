@@ -1,5 +1,6 @@
 package ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces;
 
+import java.net.InetSocketAddress;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -75,6 +76,15 @@ public interface ConfigurationsConsumer {
      */
     int getServerPort(String clientJid);
 
+    /**
+     * Returns the server to which all users of the given domain must be connected to,
+     * if it doesn't depend on the user (i.e. none of the domain's users is multiplexed).
+     *
+     * @param domain The domain (i.e. the JIDs' domain part).
+     * @return The server's (unresolved) address, or {@code null} if it depends on the user.
+     */
+    InetSocketAddress getDomainServer(String domain);
+
 
     /**
      * Returns whether the given user is silenced.
@@ -25,6 +25,74 @@ public interface MetricsProvider {
 
     public void addNumSilencedMessages(long numMessagesSilenced);
 
+    /**
+     * Adds times in which accepting connections was paused because the connections limit was reached
+     * (i.e. pause episodes, not the connections that waited in the listen backlog meanwhile).
+     */
+    public void addAcceptPauses(long numAcceptPauses);
+
+    /**
+     * Adds time (in milliseconds) during which accepting connections was paused.
+     */
+    public void addAcceptPausesTime(long acceptPausesTime);
+
+    /**
+     * Adds connections to origin servers that were taken from the pool (i.e. already established).
+     */
+    public void addUpstreamPoolHits(long upstreamPoolHits);
+
+    /**
+     * Adds connections to origin servers that had to be established because the pool was empty.
+     */
+    public void addUpstreamPoolMisses(long upstreamPoolMisses);
+
+    /**
+     * Adds sessions that used the connection to the origin server started while negotiating with the client.
+     */
+    public void addSpeculativeConnectHits(long speculativeConnectHits);
+
+    /**
+     * Adds connections started while negotiating with the client that were discarded
+     * (e.g. the user was routed to another server, the client aborted, or the connection failed).
+     */
+    public void addSpeculativeConnectMisses(long speculativeConnectMisses);
+
+    /**
+     * Adds time (in milliseconds) of login latency saved by connecting to origin servers while negotiating.
+     */
+    public void addSpeculativeConnectSavedTime(long speculativeConnectSavedTime);
+
+    /**
+     * Adds times in which a connection stopped reading because its peer had too much data waiting to be sent.
+     */
+    public void addBackpressurePauses(long backpressurePauses);
+
+    /**
+     * Adds time (in milliseconds) during which connections stopped reading because of backpressure.
+     */
+    public void addBackpressurePausedTime(long backpressurePausedTime);
+
+    /**
+     * Adds buffers that were taken from the buffers pool (i.e. not allocated).
+     */
+    public void addBufferPoolHits(long bufferPoolHits);
+
+    /**
+     * Adds buffers that had to be allocated because the buffers pool had none of the requested size.
+     */
+    public void addBufferPoolMisses(long bufferPoolMisses);
+
+    /**
+     * Adds parsers that were taken from the parsers pool (i.e. not created). Only tokenizers are pooled.
+     */
+    public void addParserPoolHits(long parserPoolHits);
+
+    /**
+     * Adds parsers that had to be created because the parsers pool had none. Only tokenizers are pooled
+     * (Aalto parsers are always created, and they are not counted).
+     */
+    public void addParserPoolMisses(long parserPoolMisses);
+
     /**
      * Returns a list of silenced users (i.e. users that can receive messages but can not send them).
      * @return A list of silenced users' JIDs.
@@ -3,22 +3,139 @@ package ar.edu.itba.pdc.chinese_whispers.application;
 import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.AuthenticationProvider;
 import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.ConfigurationsConsumer;
 
+import java.net.InetSocketAddress;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by drocheg on 29/10/2016.
  * <p>
  * Class that manages system configurations.
+ * As configurations are read by all reactors, and changed by the one serving the administration connection,
+ * this class is thread safe.
+ * Startup configurations (i.e. those that can't be changed by the administration protocol) are taken from
+ * system properties (e.g. {@code -Dchinese_whispers.reactors=4}).
  * This class implements the singleton pattern.
  */
 public class Configurations implements ConfigurationsConsumer, AuthenticationProvider {
 
 
     private static final int DEFAULT_PORT = 5222;
+    /**
+     * Prefix of the system properties used to set startup configurations.
+     */
+    private static final String PROPERTIES_PREFIX = "chinese_whispers.";
+    /**
+     * Default max amount of connections served at the same time.
+     */
+    private static final int DEFAULT_MAX_AMOUNT_OF_CONNECTIONS = 500;
+    /**
+     * Default backlog of the listening sockets (the same the JDK uses when none is given).
+     */
+    private static final int DEFAULT_LISTEN_BACKLOG = 50;
+    /**
+     * Default time to live (in seconds) of successful host name resolutions.
+     */
+    private static final int DEFAULT_DNS_TTL = 60;
+    /**
+     * Default time to live (in seconds) of failed host name resolutions.
+     */
+    private static final int DEFAULT_DNS_NEGATIVE_TTL = 10;
+    /**
+     * Default amount of threads resolving host names.
+     */
+    private static final int DEFAULT_AMOUNT_OF_RESOLVER_THREADS = 2;
+    /**
+     * Default max amount of connections being established with the same upstream server at the same time.
+     */
+    private static final int DEFAULT_MAX_CONNECTS_PER_UPSTREAM = 32;
+    /**
+     * Default amount of consecutive failed connections after which an upstream server is considered down.
+     */
+    private static final int DEFAULT_CIRCUIT_BREAKER_THRESHOLD = 5;
+    /**
+     * Default time (in seconds) during which connections to an upstream server considered down fail fast.
+     */
+    private static final int DEFAULT_CIRCUIT_BREAKER_TIMEOUT = 10;
+    /**
+     * Default backoff delay (in milliseconds) after the first failed connection.
+     */
+    private static final int DEFAULT_CONNECT_BACKOFF_BASE = 100;
+    /**
+     * Default max backoff delay (in milliseconds).
+     */
+    private static final int DEFAULT_CONNECT_BACKOFF_MAX = 5000;
+    /**
+     * Default min amount of idle connections each reactor keeps to each origin server.
+     */
+    private static final int DEFAULT_UPSTREAM_POOL_MIN_SIZE = 0;
+    /**
+     * Default max amount of idle connections each reactor keeps to each origin server.
+     */
+    private static final int DEFAULT_UPSTREAM_POOL_MAX_SIZE = 8;
+    /**
+     * Default time (in seconds) after which idle connections to origin servers are closed.
+     */
+    private static final int DEFAULT_UPSTREAM_POOL_IDLE_TIMEOUT = 30;
+    /**
+     * Default value of the speculative connect flag (1 enables it, 0 disables it).
+     */
+    private static final int DEFAULT_SPECULATIVE_CONNECT = 1;
+    /**
+     * Default amount of bytes waiting to be sent to a connection that makes its peer stop reading.
+     */
+    private static final int DEFAULT_HIGH_WATERMARK = 80 * 1024;
+    /**
+     * Default amount of bytes waiting to be sent to a connection that makes its peer read again.
+     */
+    private static final int DEFAULT_LOW_WATERMARK = 40 * 1024;
+    /**
+     * Default max amount of memory (in KiB) held by the buffers pool while not being used.
+     */
+    private static final int DEFAULT_BUFFER_POOL_MAX_MEMORY = 32 * 1024;
+    /**
+     * Default value of the direct buffers flag (disabled).
+     */
+    private static final int DEFAULT_DIRECT_BUFFERS = 0;
+    /**
+     * Default max amount of bytes read from a connection each time it's selected.
+     */
+    private static final int DEFAULT_READ_BUDGET = 32 * 1024;
+    /**
+     * Default value of the XML passthrough flag (enabled).
+     */
+    private static final int DEFAULT_XML_PASSTHROUGH = 1;
+    /**
+     * Default value of the XML relay flag (enabled).
+     */
+    private static final int DEFAULT_XML_RELAY = 1;
+    /**
+     * Default value of the XMPP tokenizer flag (disabled, i.e. Aalto is used).
+     */
+    private static final int DEFAULT_XMPP_TOKENIZER = 0;
+    /**
+     * Default max amount of non-used parsers kept by each reactor.
+     */
+    private static final int DEFAULT_PARSER_POOL_SIZE = 256;
+    /**
+     * Default max size (in bytes) of a stanza.
+     */
+    private static final int DEFAULT_MAX_STANZA_SIZE = 64 * 1024;
+    /**
+     * Default max depth of elements in a stanza (the stanza's element has depth 1).
+     * The stream's element is not counted, so at most 10000 elements are nested.
+     */
+    private static final int DEFAULT_MAX_STANZA_DEPTH = 9999;
+    /**
+     * Default max amount of attributes (including namespace declarations) of an element.
+     */
+    private static final int DEFAULT_MAX_ATTRIBUTES = 256;
+
     /**
      * States if the system is l337ing.
      */
-    private boolean processL337;
+    private volatile boolean processL337;
     /**
      * Stores users that are being silenced.
      */
@@ -30,34 +147,186 @@ public class Configurations implements ConfigurationsConsumer, AuthenticationPro
     /**
      * Stores where the default server is listening.
      */
-    private HostAndPort defaultServer;
+    private volatile HostAndPort defaultServer;
     /**
      * Map storing user and passwords for administration protocol
      */
     private Map<String, String> authorizationMap;
 
+    /**
+     * Amount of reactors (i.e. threads performing IO operations) the system will use.
+     */
+    private final int amountOfReactors;
+    /**
+     * Max amount of connections the system will serve at the same time.
+     */
+    private final int maxAmountOfConnections;
+    /**
+     * Backlog of the listening sockets (i.e. max amount of pending connections the OS will queue).
+     */
+    private final int listenBacklog;
+    /**
+     * Time to live (in seconds) of successful host name resolutions.
+     */
+    private final int dnsTtl;
+    /**
+     * Time to live (in seconds) of failed host name resolutions.
+     */
+    private final int dnsNegativeTtl;
+    /**
+     * Amount of threads resolving host names.
+     */
+    private final int amountOfResolverThreads;
+    /**
+     * Max amount of connections being established with the same upstream server at the same time.
+     */
+    private final int maxConnectsPerUpstream;
+    /**
+     * Amount of consecutive failed connections after which an upstream server is considered down.
+     */
+    private final int circuitBreakerThreshold;
+    /**
+     * Time (in seconds) during which connections to an upstream server considered down fail fast.
+     */
+    private final int circuitBreakerTimeout;
+    /**
+     * Backoff delay (in milliseconds) before retrying a failed connection, after the first failure.
+     */
+    private final int connectBackoffBase;
+    /**
+     * Max backoff delay (in milliseconds) before retrying a failed connection.
+     */
+    private final int connectBackoffMax;
+    /**
+     * Min amount of idle connections each reactor keeps to each origin server.
+     */
+    private final int upstreamPoolMinSize;
+    /**
+     * Max amount of idle connections each reactor keeps to each origin server.
+     */
+    private final int upstreamPoolMaxSize;
+    /**
+     * Time (in seconds) after which idle connections to origin servers are closed.
+     */
+    private final int upstreamPoolIdleTimeout;
+    /**
+     * Says if connections to origin servers are started while negotiating with clients.
+     */
+    private final boolean speculativeConnect;
+    /**
+     * Amount of bytes waiting to be sent to a client that makes its origin server connection stop reading.
+     */
+    private final int clientHighWatermark;
+    /**
+     * Amount of bytes waiting to be sent to a client that makes its origin server connection read again.
+     */
+    private final int clientLowWatermark;
+    /**
+     * Amount of bytes waiting to be sent to an origin server that makes its client connection stop reading.
+     */
+    private final int serverHighWatermark;
+    /**
+     * Amount of bytes waiting to be sent to an origin server that makes its client connection read again.
+     */
+    private final int serverLowWatermark;
+    /**
+     * Max amount of memory (in KiB) held by the buffers pool while not being used.
+     */
+    private final int bufferPoolMaxMemory;
+    /**
+     * Says if buffers only used to perform IO operations are allocated in direct memory.
+     */
+    private final boolean directBuffers;
+    /**
+     * Max amount of bytes read from a connection each time it's selected.
+     */
+    private final int readBudget;
+    /**
+     * Says if XML that is not modified is forwarded as it was received (instead of being rebuilt).
+     */
+    private final boolean xmlPassthrough;
+    /**
+     * Says if stanzas of sessions without active policies are relayed without being parsed.
+     */
+    private final boolean xmlRelay;
+    /**
+     * Says if XML is parsed with the built-in XMPP tokenizer (instead of Aalto).
+     */
+    private final boolean xmppTokenizer;
+    /**
+     * Max amount of non-used parsers kept by each reactor.
+     */
+    private final int parserPoolSize;
+    /**
+     * Max size (in bytes) of a stanza.
+     */
+    private final int maxStanzaSize;
+    /**
+     * Max depth of elements in a stanza.
+     */
+    private final int maxStanzaDepth;
+    /**
+     * Max amount of attributes of an element.
+     */
+    private final int maxAttributes;
+
     /**
      * Holds the singleton.
      */
-    private static Configurations configurationsInstance;
+    private static final Configurations configurationsInstance = new Configurations();
 
-    private long numId = 0;
+    private final AtomicLong numId = new AtomicLong(0);
 
     /**
      * Private constructor to implement singleton pattern.
      */
     private Configurations() {
-        silencedUsers = new HashSet<>();
+        silencedUsers = ConcurrentHashMap.newKeySet();
         processL337 = false;
-        multiplexedUsers = new HashMap<>();
+        multiplexedUsers = new ConcurrentHashMap<>();
         defaultServer = new HostAndPort("localhost", DEFAULT_PORT);
-        authorizationMap = new HashMap<>();
+        authorizationMap = new ConcurrentHashMap<>();
         authorizationMap.put("protos", "42"); //username lowercase
-
+        amountOfReactors = getIntegerProperty("reactors", Runtime.getRuntime().availableProcessors(), 1);
+        maxAmountOfConnections = getIntegerProperty("max_connections", DEFAULT_MAX_AMOUNT_OF_CONNECTIONS, 1);
+        listenBacklog = getIntegerProperty("listen_backlog", DEFAULT_LISTEN_BACKLOG, 1);
+        dnsTtl = getIntegerProperty("dns_ttl", DEFAULT_DNS_TTL, 0);
+        dnsNegativeTtl = getIntegerProperty("dns_negative_ttl", DEFAULT_DNS_NEGATIVE_TTL, 0);
+        amountOfResolverThreads = getIntegerProperty("resolver_threads", DEFAULT_AMOUNT_OF_RESOLVER_THREADS, 1);
+        maxConnectsPerUpstream = getIntegerProperty("max_connects_per_upstream",
+                DEFAULT_MAX_CONNECTS_PER_UPSTREAM, 1);
+        circuitBreakerThreshold = getIntegerProperty("circuit_breaker_threshold",
+                DEFAULT_CIRCUIT_BREAKER_THRESHOLD, 1);
+        circuitBreakerTimeout = getIntegerProperty("circuit_breaker_timeout", DEFAULT_CIRCUIT_BREAKER_TIMEOUT, 0);
+        connectBackoffBase = getIntegerProperty("connect_backoff_base", DEFAULT_CONNECT_BACKOFF_BASE, 1);
+        connectBackoffMax = Math.max(connectBackoffBase,
+                getIntegerProperty("connect_backoff_max", DEFAULT_CONNECT_BACKOFF_MAX, 1));
+        upstreamPoolMaxSize = getIntegerProperty("upstream_pool_max_size", DEFAULT_UPSTREAM_POOL_MAX_SIZE, 0);
+        upstreamPoolMinSize = Math.min(upstreamPoolMaxSize,
+                getIntegerProperty("upstream_pool_min_size", DEFAULT_UPSTREAM_POOL_MIN_SIZE, 0));
+        upstreamPoolIdleTimeout = getIntegerProperty("upstream_pool_idle_timeout",
+                DEFAULT_UPSTREAM_POOL_IDLE_TIMEOUT, 1);
+        speculativeConnect = getIntegerProperty("speculative_connect", DEFAULT_SPECULATIVE_CONNECT, 0) != 0;
+        clientHighWatermark = getIntegerProperty("client_high_watermark", DEFAULT_HIGH_WATERMARK, 1);
+        clientLowWatermark = Math.min(clientHighWatermark,
+                getIntegerProperty("client_low_watermark", DEFAULT_LOW_WATERMARK, 0));
+        serverHighWatermark = getIntegerProperty("server_high_watermark", DEFAULT_HIGH_WATERMARK, 1);
+        serverLowWatermark = Math.min(serverHighWatermark,
+                getIntegerProperty("server_low_watermark", DEFAULT_LOW_WATERMARK, 0));
+        bufferPoolMaxMemory = getIntegerProperty("buffer_pool_max_memory", DEFAULT_BUFFER_POOL_MAX_MEMORY, 0);
+        directBuffers = getIntegerProperty("direct_buffers", DEFAULT_DIRECT_BUFFERS, 0) != 0;
+        readBudget = getIntegerProperty("read_budget", DEFAULT_READ_BUDGET, 1);
+        xmlPassthrough = getIntegerProperty("xml_passthrough", DEFAULT_XML_PASSTHROUGH, 0) != 0;
+        xmlRelay = getIntegerProperty("xml_relay", DEFAULT_XML_RELAY, 0) != 0;
+        xmppTokenizer = getIntegerProperty("xmpp_tokenizer", DEFAULT_XMPP_TOKENIZER, 0) != 0;
+        parserPoolSize = getIntegerProperty("parser_pool_size", DEFAULT_PARSER_POOL_SIZE, 0);
+        maxStanzaSize = getIntegerProperty("max_stanza_size", DEFAULT_MAX_STANZA_SIZE, 1);
+        maxStanzaDepth = getIntegerProperty("max_stanza_depth", DEFAULT_MAX_STANZA_DEPTH, 1);
+        maxAttributes = getIntegerProperty("max_attributes", DEFAULT_MAX_ATTRIBUTES, 0);
     }
 
     public long getNewId() {
-        return numId++;
+        return numId.getAndIncrement();
     }
 
     /**
@@ -66,12 +335,355 @@ public class Configurations implements ConfigurationsConsumer, AuthenticationPro
      * @return The singleton instance.
      */
     public static Configurations getInstance() {
-        if (configurationsInstance == null) {
-            configurationsInstance = new Configurations();
-        }
         return configurationsInstance;
     }
 
+    /**
+     * Gets an integer startup configuration from the system properties.
+     * If the property is not set, or if it's not valid, the default value is returned.
+     *
+     * @param name         The property name (without the {@link #PROPERTIES_PREFIX}).
+     * @param defaultValue The value to be returned if the property is not set or is invalid.
+     * @param minValue     The minimum valid value.
+     * @return The property value.
+     */
+    private static int getIntegerProperty(String name, int defaultValue, int minValue) {
+        Integer value = Integer.getInteger(PROPERTIES_PREFIX + name);
+        if (value == null || value < minValue) {
+            return defaultValue;
+        }
+        return value;
+    }
+
+    /**
+     * Returns the amount of reactors (i.e. threads performing IO operations) the system will use.
+     * Set with the {@code chinese_whispers.reactors} system property (defaults to the amount of processors).
+     *
+     * @return The amount of reactors.
+     */
+    public int getAmountOfReactors() {
+        return amountOfReactors;
+    }
+
+    /**
+     * Returns the max amount of connections (of all reactors) the system will serve at the same time.
+     * Set with the {@code chinese_whispers.max_connections} system property (defaults to 500).
+     *
+     * @return The max amount of connections.
+     */
+    public int getMaxAmountOfConnections() {
+        return maxAmountOfConnections;
+    }
+
+    /**
+     * Returns the backlog of the listening sockets.
+     * Set with the {@code chinese_whispers.listen_backlog} system property (defaults to 50).
+     *
+     * @return The listen backlog.
+     */
+    public int getListenBacklog() {
+        return listenBacklog;
+    }
+
+    /**
+     * Returns the time to live (in seconds) of successful host name resolutions.
+     * Set with the {@code chinese_whispers.dns_ttl} system property (defaults to 60).
+     *
+     * @return The time to live.
+     */
+    public int getDnsTtl() {
+        return dnsTtl;
+    }
+
+    /**
+     * Returns the time to live (in seconds) of failed host name resolutions.
+     * Set with the {@code chinese_whispers.dns_negative_ttl} system property (defaults to 10).
+     *
+     * @return The time to live.
+     */
+    public int getDnsNegativeTtl() {
+        return dnsNegativeTtl;
+    }
+
+    /**
+     * Returns the amount of threads resolving host names.
+     * Set with the {@code chinese_whispers.resolver_threads} system property (defaults to 2).
+     *
+     * @return The amount of threads.
+     */
+    public int getAmountOfResolverThreads() {
+        return amountOfResolverThreads;
+    }
+
+    /**
+     * Returns the max amount of connections being established with the same upstream server at the same time.
+     * Set with the {@code chinese_whispers.max_connects_per_upstream} system property (defaults to 32).
+     *
+     * @return The max amount of connections being established.
+     */
+    public int getMaxConnectsPerUpstream() {
+        return maxConnectsPerUpstream;
+    }
+
+    /**
+     * Returns the amount of consecutive failed connections after which an upstream server is considered down.
+     * Set with the {@code chinese_whispers.circuit_breaker_threshold} system property (defaults to 5).
+     *
+     * @return The amount of consecutive failures.
+     */
+    public int getCircuitBreakerThreshold() {
+        return circuitBreakerThreshold;
+    }
+
+    /**
+     * Returns the time (in seconds) during which connections to an upstream server considered down fail fast.
+     * Set with the {@code chinese_whispers.circuit_breaker_timeout} system property (defaults to 10).
+     *
+     * @return The time.
+     */
+    public int getCircuitBreakerTimeout() {
+        return circuitBreakerTimeout;
+    }
+
+    /**
+     * Returns the backoff delay (in milliseconds) before retrying a failed connection, after the first failure.
+     * Set with the {@code chinese_whispers.connect_backoff_base} system property (defaults to 100).
+     *
+     * @return The base backoff delay.
+     */
+    public int getConnectBackoffBase() {
+        return connectBackoffBase;
+    }
+
+    /**
+     * Returns the max backoff delay (in milliseconds) before retrying a failed connection.
+     * Set with the {@code chinese_whispers.connect_backoff_max} system property (defaults to 5000).
+     *
+     * @return The max backoff delay.
+     */
+    public int getConnectBackoffMax() {
+        return connectBackoffMax;
+    }
+
+    /**
+     * Returns the min amount of idle connections each reactor keeps to each origin server.
+     * Set with the {@code chinese_whispers.upstream_pool_min_size} system property (defaults to 0, so servers
+     * that are not being connected to get no idle connections).
+     *
+     * @return The min size of the upstream connections pool.
+     */
+    public int getUpstreamPoolMinSize() {
+        return upstreamPoolMinSize;
+    }
+
+    /**
+     * Returns the max amount of idle connections each reactor keeps to each origin server.
+     * Set with the {@code chinese_whispers.upstream_pool_max_size} system property (defaults to 8).
+     * Zero disables the upstream connections pool.
+     *
+     * @return The max size of the upstream connections pool.
+     */
+    public int getUpstreamPoolMaxSize() {
+        return upstreamPoolMaxSize;
+    }
+
+    /**
+     * Returns the time (in seconds) after which idle connections to origin servers are closed.
+     * Set with the {@code chinese_whispers.upstream_pool_idle_timeout} system property (defaults to 30).
+     *
+     * @return The idle timeout.
+     */
+    public int getUpstreamPoolIdleTimeout() {
+        return upstreamPoolIdleTimeout;
+    }
+
+    /**
+     * Says if connections to origin servers are started as soon as the client's route is known
+     * (i.e. while the client is still authenticating), instead of once the client authenticated.
+     * Set with the {@code chinese_whispers.speculative_connect} system property (defaults to 1, 0 disables it).
+     *
+     * @return {@code true} if speculative connects are enabled, or {@code false} otherwise.
+     */
+    public boolean isSpeculativeConnectEnabled() {
+        return speculativeConnect;
+    }
+
+    /**
+     * Returns the amount of bytes waiting to be sent to a client that makes its origin server connection
+     * stop reading (till the amount goes down to the client low watermark).
+     * Set with the {@code chinese_whispers.client_high_watermark} system property (defaults to 81920).
+     *
+     * @return The client high watermark.
+     */
+    public int getClientHighWatermark() {
+        return clientHighWatermark;
+    }
+
+    /**
+     * Returns the amount of bytes waiting to be sent to a client that makes its origin server connection
+     * read again (after reaching the client high watermark).
+     * Set with the {@code chinese_whispers.client_low_watermark} system property (defaults to 40960).
+     *
+     * @return The client low watermark.
+     */
+    public int getClientLowWatermark() {
+        return clientLowWatermark;
+    }
+
+    /**
+     * Returns the amount of bytes waiting to be sent to an origin server that makes its client connection
+     * stop reading (till the amount goes down to the server low watermark).
+     * Set with the {@code chinese_whispers.server_high_watermark} system property (defaults to 81920).
+     *
+     * @return The server high watermark.
+     */
+    public int getServerHighWatermark() {
+        return serverHighWatermark;
+    }
+
+    /**
+     * Returns the amount of bytes waiting to be sent to an origin server that makes its client connection
+     * read again (after reaching the server high watermark).
+     * Set with the {@code chinese_whispers.server_low_watermark} system property (defaults to 40960).
+     *
+     * @return The server low watermark.
+     */
+    public int getServerLowWatermark() {
+        return serverLowWatermark;
+    }
+
+    /**
+     * Returns the max amount of memory (in KiB) held by the buffers pool while not being used
+     * (including the buffers cached by each reactor). Buffers released when the pool is full are left to the garbage collector.
+     * Set with the {@code chinese_whispers.buffer_pool_max_memory} system property (defaults to 32768).
+     *
+     * @return The buffers pool max memory.
+     */
+    public int getBufferPoolMaxMemory() {
+        return bufferPoolMaxMemory;
+    }
+
+    /**
+     * Says if buffers only used to perform IO operations (i.e. their content is never accessed as an array)
+     * are allocated in direct memory, which saves a copy when writing to channels.
+     * Set with the {@code chinese_whispers.direct_buffers} system property (defaults to 0, i.e. disabled).
+     *
+     * @return {@code true} if direct buffers are used, or {@code false} otherwise.
+     */
+    public boolean isDirectBuffersEnabled() {
+        return directBuffers;
+    }
+
+    /**
+     * Returns the max amount of bytes read from a connection each time it's selected.
+     * Connections are read till they are drained, or till this budget is spent (the rest is read in the next
+     * selection), so a few heavy senders can't starve the rest of the connections.
+     * Set with the {@code chinese_whispers.read_budget} system property (defaults to 32768).
+     *
+     * @return The read budget.
+     */
+    public int getReadBudget() {
+        return readBudget;
+    }
+
+    /**
+     * Says if proxied XML that is not modified (i.e. everything but l33ted bodies and silenced messages)
+     * is forwarded byte by byte as it was received, instead of being rebuilt from the parser's events.
+     * Set with the {@code chinese_whispers.xml_passthrough} system property (defaults to 1, i.e. enabled).
+     *
+     * @return {@code true} if XML is passed through, or {@code false} otherwise.
+     */
+    public boolean isXmlPassthroughEnabled() {
+        return xmlPassthrough;
+    }
+
+    /**
+     * Says if stanzas of sessions without active policies (i.e. l33t is disabled, and the user is not silenced)
+     * are relayed without being parsed. A lightweight scanner finds where stanzas end (and enforces size and depth
+     * limits), so full parsing is resumed at the next stanza once a policy becomes active.
+     * Set with the {@code chinese_whispers.xml_relay} system property (defaults to 1, i.e. enabled).
+     *
+     * @return {@code true} if stanzas are relayed when possible, or {@code false} otherwise.
+     */
+    public boolean isXmlRelayEnabled() {
+        return xmlRelay;
+    }
+
+    /**
+     * Says if XML is parsed with the built-in XMPP tokenizer instead of Aalto. The tokenizer only accepts
+     * the subset of XML that XMPP allows (i.e. no DTDs, no processing instructions after the prolog,
+     * and only the predefined entities), and it's faster for typical stanzas.
+     * Set with the {@code chinese_whispers.xmpp_tokenizer} system property (defaults to 0, i.e. Aalto is used).
+     *
+     * @return {@code true} if the built-in tokenizer is used, or {@code false} otherwise.
+     */
+    public boolean isXmppTokenizerEnabled() {
+        return xmppTokenizer;
+    }
+
+    /**
+     * Returns the max amount of non-used parsers kept by each reactor, so streams reuse the parsers of closed ones.
+     * Only the built-in XMPP tokenizer can be reused (Aalto's parsers are created by a shared factory instead,
+     * and they recycle their own buffers).
+     * Set with the {@code chinese_whispers.parser_pool_size} system property (defaults to 256, zero disables it).
+     *
+     * @return The parsers pool size.
+     */
+    public int getParserPoolSize() {
+        return parserPoolSize;
+    }
+
+    /**
+     * Returns the max size (in bytes) of a stanza, from the start of its start tag to the end of its end tag.
+     * Streams with bigger stanzas are closed with a policy violation error.
+     * Set with the {@code chinese_whispers.max_stanza_size} system property (defaults to 65536).
+     *
+     * @return The max size of a stanza.
+     */
+    public int getMaxStanzaSize() {
+        return maxStanzaSize;
+    }
+
+    /**
+     * Returns the max depth of elements in a stanza (the stanza's element has depth 1, and empty elements count).
+     * Streams with deeper stanzas are closed with a policy violation error.
+     * Set with the {@code chinese_whispers.max_stanza_depth} system property (defaults to 9999).
+     *
+     * @return The max depth of elements in a stanza.
+     */
+    public int getMaxStanzaDepth() {
+        return maxStanzaDepth;
+    }
+
+    /**
+     * Returns the max amount of attributes (including namespace declarations) of an element.
+     * Streams with elements that have more attributes are closed with a policy violation error.
+     * Set with the {@code chinese_whispers.max_attributes} system property (defaults to 256).
+     *
+     * @return The max amount of attributes of an element.
+     */
+    public int getMaxAttributes() {
+        return maxAttributes;
+    }
+
+    /**
+     * Returns the origin servers in use (i.e. the default server and those to which users are multiplexed).
+     * Addresses are not resolved.
+     *
+     * @return A set containing the origin servers' addresses.
+     */
+    public Set<InetSocketAddress> getOriginServers() {
+        Set<InetSocketAddress> servers = new HashSet<>();
+        HostAndPort defaultServer = this.defaultServer;
+        if (defaultServer != null) {
+            servers.add(InetSocketAddress.createUnresolved(defaultServer.host, defaultServer.port));
+        }
+        for (HostAndPort each : multiplexedUsers.values()) {
+            servers.add(InetSocketAddress.createUnresolved(each.host, each.port));
+        }
+        return servers;
+    }
+
     /**
      * Returns the l337 property (when {@code true}, system is L337ing messages).
      *
@@ -131,6 +743,18 @@ public class Configurations implements ConfigurationsConsumer, AuthenticationPro
         return getMultiplexedServerPort(clientJid);
     }
 
+    @Override
+    public InetSocketAddress getDomainServer(String domain) {
+        String suffix = "@" + domain;
+        for (String clientJid : multiplexedUsers.keySet()) {
+            if (clientJid.endsWith(suffix)) {
+                return null; // Users of this domain might be routed to different servers
+            }
+        }
+        HostAndPort defaultServer = this.defaultServer;
+        return InetSocketAddress.createUnresolved(defaultServer.host, defaultServer.port);
+    }
+
     @Override
     public boolean isUserSilenced(String clientJid) {
         return isSilenced(clientJid);
@@ -185,11 +809,13 @@ public class Configurations implements ConfigurationsConsumer, AuthenticationPro
     }
 
     public String getDefaultServerHost() {
+        HostAndPort defaultServer = this.defaultServer;
         if (defaultServer != null) return defaultServer.host;
         return null;
     }
 
     public String getDefaultServerPort() {
+        HostAndPort defaultServer = this.defaultServer;
         if (defaultServer != null) return String.valueOf(defaultServer.port);
         return null;
     }
@@ -200,10 +826,6 @@ public class Configurations implements ConfigurationsConsumer, AuthenticationPro
             // Rest of params are checked when creating HostAndPort object
             throw new IllegalArgumentException();
         }
-        HostAndPort hap = multiplexedUsers.get(clientJid);
-        if (hap == null) {
-            hap = defaultServer;
-        }
         multiplexedUsers.put(clientJid, new HostAndPort(host, port));
     }
 
@@ -6,6 +6,7 @@ import java.util.Set;
 
 /**
  * This class implements a method to get different ids each time it is called.
+ * The method is synchronized, as it can be called by any reactor.
  */
 public class IdGenerator {
 
@@ -39,7 +40,7 @@ public class IdGenerator {
      *
      * @return A Stream Id (RFC 6120, section 4.7.3) for the response stream.
      */
-    public static String generateId() {
+    public static synchronized String generateId() {
 
         String result;
         int count = 0;
@@ -21,7 +21,7 @@ public class L337Processor implements ApplicationProcessor {
 	/**
 	 * Holds the singleton instance.
 	 */
-	private static L337Processor singleton;
+	private static final L337Processor singleton = new L337Processor();
 
 	/**
 	 * Private constructor to implement singleton pattern.
@@ -32,45 +32,52 @@ public class L337Processor implements ApplicationProcessor {
 
 
 	public static L337Processor getInstance() {
-		if (singleton == null) {
-			singleton = new L337Processor();
-		}
 		return singleton;
 	}
 
 
 	@Override
-	public void processMessageBody(StringBuilder stringBuilder, char[] message, boolean isInBodyTag) {
+	public void processMessageBody(StringBuilder stringBuilder, char[] message, int offset, int length,
+	                               boolean isInBodyTag) {
 		if (stringBuilder == null || message == null) {
 			LogHelper.getLogger(getClass()).warn("A null stringBuilder or message is being passed to l337Processor");
 			return;
 		}
+		if (offset < 0 || length < 0 || offset + length > message.length) {
+			throw new IllegalArgumentException();
+		}
+		boolean l337 = isInBodyTag && configurations.isProcessL337();
 		//Append l3373d or normal characters as appropriate
-		for (char c : message) {
+		for (int i = offset; i < offset + length; i++) {
+			char c = message[i];
 			switch (c) {
 				case 'A':
 				case 'a':
-					stringBuilder.append((isInBodyTag && configurations.isProcessL337())? "4": c);
+					stringBuilder.append(l337 ? '4' : c); // Both chars (a String would make c to be boxed)
 					break;
 				case 'E':
 				case 'e':
-					stringBuilder.append((isInBodyTag && configurations.isProcessL337())? "3": c);
+					stringBuilder.append(l337 ? '3' : c);
 					break;
 				case 'I':
 				case 'i':
-					stringBuilder.append((isInBodyTag && configurations.isProcessL337())? "1": c);
+					stringBuilder.append(l337 ? '1' : c);
 					break;
 				case 'O':
 				case 'o':
-					stringBuilder.append((isInBodyTag && configurations.isProcessL337())? "0": c);
+					stringBuilder.append(l337 ? '0' : c);
 					break;
 				case 'C':
 				case 'c':
-					stringBuilder.append((isInBodyTag && configurations.isProcessL337())? "&lt;": c);
+					if (l337) {
+						stringBuilder.append("&lt;");
+					} else {
+						stringBuilder.append(c);
+					}
 					break;
 				case 'T':
 				case 't':
-					stringBuilder.append((isInBodyTag && configurations.isProcessL337())? "7": c);
+					stringBuilder.append(l337 ? '7' : c);
 					break;
 				case '<':
 					stringBuilder.append("&lt;");
@@ -95,6 +102,12 @@ public class L337Processor implements ApplicationProcessor {
 	}
 
 
+	@Override
+	public boolean isProcessingMessageBodies() {
+		return configurations.isProcessL337();
+	}
+
+
 	/**
 	 * Calculates the final message length after processing the given {@code message}.
 	 *
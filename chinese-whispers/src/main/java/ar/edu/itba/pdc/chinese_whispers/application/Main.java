@@ -2,6 +2,7 @@ package ar.edu.itba.pdc.chinese_whispers.application;
 
 import ar.edu.itba.pdc.chinese_whispers.administration_protocol.handlers.AdminAcceptorHandler;
 import ar.edu.itba.pdc.chinese_whispers.connection.TCPSelector;
+import ar.edu.itba.pdc.chinese_whispers.connection.TCPSelectorsManager;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.handlers.ClosingManager;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.handlers.StreamErrorsManager;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.handlers.XMPPAcceptorHandler;
@@ -48,7 +49,13 @@ public class Main {
 		Logger logger = LogHelper.getLogger(Main.class);
 		logger.info("Application started at {}", LocalDateTime.now());
 
-        TCPSelector selector = TCPSelector.getInstance();
+        TCPSelectorsManager selectorsManager = TCPSelectorsManager.getInstance();
+        if (selectorsManager == null) {
+            logger.error("Couldn't open selectors. Aborting.");
+            return;
+        }
+        // Server socket channels are registered in the main selector, which will spread connections among reactors.
+        TCPSelector selector = selectorsManager.getMainSelector();
 
         XMPPAcceptorHandler acceptorHandler = new XMPPAcceptorHandler(L337Processor.getInstance()
                 , Configurations.getInstance(), MetricsManager.getInstance());
@@ -79,11 +86,8 @@ public class Main {
         StreamErrorsManager.getInstance();
 
 
-        // Main loop
-        while (true) {
-            // Before select tasks...
-            selector.doSelect(); // Perform select operations...
-            // After select tasks...
-        }
+        // Main loop (this thread will run the main selector, while the rest of reactors run in their own threads)
+        logger.info("Starting {} reactors", selectorsManager.getAmountOfSelectors());
+        selectorsManager.run();
     }
 }
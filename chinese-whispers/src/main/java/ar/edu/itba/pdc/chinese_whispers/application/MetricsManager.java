@@ -1,95 +1,233 @@
 package ar.edu.itba.pdc.chinese_whispers.application;
 
 import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.MetricsProvider;
+import ar.edu.itba.pdc.chinese_whispers.connection.BuffersManager;
+import ar.edu.itba.pdc.chinese_whispers.connection.TCPSelectorsManager;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Created by dgrimau on 03/11/16.
+ * <p>
+ * Metrics are updated by all reactors, so counters are kept in {@link LongAdder}s,
+ * which avoid contention between threads updating them at the same time.
  */
 public class MetricsManager implements MetricsProvider {
 
     /**
      * Number of bytes read by the proxy
      */
-    private long readBytes;
+    private final LongAdder readBytes = new LongAdder();
 
     /**
      * Number of bytes sent by the proxy
      */
-    private long sentBytes;
+    private final LongAdder sentBytes = new LongAdder();
 
     /**
      * Number of bytes read by the proxy for the administration protocol
      */
-    private long administrationReadBytes;
+    private final LongAdder administrationReadBytes = new LongAdder();
 
     /**
      * Number of bytes sent by the proxy for the administration protocol
      */
-    private long administrationSentBytes;
+    private final LongAdder administrationSentBytes = new LongAdder();
 
     /**
      * Number of messages silenced by the proxy
      */
-    private long numMessagesSilenced;
+    private final LongAdder numMessagesSilenced = new LongAdder();
 
     /**
      * Total number of connexion to proxy
      */
-    private long numAccesses;//TODO check if this was it?
+    private final LongAdder numAccesses = new LongAdder();//TODO check if this was it?
+
+    /**
+     * Number of times accepting connections was paused because the connections limit was reached
+     */
+    private final LongAdder numAcceptPauses = new LongAdder();
+
+    /**
+     * Time (in milliseconds) during which accepting connections was paused
+     */
+    private final LongAdder acceptPausesTime = new LongAdder();
+
+    /**
+     * Number of connections to origin servers taken from the pool (i.e. already established)
+     */
+    private final LongAdder upstreamPoolHits = new LongAdder();
+
+    /**
+     * Number of connections to origin servers that had to be established because the pool was empty
+     */
+    private final LongAdder upstreamPoolMisses = new LongAdder();
+
+    /**
+     * Number of sessions that used the connection to the origin server started while negotiating with the client
+     */
+    private final LongAdder speculativeConnectHits = new LongAdder();
+
+    /**
+     * Number of connections started while negotiating with the client that were discarded
+     */
+    private final LongAdder speculativeConnectMisses = new LongAdder();
+
+    /**
+     * Time (in milliseconds) of login latency saved by connecting to origin servers while negotiating
+     */
+    private final LongAdder speculativeConnectSavedTime = new LongAdder();
+
+    /**
+     * Number of times in which a connection stopped reading because its peer had too much data waiting to be sent
+     */
+    private final LongAdder backpressurePauses = new LongAdder();
+
+    /**
+     * Time (in milliseconds) during which connections stopped reading because of backpressure
+     */
+    private final LongAdder backpressurePausedTime = new LongAdder();
+
+    /**
+     * Number of buffers taken from the buffers pool
+     */
+    private final LongAdder bufferPoolHits = new LongAdder();
+
+    /**
+     * Number of buffers allocated because the buffers pool had none of the requested size
+     */
+    private final LongAdder bufferPoolMisses = new LongAdder();
+
+    /**
+     * Number of parsers taken from the parsers pool (only tokenizers are pooled, so Aalto parsers are not counted)
+     */
+    private final LongAdder parserPoolHits = new LongAdder();
+
+    /**
+     * Number of parsers created because the parsers pool had none (only tokenizers are pooled, so Aalto parsers
+     * are not counted)
+     */
+    private final LongAdder parserPoolMisses = new LongAdder();
 
     /**
      * Holds the singleton instance.
      */
-    private static MetricsManager singleton;
+    private static final MetricsManager singleton = new MetricsManager();
 
     private MetricsManager() {
-        readBytes=0;
-        sentBytes=0;
-        numAccesses=0;
     }
 
     public static MetricsProvider getInstance() {
-        if (singleton == null) {
-            singleton = new MetricsManager();
-        }
         return singleton;
     }
 
     public Map<String,String> getMetrics(){
         Map<String,String> metrics = new HashMap();
-        metrics.put("numAccesses",String.valueOf(numAccesses));
-        metrics.put("sentBytes",String.valueOf(sentBytes));
-        metrics.put("readBytes",String.valueOf(readBytes));
-        metrics.put("administrationReadBytes",String.valueOf(administrationReadBytes));
-        metrics.put("administrationSentBytes",String.valueOf(administrationSentBytes));
-        metrics.put("numSilencedMessages",String.valueOf(numMessagesSilenced));
+        metrics.put("numAccesses",String.valueOf(numAccesses.sum()));
+        metrics.put("sentBytes",String.valueOf(sentBytes.sum()));
+        metrics.put("readBytes",String.valueOf(readBytes.sum()));
+        metrics.put("administrationReadBytes",String.valueOf(administrationReadBytes.sum()));
+        metrics.put("administrationSentBytes",String.valueOf(administrationSentBytes.sum()));
+        metrics.put("numSilencedMessages",String.valueOf(numMessagesSilenced.sum()));
+        TCPSelectorsManager selectorsManager = TCPSelectorsManager.getInstance();
+        if (selectorsManager != null) {
+            metrics.put("numActiveConnections",String.valueOf(selectorsManager.getAmountOfConnections()));
+        }
+        metrics.put("numAcceptPauses",String.valueOf(numAcceptPauses.sum()));
+        metrics.put("acceptPausesTime",String.valueOf(acceptPausesTime.sum()));
+        metrics.put("numUpstreamPoolHits",String.valueOf(upstreamPoolHits.sum()));
+        metrics.put("numUpstreamPoolMisses",String.valueOf(upstreamPoolMisses.sum()));
+        metrics.put("numSpeculativeConnectHits",String.valueOf(speculativeConnectHits.sum()));
+        metrics.put("numSpeculativeConnectMisses",String.valueOf(speculativeConnectMisses.sum()));
+        metrics.put("speculativeConnectSavedTime",String.valueOf(speculativeConnectSavedTime.sum()));
+        metrics.put("numBackpressurePauses",String.valueOf(backpressurePauses.sum()));
+        metrics.put("backpressurePausedTime",String.valueOf(backpressurePausedTime.sum()));
+        metrics.put("numBufferPoolHits",String.valueOf(bufferPoolHits.sum()));
+        metrics.put("numBufferPoolMisses",String.valueOf(bufferPoolMisses.sum()));
+        BuffersManager buffersManager = BuffersManager.getInstance();
+        metrics.put("bufferPoolIdleBytes",String.valueOf(buffersManager.getIdleBytes()));
+        metrics.put("bufferPoolUsedBytes",String.valueOf(buffersManager.getUsedBytes()));
+        metrics.put("numParserPoolHits",String.valueOf(parserPoolHits.sum()));
+        metrics.put("numParserPoolMisses",String.valueOf(parserPoolMisses.sum()));
         return metrics;
     }
 
     public void addReadBytes(long readBytes){
-        this.readBytes+=readBytes;
+        this.readBytes.add(readBytes);
     }
 
     public void addSentBytes(long sentBytes){
-        this.sentBytes+=sentBytes;
+        this.sentBytes.add(sentBytes);
     }
 
     public void addAccesses(long numAccesses){
-        this.numAccesses+=numAccesses;
+        this.numAccesses.add(numAccesses);
     }
 
     public void addAdministrationReadBytes(long administrationReadBytes){
-        this.administrationReadBytes+=administrationReadBytes;
+        this.administrationReadBytes.add(administrationReadBytes);
     }
 
     public void addAdministrationSentBytes(long administrationSentBytes){
-        this.administrationSentBytes+=administrationSentBytes;
+        this.administrationSentBytes.add(administrationSentBytes);
     }
 
     public void addNumSilencedMessages(long numMessagesSilenced){
-        this.numMessagesSilenced+=numMessagesSilenced;
+        this.numMessagesSilenced.add(numMessagesSilenced);
+    }
+
+    public void addAcceptPauses(long numAcceptPauses){
+        this.numAcceptPauses.add(numAcceptPauses);
+    }
+
+    public void addAcceptPausesTime(long acceptPausesTime){
+        this.acceptPausesTime.add(acceptPausesTime);
+    }
+
+    public void addUpstreamPoolHits(long upstreamPoolHits){
+        this.upstreamPoolHits.add(upstreamPoolHits);
+    }
+
+    public void addUpstreamPoolMisses(long upstreamPoolMisses){
+        this.upstreamPoolMisses.add(upstreamPoolMisses);
+    }
+
+    public void addSpeculativeConnectHits(long speculativeConnectHits){
+        this.speculativeConnectHits.add(speculativeConnectHits);
+    }
+
+    public void addSpeculativeConnectMisses(long speculativeConnectMisses){
+        this.speculativeConnectMisses.add(speculativeConnectMisses);
+    }
+
+    public void addSpeculativeConnectSavedTime(long speculativeConnectSavedTime){
+        this.speculativeConnectSavedTime.add(speculativeConnectSavedTime);
+    }
+
+    public void addBackpressurePauses(long backpressurePauses){
+        this.backpressurePauses.add(backpressurePauses);
+    }
+
+    public void addBackpressurePausedTime(long backpressurePausedTime){
+        this.backpressurePausedTime.add(backpressurePausedTime);
+    }
+
+    public void addBufferPoolHits(long bufferPoolHits){
+        this.bufferPoolHits.add(bufferPoolHits);
+    }
+
+    public void addBufferPoolMisses(long bufferPoolMisses){
+        this.bufferPoolMisses.add(bufferPoolMisses);
+    }
+
+    public void addParserPoolHits(long parserPoolHits){
+        this.parserPoolHits.add(parserPoolHits);
+    }
+
+    public void addParserPoolMisses(long parserPoolMisses){
+        this.parserPoolMisses.add(parserPoolMisses);
     }
 }
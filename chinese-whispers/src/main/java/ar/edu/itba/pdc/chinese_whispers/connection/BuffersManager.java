@@ -0,0 +1,393 @@
+package ar.edu.itba.pdc.chinese_whispers.connection;
+
+import ar.edu.itba.pdc.chinese_whispers.application.Configurations;
+import ar.edu.itba.pdc.chinese_whispers.application.MetricsManager;
+
+import java.nio.ByteBuffer;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class pools the {@link ByteBuffer}s used by handlers, so they are not allocated (and collected)
+ * for each connection or message.
+ * <p>
+ * Buffers are grouped in size classes (512 B, 2 KiB, 8 KiB and 64 KiB), and each request is served with the smallest
+ * class that fits it. Bigger requests are just allocated (and never pooled).
+ * Each reactor keeps a small cache of each class, accessed with no synchronization at all,
+ * which overflows to (and is refilled from) lock-free stacks shared by all reactors.
+ * <p>
+ * The memory held by non-used buffers (including those in the reactors' caches) is bounded: buffers released
+ * when the pool is full are left to the garbage collector, even if their reactor's cache has room.
+ * Buffers that were not used during a whole trim period are dropped (see {@link #trim(long)}),
+ * so the pool shrinks back after a load peak.
+ * <p>
+ * Buffers only used to perform IO operations can be allocated in direct memory (see {@link #takeIOBuffer(int)}).
+ * <p>
+ * This class implements the singleton pattern.
+ */
+public final class BuffersManager {
+
+    /**
+     * Period (in milliseconds) in which idle buffers are trimmed.
+     */
+    /* package */ static final int TRIM_PERIOD = 10000;
+    /**
+     * Capacities of the pooled buffers.
+     */
+    private static final int[] SIZE_CLASSES = {512, 2 * 1024, 8 * 1024, 64 * 1024};
+    /**
+     * Max amount of bytes of each size class kept by a reactor's cache.
+     */
+    private static final int LOCAL_CACHE_BYTES = 256 * 1024;
+
+    /**
+     * Max amount of bytes held by non-used buffers.
+     */
+    private final long maxIdleBytes;
+    /**
+     * Says if IO buffers are allocated in direct memory.
+     */
+    private final boolean directBuffers;
+    /**
+     * Shared stacks of heap buffers (one for each size class).
+     */
+    private final SharedStack[] heapStacks;
+    /**
+     * Shared stacks of direct buffers (one for each size class).
+     */
+    private final SharedStack[] directStacks;
+    /**
+     * Amount of bytes held by buffers in the shared stacks.
+     */
+    private final AtomicLong sharedIdleBytes;
+    /**
+     * Amount of bytes held by buffers in the reactors' caches.
+     */
+    private final LongAdder localIdleBytes;
+    /**
+     * Amount of bytes held by buffers that were taken and not released yet.
+     */
+    private final LongAdder usedBytes;
+    /**
+     * Holds the timestamp in which the shared stacks must be trimmed again.
+     */
+    private final AtomicLong nextSharedTrim;
+    /**
+     * Holds each reactor's cache.
+     */
+    private final ThreadLocal<LocalCache> localCaches;
+
+    /**
+     * Holds the singleton.
+     */
+    private static final BuffersManager singleton = new BuffersManager();
+
+
+    /**
+     * Private constructor (for singleton pattern).
+     */
+    private BuffersManager() {
+        Configurations configurations = Configurations.getInstance();
+        this.maxIdleBytes = configurations.getBufferPoolMaxMemory() * 1024L;
+        this.directBuffers = configurations.isDirectBuffersEnabled();
+        this.heapStacks = new SharedStack[SIZE_CLASSES.length];
+        this.directStacks = new SharedStack[SIZE_CLASSES.length];
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            heapStacks[i] = new SharedStack();
+            directStacks[i] = new SharedStack();
+        }
+        this.sharedIdleBytes = new AtomicLong(0);
+        this.localIdleBytes = new LongAdder();
+        this.usedBytes = new LongAdder();
+        this.nextSharedTrim = new AtomicLong(0);
+        this.localCaches = ThreadLocal.withInitial(LocalCache::new);
+    }
+
+    /**
+     * Gets the singleton instance.
+     *
+     * @return The only instance of this class.
+     */
+    public static BuffersManager getInstance() {
+        return singleton;
+    }
+
+    /**
+     * Takes a heap buffer with at least the given capacity.
+     * The buffer must be given back with {@link #release(ByteBuffer)} once it's not used anymore.
+     *
+     * @param capacity The min capacity of the buffer.
+     * @return A cleared buffer (i.e. its position is zero, and its limit is its capacity).
+     */
+    public ByteBuffer take(int capacity) {
+        return take(capacity, false);
+    }
+
+    /**
+     * Takes a buffer with at least the given capacity, which will only be used to perform IO operations
+     * (i.e. its content won't be accessed as an array). It's a direct buffer if they are enabled.
+     * The buffer must be given back with {@link #release(ByteBuffer)} once it's not used anymore.
+     *
+     * @param capacity The min capacity of the buffer.
+     * @return A cleared buffer (i.e. its position is zero, and its limit is its capacity).
+     */
+    public ByteBuffer takeIOBuffer(int capacity) {
+        return take(capacity, directBuffers);
+    }
+
+    /**
+     * Gives back a buffer taken from this pool. It must not be used after calling this method.
+     *
+     * @param buffer The buffer to be released.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            throw new IllegalArgumentException();
+        }
+        int capacity = buffer.capacity();
+        usedBytes.add(-capacity);
+        int index = sizeClassIndex(capacity);
+        if (index < 0 || SIZE_CLASSES[index] != capacity) {
+            return; // Not a pooled buffer
+        }
+        if (getIdleBytes() + capacity > maxIdleBytes) {
+            return; // The pool is full, so the buffer is left to the garbage collector
+        }
+        if (localCaches.get().push(buffer, index)) {
+            localIdleBytes.add(capacity);
+            return;
+        }
+        // The reactor's cache is full
+        sharedIdleBytes.addAndGet(capacity);
+        stacks(buffer.isDirect())[index].push(buffer);
+    }
+
+    /**
+     * Drops the buffers that were not used since the last trim.
+     * Each reactor must call this method periodically (every {@link #TRIM_PERIOD} milliseconds),
+     * as it trims the calling reactor's cache (the shared stacks are trimmed by only one of them).
+     *
+     * @param currentTime The actual timestamp.
+     */
+    public void trim(long currentTime) {
+        localIdleBytes.add(-localCaches.get().trim());
+        long next = nextSharedTrim.get();
+        if (currentTime < next || !nextSharedTrim.compareAndSet(next, currentTime + TRIM_PERIOD / 2)) {
+            return; // Another reactor trimmed them during this period
+        }
+        for (SharedStack stack : heapStacks) {
+            sharedIdleBytes.addAndGet(-stack.trim());
+        }
+        for (SharedStack stack : directStacks) {
+            sharedIdleBytes.addAndGet(-stack.trim());
+        }
+    }
+
+    /**
+     * Returns the amount of bytes held by buffers that are not being used.
+     *
+     * @return The amount of idle bytes.
+     */
+    public long getIdleBytes() {
+        return sharedIdleBytes.get() + localIdleBytes.sum();
+    }
+
+    /**
+     * Returns the amount of bytes held by buffers that were taken and not released yet.
+     *
+     * @return The amount of used bytes.
+     */
+    public long getUsedBytes() {
+        return usedBytes.sum();
+    }
+
+    /**
+     * Takes a buffer with at least the given capacity.
+     *
+     * @param capacity The min capacity of the buffer.
+     * @param direct   Says if the buffer must be a direct one.
+     * @return A cleared buffer.
+     */
+    private ByteBuffer take(int capacity, boolean direct) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException();
+        }
+        int index = sizeClassIndex(capacity);
+        if (index < 0) {
+            usedBytes.add(capacity);
+            return allocate(capacity, direct); // Too big to be pooled
+        }
+        ByteBuffer buffer = localCaches.get().pop(direct, index);
+        if (buffer != null) {
+            localIdleBytes.add(-buffer.capacity());
+        } else if ((buffer = stacks(direct)[index].pop()) != null) {
+            sharedIdleBytes.addAndGet(-buffer.capacity());
+        }
+        if (buffer == null) {
+            buffer = allocate(SIZE_CLASSES[index], direct);
+            MetricsManager.getInstance().addBufferPoolMisses(1);
+        } else {
+            buffer.clear();
+            MetricsManager.getInstance().addBufferPoolHits(1);
+        }
+        usedBytes.add(buffer.capacity());
+        return buffer;
+    }
+
+    /**
+     * Returns the shared stacks of heap or direct buffers.
+     *
+     * @param direct Says if the stacks of direct buffers must be returned.
+     * @return The shared stacks.
+     */
+    private SharedStack[] stacks(boolean direct) {
+        return direct ? directStacks : heapStacks;
+    }
+
+    /**
+     * Allocates a new buffer.
+     *
+     * @param capacity The buffer's capacity.
+     * @param direct   Says if the buffer must be a direct one.
+     * @return The new buffer.
+     */
+    private static ByteBuffer allocate(int capacity, boolean direct) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Returns the index of the smallest size class that can hold the given capacity.
+     *
+     * @param capacity The capacity.
+     * @return The size class index, or -1 if the capacity is bigger than all classes.
+     */
+    private static int sizeClassIndex(int capacity) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (capacity <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * A lock-free stack of buffers of the same size class, shared by all reactors.
+     * It keeps track of the least amount of buffers it held since the last trim
+     * (i.e. those buffers were not used during the whole period).
+     */
+    private static final class SharedStack {
+
+        private final Deque<ByteBuffer> buffers = new ConcurrentLinkedDeque<>();
+        private final AtomicInteger size = new AtomicInteger(0);
+        private final AtomicInteger minSize = new AtomicInteger(0);
+
+        private void push(ByteBuffer buffer) {
+            buffers.offerFirst(buffer);
+            size.incrementAndGet();
+        }
+
+        private ByteBuffer pop() {
+            ByteBuffer buffer = buffers.pollFirst();
+            if (buffer != null) {
+                minSize.accumulateAndGet(size.decrementAndGet(), Math::min);
+            }
+            return buffer;
+        }
+
+        /**
+         * Drops the buffers that were not used since the last trim.
+         *
+         * @return The amount of dropped bytes.
+         */
+        private long trim() {
+            int unused = minSize.getAndSet(size.get());
+            long droppedBytes = 0;
+            ByteBuffer buffer;
+            while (unused-- > 0 && (buffer = buffers.pollLast()) != null) {
+                size.decrementAndGet();
+                droppedBytes += buffer.capacity();
+            }
+            minSize.accumulateAndGet(size.get(), Math::min);
+            return droppedBytes;
+        }
+    }
+
+    /**
+     * A reactor's cache of buffers, holding a bounded stack of each size class (both heap and direct ones).
+     * It is only accessed by its reactor, so it needs no synchronization.
+     */
+    private static final class LocalCache {
+
+        private final ByteBuffer[][] heapBuffers;
+        private final ByteBuffer[][] directBuffers;
+        private final int[] heapSizes;
+        private final int[] directSizes;
+        /**
+         * Least amount of buffers of each class held since the last trim (heap ones, and then direct ones).
+         */
+        private final int[] minSizes;
+
+        private LocalCache() {
+            this.heapBuffers = new ByteBuffer[SIZE_CLASSES.length][];
+            this.directBuffers = new ByteBuffer[SIZE_CLASSES.length][];
+            for (int i = 0; i < SIZE_CLASSES.length; i++) {
+                heapBuffers[i] = new ByteBuffer[Math.max(1, LOCAL_CACHE_BYTES / SIZE_CLASSES[i])];
+                directBuffers[i] = new ByteBuffer[heapBuffers[i].length];
+            }
+            this.heapSizes = new int[SIZE_CLASSES.length];
+            this.directSizes = new int[SIZE_CLASSES.length];
+            this.minSizes = new int[2 * SIZE_CLASSES.length];
+        }
+
+        private boolean push(ByteBuffer buffer, int index) {
+            boolean direct = buffer.isDirect();
+            ByteBuffer[] buffers = (direct ? directBuffers : heapBuffers)[index];
+            int[] sizes = direct ? directSizes : heapSizes;
+            if (sizes[index] == buffers.length) {
+                return false;
+            }
+            buffers[sizes[index]++] = buffer;
+            return true;
+        }
+
+        private ByteBuffer pop(boolean direct, int index) {
+            ByteBuffer[] buffers = (direct ? directBuffers : heapBuffers)[index];
+            int[] sizes = direct ? directSizes : heapSizes;
+            if (sizes[index] == 0) {
+                return null;
+            }
+            ByteBuffer buffer = buffers[--sizes[index]];
+            buffers[sizes[index]] = null;
+            int minIndex = direct ? SIZE_CLASSES.length + index : index;
+            minSizes[minIndex] = Math.min(minSizes[minIndex], sizes[index]);
+            return buffer;
+        }
+
+        /**
+         * Drops the buffers that were not used since the last trim.
+         *
+         * @return The amount of dropped bytes.
+         */
+        private long trim() {
+            long droppedBytes = 0;
+            for (int i = 0; i < SIZE_CLASSES.length; i++) {
+                droppedBytes += trim(heapBuffers[i], heapSizes, i, i);
+                droppedBytes += trim(directBuffers[i], directSizes, i, SIZE_CLASSES.length + i);
+            }
+            return droppedBytes;
+        }
+
+        private long trim(ByteBuffer[] buffers, int[] sizes, int index, int minIndex) {
+            int unused = Math.min(minSizes[minIndex], sizes[index]);
+            for (int i = 0; i < unused; i++) {
+                buffers[--sizes[index]] = null;
+            }
+            minSizes[minIndex] = sizes[index];
+            return (long) unused * SIZE_CLASSES[index];
+        }
+    }
+}
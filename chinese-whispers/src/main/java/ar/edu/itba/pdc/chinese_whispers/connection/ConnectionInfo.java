@@ -0,0 +1,57 @@
+package ar.edu.itba.pdc.chinese_whispers.connection;
+
+import java.net.SocketAddress;
+
+/**
+ * Holds information about an accepted connection, as stored in the connections registry of the {@link TCPSelector}
+ * serving it. Instances are immutable, so they can be read by any thread.
+ */
+public final class ConnectionInfo {
+
+    /**
+     * Index of the reactor serving the connection.
+     */
+    private final int reactorId;
+    /**
+     * The remote address of the connection (might be {@code null} if it couldn't be known).
+     */
+    private final SocketAddress remoteAddress;
+    /**
+     * Name of the handler that was attached to the connection when it was accepted.
+     */
+    private final String handlerName;
+    /**
+     * When the connection was accepted.
+     */
+    private final long acceptedTimestamp;
+
+
+    /* package */ ConnectionInfo(int reactorId, SocketAddress remoteAddress, String handlerName,
+                                 long acceptedTimestamp) {
+        this.reactorId = reactorId;
+        this.remoteAddress = remoteAddress;
+        this.handlerName = handlerName;
+        this.acceptedTimestamp = acceptedTimestamp;
+    }
+
+    public int getReactorId() {
+        return reactorId;
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public String getHandlerName() {
+        return handlerName;
+    }
+
+    public long getAcceptedTimestamp() {
+        return acceptedTimestamp;
+    }
+
+    @Override
+    public String toString() {
+        return handlerName + "@" + remoteAddress + " (reactor " + reactorId + ", accepted at " + acceptedTimestamp + ")";
+    }
+}
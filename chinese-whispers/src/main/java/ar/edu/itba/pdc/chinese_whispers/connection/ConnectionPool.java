@@ -0,0 +1,398 @@
+package ar.edu.itba.pdc.chinese_whispers.connection;
+
+import ar.edu.itba.pdc.chinese_whispers.application.LogHelper;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+
+/**
+ * A reactor's pool of connections already established with upstream servers, waiting to be used.
+ * Taking a connection from the pool saves the TCP handshake latency to the one requesting it.
+ * <p>
+ * The pool is refilled periodically (see {@link #refill(Collection, long)}) for the given servers.
+ * The amount of connections kept for each server is computed from the rate at which connections to it are
+ * taken (i.e. an exponentially weighted moving average), between a min and a max size.
+ * Connections that stay idle for too long are evicted (servers might close them anyway),
+ * as well as those of servers that are not in use anymore.
+ * <p>
+ * Note: This class is not thread safe. It must only be used by the reactor that owns it.
+ */
+/* package */ final class ConnectionPool {
+
+    /**
+     * Weight of the last period when computing the rate at which connections are taken.
+     */
+    private static final double RATE_ALPHA = 0.3;
+    /**
+     * Amount of refill periods of demand the pool tries to keep connections for.
+     */
+    private static final int TARGET_PERIODS = 2;
+    /**
+     * Rates below this one are taken as zero (the moving average never reaches zero by itself,
+     * so servers that stopped being used would keep a connection forever).
+     */
+    private static final double MIN_RATE = 0.05;
+
+    /**
+     * The reactor that owns this pool.
+     */
+    private final TCPSelector reactor;
+    /**
+     * Min amount of idle connections kept for each server.
+     */
+    private final int minSize;
+    /**
+     * Max amount of idle connections kept for each server.
+     */
+    private final int maxSize;
+    /**
+     * Time (in milliseconds) after which idle connections are evicted.
+     */
+    private final long idleTimeout;
+    /**
+     * Holds the pooled connections of each server, by "host:port".
+     */
+    private final Map<String, PoolEntry> entries;
+    /**
+     * Buffer used to read from idle connections (they are not supposed to receive anything).
+     */
+    private final ByteBuffer discardBuffer;
+
+    private final Logger logger;
+
+
+    /* package */ ConnectionPool(TCPSelector reactor, int minSize, int maxSize, long idleTimeout) {
+        if (reactor == null || minSize < 0 || maxSize < minSize || idleTimeout < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.reactor = reactor;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.idleTimeout = idleTimeout;
+        this.entries = new HashMap<>();
+        this.discardBuffer = ByteBuffer.allocate(64);
+        this.logger = LogHelper.getLogger(getClass());
+    }
+
+    /**
+     * Says if this pool keeps connections (i.e. its max size is not zero).
+     *
+     * @return {@code true} if the pool is enabled, or {@code false} otherwise.
+     */
+    /* package */ boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * Takes an idle connection to the given server, if there is any.
+     * The returned key has no interest operations and must be attached the handler that will use it.
+     *
+     * @param host The server's host.
+     * @param port The server's port.
+     * @return The {@link SelectionKey} of a connected channel, or {@code null} if there is no idle connection.
+     */
+    /* package */ SelectionKey take(String host, int port) {
+        PoolEntry entry = entries.get(entryId(host, port));
+        if (entry == null) {
+            return null; // Not a pooled server
+        }
+        entry.takes++;
+        PooledConnection connection;
+        while ((connection = entry.idleConnections.pollLast()) != null) {
+            // The most recently pooled connection is taken, so older ones are the ones being evicted.
+            if (connection.key.isValid()) {
+                connection.key.interestOps(0);
+                reactor.cancelTimeout(connection.key); // The handler that takes it will arm a new one
+                connection.key.attach(null);
+                return connection.key;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Refills the pool for the given servers, opening new connections if needed, and evicts idle connections
+     * (those that exceeded the idle timeout, and those of servers that are not in the given collection).
+     * This method must be called periodically.
+     *
+     * @param servers     The servers to which connections must be kept.
+     * @param currentTime The actual timestamp.
+     */
+    /* package */ void refill(Collection<InetSocketAddress> servers, long currentTime) {
+        Set<String> serversIds = new HashSet<>();
+        for (InetSocketAddress server : servers) {
+            String id = entryId(server.getHostString(), server.getPort());
+            serversIds.add(id);
+            PoolEntry entry = entries.computeIfAbsent(id,
+                    key -> new PoolEntry(server.getHostString(), server.getPort()));
+            entry.updateRate();
+            evictIdleConnections(entry, currentTime - idleTimeout);
+            entry.connectHandlers.removeIf(ConnectHandler::isFinished);
+            int missing = entry.targetSize() - entry.idleConnections.size() - entry.connectHandlers.size();
+            for (int i = 0; i < missing; i++) {
+                openConnection(entry);
+            }
+        }
+        Iterator<PoolEntry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            PoolEntry entry = it.next();
+            if (serversIds.contains(entryId(entry.host, entry.port))) {
+                continue;
+            }
+            // Server not in use anymore
+            evictIdleConnections(entry, Long.MAX_VALUE);
+            entry.connectHandlers.removeIf(ConnectHandler::isFinished);
+            if (entry.connectHandlers.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Closes those idle connections of the given entry that were pooled before the given timestamp.
+     *
+     * @param entry     The entry whose connections must be checked.
+     * @param threshold Connections pooled before this timestamp are closed.
+     */
+    private void evictIdleConnections(PoolEntry entry, long threshold) {
+        PooledConnection connection;
+        while ((connection = entry.idleConnections.peekFirst()) != null && connection.pooledTimestamp < threshold) {
+            entry.idleConnections.pollFirst();
+            close(connection.key);
+        }
+    }
+
+    /**
+     * Starts a new connection for the given entry.
+     *
+     * @param entry The entry that will hold the new connection.
+     */
+    private void openConnection(PoolEntry entry) {
+        ConnectHandler handler = new ConnectHandler(entry);
+        entry.connectHandlers.add(handler);
+        reactor.addClientSocketChannel(entry.host, entry.port, handler, key -> {
+            if (key == null) {
+                handler.finished = true; // Couldn't start
+            } else {
+                handler.key = key;
+            }
+        });
+    }
+
+    /**
+     * Closes the channel of the given key.
+     *
+     * @param key The key whose channel must be closed.
+     */
+    private void close(SelectionKey key) {
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+            // Nothing else can be done
+        } finally {
+            reactor.notifyClose(key);
+        }
+    }
+
+    /**
+     * Returns the id of the entry of the given server.
+     *
+     * @param host The server's host.
+     * @param port The server's port.
+     * @return The id.
+     */
+    private static String entryId(String host, int port) {
+        return host + ":" + port;
+    }
+
+
+    /**
+     * Holds the pooled connections of a server, together with the rate at which they are taken.
+     */
+    private final class PoolEntry {
+        private final String host;
+        private final int port;
+        /**
+         * Idle connections, from the oldest to the newest.
+         */
+        private final Deque<PooledConnection> idleConnections;
+        /**
+         * Handlers of connections being established.
+         */
+        private final List<ConnectHandler> connectHandlers;
+        /**
+         * Amount of connections taken since the last rate update.
+         */
+        private int takes;
+        /**
+         * Average amount of connections taken per refill period.
+         */
+        private double takesRate;
+
+        private PoolEntry(String host, int port) {
+            this.host = host;
+            this.port = port;
+            this.idleConnections = new ArrayDeque<>();
+            this.connectHandlers = new LinkedList<>();
+            this.takes = 0;
+            this.takesRate = 0;
+        }
+
+        private void updateRate() {
+            takesRate = RATE_ALPHA * takes + (1 - RATE_ALPHA) * takesRate;
+            if (takesRate < MIN_RATE) {
+                takesRate = 0;
+            }
+            takes = 0;
+        }
+
+        private int targetSize() {
+            return Math.max(minSize, Math.min(maxSize, (int) Math.ceil(takesRate * TARGET_PERIODS)));
+        }
+    }
+
+    /**
+     * An idle connection.
+     */
+    private static final class PooledConnection {
+        private final SelectionKey key;
+        private final long pooledTimestamp;
+
+        private PooledConnection(SelectionKey key, long pooledTimestamp) {
+            this.key = key;
+            this.pooledTimestamp = pooledTimestamp;
+        }
+    }
+
+    /**
+     * Handles connections being established for the pool. Once connected, they are stored as idle connections.
+     */
+    private final class ConnectHandler implements TCPClientHandler {
+
+        private final PoolEntry entry;
+        /**
+         * The key of the connection (set once it starts).
+         */
+        private SelectionKey key;
+        /**
+         * Says if the connection was established or failed.
+         */
+        private boolean finished;
+        /**
+         * The timeout armed by the reactor for this connection.
+         */
+        private TimingWheel.Timeout timeout;
+
+        private ConnectHandler(PoolEntry entry) {
+            this.entry = entry;
+            this.finished = false;
+        }
+
+        private boolean isFinished() {
+            // Connections could have been given up by the reactor without notifying this handler.
+            return finished || (key != null && !key.isValid());
+        }
+
+        @Override
+        public void handleConnect(SelectionKey key) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            try {
+                if (!channel.finishConnect()) {
+                    return; // Still connecting
+                }
+            } catch (IOException e) {
+                logger.debug("Pooled connection to {}:{} failed: {}", entry.host, entry.port, e.getMessage());
+                finished = true;
+                return;
+            }
+            finished = true;
+            IdleHandler idleHandler = new IdleHandler(entry);
+            idleHandler.timeout = timeout; // Idle connections are also closed if they time out
+            key.attach(idleHandler);
+            key.interestOps(SelectionKey.OP_READ); // In order to notice when the server closes the connection
+            entry.idleConnections.offerLast(new PooledConnection(key, System.currentTimeMillis()));
+        }
+
+        @Override
+        public void handleTimeout(SelectionKey key) {
+            handleClose(key);
+        }
+
+        @Override
+        public TimingWheel.Timeout getTimeout() {
+            return timeout;
+        }
+
+        @Override
+        public void setTimeout(TimingWheel.Timeout timeout) {
+            this.timeout = timeout;
+        }
+
+        @Override
+        public boolean handleClose(SelectionKey key) {
+            finished = true;
+            close(key);
+            return true;
+        }
+    }
+
+    /**
+     * Handles idle connections. As servers are not supposed to send anything till the connection is used,
+     * reading anything (or the end of stream) makes the connection to be closed.
+     */
+    private final class IdleHandler implements TCPReadWriteHandler {
+
+        private final PoolEntry entry;
+        /**
+         * The timeout armed by the reactor for this connection.
+         */
+        private TimingWheel.Timeout timeout;
+
+        private IdleHandler(PoolEntry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public void handleRead(SelectionKey key) {
+            try {
+                discardBuffer.clear();
+                ((SocketChannel) key.channel()).read(discardBuffer);
+            } catch (IOException ignored) {
+                // Will be closed anyway
+            }
+            handleClose(key);
+        }
+
+        @Override
+        public void handleWrite(SelectionKey key) {
+            // Idle connections don't write
+        }
+
+        @Override
+        public void handleTimeout(SelectionKey key) {
+            handleClose(key);
+        }
+
+        @Override
+        public TimingWheel.Timeout getTimeout() {
+            return timeout;
+        }
+
+        @Override
+        public void setTimeout(TimingWheel.Timeout timeout) {
+            this.timeout = timeout;
+        }
+
+        @Override
+        public boolean handleClose(SelectionKey key) {
+            entry.idleConnections.removeIf(connection -> connection.key == key);
+            close(key);
+            return true;
+        }
+    }
+}
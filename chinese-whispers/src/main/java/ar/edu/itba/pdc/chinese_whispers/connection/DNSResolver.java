@@ -0,0 +1,249 @@
+package ar.edu.itba.pdc.chinese_whispers.connection;
+
+import ar.edu.itba.pdc.chinese_whispers.application.Configurations;
+import ar.edu.itba.pdc.chinese_whispers.application.LogHelper;
+import org.slf4j.Logger;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * Resolves host names out of the reactors' threads, caching results.
+ * Both successful resolutions (positive results) and failed ones (negative results) are cached
+ * for a given time to live. Positive results that are about to expire are refreshed in the background
+ * (i.e. they are still returned while being refreshed), so hosts being used don't pay the resolution latency.
+ * Concurrent resolutions of the same host are merged into only one call to the {@link HostResolver}.
+ * <p>
+ * Resolutions are returned as {@link CompletableFuture}s. Those of cached results are already completed.
+ * Reactors can complete their work by using themselves as the executor of the completion stages
+ * (see {@link TCPSelector#execute(Runnable)}).
+ * <p>
+ * This class implements the singleton pattern, but it can be instantiated with any {@link HostResolver}
+ * (e.g. a local stand-in resolver).
+ */
+public final class DNSResolver {
+
+    /**
+     * Fraction of the time to live after which a positive result is refreshed in the background.
+     */
+    private static final double REFRESH_AHEAD_FACTOR = 0.75;
+
+    /**
+     * The resolver that actually performs the resolutions.
+     */
+    private final HostResolver hostResolver;
+    /**
+     * Time to live (in milliseconds) of positive results.
+     */
+    private final long ttl;
+    /**
+     * Time to live (in milliseconds) of negative results.
+     */
+    private final long negativeTtl;
+    /**
+     * Executes resolutions.
+     */
+    private final ExecutorService executor;
+    /**
+     * The cache, holding the last result of each host.
+     */
+    private final Map<String, CacheEntry> cache;
+    /**
+     * Holds the resolutions being performed right now.
+     */
+    private final Map<String, CompletableFuture<InetAddress>> resolutionsInProgress;
+    /**
+     * Gives the actual timestamp (in milliseconds).
+     */
+    private final LongSupplier clock;
+
+    private final Logger logger;
+
+    /**
+     * Holds the singleton.
+     */
+    private static DNSResolver singleton;
+
+
+    /**
+     * Constructor.
+     *
+     * @param hostResolver      The {@link HostResolver} that will perform the resolutions.
+     * @param ttl               Time to live (in milliseconds) of positive results.
+     * @param negativeTtl       Time to live (in milliseconds) of negative results.
+     * @param amountOfThreads   Amount of threads that will perform resolutions.
+     */
+    public DNSResolver(HostResolver hostResolver, long ttl, long negativeTtl, int amountOfThreads) {
+        this(hostResolver, ttl, negativeTtl, amountOfThreads, System::currentTimeMillis);
+    }
+
+    /**
+     * Constructor that takes the clock used to expire and refresh results (e.g. a fake one, for testing).
+     *
+     * @param hostResolver      The {@link HostResolver} that will perform the resolutions.
+     * @param ttl               Time to live (in milliseconds) of positive results.
+     * @param negativeTtl       Time to live (in milliseconds) of negative results.
+     * @param amountOfThreads   Amount of threads that will perform resolutions.
+     * @param clock             Gives the actual timestamp (in milliseconds).
+     */
+    /* package */ DNSResolver(HostResolver hostResolver, long ttl, long negativeTtl, int amountOfThreads,
+                              LongSupplier clock) {
+        if (hostResolver == null || ttl < 0 || negativeTtl < 0 || amountOfThreads <= 0 || clock == null) {
+            throw new IllegalArgumentException();
+        }
+        this.hostResolver = hostResolver;
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        final AtomicInteger threadsCount = new AtomicInteger(0);
+        this.executor = Executors.newFixedThreadPool(amountOfThreads, runnable -> {
+            Thread thread = new Thread(runnable, "resolver-" + threadsCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.cache = new ConcurrentHashMap<>();
+        this.resolutionsInProgress = new ConcurrentHashMap<>();
+        this.clock = clock;
+        this.logger = LogHelper.getLogger(getClass());
+    }
+
+    /**
+     * Gets the singleton instance, which uses the system resolver.
+     * Times to live and the amount of threads are taken from the {@link Configurations}.
+     *
+     * @return The singleton instance.
+     */
+    public static synchronized DNSResolver getInstance() {
+        if (singleton == null) {
+            Configurations configurations = Configurations.getInstance();
+            singleton = new DNSResolver(HostResolver.SYSTEM, configurations.getDnsTtl() * 1000L,
+                    configurations.getDnsNegativeTtl() * 1000L, configurations.getAmountOfResolverThreads());
+        }
+        return singleton;
+    }
+
+    /**
+     * Resolves the given host.
+     * If there is a cached result that didn't expire, an already completed future is returned
+     * (triggering a background refresh if the result is about to expire).
+     * Otherwise, the host is resolved by this resolver's threads.
+     * Note: This method can be called from any thread, and never blocks.
+     *
+     * @param host The host to be resolved.
+     * @return A {@link CompletableFuture} that will be completed with the host's address, or exceptionally
+     * with an {@link UnknownHostException} if the host couldn't be resolved.
+     */
+    public CompletableFuture<InetAddress> resolve(String host) {
+        if (host == null || host.isEmpty()) {
+            throw new IllegalArgumentException();
+        }
+        CacheEntry entry = cache.get(host);
+        long now = clock.getAsLong();
+        if (entry == null || now >= entry.expiration) {
+            return startResolution(host);
+        }
+        if (entry.refresh <= now) {
+            startResolution(host); // Refresh ahead. Meanwhile, the cached result is returned.
+        }
+        return entry.result;
+    }
+
+    /**
+     * Removes all cached results.
+     */
+    public void clearCache() {
+        cache.clear();
+    }
+
+    /**
+     * Starts resolving the given host (if it's not already being resolved).
+     *
+     * @param host The host to be resolved.
+     * @return The future that will be completed when the resolution finishes.
+     */
+    private CompletableFuture<InetAddress> startResolution(String host) {
+        CompletableFuture<InetAddress> future = new CompletableFuture<>();
+        CompletableFuture<InetAddress> inProgress = resolutionsInProgress.putIfAbsent(host, future);
+        if (inProgress != null) {
+            return inProgress;
+        }
+        try {
+            executor.execute(() -> performResolution(host, future));
+        } catch (RejectedExecutionException e) {
+            resolutionsInProgress.remove(host, future);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Resolves the given host, caching the result and completing the given future.
+     * Note: This method is executed by this resolver's threads.
+     *
+     * @param host   The host to be resolved.
+     * @param future The future to be completed.
+     */
+    private void performResolution(String host, CompletableFuture<InetAddress> future) {
+        InetAddress address = null;
+        UnknownHostException failure = null;
+        try {
+            address = hostResolver.resolve(host);
+        } catch (UnknownHostException e) {
+            failure = e;
+        } catch (Throwable e) {
+            failure = new UnknownHostException(host + ": " + e.getMessage());
+        }
+        if (address == null && failure == null) {
+            failure = new UnknownHostException(host); // Shouldn't happen, but in case...
+        }
+        // The result is cached before completing, so callbacks that resolve the same host get the cached result.
+        long now = clock.getAsLong();
+        if (address != null) {
+            cache.put(host, new CacheEntry(CompletableFuture.completedFuture(address), now + ttl,
+                    now + (long) (ttl * REFRESH_AHEAD_FACTOR)));
+        } else {
+            logger.debug("Couldn't resolve host {}: {}", host, failure.getMessage());
+            CacheEntry previous = cache.get(host);
+            if (previous == null || previous.result.isCompletedExceptionally() || now >= previous.expiration) {
+                CompletableFuture<InetAddress> result = new CompletableFuture<>();
+                result.completeExceptionally(failure);
+                cache.put(host, new CacheEntry(result, now + negativeTtl, Long.MAX_VALUE));
+            }
+            // Otherwise, a background refresh failed, so the previous result is kept till it expires.
+        }
+        resolutionsInProgress.remove(host, future);
+        if (address != null) {
+            future.complete(address);
+        } else {
+            future.completeExceptionally(failure);
+        }
+    }
+
+
+    /**
+     * A cached result.
+     */
+    private static final class CacheEntry {
+        /**
+         * An already completed future with the result.
+         */
+        private final CompletableFuture<InetAddress> result;
+        /**
+         * When this entry expires.
+         */
+        private final long expiration;
+        /**
+         * When this entry must be refreshed.
+         */
+        private final long refresh;
+
+        private CacheEntry(CompletableFuture<InetAddress> result, long expiration, long refresh) {
+            this.result = result;
+            this.expiration = expiration;
+            this.refresh = refresh;
+        }
+    }
+}
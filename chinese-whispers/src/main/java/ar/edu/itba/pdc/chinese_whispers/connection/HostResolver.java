@@ -0,0 +1,29 @@
+package ar.edu.itba.pdc.chinese_whispers.connection;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Resolves host names into addresses. Implementations are allowed to block,
+ * as they are only called by the {@link DNSResolver}'s threads (i.e. never by a reactor).
+ * <p>
+ * The system resolver is used by default (see {@link #SYSTEM}), but any other implementation can be used
+ * (e.g. a local stand-in resolver).
+ */
+@FunctionalInterface
+public interface HostResolver {
+
+    /**
+     * A {@link HostResolver} that uses the system's name service.
+     */
+    HostResolver SYSTEM = InetAddress::getByName;
+
+    /**
+     * Resolves the given host name.
+     *
+     * @param host The host name to be resolved.
+     * @return The host's address.
+     * @throws UnknownHostException If the host name couldn't be resolved.
+     */
+    InetAddress resolve(String host) throws UnknownHostException;
+}
@@ -0,0 +1,107 @@
+package ar.edu.itba.pdc.chinese_whispers.connection;
+
+/**
+ * A task scheduled in a {@link TCPSelector}, to be run by its reactor once its deadline is reached.
+ * It can be a one shot task (see {@link TCPSelector#schedule(Runnable, long)}),
+ * or a fixed-rate task (see {@link TCPSelector#scheduleAtFixedRate(Runnable, long, long)}).
+ * Instances of this class act as handles that allow cancelling the task.
+ */
+public final class ScheduledTask implements Comparable<ScheduledTask> {
+
+    /**
+     * The task to be run.
+     */
+    private final Runnable task;
+    /**
+     * Period (in milliseconds) between two executions, or 0 if it's a one shot task.
+     */
+    private final long period;
+    /**
+     * Sequence number, used to run tasks with the same deadline in scheduling order.
+     */
+    private final long sequence;
+    /**
+     * When the task must be run.
+     * Note: It must only be changed when the task is not in the reactor's queue.
+     */
+    private long deadline;
+    /**
+     * Says if the task was cancelled.
+     */
+    private volatile boolean cancelled;
+
+
+    /* package */ ScheduledTask(Runnable task, long deadline, long period, long sequence) {
+        if (task == null || period < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.task = task;
+        this.deadline = deadline;
+        this.period = period;
+        this.sequence = sequence;
+        this.cancelled = false;
+    }
+
+    /**
+     * Cancels this task. A one shot task won't be run (if it wasn't run yet),
+     * and a fixed-rate task won't be run anymore.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Says if this task was cancelled.
+     *
+     * @return {@code true} if the task was cancelled, or {@code false} otherwise.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Returns when this task must be run (or, for fixed-rate tasks, when it must be run next).
+     *
+     * @return The deadline timestamp.
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Says if this is a fixed-rate task.
+     *
+     * @return {@code true} if this task runs periodically, or {@code false} otherwise.
+     */
+    public boolean isPeriodic() {
+        return period > 0;
+    }
+
+    /**
+     * Runs the task.
+     */
+    /* package */ void run() {
+        task.run();
+    }
+
+    /**
+     * Moves the deadline of a fixed-rate task one period forward.
+     * Missed executions are skipped (i.e. the next deadline is never in the past).
+     *
+     * @param currentTime The actual timestamp.
+     */
+    /* package */ void nextPeriod(long currentTime) {
+        deadline += period;
+        if (deadline <= currentTime) {
+            deadline = currentTime + period;
+        }
+    }
+
+    @Override
+    public int compareTo(ScheduledTask o) {
+        if (deadline != o.deadline) {
+            return deadline < o.deadline ? -1 : 1;
+        }
+        return Long.compare(sequence, o.sequence);
+    }
+}
@@ -9,9 +9,11 @@ public interface TCPAcceptorHandler extends TCPHandler {
 
     /**
      * Handles the accept operation.
+     * Note: The connection is accepted by the {@link TCPSelector}, which registers the accepted channel
+     * in the reactor that will own it, and then calls this method from that reactor's thread.
      *
-     * @param key The {@link SelectionKey} that contains the socket channel that has a pending accept.
-     * @return The {@link SelectionKey} registering the accepted connection, or {@code null} if errors occurred.
+     * @param key The {@link SelectionKey} registering the accepted connection (with no interest ops nor attachment).
+     * @return The given {@link SelectionKey}, once it is ready to be selected, or {@code null} if errors occurred.
      */
     SelectionKey handleAccept(SelectionKey key);
 }
\ No newline at end of file
@@ -11,6 +11,8 @@ public interface TCPHandler {
 
     /**
      * Handles close event.
+     * Implementations must notify the reactor serving the connection once its channel is closed
+     * (see {@link TCPSelector#notifyClose(SelectionKey)}), so it is removed from the connections registry.
      *
      * @param key The {@link SelectionKey} whose channel will be closed.
      * @return {@code true} if the connection was successfully closed, or {@code false} otherwise.
@@ -6,24 +6,42 @@ import ar.edu.itba.pdc.chinese_whispers.application.MetricsManager;
 import org.slf4j.Logger;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
  * Created by jbellini on 27/10/16.
  * <p>
- * This class handles all IO operations.
- * Implements the singleton pattern to have only one selector in all the project.
+ * This class handles all IO operations of one reactor (i.e. a thread with its own selector).
+ * Instances are created and started by the {@link TCPSelectorsManager}, which holds one instance per reactor.
+ * Each connection belongs to only one reactor during all its life, so handlers of the same session
+ * (e.g. the client side and the origin server side of a proxied connection) are only touched by one thread.
  * To register a channel, a {@link TCPHandler} must be registered with it
  * as the select operation uses it to perform operations.
  * Contains a set of nothingToDoTasks to be performed in case no IO events were triggered when selecting.
+ * Also contains a queue of {@link ScheduledTask}s, ordered by deadline, which are run by the reactor when their
+ * deadline is reached. The select operation timeout is computed from the next deadline.
+ * <p>
+ * Keys and handlers must only be touched by the reactor's thread. Other threads (e.g. worker pools, or other
+ * reactors) can hand work to a reactor through {@link #submit(Runnable)}, which is lock-free.
+ * This class implements {@link Executor}, so it can be used to complete asynchronous operations in the reactor.
  */
-public final class TCPSelector {
+public final class TCPSelector implements Runnable, Executor {
 
 
     /**
-     * Timeout for the select operation.
+     * Maximum timeout for the select operation (it is shortened when there are scheduled tasks).
      */
     private static final int SELECT_TIMEOUT = 3000;
     /**
@@ -35,22 +53,98 @@ public final class TCPSelector {
      */
     private static final int MAX_CONNECTION_TRIES = 10;
     /**
-     * Max amount of TCP connections allowed.
+     * Duration (in milliseconds) of each tick of the timing wheel (i.e. the timeouts precision).
+     */
+    private static final int TIMING_WHEEL_TICK = 1000;
+    /**
+     * Amount of buckets of the timing wheel.
+     * With one second ticks, a whole round lasts more than {@link #CONNECTION_TIMEOUT},
+     * so expiring a bucket only touches expired timeouts.
+     */
+    private static final int TIMING_WHEEL_BUCKETS = 512;
+    /**
+     * Period (in milliseconds) in which the upstream connections pool is refilled.
+     */
+    private static final int CONNECTION_POOL_REFILL_PERIOD = 1000;
+    /**
+     * Max amount of submitted tasks run in each loop iteration, so other threads can't starve IO operations.
+     */
+    private static final int MAX_SUBMITTED_TASKS_PER_ITERATION = 1024;
+    /**
+     * Size of the buffer shared by this reactor's handlers to read from their channels.
      */
-    private static final int MAX_AMOUNT_OF_CONNECTIONS = 500;
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Holds the instance that is being run by the current thread (if any).
+     */
+    private static final ThreadLocal<TCPSelector> currentSelector = new ThreadLocal<>();
 
     /**
      * The selector to perform IO operations.
      */
     private final Selector selector;
     /**
-     * Contains all the accepted keys that are connected.
+     * The {@link TCPSelectorsManager} that owns this reactor.
+     */
+    private final TCPSelectorsManager manager;
+    /**
+     * This reactor's index in the {@link TCPSelectorsManager}.
+     */
+    private final int id;
+    /**
+     * Contains tasks submitted to this reactor by other threads, waiting to be run.
+     * Note: This queue and the {@link #wakeupPending} flag are the only structures that can be accessed
+     * by other threads.
+     */
+    private final Queue<Runnable> submittedTasks;
+    /**
+     * Contains tasks submitted by this reactor's thread, waiting to be run.
+     * Kept apart from {@link #submittedTasks} as it doesn't allocate a node for each task
+     * (handlers submit a task for almost each message they post).
+     */
+    private final Queue<Runnable> localSubmittedTasks;
+    /**
+     * Says if the selector was already woken up since the last time submitted tasks were drained.
+     * Used to coalesce wakeups, as {@link Selector#wakeup()} is an expensive system call.
+     */
+    private final AtomicBoolean wakeupPending;
+    /**
+     * Holds the amount of connections this reactor is serving (including those handed but not registered yet).
+     * It is atomic in order to let other reactors read and update it when balancing new connections.
+     */
+    private final AtomicInteger amountOfConnections;
+    /**
+     * Says if accepting connections is paused because the connections limit was reached.
+     * It is atomic in order to let other reactors request accepting to be resumed when they close connections.
+     */
+    private final AtomicBoolean acceptingPaused;
+    /**
+     * Keys of the server socket channels registered in this reactor.
+     */
+    private final List<SelectionKey> serverKeys;
+    /**
+     * When accepting connections was paused the last time.
+     */
+    private long acceptingPausedSince;
+    /**
+     * The thread running this reactor (set when {@link #run()} is called).
+     */
+    private Thread thread;
+    /**
+     * The connections registry. Contains all the accepted keys that are connected, together with information
+     * about their connections. Keys are removed when their connections are closed (see {@link #notifyClose}).
+     * It is a concurrent map in order to let other threads query live connections.
+     */
+    private final Map<SelectionKey, ConnectionInfo> acceptedConnections;
+    /**
+     * Timing wheel that tracks the keys' timeouts.
      */
-    private final Set<SelectionKey> acceptedKeys;
+    private final TimingWheel timingWheel;
     /**
-     * Contains when the last activity took place.
+     * Timestamp taken once per loop iteration, used as the time in which selected IO events took place.
      */
-    private final Map<SelectionKey, Long> lastActivities;
+    private long currentTime;
     /**
      * Tasks that are performed always before the select operation.
      */
@@ -59,134 +153,334 @@ public final class TCPSelector {
      * Contains nothingToDoTasks to be run when channel selection times out without selecting anything.
      */
     private final Set<Runnable> nothingToDoTasks;
+    /**
+     * Contains the scheduled tasks, ordered by deadline.
+     */
+    private final PriorityQueue<ScheduledTask> scheduledTasks;
+    /**
+     * Sequence number for the next scheduled task.
+     */
+    private long scheduledTasksSequence;
     /**
      * Contains connectable keys that didn't connect yet, saving how many tries were done.
      */
     private final Map<SelectionKey, Integer> connectionTries;
     /**
-     * Set used by the timeout task to remove keys with issues.
+     * Contains keys of connections being established, together with the {@link Upstream} they are connecting to.
+     */
+    private final Map<SelectionKey, Upstream> connectingKeys;
+    /**
+     * Pool of connections already established with origin servers.
+     */
+    private final ConnectionPool connectionPool;
+    /**
+     * Buffer shared by this reactor's handlers to read from their channels (see {@link #getReadBuffer()}).
      */
-    private final Set<SelectionKey> removableKeys;
+    private final ByteBuffer readBuffer;
 
 
     private final Logger logger;
-    /**
-     * Contains the singleton.
-     */
-    private static TCPSelector instance;
 
 
     /**
-     * Private constructor (for singleton pattern).
+     * Constructor. It MUST only be called by the {@link TCPSelectorsManager}.
      *
+     * @param manager The {@link TCPSelectorsManager} that owns this reactor.
+     * @param id      This reactor's index.
      * @throws IOException If the selector couldn't be opened.
      */
-    private TCPSelector() throws IOException {
+    /* package */ TCPSelector(TCPSelectorsManager manager, int id) throws IOException {
         this.selector = Selector.open();
-        this.acceptedKeys = new HashSet<>();
-        this.lastActivities = new HashMap<>();
+        this.manager = manager;
+        this.id = id;
+        this.submittedTasks = new ConcurrentLinkedQueue<>();
+        this.localSubmittedTasks = new ArrayDeque<>();
+        this.wakeupPending = new AtomicBoolean(false);
+        this.amountOfConnections = new AtomicInteger(0);
+        this.acceptingPaused = new AtomicBoolean(false);
+        this.serverKeys = new LinkedList<>();
+        this.acceptedConnections = new ConcurrentHashMap<>();
+        this.currentTime = System.currentTimeMillis();
+        this.timingWheel = new TimingWheel(TIMING_WHEEL_TICK, TIMING_WHEEL_BUCKETS, currentTime);
         this.alwaysRunTasks = new HashSet<>();
         this.nothingToDoTasks = new HashSet<>();
+        this.scheduledTasks = new PriorityQueue<>();
+        this.scheduledTasksSequence = 0;
         this.connectionTries = new HashMap<>();
-        removableKeys = new HashSet<>();
+        this.connectingKeys = new HashMap<>();
+        Configurations configurations = Configurations.getInstance();
+        this.connectionPool = new ConnectionPool(this, configurations.getUpstreamPoolMinSize(),
+                configurations.getUpstreamPoolMaxSize(), configurations.getUpstreamPoolIdleTimeout() * 1000L);
+        this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
         this.logger = LogHelper.getLogger(getClass());
-        alwaysRunTasks.add(() -> {
-            // Checks the timeout for each key in the lastActivities map's key set.
-            removableKeys.clear();
-            for (SelectionKey key : lastActivities.keySet()) {
-                if (!key.isValid()) {
-                    removableKeys.add(key);
-                    continue;
-                }
-                if (key.attachment() instanceof TCPAcceptorHandler) {
-                    removableKeys.add(key); // Don't check again acceptor handlers.
-                    continue; // Do nothing with these handlers.
-                }
-                if (!(key.attachment() instanceof TCPTimeoutCancellableHandler)) {
-                    // Shouldn't reach this point
-                    // In case one attachment is not a TCPHandler, that key is cancelled
-                    key.cancel();
-                    removableKeys.add(key);
-                    continue;
-                }
-                TCPTimeoutCancellableHandler handler = (TCPTimeoutCancellableHandler) key.attachment();
-                Long lastActivity = lastActivities.get(key);
-                long currentTime = System.currentTimeMillis();
-                if (lastActivity == null) {
-                    // The key's first activity was not registered...
-                    registerTimeoutCancelableKey(key, currentTime);
-                    continue;
-                }
-                if (currentTime - lastActivity >= CONNECTION_TIMEOUT) {
-
-                    handler.handleTimeout(key);
-                    // Updates the last activity timestamp
-                    registerTimeoutCancelableKey(key, currentTime);
-                }
-            }
-            removableKeys.forEach(lastActivities::remove); // Remove all those keys with problems
-        });
-        alwaysRunTasks.add(() -> {
-            // This task updates the accepted key set,
-            // Removing those that are not contained in the selector's keys set.
-            Iterator<SelectionKey> it = acceptedKeys.iterator();
-            while (it.hasNext()) {
-                SelectionKey each = it.next();
-                // If the selector does not contains the key, it means that the connection was closed.
-                if (!selector.keys().contains(each)) {
-                    it.remove();
-                }
-            }
-        });
+        // Expires timeouts of those keys whose deadline is in an elapsed tick of the timing wheel.
+        scheduleAtFixedRate(() -> timingWheel.expire(currentTime, this::handleExpiredTimeout),
+                TIMING_WHEEL_TICK, TIMING_WHEEL_TICK);
+        // Drops the pooled buffers that this reactor (and the rest) didn't use lately.
+        scheduleAtFixedRate(() -> BuffersManager.getInstance().trim(currentTime),
+                BuffersManager.TRIM_PERIOD, BuffersManager.TRIM_PERIOD);
+        if (connectionPool.isEnabled()) {
+            // Keeps connections established with origin servers (the first time as soon as the reactor starts).
+            scheduleAtFixedRate(() -> connectionPool.refill(Configurations.getInstance().getOriginServers(),
+                    currentTime), 0, CONNECTION_POOL_REFILL_PERIOD);
+        }
     }
 
 
     /**
-     * Gets the singleton instance.
+     * Gets the instance that is being run by the calling thread.
+     * As a connection never changes its reactor, handlers can use this method to register new channels
+     * in the same reactor they belong to (e.g. to connect to the origin server).
+     * If the calling thread is not a reactor thread, the {@link TCPSelectorsManager}'s main selector is returned.
      *
-     * @return The only instance of this class.
+     * @return The instance being run by the calling thread, or the main selector if it is not a reactor thread.
      */
     public static TCPSelector getInstance() {
-        if (instance == null) {
-            try {
-                instance = new TCPSelector();
-            } catch (IOException ignored) {
-                // Will return null if IOException is thrown
+        TCPSelector selector = currentSelector.get();
+        if (selector == null) {
+            TCPSelectorsManager manager = TCPSelectorsManager.getInstance();
+            return manager == null ? null : manager.getMainSelector();
+        }
+        return selector;
+    }
+
+    /**
+     * Returns this reactor's index.
+     *
+     * @return The index.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Returns the buffer shared by all this reactor's handlers to read from their channels.
+     * As handlers are run one at a time, read data can be stored in it as long as it's processed before returning
+     * to the reactor (i.e. handlers must copy the data that must outlive the read operation).
+     * Note: It must only be used by this reactor's thread.
+     *
+     * @return The cleared read buffer.
+     */
+    public ByteBuffer getReadBuffer() {
+        readBuffer.clear();
+        return readBuffer;
+    }
+
+    /**
+     * Says if the calling thread is the one running this reactor.
+     *
+     * @return {@code true} if the calling thread is this reactor's thread, or {@code false} otherwise.
+     */
+    public boolean isReactorThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Returns the amount of connections this reactor is serving.
+     * Note: This method can be called from any thread.
+     *
+     * @return The amount of connections.
+     */
+    public int getAmountOfConnections() {
+        return amountOfConnections.get();
+    }
+
+    /**
+     * Returns the connections (accepted and still connected) this reactor is serving.
+     * The returned collection is a live, unmodifiable view of the connections registry.
+     * Note: This method can be called from any thread.
+     *
+     * @return The connections.
+     */
+    public Collection<ConnectionInfo> getConnections() {
+        return Collections.unmodifiableCollection(acceptedConnections.values());
+    }
+
+    /**
+     * Notifies this reactor that the channel of the given key was closed (or that the key was cancelled).
+     * The key is removed from the connections registry (if it was an accepted key), and its timeout is cancelled.
+     * Handlers must call this method when closing their connections. Calling it more than once has no effect.
+     * Note: This method must only be called by this reactor's thread.
+     *
+     * @param key The {@link SelectionKey} whose connection was closed.
+     */
+    public void notifyClose(SelectionKey key) {
+        if (key == null) {
+            throw new IllegalArgumentException();
+        }
+        if (acceptedConnections.remove(key) != null) {
+            connectionClosed();
+        }
+        cancelTimeout(key);
+        connectionTries.remove(key);
+        connectFinished(key, false); // In case it was being connected
+    }
+
+    /**
+     * Notifies the {@link Upstream} to which the given key was connecting (if any) that the connection finished.
+     *
+     * @param key     The {@link SelectionKey} of the connection.
+     * @param success {@code true} if the connection was established, or {@code false} otherwise.
+     */
+    private void connectFinished(SelectionKey key, boolean success) {
+        Upstream upstream = connectingKeys.remove(key);
+        if (upstream != null) {
+            upstream.connectFinished(success);
+        }
+    }
+
+    /**
+     * Updates the amount of connections when one of this reactor's connections is closed,
+     * notifying the {@link TCPSelectorsManager} (accepting connections might be paused).
+     */
+    private void connectionClosed() {
+        amountOfConnections.decrementAndGet();
+        manager.connectionClosed();
+    }
+
+    /**
+     * Says if there is room for more connections (taking into account all reactors).
+     * Note: This method can be called from any thread.
+     *
+     * @return {@code true} if more connections can be accepted, or {@code false} otherwise.
+     */
+    private boolean canAcceptConnections() {
+        return manager.getAmountOfConnections() < Configurations.getInstance().getMaxAmountOfConnections();
+    }
+
+    /**
+     * Stops accepting connections in this reactor's server socket channels (i.e. clears the accept interest),
+     * so connections wait in the listen backlog instead of being accepted and closed.
+     * Accepting is resumed once a connection is closed by any reactor (see {@link #resumeAcceptingIfPaused()}).
+     */
+    private void pauseAccepting() {
+        setServerKeysInterestOps(0);
+        acceptingPausedSince = currentTime;
+        MetricsManager.getInstance().addAcceptPauses(1);
+        logger.debug("Connections limit reached. Accepting connections is paused in reactor {}", id);
+        acceptingPaused.set(true);
+        // A connection could have been closed before the flag was set (i.e. nobody will request resuming)
+        if (canAcceptConnections() && acceptingPaused.compareAndSet(true, false)) {
+            resumeAccepting();
+        }
+    }
+
+    /**
+     * Requests this reactor to resume accepting connections, if it was paused.
+     * Note: This method can be called from any thread.
+     */
+    /* package */ void resumeAcceptingIfPaused() {
+        if (acceptingPaused.compareAndSet(true, false)) {
+            submit(this::resumeAccepting);
+        }
+    }
+
+    /**
+     * Restores the accept interest of this reactor's server socket channels if there is room for more connections.
+     * If there isn't (e.g. connections were handed to other reactors in the meantime), accepting remains paused.
+     */
+    private void resumeAccepting() {
+        if (!canAcceptConnections()) {
+            acceptingPaused.set(true);
+            // Same as when pausing, a connection could have been closed before the flag was set
+            if (!canAcceptConnections() || !acceptingPaused.compareAndSet(true, false)) {
+                return;
+            }
+        }
+        setServerKeysInterestOps(SelectionKey.OP_ACCEPT);
+        MetricsManager.getInstance().addAcceptPausesTime(System.currentTimeMillis() - acceptingPausedSince);
+        logger.debug("Accepting connections is resumed in reactor {}", id);
+    }
+
+    /**
+     * Sets the given interest set to all valid server socket channels' keys, removing those that are not valid.
+     *
+     * @param ops The new interest set.
+     */
+    private void setServerKeysInterestOps(int ops) {
+        Iterator<SelectionKey> it = serverKeys.iterator();
+        while (it.hasNext()) {
+            SelectionKey each = it.next();
+            if (each.isValid()) {
+                each.interestOps(ops);
+            } else {
+                it.remove();
             }
         }
-        return instance;
     }
 
     /**
-     * Adds the key in the last activities map.
-     * Note that the key attachment must not be null, and must implement {@link TCPTimeoutCancellableHandler} interface.
+     * Registers activity for the given key, arming its timeout if it's the first activity.
+     * Note that nothing is done if the key attachment is not a {@link TCPTimeoutCancellableHandler}.
+     * The timeout is held by the key's handler, so no lookup is performed for each IO event.
+     * Registering activity does not move the timeout in the timing wheel (it just saves the timestamp),
+     * as it is re-armed when it expires (see {@link #handleExpiredTimeout(TimingWheel.Timeout)}).
      *
      * @param key The key that must be check for timeout.
      */
     private void registerTimeoutCancelableKey(SelectionKey key) {
-        registerTimeoutCancelableKey(key, System.currentTimeMillis());
+        Object attachment = key.attachment();
+        if (!(attachment instanceof TCPTimeoutCancellableHandler)) {
+            return; // Do nothing with keys that are not of our interest.
+        }
+        TCPTimeoutCancellableHandler handler = (TCPTimeoutCancellableHandler) attachment;
+        TimingWheel.Timeout timeout = handler.getTimeout();
+        if (timeout == null) {
+            timeout = timingWheel.arm(key, currentTime + CONNECTION_TIMEOUT);
+            handler.setTimeout(timeout);
+        }
+        timeout.touch(currentTime);
     }
 
     /**
-     * Adds the key in the last activities map.
-     * Note that the key attachment must not be null, and must implement {@link TCPTimeoutCancellableHandler} interface.
-     * If the key already had a registered timestamp, and the given timestamp is smaller that the registered one,
-     * an {@link IllegalArgumentException} is thrown.
+     * Cancels the timeout held by the given key's handler (if any).
+     * Note: This method must only be called by this reactor's thread.
      *
-     * @param key       The key that must be check for timeout.
-     * @param timestamp The new timestamp
-     * @throws IllegalArgumentException if the the key already had a registered timestamp,
-     *                                  and the given timestamp is smaller that the registered one
+     * @param key The key whose timeout must be cancelled.
      */
-    private void registerTimeoutCancelableKey(SelectionKey key, long timestamp) {
-        if (key.attachment() == null || !(key.attachment() instanceof TCPTimeoutCancellableHandler)) {
-            return; // Do nothing with keys that are not of our interest.
+    /* package */ void cancelTimeout(SelectionKey key) {
+        Object attachment = key.attachment();
+        if (attachment instanceof TCPTimeoutCancellableHandler) {
+            TCPTimeoutCancellableHandler handler = (TCPTimeoutCancellableHandler) attachment;
+            TimingWheel.Timeout timeout = handler.getTimeout();
+            if (timeout != null) {
+                timingWheel.cancel(timeout);
+                handler.setTimeout(null);
+            }
         }
-        Long oldTimestamp = lastActivities.get(key);
-        if (oldTimestamp != null && timestamp < oldTimestamp) {
-            throw new IllegalArgumentException();
+    }
+
+    /**
+     * Handles a timeout whose deadline has been reached.
+     * If there was activity during the last timeout period, it is just re-armed.
+     * Otherwise, the key's handler is notified and the timeout is armed for another period.
+     * Keys that are not valid anymore are treated as closed (in case their handlers didn't notify it),
+     * and timeouts not held by the key's handler anymore (i.e. it was replaced without handing it) are dropped.
+     *
+     * @param timeout The expired timeout.
+     */
+    private void handleExpiredTimeout(TimingWheel.Timeout timeout) {
+        SelectionKey key = timeout.getKey();
+        if (timeout.isArmed()) {
+            return; // Was re-armed while expiring other timeouts
+        }
+        if (!key.isValid()) {
+            notifyClose(key); // The connection was closed
+            return;
         }
-        lastActivities.put(key, System.currentTimeMillis());
+        Object attachment = key.attachment();
+        if (!(attachment instanceof TCPTimeoutCancellableHandler)
+                || ((TCPTimeoutCancellableHandler) attachment).getTimeout() != timeout) {
+            return; // The current handler (if any) tracks its own timeout
+        }
+        long lastActivity = timeout.getLastActivity();
+        if (currentTime - lastActivity < CONNECTION_TIMEOUT) {
+            timingWheel.rearm(timeout, lastActivity + CONNECTION_TIMEOUT);
+            return;
+        }
+        timingWheel.rearm(timeout, currentTime + CONNECTION_TIMEOUT); // Another period till the next timeout event
+        timeout.touch(currentTime);
+        ((TCPTimeoutCancellableHandler) attachment).handleTimeout(key);
     }
 
 
@@ -226,8 +520,148 @@ public final class TCPSelector {
         nothingToDoTasks.remove(task);
     }
 
+    /**
+     * Schedules the given task to be run by this reactor once the given delay has elapsed.
+     * Note: This method must only be called by this reactor's thread.
+     *
+     * @param task  The task to be run.
+     * @param delay The delay (in milliseconds).
+     * @return The {@link ScheduledTask} that allows cancelling the task.
+     */
+    public ScheduledTask schedule(Runnable task, long delay) {
+        return addScheduledTask(task, delay, 0);
+    }
+
+    /**
+     * Schedules the given task to be run by this reactor periodically, once the given initial delay has elapsed.
+     * Note: This method must only be called by this reactor's thread.
+     *
+     * @param task         The task to be run.
+     * @param initialDelay The delay (in milliseconds) till the first execution.
+     * @param period       The period (in milliseconds) between two executions.
+     * @return The {@link ScheduledTask} that allows cancelling the task.
+     */
+    public ScheduledTask scheduleAtFixedRate(Runnable task, long initialDelay, long period) {
+        if (period <= 0) {
+            throw new IllegalArgumentException();
+        }
+        return addScheduledTask(task, initialDelay, period);
+    }
+
+    /**
+     * Creates and stores a new {@link ScheduledTask}.
+     *
+     * @param task   The task to be run.
+     * @param delay  The delay (in milliseconds) till the first execution.
+     * @param period The period (in milliseconds) between two executions, or 0 for one shot tasks.
+     * @return The new {@link ScheduledTask}.
+     */
+    private ScheduledTask addScheduledTask(Runnable task, long delay, long period) {
+        if (task == null || delay < 0) {
+            throw new IllegalArgumentException();
+        }
+        ScheduledTask scheduledTask = new ScheduledTask(task, System.currentTimeMillis() + delay, period,
+                scheduledTasksSequence++);
+        scheduledTasks.offer(scheduledTask);
+        return scheduledTask;
+    }
+
+    /**
+     * Runs those scheduled tasks whose deadline has been reached, re-scheduling fixed-rate ones.
+     */
+    private void runScheduledTasks() {
+        ScheduledTask scheduledTask;
+        while ((scheduledTask = scheduledTasks.peek()) != null && scheduledTask.getDeadline() <= currentTime) {
+            scheduledTasks.poll();
+            if (scheduledTask.isCancelled()) {
+                continue;
+            }
+            try {
+                scheduledTask.run();
+            } catch (Throwable e) {
+                logException("Exception when trying to perform a scheduled task", e);
+            }
+            if (scheduledTask.isPeriodic() && !scheduledTask.isCancelled()) {
+                scheduledTask.nextPeriod(currentTime);
+                scheduledTasks.offer(scheduledTask);
+            }
+        }
+    }
+
+    /**
+     * Submits the given task to be run by this reactor's thread, before its next select operation.
+     * Tasks are run in submission order. If the reactor is blocked in the select operation, it is woken up,
+     * but only once till it drains the submitted tasks, no matter how many tasks are submitted in the meantime.
+     * Note: This method can be called from any thread.
+     *
+     * @param task The task to be run.
+     */
+    public void submit(Runnable task) {
+        if (task == null) {
+            throw new IllegalArgumentException();
+        }
+        if (Thread.currentThread() == thread) {
+            localSubmittedTasks.offer(task); // No need to wake up the selector, as this thread is not selecting
+            return;
+        }
+        submittedTasks.offer(task);
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup(); // The reactor might be blocked in the select operation.
+        }
+    }
+
+    /**
+     * Same as {@link #submit(Runnable)}.
+     *
+     * @param task The task to be run.
+     */
+    @Override
+    public void execute(Runnable task) {
+        submit(task);
+    }
+
+    /**
+     * Runs the tasks that were submitted to this reactor (up to {@link #MAX_SUBMITTED_TASKS_PER_ITERATION}).
+     * Tasks submitted by this reactor's thread are run first.
+     */
+    private void runSubmittedTasks() {
+        // Cleared before draining, so any task submitted from now on will wake up the selector.
+        wakeupPending.set(false);
+        Runnable task;
+        int amountOfTasks = 0;
+        while (amountOfTasks++ < MAX_SUBMITTED_TASKS_PER_ITERATION
+                && ((task = localSubmittedTasks.poll()) != null || (task = submittedTasks.poll()) != null)) {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                logException("Exception when trying to perform a submitted task", e);
+            }
+        }
+    }
+
+    /**
+     * Calculates how long the select operation can block, based on the next scheduled task's deadline.
+     *
+     * @return The select timeout (in milliseconds), or 0 if there are tasks that must be run right now.
+     */
+    private long calculateSelectTimeout() {
+        if (!localSubmittedTasks.isEmpty() || !submittedTasks.isEmpty()) {
+            return 0; // Tasks submitted by this reactor's thread, or more than the ones run in an iteration.
+        }
+        ScheduledTask next;
+        while ((next = scheduledTasks.peek()) != null && next.isCancelled()) {
+            scheduledTasks.poll(); // Discard cancelled tasks, so they don't shorten the timeout.
+        }
+        if (next == null) {
+            return SELECT_TIMEOUT;
+        }
+        return Math.max(0, Math.min(SELECT_TIMEOUT, next.getDeadline() - System.currentTimeMillis()));
+    }
+
     /**
      * Adds a server socket channel to this selector.
+     * The listen backlog is taken from the {@link Configurations}.
+     * Note: This method must be called by this reactor's thread, or before the reactor is started.
      *
      * @param port    The port in which the server socket channel will be bond and listen for incoming connections.
      * @param handler A {@link TCPAcceptorHandler} to handle the accept operation.
@@ -242,11 +676,13 @@ public final class TCPSelector {
             // Will throw exception if the socket couldn't be opened.
             ServerSocketChannel channel = ServerSocketChannel.open();
             // Will throw exception if the socket couldn't bind, or if the socket is already bound.
-            channel.socket().bind(new InetSocketAddress(port));
+            channel.socket().bind(new InetSocketAddress(port), Configurations.getInstance().getListenBacklog());
             // Will throw exception is the channel was closed (can't happen this)
             channel.configureBlocking(false);
             // Will throw exception if the channel was closed (can't happen this)
-            return channel.register(selector, SelectionKey.OP_ACCEPT, handler);
+            SelectionKey key = channel.register(selector, acceptingPaused.get() ? 0 : SelectionKey.OP_ACCEPT, handler);
+            serverKeys.add(key);
+            return key;
         } catch (IOException e) {
             return null;
         }
@@ -256,33 +692,178 @@ public final class TCPSelector {
 
     /**
      * Adds a client socket channel to this selector, and starts connecting it (in non-blocking mode).
+     * The host name is resolved by the {@link DNSResolver}, so this method never blocks.
+     * Connections are limited by the host's {@link Upstream}: if too many connections are being established
+     * with it, this one waits for them to finish, and if it is down, this one won't start.
+     * Once the connection starts (or if it couldn't start), the given callback is run by this reactor's thread.
+     * If the connection is allowed and the host's address is cached, that happens before this method returns.
+     * Note: This method must only be called by this reactor's thread.
      *
-     * @param host    The host to be connected with.
+     * @param host     The host to be connected with.
+     * @param port     The port in which the host is listening.
+     * @param handler  A {@link TCPClientHandler} to handle selected IO operations.
+     * @param callback Receives the {@link SelectionKey} representing the new connection,
+     *                 if the socket could start connecting, or {@code null} otherwise.
+     */
+    public void addClientSocketChannel(String host, int port, TCPClientHandler handler,
+                                       Consumer<SelectionKey> callback) {
+        if (host == null || host.isEmpty() || port < 0 || port > 0xFFFF || handler == null || callback == null) {
+            throw new IllegalArgumentException();
+        }
+        Upstream upstream = UpstreamsManager.getInstance().getUpstream(host, port);
+        upstream.requestConnect(this, granted -> {
+            if (!granted) {
+                callback.accept(null); // The upstream is down.
+                return;
+            }
+            CompletableFuture<InetAddress> resolution = DNSResolver.getInstance().resolve(host);
+            if (resolution.isDone()) {
+                // Cached address, so connection can start right now.
+                callback.accept(startConnecting(upstream, resolution, port, handler));
+                return;
+            }
+            // Resumes when the name is resolved.
+            resolution.whenCompleteAsync((address, e) ->
+                    callback.accept(startConnecting(upstream, resolution, port, handler)), this);
+        });
+    }
+
+    /**
+     * Takes a connection already established with the given server from this reactor's pool, if there is any.
+     * The given handler is attached to the returned key, which has no interest operations set.
+     * As the channel is already connected, the handler must proceed as if the connect operation was handled.
+     * Note: This method must only be called by this reactor's thread.
+     *
+     * @param host    The host to which the connection must be established.
      * @param port    The port in which the host is listening.
      * @param handler A {@link TCPClientHandler} to handle selected IO operations.
+     * @return The {@link SelectionKey} representing the connection, or {@code null} if there is none in the pool.
+     */
+    public SelectionKey takePooledConnection(String host, int port, TCPClientHandler handler) {
+        if (host == null || handler == null) {
+            throw new IllegalArgumentException();
+        }
+        SelectionKey key = connectionPool.take(host, port);
+        if (key == null) {
+            MetricsManager.getInstance().addUpstreamPoolMisses(1);
+            return null;
+        }
+        key.attach(handler);
+        registerTimeoutCancelableKey(key); // Activity starts now
+        MetricsManager.getInstance().addUpstreamPoolHits(1);
+        return key;
+    }
+
+    /**
+     * Opens a new client socket channel, and starts connecting it to the given resolved address.
+     *
+     * @param upstream   The {@link Upstream} that granted the connection.
+     * @param resolution A completed resolution of the host to be connected with.
+     * @param port       The port in which the host is listening.
+     * @param handler    A {@link TCPClientHandler} to handle selected IO operations.
      * @return The {@link SelectionKey} representing the new connection, if the socket could start connecting,
      * or {@code null} otherwise.
      */
-    public SelectionKey addClientSocketChannel(String host, int port, TCPClientHandler handler) {
-        if (host == null || host.isEmpty() || port < 0 || port > 0xFFFF || handler == null) {
-            throw new IllegalArgumentException();
+    private SelectionKey startConnecting(Upstream upstream, CompletableFuture<InetAddress> resolution, int port,
+                                         TCPClientHandler handler) {
+        if (resolution.isCompletedExceptionally()) {
+            upstream.connectFinished(false);
+            return null; // Name couldn't be resolved
         }
+        SocketChannel channel = null;
         try {
             // Will throw exception if the socket couldn't be opened.
-            SocketChannel channel = SocketChannel.open();
+            channel = SocketChannel.open();
             // Will throw exception is the channel was closed (can't happen this)
             channel.configureBlocking(false);
-            // Will throw exception if connection couldn't start, or name can't be resolved
-            channel.connect(new InetSocketAddress(host, port));
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            // Will throw exception if connection couldn't start
+            channel.connect(new InetSocketAddress(resolution.join(), port));
             // Will throw exception if the channel was closed (can't happen this)
             SelectionKey key = channel.register(selector, SelectionKey.OP_CONNECT, handler);
             // Saves the first activity for the new key
             registerTimeoutCancelableKey(key);
+            connectingKeys.put(key, upstream);
             return key;
-        } catch (IOException | UnresolvedAddressException e) {
+        } catch (IOException e) {
+            upstream.connectFinished(false);
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // Nothing else can be done
+                }
+            }
             return null;
         }
+    }
 
+    /**
+     * Hands an accepted channel to this reactor. The channel will be registered (and the given handler
+     * will be requested to handle the accept operation) by this reactor's thread before its next select operation.
+     * Note: This method can be called from any thread.
+     *
+     * @param channel The accepted channel (already in non-blocking mode).
+     * @param handler The {@link TCPAcceptorHandler} that must handle the accept operation.
+     */
+    /* package */ void addAcceptedSocketChannel(SocketChannel channel, TCPAcceptorHandler handler) {
+        if (channel == null || handler == null) {
+            throw new IllegalArgumentException();
+        }
+        amountOfConnections.incrementAndGet(); // Count it now, so balancing takes it into account
+        submit(() -> registerAcceptedChannel(channel, handler));
+    }
+
+    /**
+     * Registers a channel that was handed to this reactor, making the given handler to handle the accept event.
+     *
+     * @param channel The accepted channel.
+     * @param handler The {@link TCPAcceptorHandler} that must handle the accept operation.
+     */
+    private void registerAcceptedChannel(SocketChannel channel, TCPAcceptorHandler handler) {
+        SelectionKey newKey = null;
+        try {
+            // Will throw exception if the channel was closed
+            newKey = handler.handleAccept(channel.register(selector, 0));
+        } catch (Throwable e) {
+            logException("Exception when trying to register an accepted channel", e);
+        }
+        if (newKey == null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Nothing else can be done
+            }
+            connectionClosed();
+            return;
+        }
+        // Saves the first activity for the new connection
+        registerTimeoutCancelableKey(newKey);
+        acceptedConnections.put(newKey, new ConnectionInfo(id, channel.socket().getRemoteSocketAddress(),
+                newKey.attachment() == null ? null : newKey.attachment().getClass().getSimpleName(), currentTime));
+        MetricsManager.getInstance().addAccesses(1);
+    }
+
+    /**
+     * Accepts a new connection in the given server socket channel's key, and hands it to a reactor.
+     * If the connections limit was reached, nothing is accepted, and accepting is paused till a connection is closed.
+     *
+     * @param key     The {@link SelectionKey} that contains the server socket channel that has a pending accept.
+     * @param handler The {@link TCPAcceptorHandler} attached to the given key.
+     * @throws IOException If an I/O error occurs.
+     */
+    private void acceptConnection(SelectionKey key, TCPAcceptorHandler handler) throws IOException {
+        if (!canAcceptConnections()) {
+            pauseAccepting(); // No more connections allowed (they will wait in the listen backlog).
+            return;
+        }
+        SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+        if (channel == null) {
+            return; // Nothing to accept
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        manager.nextSelector().addAcceptedSocketChannel(channel, handler);
     }
 
     /**
@@ -305,17 +886,25 @@ public final class TCPSelector {
 
     /**
      * Performs IO operations. If no IO event was triggered, the added nothingToDoTasks will be performed.
+     * Submitted tasks, and scheduled tasks whose deadline was reached are run before selecting,
+     * and the select operation won't block beyond the next scheduled task's deadline.
      *
      * @return {@code true} if IO events where triggered, or {@code false} otherwise.
      */
     public boolean doSelect() {
+        currentTime = System.currentTimeMillis();
+        runSubmittedTasks();
+        runScheduledTasks();
         try {
             alwaysRunTasks.forEach(Runnable::run); // Run all tasks that are required to run always
         } catch (Throwable e) {
             logException("Exception when trying to perform an \"always-run\" task", e);
         }
         try {
-            if (selector.select(SELECT_TIMEOUT) == 0) {
+            long selectTimeout = calculateSelectTimeout();
+            int selectedKeys = selectTimeout == 0 ? selector.selectNow() : selector.select(selectTimeout);
+            currentTime = System.currentTimeMillis(); // Only one timestamp for all the events of this iteration.
+            if (selectedKeys == 0) {
                 // No IO operation ...
                 try {
                     nothingToDoTasks.forEach(Runnable::run);
@@ -342,28 +931,15 @@ public final class TCPSelector {
                 // Only valid keys with a TCPHandler as an attachment will reach this point...
                 if (key.isAcceptable()) {
                     // Key can only be acceptable if it's channel is a server socket channel
-                    SelectionKey newKey = ((TCPAcceptorHandler) handler).handleAccept(key);
-                    if (newKey != null) {
-                        // Saves the first activity for the new connection
-                        registerTimeoutCancelableKey(newKey);
-                        if (acceptedKeys.size() >= MAX_AMOUNT_OF_CONNECTIONS) {
-                            newKey.cancel(); // No more connections allowed.
-                            try {
-                                newKey.channel().close();
-                            } catch (Throwable e) {
-                                newKey.cancel(); // Allows cancelling the new key
-                            }
-                            continue;
-                        }
-                        acceptedKeys.add(newKey); // Adds the new key in the accepted keys.
-                        MetricsManager.getInstance().addAccesses(1);
-                    }
+                    acceptConnection(key, (TCPAcceptorHandler) handler);
                 } else if (key.isConnectable()) {
                     // Key can only be connectable if it's channel is a client socket channel
                     ((TCPClientHandler) handler).handleConnect(key);
                     if (key.isValid()) {
                         // Key could have been invalidated if connection was refused
                         afterTryingConnection(key); // Check if connection was established
+                    } else {
+                        notifyClose(key); // Connection was refused
                     }
                 } else {
                     // If key is acceptable or connectable, it mustn't reach this point...
@@ -382,6 +958,7 @@ public final class TCPSelector {
                 } catch (Throwable anotherThrowable) {
                     key.cancel();
                 }
+                notifyClose(key);
                 logException("Exception when trying to perform an IO task task", e);
             }
         }
@@ -389,15 +966,37 @@ public final class TCPSelector {
         return true;
     }
 
+    /**
+     * Runs this reactor's loop, performing select operations forever.
+     */
+    @Override
+    public void run() {
+        if (thread != null) {
+            throw new IllegalStateException("This reactor is already running.");
+        }
+        thread = Thread.currentThread();
+        currentSelector.set(this);
+        logger.info("Reactor {} started", id);
+        while (true) {
+            doSelect();
+        }
+    }
+
 
     /**
      * Checks if the connection was established for the channel of the given {@link SelectionKey}.
+     * If it was, the {@link Upstream} it was connecting to is notified.
      * If it wasn't the amount of tries are updated.
      * If that amount of tries is greater or equals to MAX_CONNECTION_TRIES, then the given {@code key} is cancelled.
      *
      * @param key The {@link SelectionKey} whose channel must be checked it it was connected.
      */
     private void afterTryingConnection(SelectionKey key) {
+        if (((SocketChannel) key.channel()).isConnected()) {
+            connectionTries.remove(key);
+            connectFinished(key, true);
+            return;
+        }
         if (((SocketChannel) key.channel()).isConnectionPending()) {
             Integer tries = connectionTries.get(key);
             if (tries == null) {
@@ -406,11 +1005,11 @@ public final class TCPSelector {
             tries++;
             if (tries >= MAX_CONNECTION_TRIES) {
                 key.cancel();
-                connectionTries.remove(key);
+                notifyClose(key);
             } else {
                 connectionTries.put(key, tries);
             }
         }
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,162 @@
+package ar.edu.itba.pdc.chinese_whispers.connection;
+
+import ar.edu.itba.pdc.chinese_whispers.application.Configurations;
+import ar.edu.itba.pdc.chinese_whispers.application.LogHelper;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * This class holds all the reactors (i.e. {@link TCPSelector}s) of the system, and is in charge of starting them.
+ * Server socket channels are registered in the main selector (the one with index 0),
+ * which hands accepted connections to the least loaded reactor (breaking ties in round-robin fashion).
+ * When the connections limit is reached, accepting is paused till any reactor closes a connection.
+ * <p>
+ * This class implements the singleton pattern.
+ */
+public final class TCPSelectorsManager {
+
+    /**
+     * Holds the reactors.
+     */
+    private final TCPSelector[] selectors;
+    /**
+     * Index from which the next balancing operation will start checking reactors.
+     * Only accessed by the main selector's thread (the one that accepts connections).
+     */
+    private int nextSelector;
+
+    /**
+     * Contains the singleton.
+     */
+    private static TCPSelectorsManager singleton;
+
+
+    /**
+     * Private constructor (for singleton pattern).
+     *
+     * @param amountOfSelectors The amount of reactors to be created.
+     * @throws IOException If any of the selectors couldn't be opened.
+     */
+    private TCPSelectorsManager(int amountOfSelectors) throws IOException {
+        if (amountOfSelectors <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.selectors = new TCPSelector[amountOfSelectors];
+        for (int i = 0; i < amountOfSelectors; i++) {
+            selectors[i] = new TCPSelector(this, i);
+        }
+        this.nextSelector = 0;
+    }
+
+
+    /**
+     * Gets the singleton instance.
+     * The amount of reactors is taken from the {@link Configurations} when the instance is created.
+     *
+     * @return The only instance of this class.
+     */
+    public static synchronized TCPSelectorsManager getInstance() {
+        if (singleton == null) {
+            try {
+                singleton = new TCPSelectorsManager(Configurations.getInstance().getAmountOfReactors());
+            } catch (IOException ignored) {
+                // Will return null if IOException is thrown
+            }
+        }
+        return singleton;
+    }
+
+    /**
+     * Returns the main selector (i.e. the one in which server socket channels must be registered).
+     *
+     * @return The main selector.
+     */
+    public TCPSelector getMainSelector() {
+        return selectors[0];
+    }
+
+    /**
+     * Returns the amount of reactors.
+     *
+     * @return The amount of reactors.
+     */
+    public int getAmountOfSelectors() {
+        return selectors.length;
+    }
+
+    /**
+     * Returns the amount of connections being served by all the reactors.
+     *
+     * @return The amount of connections.
+     */
+    public int getAmountOfConnections() {
+        int amount = 0;
+        for (TCPSelector each : selectors) {
+            amount += each.getAmountOfConnections();
+        }
+        return amount;
+    }
+
+    /**
+     * Returns the connections being served by all the reactors (i.e. a snapshot of their connections registries).
+     *
+     * @return A list containing information about each connection.
+     */
+    public List<ConnectionInfo> getConnections() {
+        List<ConnectionInfo> connections = new LinkedList<>();
+        for (TCPSelector each : selectors) {
+            connections.addAll(each.getConnections());
+        }
+        return connections;
+    }
+
+    /**
+     * Returns the reactor that must own the next accepted connection.
+     * That is the one serving less connections. Ties are broken in round-robin fashion.
+     * Note: This method must only be called by the main selector's thread.
+     *
+     * @return The reactor that will own the next connection.
+     */
+    /* package */ TCPSelector nextSelector() {
+        TCPSelector result = null;
+        int resultIndex = nextSelector;
+        for (int i = 0; i < selectors.length; i++) {
+            int index = (nextSelector + i) % selectors.length;
+            TCPSelector each = selectors[index];
+            if (result == null || each.getAmountOfConnections() < result.getAmountOfConnections()) {
+                result = each;
+                resultIndex = index;
+            }
+        }
+        nextSelector = (resultIndex + 1) % selectors.length;
+        return result;
+    }
+
+    /**
+     * Notifies that a connection was closed, so reactors whose accepting was paused
+     * (because the connections limit was reached) can resume it.
+     * Note: This method can be called from any thread.
+     */
+    /* package */ void connectionClosed() {
+        for (TCPSelector each : selectors) {
+            each.resumeAcceptingIfPaused();
+        }
+    }
+
+    /**
+     * Starts all the reactors. Each one but the main selector is run in a new thread.
+     * The main selector is run in the calling thread, so this method never returns.
+     */
+    public void run() {
+        for (int i = 1; i < selectors.length; i++) {
+            Thread thread = new Thread(selectors[i], "reactor-" + i);
+            thread.setUncaughtExceptionHandler((t, e) -> LogHelper.getLogger(getClass())
+                    .error("Reactor thread {} died: {}", t.getName(), e.getMessage()));
+            thread.start();
+        }
+        Thread.currentThread().setName("reactor-0");
+        selectors[0].run();
+    }
+}
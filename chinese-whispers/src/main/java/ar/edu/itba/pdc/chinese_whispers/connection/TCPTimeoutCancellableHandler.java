@@ -15,4 +15,20 @@ public interface TCPTimeoutCancellableHandler extends TCPHandler {
      */
     void handleTimeout(SelectionKey key);
 
+    /**
+     * Returns the timeout that the reactor armed for this handler's key, so it's found with no lookup.
+     *
+     * @return The timeout, or {@code null} if it wasn't armed yet.
+     */
+    TimingWheel.Timeout getTimeout();
+
+    /**
+     * Holds the timeout that the reactor armed for this handler's key. Handlers must only store it.
+     * Note: When a handler is replaced by another one for the same key, the new handler should be given
+     * the old one's timeout (otherwise, the reactor arms a new one, and the old one is dropped when it expires).
+     *
+     * @param timeout The timeout.
+     */
+    void setTimeout(TimingWheel.Timeout timeout);
+
 }
@@ -0,0 +1,267 @@
+package ar.edu.itba.pdc.chinese_whispers.connection;
+
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel that tracks deadlines of {@link SelectionKey}s.
+ * The wheel is an array of buckets, each one holding the timeouts whose deadline falls in a given tick
+ * (modulo the wheel's size). Arming, re-arming and cancelling a timeout are O(1) operations
+ * (a doubly linked list insertion or removal), and expiring only visits the buckets of elapsed ticks.
+ * <p>
+ * Timeouts also support lazy re-arming through {@link Timeout#touch(long)}, which just saves the last activity
+ * timestamp. When such a timeout expires, the expiring consumer can re-arm it based on that timestamp,
+ * so keys with activity are only moved once per timeout period instead of once per IO event.
+ * <p>
+ * Only the reactor that owns the wheel operates it, but timeouts are held by the handlers of their keys
+ * (see {@link TCPTimeoutCancellableHandler#getTimeout()}), so finding a key's timeout needs no lookup.
+ * <p>
+ * Note: This class is not thread safe. It must only be used by the reactor that owns it.
+ */
+public final class TimingWheel {
+
+    /**
+     * Duration (in milliseconds) of each tick.
+     */
+    private final long tickDuration;
+    /**
+     * The wheel's buckets.
+     */
+    private final Timeout[] buckets;
+    /**
+     * Mask used to get a bucket index from a tick (the amount of buckets is a power of two).
+     */
+    private final int mask;
+    /**
+     * Timestamp from which ticks are counted.
+     */
+    private final long startTime;
+    /**
+     * The next tick whose bucket must be expired.
+     */
+    private long currentTick;
+    /**
+     * Amount of armed timeouts.
+     */
+    private int size;
+    /**
+     * List used when expiring, in order to consume timeouts once all buckets were traversed
+     * (consumers might cancel or re-arm other timeouts).
+     */
+    private final List<Timeout> expiredTimeouts;
+
+
+    /**
+     * Constructor.
+     *
+     * @param tickDuration     Duration (in milliseconds) of each tick.
+     * @param amountOfBuckets  Amount of buckets (will be rounded up to a power of two).
+     * @param currentTime      The actual timestamp.
+     */
+    /* package */ TimingWheel(long tickDuration, int amountOfBuckets, long currentTime) {
+        if (tickDuration <= 0 || amountOfBuckets <= 0) {
+            throw new IllegalArgumentException();
+        }
+        int size = Integer.highestOneBit(amountOfBuckets);
+        if (size < amountOfBuckets) {
+            size <<= 1;
+        }
+        this.tickDuration = tickDuration;
+        this.buckets = new Timeout[size];
+        this.mask = size - 1;
+        this.startTime = currentTime;
+        this.currentTick = 0;
+        this.size = 0;
+        this.expiredTimeouts = new ArrayList<>();
+    }
+
+    /**
+     * Returns the amount of armed timeouts.
+     *
+     * @return The amount of armed timeouts.
+     */
+    /* package */ int size() {
+        return size;
+    }
+
+    /**
+     * Arms a new timeout for the given {@link SelectionKey}.
+     *
+     * @param key      The key whose timeout will be tracked.
+     * @param deadline When the timeout must expire.
+     * @return The new {@link Timeout}.
+     */
+    /* package */ Timeout arm(SelectionKey key, long deadline) {
+        Timeout timeout = new Timeout(key, deadline);
+        link(timeout);
+        return timeout;
+    }
+
+    /**
+     * Changes the deadline of the given {@link Timeout}, arming it again if it was expired or cancelled.
+     *
+     * @param timeout  The timeout to be re-armed.
+     * @param deadline The new deadline.
+     */
+    /* package */ void rearm(Timeout timeout, long deadline) {
+        if (timeout.isArmed()) {
+            unlink(timeout);
+        }
+        timeout.deadline = deadline;
+        link(timeout);
+    }
+
+    /**
+     * Cancels the given {@link Timeout} (i.e. it won't expire).
+     *
+     * @param timeout The timeout to be cancelled.
+     */
+    /* package */ void cancel(Timeout timeout) {
+        if (timeout.isArmed()) {
+            unlink(timeout);
+        }
+    }
+
+    /**
+     * Expires all the timeouts whose deadline is in an elapsed tick, handing them to the given consumer.
+     * Expired timeouts are disarmed before being consumed, so the consumer can re-arm them.
+     *
+     * @param currentTime The actual timestamp.
+     * @param consumer    The consumer of expired timeouts.
+     */
+    /* package */ void expire(long currentTime, Consumer<Timeout> consumer) {
+        // Only ticks that completely elapsed are expired, so all timeouts in their buckets have already expired
+        // (unless they belong to a future round).
+        long lastElapsedTick = (currentTime - startTime) / tickDuration - 1;
+        long processedBuckets = 0;
+        while (currentTick <= lastElapsedTick && size > 0) {
+            if (processedBuckets < buckets.length) {
+                // After a whole round, buckets already hold timeouts for future rounds only
+                int index = (int) (currentTick & mask);
+                Timeout timeout = buckets[index];
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    if (timeout.deadline <= currentTime) {
+                        unlink(timeout);
+                        expiredTimeouts.add(timeout);
+                    }
+                    timeout = next;
+                }
+                processedBuckets++;
+            }
+            currentTick++;
+        }
+        if (currentTick <= lastElapsedTick) {
+            currentTick = lastElapsedTick + 1; // Nothing armed
+        }
+        if (expiredTimeouts.isEmpty()) {
+            return;
+        }
+        try {
+            expiredTimeouts.forEach(consumer);
+        } finally {
+            expiredTimeouts.clear();
+        }
+    }
+
+    /**
+     * Adds the given timeout in the bucket that corresponds to its deadline.
+     *
+     * @param timeout The timeout to be linked.
+     */
+    private void link(Timeout timeout) {
+        long tick = (timeout.deadline - startTime) / tickDuration;
+        if (tick < currentTick) {
+            tick = currentTick; // Already expired, so it will be expired in the next tick.
+        }
+        int index = (int) (tick & mask);
+        timeout.bucket = index;
+        timeout.previous = null;
+        timeout.next = buckets[index];
+        if (buckets[index] != null) {
+            buckets[index].previous = timeout;
+        }
+        buckets[index] = timeout;
+        size++;
+    }
+
+    /**
+     * Removes the given timeout from its bucket.
+     *
+     * @param timeout The timeout to be unlinked.
+     */
+    private void unlink(Timeout timeout) {
+        if (timeout.previous == null) {
+            buckets[timeout.bucket] = timeout.next;
+        } else {
+            timeout.previous.next = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+        size--;
+    }
+
+
+    /**
+     * A timeout of a {@link SelectionKey}, stored in one of the wheel's buckets.
+     * Only its reactor can operate it (handlers just hold it).
+     */
+    public static final class Timeout {
+        /**
+         * The key whose timeout is being tracked.
+         */
+        private final SelectionKey key;
+        /**
+         * When this timeout expires.
+         */
+        private long deadline;
+        /**
+         * When the last activity took place.
+         */
+        private long lastActivity;
+        /**
+         * Index of the bucket holding this timeout, or -1 if it's not armed.
+         */
+        private int bucket;
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(SelectionKey key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+            this.lastActivity = Long.MIN_VALUE;
+            this.bucket = -1;
+        }
+
+        /* package */ SelectionKey getKey() {
+            return key;
+        }
+
+        /* package */ long getDeadline() {
+            return deadline;
+        }
+
+        /* package */ long getLastActivity() {
+            return lastActivity;
+        }
+
+        /**
+         * Saves the given timestamp as the last activity. This method does not move the timeout.
+         *
+         * @param timestamp The last activity timestamp.
+         */
+        /* package */ void touch(long timestamp) {
+            this.lastActivity = timestamp;
+        }
+
+        /* package */ boolean isArmed() {
+            return bucket >= 0;
+        }
+    }
+}
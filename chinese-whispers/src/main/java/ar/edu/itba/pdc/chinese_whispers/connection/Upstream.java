@@ -0,0 +1,259 @@
+package ar.edu.itba.pdc.chinese_whispers.connection;
+
+import ar.edu.itba.pdc.chinese_whispers.application.LogHelper;
+import org.slf4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * Holds the state of the connections being established with an upstream server (i.e. a host and port pair),
+ * shared by all reactors. It limits how many connections can be being established at the same time
+ * (exceeding requests wait in a FIFO queue), computes jittered exponential backoff delays for retries,
+ * and acts as a circuit breaker: after a given amount of consecutive failures, the upstream is considered down
+ * and connection requests are rejected (i.e. they fail fast) for some time. Once that time passes, only one
+ * connection is allowed (i.e. a probe). If it succeeds, the upstream is considered up again.
+ * <p>
+ * Instances are created by the {@link UpstreamsManager}.
+ * This class is thread safe, but it is only used when connections are requested or finished,
+ * so it uses a lock instead of lock-free structures.
+ */
+public final class Upstream {
+
+    /**
+     * The upstream host.
+     */
+    private final String host;
+    /**
+     * The upstream port.
+     */
+    private final int port;
+    /**
+     * Max amount of connections being established at the same time.
+     */
+    private final int maxConnectsInFlight;
+    /**
+     * Amount of consecutive failures that opens the circuit.
+     */
+    private final int failuresThreshold;
+    /**
+     * Time (in milliseconds) the circuit is kept open before allowing a probe connection.
+     */
+    private final long openCircuitTime;
+    /**
+     * Backoff delay (in milliseconds) after the first failure.
+     */
+    private final long baseBackoff;
+    /**
+     * Max backoff delay (in milliseconds).
+     */
+    private final long maxBackoff;
+    /**
+     * Requests that are waiting for a connection to finish in order to start connecting.
+     */
+    private final Queue<ConnectRequest> waitingRequests;
+    /**
+     * Amount of connections being established right now.
+     */
+    private int connectsInFlight;
+    /**
+     * Amount of consecutive failures.
+     */
+    private int consecutiveFailures;
+    /**
+     * The circuit breaker's state.
+     */
+    private CircuitState circuitState;
+    /**
+     * When the open circuit allows a probe connection.
+     */
+    private long circuitOpenUntil;
+
+    private final Logger logger;
+
+
+    /* package */ Upstream(String host, int port, int maxConnectsInFlight, int failuresThreshold,
+                           long openCircuitTime, long baseBackoff, long maxBackoff) {
+        if (maxConnectsInFlight <= 0 || failuresThreshold <= 0 || openCircuitTime < 0
+                || baseBackoff <= 0 || maxBackoff < baseBackoff) {
+            throw new IllegalArgumentException();
+        }
+        this.host = host;
+        this.port = port;
+        this.maxConnectsInFlight = maxConnectsInFlight;
+        this.failuresThreshold = failuresThreshold;
+        this.openCircuitTime = openCircuitTime;
+        this.baseBackoff = baseBackoff;
+        this.maxBackoff = maxBackoff;
+        this.waitingRequests = new ArrayDeque<>();
+        this.connectsInFlight = 0;
+        this.consecutiveFailures = 0;
+        this.circuitState = CircuitState.CLOSED;
+        this.logger = LogHelper.getLogger(getClass());
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Says if the upstream is known to be down (i.e. the circuit is open and no probe connection is allowed yet).
+     *
+     * @return {@code true} if connection requests will be rejected, or {@code false} otherwise.
+     */
+    public synchronized boolean isDown() {
+        return circuitState == CircuitState.OPEN && System.currentTimeMillis() < circuitOpenUntil;
+    }
+
+    /**
+     * Returns the delay that must be waited before retrying a connection to this upstream.
+     * It grows exponentially with the amount of consecutive failures (till the max backoff),
+     * and it's randomized (i.e. "full jitter") so clients retrying at the same time are spread.
+     *
+     * @return The delay (in milliseconds).
+     */
+    public long getBackoffDelay() {
+        int failures;
+        synchronized (this) {
+            failures = consecutiveFailures;
+        }
+        long delay = baseBackoff << Math.min(Math.max(failures - 1, 0), 30);
+        if (delay <= 0 || delay > maxBackoff) {
+            delay = maxBackoff;
+        }
+        return ThreadLocalRandom.current().nextLong(delay + 1);
+    }
+
+    /**
+     * Requests permission to start connecting to this upstream.
+     * The given continuation receives {@code true} if the connection can start, or {@code false} if the request was
+     * rejected because the upstream is down. If permission is granted (or rejected) right now, the continuation
+     * is run before this method returns. Otherwise, the request waits till another connection finishes,
+     * and the continuation is submitted to the given reactor.
+     * When permission is granted, {@link #connectFinished(boolean)} must be called once the connection finishes.
+     *
+     * @param reactor      The reactor requesting permission.
+     * @param continuation The continuation of the request.
+     */
+    /* package */ void requestConnect(TCPSelector reactor, Consumer<Boolean> continuation) {
+        Boolean granted;
+        synchronized (this) {
+            granted = tryAcquire();
+            if (granted == null) {
+                waitingRequests.offer(new ConnectRequest(reactor, continuation));
+                return;
+            }
+        }
+        continuation.accept(granted);
+    }
+
+    /**
+     * Notifies that a connection (whose start was granted by this upstream) finished.
+     *
+     * @param success {@code true} if the connection was established, or {@code false} otherwise.
+     */
+    /* package */ void connectFinished(boolean success) {
+        Queue<ConnectRequest> granted = new ArrayDeque<>();
+        Queue<ConnectRequest> rejected = new ArrayDeque<>();
+        synchronized (this) {
+            connectsInFlight--;
+            if (success) {
+                if (circuitState != CircuitState.CLOSED) {
+                    logger.info("Upstream {}:{} is up again", host, port);
+                }
+                consecutiveFailures = 0;
+                circuitState = CircuitState.CLOSED;
+            } else {
+                consecutiveFailures++;
+                if (circuitState == CircuitState.HALF_OPEN || consecutiveFailures >= failuresThreshold) {
+                    if (circuitState != CircuitState.OPEN) {
+                        logger.warn("Upstream {}:{} seems to be down. Failing fast for {} ms",
+                                host, port, openCircuitTime);
+                    }
+                    circuitState = CircuitState.OPEN;
+                    circuitOpenUntil = System.currentTimeMillis() + openCircuitTime;
+                }
+            }
+            // Processes waiting requests in FIFO order, till one of them must keep waiting.
+            ConnectRequest request;
+            while ((request = waitingRequests.peek()) != null) {
+                Boolean result = tryAcquire();
+                if (result == null) {
+                    break;
+                }
+                waitingRequests.poll();
+                (result ? granted : rejected).offer(request);
+            }
+        }
+        granted.forEach(request -> request.reactor.submit(() -> request.continuation.accept(true)));
+        rejected.forEach(request -> request.reactor.submit(() -> request.continuation.accept(false)));
+    }
+
+    /**
+     * Tries to get permission to start connecting.
+     * Note: Must be called holding this instance's lock.
+     *
+     * @return {@code true} if permission is granted, {@code false} if it is rejected,
+     * or {@code null} if the request must wait.
+     */
+    private Boolean tryAcquire() {
+        switch (circuitState) {
+            case OPEN:
+                if (System.currentTimeMillis() < circuitOpenUntil) {
+                    return false;
+                }
+                if (connectsInFlight > 0) {
+                    return null; // The probe must wait for connections being established to finish.
+                }
+                circuitState = CircuitState.HALF_OPEN; // Time to probe the upstream
+                connectsInFlight++;
+                return true;
+            case HALF_OPEN:
+                return null; // Waits for the probe's result.
+            default:
+                if (connectsInFlight >= maxConnectsInFlight) {
+                    return null;
+                }
+                connectsInFlight++;
+                return true;
+        }
+    }
+
+
+    /**
+     * A request waiting for permission to start connecting.
+     */
+    private static final class ConnectRequest {
+        private final TCPSelector reactor;
+        private final Consumer<Boolean> continuation;
+
+        private ConnectRequest(TCPSelector reactor, Consumer<Boolean> continuation) {
+            this.reactor = reactor;
+            this.continuation = continuation;
+        }
+    }
+
+    /**
+     * States of the circuit breaker.
+     */
+    private enum CircuitState {
+        /**
+         * The upstream is up (connections are allowed).
+         */
+        CLOSED,
+        /**
+         * The upstream is down (connections are rejected, till it's time to probe).
+         */
+        OPEN,
+        /**
+         * A probe connection is being established (other connections wait for its result).
+         */
+        HALF_OPEN
+    }
+}
@@ -0,0 +1,62 @@
+package ar.edu.itba.pdc.chinese_whispers.connection;
+
+import ar.edu.itba.pdc.chinese_whispers.application.Configurations;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class holds an {@link Upstream} for each host and port pair to which connections are established.
+ * Upstreams are shared by all reactors.
+ * Limits, circuit breaker and backoff settings are taken from the {@link Configurations}.
+ * <p>
+ * This class implements the singleton pattern.
+ */
+public final class UpstreamsManager {
+
+    /**
+     * Holds the upstreams, by "host:port".
+     */
+    private final Map<String, Upstream> upstreams;
+
+    /**
+     * Holds the singleton.
+     */
+    private static final UpstreamsManager singleton = new UpstreamsManager();
+
+
+    /**
+     * Private constructor (for singleton pattern).
+     */
+    private UpstreamsManager() {
+        this.upstreams = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Gets the singleton instance.
+     *
+     * @return The only instance of this class.
+     */
+    public static UpstreamsManager getInstance() {
+        return singleton;
+    }
+
+    /**
+     * Returns the {@link Upstream} for the given host and port, creating it if it didn't exist.
+     *
+     * @param host The upstream host.
+     * @param port The upstream port.
+     * @return The upstream.
+     */
+    public Upstream getUpstream(String host, int port) {
+        if (host == null) {
+            throw new IllegalArgumentException();
+        }
+        return upstreams.computeIfAbsent(host + ":" + port, key -> {
+            Configurations configurations = Configurations.getInstance();
+            return new Upstream(host, port, configurations.getMaxConnectsPerUpstream(),
+                    configurations.getCircuitBreakerThreshold(), configurations.getCircuitBreakerTimeout() * 1000L,
+                    configurations.getConnectBackoffBase(), configurations.getConnectBackoffMax());
+        });
+    }
+}
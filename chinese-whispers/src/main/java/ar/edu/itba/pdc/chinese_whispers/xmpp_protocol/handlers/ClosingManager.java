@@ -1,7 +1,5 @@
 package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.handlers;
 
-import ar.edu.itba.pdc.chinese_whispers.connection.TCPSelector;
-
 import java.util.*;
 
 /**
@@ -30,7 +28,7 @@ public class ClosingManager {
     /**
      * Holds the singleton.
      */
-    private static ClosingManager singleton;
+    private static final ClosingManager singleton = new ClosingManager();
 
 
     /**
@@ -46,9 +44,6 @@ public class ClosingManager {
      * @return The only instance in all the system.
      */
     public static ClosingManager getInstance() {
-        if (singleton == null) {
-            singleton = new ClosingManager();
-        }
         return singleton;
     }
 
@@ -66,7 +61,7 @@ public class ClosingManager {
             return;
         }
 //        closableHandlers.put(handler, CLOSE_MESSAGE.getBytes());
-        handler.postMessage(CLOSE_MESSAGE.getBytes());
+        handler.postMessage(CLOSE_MESSAGE);
         handler.requestClose();
     }
 
@@ -3,8 +3,9 @@ package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.handlers;
 import ar.edu.itba.pdc.chinese_whispers.application.IdGenerator;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors.ParserResponse;
 
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -29,6 +30,10 @@ import java.util.Set;
      * Set containing the {@link ParserResponse} values that are errors.
      */
     private final Set<ParserResponse> parserResponseErrors;
+    /**
+     * Read-only view of the {@link #parserResponseErrors} set (returned to callers, so it's not copied each time).
+     */
+    private final Set<ParserResponse> parserResponseErrorsView;
 
     /**
      * Holds the message that mus be sent for each value of the {@link XMPPErrors} enum.
@@ -42,7 +47,7 @@ import java.util.Set;
 
 
     protected ErrorsManager() {
-        this.parserResponseErrors = new HashSet<>();
+        this.parserResponseErrors = EnumSet.noneOf(ParserResponse.class);
         parserResponseErrors.add(ParserResponse.XML_ERROR);
         parserResponseErrors.add(ParserResponse.POLICY_VIOLATION);
         parserResponseErrors.add(ParserResponse.HOST_UNKNOWN);
@@ -50,6 +55,7 @@ import java.util.Set;
         parserResponseErrors.add(ParserResponse.MALFORMED_REQUEST);
         parserResponseErrors.add(ParserResponse.UNSUPPORTED_NEGOTIATION_MECHANISM);
         parserResponseErrors.add(ParserResponse.FAILED_NEGOTIATION);
+        this.parserResponseErrorsView = Collections.unmodifiableSet(parserResponseErrors);
 
         this.errorMessages = new HashMap<>();
         this.errorHandlers = new HashMap<>();
@@ -83,11 +89,13 @@ import java.util.Set;
 
     /**
      * Returns a set containing those {@link ParserResponse} values that are considered as errors.
+     * Note: This method is called for each chunk of data being parsed, so it returns a read-only view of the set
+     * instead of a copy of it.
      *
-     * @return The set with {@link ParserResponse} that are errors.
+     * @return An unmodifiable set with {@link ParserResponse} that are errors.
      */
     public Set<ParserResponse> parserResponseErrors() {
-        return new HashSet<>(parserResponseErrors); // Another set in case it's modified by caller.
+        return parserResponseErrorsView;
     }
 
 
@@ -104,7 +112,7 @@ import java.util.Set;
 //        }
 //        handler.postMessage(errorMessages.get(error).getBytes());
 //        afterSendingError(handler);
-        doNotify(handler, errorMessages.get(error).getBytes());
+        doNotify(handler, errorMessages.get(error));
     }
 
     /**
@@ -113,9 +121,9 @@ import java.util.Set;
      * @param handler The handler that reached an error situation.
      * @param message The mesage to be posted to the given handler.
      */
-    protected void doNotify(XMPPHandler handler, byte[] message) {
+    protected void doNotify(XMPPHandler handler, String message) {
         if (handler.firstMessage()) {
-            handler.postMessage((INITIAL_TAG_UNCLOSED + " id='" + IdGenerator.generateId() + "'>").getBytes());
+            handler.postMessage(INITIAL_TAG_UNCLOSED + " id='" + IdGenerator.generateId() + "'>");
         }
         handler.postMessage(message);
         afterSendingError(handler);
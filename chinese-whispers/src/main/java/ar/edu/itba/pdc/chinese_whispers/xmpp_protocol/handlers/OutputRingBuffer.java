@@ -0,0 +1,316 @@
+package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.handlers;
+
+import ar.edu.itba.pdc.chinese_whispers.connection.BuffersManager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * A growable ring buffer holding the data a connection must send.
+ * Data is appended at the ring's tail, and written from its head, so partial writes just advance the head
+ * (i.e. no bytes are moved). As data might wrap around the end of the backing buffer,
+ * writes use at most two views of it (with only one gathering write).
+ * <p>
+ * The backing buffer is taken from the {@link BuffersManager} (as an IO buffer, so it might be a direct one),
+ * with the smallest size class that fits the data. When more space is needed, the ring grows to the next
+ * power of two (copying its content only once). Once drained, the backing buffer is given back to the pool,
+ * so idle connections hold no output memory at all (taking a buffer again is cheap, as the pool keeps
+ * a cache for each reactor). When the connection is closed, the backing buffer is given back to the pool too
+ * (see {@link #clear()}).
+ * <p>
+ * Text can be appended directly (see {@link #put(CharSequence)}), in which case it's encoded in UTF-8 straight
+ * into the backing buffer.
+ * <p>
+ * Note: This class is not thread safe. It must only be used by the reactor that owns the connection.
+ */
+/* package */ final class OutputRingBuffer {
+
+    /**
+     * Holds the backing buffer (or null if it was released).
+     */
+    private ByteBuffer storage;
+    /**
+     * Views of the backing buffer used to access its content (they are recreated when the backing buffer changes).
+     */
+    private final ByteBuffer[] views;
+    /**
+     * Index of the first byte to be written.
+     */
+    private int head;
+    /**
+     * Amount of bytes held by the ring.
+     */
+    private int size;
+
+
+    /* package */ OutputRingBuffer() {
+        this.storage = null;
+        this.views = new ByteBuffer[2];
+        this.head = 0;
+        this.size = 0;
+    }
+
+    /**
+     * Returns the amount of bytes waiting to be written.
+     *
+     * @return The amount of bytes held by this ring.
+     */
+    /* package */ int size() {
+        return size;
+    }
+
+    /**
+     * Says if there is no data waiting to be written.
+     *
+     * @return {@code true} if this ring is empty, or {@code false} otherwise.
+     */
+    /* package */ boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Appends the given bytes to this ring, growing it if needed.
+     *
+     * @param data   The array holding the bytes.
+     * @param offset Offset of the first byte to be appended.
+     * @param length Amount of bytes to be appended.
+     */
+    /* package */ void put(byte[] data, int offset, int length) {
+        if (data == null || offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IllegalArgumentException();
+        }
+        if (length == 0) {
+            return;
+        }
+        ensureCapacity(size + length);
+        int capacity = storage.capacity();
+        int tail = (head + size) % capacity;
+        int firstPart = Math.min(length, capacity - tail);
+        views[0].limit(tail + firstPart).position(tail);
+        views[0].put(data, offset, firstPart);
+        views[1].limit(length - firstPart).position(0);
+        views[1].put(data, offset + firstPart, length - firstPart);
+        size += length;
+    }
+
+    /**
+     * Appends the given chars to this ring, encoded in UTF-8, growing it if needed.
+     * Chars are encoded straight into the backing buffer (i.e. no intermediate {@link String} nor {@code byte[]}
+     * is created). As {@link String#getBytes(java.nio.charset.Charset)} does, unpaired surrogates are replaced
+     * by {@code '?'}.
+     *
+     * @param chars The chars to be appended.
+     */
+    /* package */ void put(CharSequence chars) {
+        if (chars == null) {
+            throw new IllegalArgumentException();
+        }
+        int length = encodedLength(chars);
+        if (length == 0) {
+            return;
+        }
+        ensureCapacity(size + length);
+        int capacity = storage.capacity();
+        int index = (head + size) % capacity;
+        int amountOfChars = chars.length();
+        for (int i = 0; i < amountOfChars; i++) {
+            char c = chars.charAt(i);
+            if (c < 0x80) {
+                index = putByte(index, c);
+            } else if (c < 0x800) {
+                index = putByte(index, 0xC0 | (c >> 6));
+                index = putByte(index, 0x80 | (c & 0x3F));
+            } else if (!Character.isSurrogate(c)) {
+                index = putByte(index, 0xE0 | (c >> 12));
+                index = putByte(index, 0x80 | ((c >> 6) & 0x3F));
+                index = putByte(index, 0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < amountOfChars
+                    && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, chars.charAt(++i));
+                index = putByte(index, 0xF0 | (codePoint >> 18));
+                index = putByte(index, 0x80 | ((codePoint >> 12) & 0x3F));
+                index = putByte(index, 0x80 | ((codePoint >> 6) & 0x3F));
+                index = putByte(index, 0x80 | (codePoint & 0x3F));
+            } else {
+                index = putByte(index, '?');
+            }
+        }
+        size += length;
+    }
+
+    /**
+     * Writes up to {@code maxBytes} bytes from this ring's head into the given channel, with only one
+     * (gathering) write. The written bytes are removed from the ring.
+     *
+     * @param channel  The channel to write into.
+     * @param maxBytes Max amount of bytes to be written.
+     * @return The amount of written bytes.
+     * @throws IOException If an I/O error occurs.
+     */
+    /* package */ int writeTo(GatheringByteChannel channel, int maxBytes) throws IOException {
+        if (size == 0) {
+            return 0;
+        }
+        int amountOfViews = prepareViews(Math.min(size, maxBytes));
+        int writtenBytes = (int) channel.write(views, 0, amountOfViews);
+        consume(writtenBytes);
+        return writtenBytes;
+    }
+
+    /**
+     * Returns a copy of (up to) the first {@code length} bytes of this ring, without removing them.
+     * Only intended for logging.
+     *
+     * @param length Max amount of bytes to be copied.
+     * @return The copied bytes.
+     */
+    /* package */ byte[] peek(int length) {
+        length = Math.min(length, size);
+        byte[] result = new byte[length];
+        if (length == 0) {
+            return result;
+        }
+        int amountOfViews = prepareViews(length);
+        int firstPart = views[0].remaining();
+        views[0].get(result, 0, firstPart);
+        if (amountOfViews == 2) {
+            views[1].get(result, firstPart, length - firstPart);
+        }
+        return result;
+    }
+
+    /**
+     * Removes all the data in this ring, giving its backing buffer back to the pool.
+     */
+    /* package */ void clear() {
+        size = 0;
+        release();
+    }
+
+    /**
+     * Stores the given byte in the given index of the backing buffer.
+     *
+     * @param index The index in which the byte must be stored.
+     * @param b     The byte to be stored (only its lowest 8 bits are used).
+     * @return The index of the next byte (i.e. it wraps around the end of the backing buffer).
+     */
+    private int putByte(int index, int b) {
+        storage.put(index, (byte) b);
+        return index + 1 == storage.capacity() ? 0 : index + 1;
+    }
+
+    /**
+     * Computes the length of the given chars when encoded in UTF-8 (as done by {@link #put(CharSequence)}).
+     *
+     * @param chars The chars to be encoded.
+     * @return The amount of bytes needed to encode them.
+     */
+    private static int encodedLength(CharSequence chars) {
+        int amountOfChars = chars.length();
+        int length = amountOfChars;
+        for (int i = 0; i < amountOfChars; i++) {
+            char c = chars.charAt(i);
+            if (c < 0x80) {
+                continue;
+            }
+            if (c < 0x800) {
+                length += 1;
+            } else if (!Character.isSurrogate(c)) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < amountOfChars
+                    && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                i++;
+                length += 2; // 4 bytes for both chars
+            }
+            // An unpaired surrogate is replaced by one byte
+        }
+        return length;
+    }
+
+    /**
+     * Sets the views so they cover the first {@code length} bytes of this ring.
+     *
+     * @param length Amount of bytes the views must cover.
+     * @return The amount of views needed (1 or 2).
+     */
+    private int prepareViews(int length) {
+        int capacity = storage.capacity();
+        int firstPart = Math.min(length, capacity - head);
+        views[0].limit(head + firstPart).position(head);
+        if (firstPart == length) {
+            return 1;
+        }
+        views[1].limit(length - firstPart).position(0);
+        return 2;
+    }
+
+    /**
+     * Removes the given amount of bytes from this ring's head.
+     * Once drained, the backing buffer is given back to the pool.
+     *
+     * @param length The amount of bytes to be removed.
+     */
+    private void consume(int length) {
+        size -= length;
+        if (size == 0) {
+            release(); // A buffer that fits the next data will be taken when needed
+            return;
+        }
+        head = (head + length) % storage.capacity();
+    }
+
+    /**
+     * Makes sure the backing buffer can hold the given amount of bytes, growing it if needed.
+     *
+     * @param needed Amount of bytes the ring must be able to hold.
+     */
+    private void ensureCapacity(int needed) {
+        if (storage != null && needed <= storage.capacity()) {
+            return;
+        }
+        int newCapacity = needed <= 1 ? 1 : Integer.highestOneBit(needed - 1) << 1; // Next power of two
+        if (newCapacity <= 0) {
+            throw new IllegalStateException("Output buffer too big");
+        }
+        ByteBuffer newStorage = BuffersManager.getInstance().takeIOBuffer(newCapacity);
+        if (storage != null) {
+            // Copies the content to the beginning of the new buffer
+            if (size > 0) {
+                int amountOfViews = prepareViews(size);
+                newStorage.put(views[0]);
+                if (amountOfViews == 2) {
+                    newStorage.put(views[1]);
+                }
+                newStorage.clear();
+            }
+            release();
+        }
+        setStorage(newStorage);
+    }
+
+    /**
+     * Sets the given buffer as this ring's backing buffer.
+     *
+     * @param newStorage The new backing buffer.
+     */
+    private void setStorage(ByteBuffer newStorage) {
+        storage = newStorage;
+        head = 0;
+        views[0] = newStorage.duplicate();
+        views[1] = newStorage.duplicate();
+    }
+
+    /**
+     * Gives the backing buffer back to the pool.
+     */
+    private void release() {
+        if (storage != null) {
+            BuffersManager.getInstance().release(storage);
+        }
+        storage = null;
+        views[0] = null;
+        views[1] = null;
+        head = 0;
+    }
+}
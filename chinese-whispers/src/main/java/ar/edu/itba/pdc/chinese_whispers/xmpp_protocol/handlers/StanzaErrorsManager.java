@@ -34,7 +34,7 @@ public class StanzaErrorsManager extends ErrorsManager {
      * @param error   The error message.
      */
     public void notifyError(XMPPHandler handler, String error) {
-        doNotify(handler, error.getBytes());
+        doNotify(handler, error);
     }
 
     @Override
@@ -5,15 +5,13 @@ import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.Metri
 import ar.edu.itba.pdc.chinese_whispers.connection.TCPAcceptorHandler;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.ApplicationProcessor;
 
-import java.io.IOException;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 
 /**
  * This class makes the proxy accept new connections from XMPP clients.
  * When a new connection arrives, it will create a new {@link XMPPServerHandler}, and attach it to the
- * {@link SelectionKey} created when registering the accepted {@link SocketChannel}.
+ * {@link SelectionKey} created when registering the accepted {@link SocketChannel} in the reactor that will own it.
  * <p>
  * Created by jbellini on 29/10/16.
  */
@@ -50,27 +48,15 @@ public class XMPPAcceptorHandler extends BaseHandler implements TCPAcceptorHandl
         if (key == null) {
             throw new IllegalArgumentException();
         }
-        try {
-            SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
-            if (channel == null) {
-                return null;
-            }
-            channel.configureBlocking(false);
-
-            // The net key will be listening till the client connected to its channel sends a message
-            SelectionKey newKey = channel.register(key.selector(), SelectionKey.OP_READ);
-            // The new handler will act as an XMPP server till negotiation with client finishes.
-            XMPPServerHandler handler = new XMPPServerHandler(applicationProcessor,
-                    configurationsConsumer,
-                    metricsProvider,
-                    newKey);
-            newKey.attach(handler);
-
-            return newKey;
-            // TODO: Add this new key into some set in some future class to have tracking of connections
-        } catch (IOException ignored) {
-            // TODO: what should we do here? XMPP connection wasn't established yet, so it's not necessary to close nicely the connection?
-        }
-        return null;
+        // The new handler will act as an XMPP server till negotiation with client finishes.
+        XMPPServerHandler handler = new XMPPServerHandler(applicationProcessor,
+                configurationsConsumer,
+                metricsProvider,
+                key);
+        key.attach(handler);
+        // The new key will be listening till the client connected to its channel sends a message
+        key.interestOps(SelectionKey.OP_READ);
+
+        return key;
     }
 }
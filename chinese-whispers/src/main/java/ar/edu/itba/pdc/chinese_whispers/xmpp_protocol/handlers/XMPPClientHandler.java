@@ -2,6 +2,7 @@ package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.handlers;
 
 import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.ConfigurationsConsumer;
 import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.MetricsProvider;
+import ar.edu.itba.pdc.chinese_whispers.application.Configurations;
 import ar.edu.itba.pdc.chinese_whispers.connection.TCPClientHandler;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.ApplicationProcessor;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors.ClientNegotiationProcessor;
@@ -32,6 +33,20 @@ public class XMPPClientHandler extends XMPPNegotiatorHandler implements TCPClien
      * Says if this handler has established a TCP connection with the origin server
      */
     private boolean connected;
+    /**
+     * Says if this handler connects to the origin server before the client authenticated
+     * (i.e. it won't start negotiating till it's confirmed, and it can be discarded).
+     */
+    private boolean speculative;
+    /**
+     * When this handler was created (only used by speculative handlers, in order to measure saved latency).
+     */
+    private final long creationTimestamp;
+    /**
+     * When the TCP connection was established, or when this handler was confirmed (the first one that happens),
+     * or zero if none of them happened yet.
+     */
+    private long speculationTimestamp;
 
 
 
@@ -64,6 +79,33 @@ public class XMPPClientHandler extends XMPPNegotiatorHandler implements TCPClien
         this.peerHandler = xmppServerHandler;
         this.clientJid = clientJid;
         connected = false;
+        speculative = false;
+        creationTimestamp = System.currentTimeMillis();
+        speculationTimestamp = 0;
+    }
+
+    /**
+     * Speculative constructor.
+     * It MUST only be called by {@link XMPPServerHandler}, when the client's route is known,
+     * but the client didn't authenticate yet. The handler will connect to the origin server,
+     * but it won't start negotiating till {@link #confirm(String, String)} is called.
+     *
+     * @param applicationProcessor        An object that can process XMPP messages bodies.
+     * @param configurationsConsumer      An object that can be queried about which server each user must connect to.
+     * @param metricsProvider             An object that manages the system metrics.
+     * @param xmppServerHandler           The {@link XMPPServerHandler} that is creating this
+     *                                    new {@link XMPPClientHandler}
+     * @param negotiatorInitialParameters The negotiation initial parameters that were read by the
+     *                                    {@link XMPPServerHandler} that is creating this new {@link XMPPClientHandler}
+     */
+    /* package */ XMPPClientHandler(ApplicationProcessor applicationProcessor,
+                                    MetricsProvider metricsProvider,
+                                    ConfigurationsConsumer configurationsConsumer,
+                                    XMPPServerHandler xmppServerHandler,
+                                    Map<String, String> negotiatorInitialParameters) {
+        this(applicationProcessor, metricsProvider, configurationsConsumer, xmppServerHandler, null,
+                negotiatorInitialParameters, null);
+        speculative = true;
     }
 
     /**
@@ -75,6 +117,44 @@ public class XMPPClientHandler extends XMPPNegotiatorHandler implements TCPClien
         return connected;
     }
 
+    /**
+     * Confirms a speculative handler, once the client authenticated.
+     * If the TCP connection is already established, negotiation with the origin server starts right now.
+     * Otherwise, it will start when the connection is established.
+     *
+     * @param clientJid      The User's JID (The user that connected to the proxy).
+     * @param authentication The authentication string (i.e. text between the auth tags).
+     */
+    /* package */ void confirm(String clientJid, String authentication) {
+        if (!speculative) {
+            throw new IllegalStateException();
+        }
+        speculative = false;
+        this.clientJid = clientJid;
+        ((ClientNegotiationProcessor) getNegotiationProcessor()).setAuthentication(authentication);
+        if (connected) {
+            // The whole connection time was saved.
+            metricsProvider.addSpeculativeConnectSavedTime(speculationTimestamp - creationTimestamp);
+            enableReading();
+            startXMPPNegotiation();
+            return;
+        }
+        speculationTimestamp = System.currentTimeMillis(); // The time passed till now will be saved when the connection is established.
+    }
+
+    /**
+     * Discards a speculative handler, closing its connection (if it has already started).
+     * The {@link XMPPServerHandler} that created it is not notified.
+     */
+    /* package */ void abort() {
+        if (!speculative) {
+            throw new IllegalStateException();
+        }
+        if (this.key != null) {
+            handleClose(this.key);
+        }
+    }
+
 
     /**
      * Sets the given interest ops to this handler's key, if it is connected.
@@ -151,9 +231,10 @@ public class XMPPClientHandler extends XMPPNegotiatorHandler implements TCPClien
     @Override
     protected void finishXMPPNegotiation() {
         XMPPReadWriteHandler xmppReadWriteHandler = new XMPPReadWriteHandler(applicationProcessor, metricsProvider,
-                configurationsConsumer, clientJid, this.key);
+                configurationsConsumer, clientJid, this.key, Configurations.getInstance().getServerHighWatermark(),
+                Configurations.getInstance().getServerLowWatermark());
         ((XMPPServerHandler) peerHandler).startProxying(xmppReadWriteHandler);
-        this.key.attach(xmppReadWriteHandler);
+        handOver(xmppReadWriteHandler);
         enableReading();
     }
 
@@ -180,7 +261,11 @@ public class XMPPClientHandler extends XMPPNegotiatorHandler implements TCPClien
                 }
             } catch (IOException e) {
                 logger.warn("Connection to {} failed: {}", remoteAddress == null ? "unknown address" : remoteAddress, e.getMessage());
-                ((XMPPServerHandler) peerHandler).connectClientHandler(); // Ask peer handler to retry connection
+                if (speculative) {
+                    handleClose(key); // The connection will be started again once the client authenticates.
+                    return;
+                }
+                ((XMPPServerHandler) peerHandler).retryPeerConnection(); // Ask peer handler to retry connection
             }
         }
         if (this.connected) {
@@ -191,6 +276,14 @@ public class XMPPClientHandler extends XMPPNegotiatorHandler implements TCPClien
             }
             logger.info("Connection to {} established! Now listening for messages", remoteAddress);
             this.key.interestOps(0); // Turn off all keys
+            if (speculative) {
+                speculationTimestamp = System.currentTimeMillis();
+                return; // Negotiation will start once the client authenticates.
+            }
+            if (speculationTimestamp != 0) {
+                // Confirmed while connecting, so the time between creation and confirmation was saved.
+                metricsProvider.addSpeculativeConnectSavedTime(speculationTimestamp - creationTimestamp);
+            }
             enableReading();
             startXMPPNegotiation();
         }
@@ -199,6 +292,10 @@ public class XMPPClientHandler extends XMPPNegotiatorHandler implements TCPClien
 
     @Override
     public void handleTimeout(SelectionKey key) {
+        if (speculative) {
+            handleClose(key); // Nobody is waiting for this handler yet
+            return;
+        }
         // An XMPPClientHandler always have a peer handler
 
         // The peer handler is an XMPPServerHandler waiting for this handler to connect to an XMPP server
@@ -213,7 +310,12 @@ public class XMPPClientHandler extends XMPPNegotiatorHandler implements TCPClien
     @Override
     public boolean handleClose(SelectionKey key) {
         boolean result = super.handleClose(key);
-        peerHandler.notifyClose();
+        if (speculative) {
+            // The client is still authenticating, so it must not be closed.
+            ((XMPPServerHandler) peerHandler).speculativeConnectionClosed(this);
+        } else {
+            peerHandler.notifyClose();
+        }
         return result;
     }
 }
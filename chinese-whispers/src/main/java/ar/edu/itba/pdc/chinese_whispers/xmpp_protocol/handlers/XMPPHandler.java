@@ -2,8 +2,11 @@ package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.handlers;
 
 import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.ConfigurationsConsumer;
 import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.MetricsProvider;
+import ar.edu.itba.pdc.chinese_whispers.application.Configurations;
 import ar.edu.itba.pdc.chinese_whispers.application.LogHelper;
 import ar.edu.itba.pdc.chinese_whispers.connection.TCPReadWriteHandler;
+import ar.edu.itba.pdc.chinese_whispers.connection.TCPSelector;
+import ar.edu.itba.pdc.chinese_whispers.connection.TimingWheel;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.ApplicationProcessor;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.OutputConsumer;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors.ParserResponse;
@@ -13,9 +16,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Deque;
-import java.util.LinkedList;
-import java.util.Stack;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Base XMPP handler that defines methods for sending and writing messages.
@@ -32,20 +33,21 @@ import java.util.Stack;
      */
     protected static final int BUFFER_SIZE = 8 * 1024; // We use an 8 KiB buffer
     /**
-     * The maximum amount of {@link ByteBuffer}s in the buffers deque.
+     * The maximum amount of bytes waiting to be sent while negotiating, before the handler stops reading.
      */
-    protected static final int MAX_AMOUNT_OF_BUFFERS_IN_THE_QUEUE = 10; // up to 100 byte buffers (8 KiB each)
+    protected static final int MAX_AMOUNT_OF_OUTPUT_BYTES = 10 * BUFFER_SIZE;
+    /**
+     * Max amount of bytes written in each write event, so a handler with a big backlog can't starve the others.
+     */
+    private static final int MAX_WRITTEN_BYTES_PER_EVENT = 64 * 1024;
 
 
     // Communication stuff
+    // Note: Data is read in the reactor's read buffer (see TCPSelector#getReadBuffer()).
     /**
-     * Buffer to fill with read data.
-     */
-    protected final ByteBuffer inputBuffer;
-    /**
-     * A Deque which holds messages to be sent in the future.
+     * A ring buffer which holds messages to be sent in the future.
      */
-    protected final Deque<ByteBuffer> outputBuffers;
+    protected final OutputRingBuffer outputBuffer;
     /**
      * Says if it is the first message being sent.
      * It is used to know, in case of error, if the "stream" tag must be sent or not.
@@ -59,11 +61,23 @@ import java.util.Stack;
      * Selection Key that attaches this handler.
      */
     protected SelectionKey key;
+    /**
+     * The timeout armed by the reactor for this handler's key (given to the handler that replaces this one).
+     */
+    private TimingWheel.Timeout timeout;
     /**
      * Tells if this handler must be closed.
      * If true, it will be closed on the next writing operation.
      */
     private boolean mustClose;
+    /**
+     * Tells if a flush of the queued data was already requested to this handler's reactor.
+     */
+    private boolean flushPending;
+    /**
+     * The task that flushes this handler (created once, so a new one is not created each time a flush is requested).
+     */
+    private final Runnable flushTask;
     /**
      * Tells if the notify close operation was performed while on {@link HandlerState#ERROR} state.
      */
@@ -98,9 +112,10 @@ import java.util.Stack;
     protected XMPPHandler(ApplicationProcessor applicationProcessor, MetricsProvider metricsProvider,
                           ConfigurationsConsumer configurationsConsumer) {
         super(applicationProcessor, metricsProvider, configurationsConsumer);
-        this.inputBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-        this.outputBuffers = new LinkedList<>();
+        this.outputBuffer = new OutputRingBuffer();
         this.mustClose = false;
+        this.flushPending = false;
+        this.flushTask = this::flush;
         firstMessage = true;
         this.handlerState = HandlerState.NORMAL;
         logger = LogHelper.getLogger(getClass());
@@ -313,6 +328,8 @@ import java.util.Stack;
 
     /**
      * Method to be executed once a message is received (i.e. when a message is read).
+     * Note: The message is held by the reactor's read buffer, so it must be processed (or copied)
+     * before returning, as the buffer is reused by the rest of the reactor's handlers.
      *
      * @param message The recently read message.
      */
@@ -325,6 +342,9 @@ import java.util.Stack;
 
     /**
      * Saves the given {@code message} in this handler to be sent when possible.
+     * If there was no queued data, the message is written by this handler's reactor once it finishes handling
+     * the actual events (see {@link #flush()}), without waiting for the key to be selected as writable.
+     * That way, all messages posted while handling those events are written together.
      *
      * @param message The message to be sent.
      */
@@ -332,44 +352,109 @@ import java.util.Stack;
         if (message == null) {
             throw new IllegalArgumentException();
         }
-        if (message.length == 0 || this.key == null || !this.key.isValid()) {
+        postMessage(message, 0, message.length);
+    }
+
+    /**
+     * Saves the message held in the given range of the given array in this handler to be sent when possible.
+     * The message is copied into this handler's output buffer, so the array can be reused once this method returns.
+     * Works like {@link #postMessage(byte[])}.
+     *
+     * @param message The array holding the message to be sent.
+     * @param offset  Offset of the message's first byte in the array.
+     * @param length  Length of the message.
+     */
+    /* package */ void postMessage(byte[] message, int offset, int length) {
+        if (message == null || offset < 0 || length < 0 || offset + length > message.length) {
+            throw new IllegalArgumentException();
+        }
+        if (length == 0 || this.key == null || !this.key.isValid()) {
             // Do nothing...
             return;
         }
+        boolean wasEmpty = outputBuffer.isEmpty();
+        outputBuffer.put(message, offset, length);
+        afterPosting(wasEmpty);
+    }
 
+    /**
+     * Saves the given text {@code message} in this handler to be sent when possible, encoded in UTF-8.
+     * The message is encoded straight into this handler's output buffer
+     * (see {@link OutputRingBuffer#put(CharSequence)}), so the given sequence can be reused once this method returns.
+     * Works like {@link #postMessage(byte[])}.
+     *
+     * @param message The message to be sent.
+     */
+    /* package */ void postMessage(CharSequence message) {
+        if (message == null) {
+            throw new IllegalArgumentException();
+        }
+        if (message.length() == 0 || this.key == null || !this.key.isValid()) {
+            // Do nothing...
+            return;
+        }
+        boolean wasEmpty = outputBuffer.isEmpty();
+        outputBuffer.put(message);
+        afterPosting(wasEmpty);
+    }
+
+    /**
+     * Performs the actions needed after a message was saved in the output buffer
+     * (i.e. requesting the flush or enabling writing, and checking the peer's reading key).
+     *
+     * @param wasEmpty Whether the output buffer was empty before saving the message.
+     */
+    private void afterPosting(boolean wasEmpty) {
         if (firstMessage) {
             firstMessage = false;
         }
-        int count = 0;
-        ByteBuffer actualBuffer = outputBuffers.pollLast();
-        if (actualBuffer != null) {
-            count += storeInByteBuffer(actualBuffer, message, count);
-        }
-        while (count < message.length) {
-            count += storeInByteBuffer(ByteBuffersManager.getByteBuffer(), message, count);
+        if (!flushPending) {
+            if (wasEmpty) {
+                flushPending = true;
+                TCPSelector.getInstance().submit(flushTask);
+            } else {
+                enableWriting();
+            }
         }
-        enableWriting();
         checkReadingKeyAfterPosting();
     }
 
     /**
-     * Stores bytes in the given {@link ByteBuffer} till the buffer is full or no more bytes must be stored.
+     * Attaches the given handler to this handler's key (i.e. it will serve the connection from now on).
+     * Data waiting to be sent is moved to the new handler, and this handler's output buffer is given back to the pool.
      *
-     * @param actualBuffer The buffer where data will be stored.
-     * @param message      The byte array containing the data.
-     * @param offset       Offset for the given message.
-     * @return
+     * @param newHandler The handler that replaces this one.
      */
-    private int storeInByteBuffer(ByteBuffer actualBuffer, byte[] message, int offset) {
-        int stored = actualBuffer.remaining();
-        if (stored + offset > message.length) {
-            stored = message.length - offset;
+    /* package */ void handOver(XMPPHandler newHandler) {
+        if (newHandler == null || newHandler.key != this.key) {
+            throw new IllegalArgumentException();
+        }
+        if (!outputBuffer.isEmpty()) {
+            newHandler.postMessage(outputBuffer.peek(outputBuffer.size()));
         }
-        actualBuffer.put(message, offset, stored);
-        outputBuffers.offerLast(actualBuffer);
-        return stored;
+        outputBuffer.clear();
+        newHandler.timeout = this.timeout; // The connection's activity is still being tracked
+        this.key.attach(newHandler);
     }
 
+    /**
+     * Writes the queued data right now (as much of it as the channel accepts, without blocking).
+     * Only the rest of it (if any) waits for the key to be selected as writable.
+     */
+    private void flush() {
+        flushPending = false;
+        if (this.key == null || !this.key.isValid() || outputBuffer.isEmpty()) {
+            return;
+        }
+        if (!((SocketChannel) this.key.channel()).isConnected()) {
+            enableWriting(); // Will be written once connected
+            return;
+        }
+        handleWrite(this.key);
+        if (!outputBuffer.isEmpty()) {
+            enableWriting();
+        }
+    }
 
     @Override
     public void consumeMessage(byte[] message) {
@@ -378,6 +463,20 @@ import java.util.Stack;
         }
     }
 
+    @Override
+    public void consumeMessage(byte[] message, int offset, int length) {
+        if (handlerState == HandlerState.NORMAL) {
+            postMessage(message, offset, length);
+        }
+    }
+
+    @Override
+    public void consumeMessage(CharSequence message) {
+        if (handlerState == HandlerState.NORMAL) {
+            postMessage(message);
+        }
+    }
+
 
     /**
      * Performs actions based on the given {@link ParserResponse}
@@ -426,26 +525,51 @@ import java.util.Stack;
             return; // If this handler is not in normal state, it must not read anymore
         }
 
-        inputBuffer.clear(); // Clears the buffer in order to read at most its capacity.
-
+        // Reads till the channel is drained, this handler stops reading (e.g. because of backpressure, an error,
+        // or because it was replaced by another handler), or the read budget is spent
+        // (so a few heavy senders can't starve the rest of the reactor's connections).
+        TCPSelector reactor = TCPSelector.getInstance();
         SocketChannel channel = (SocketChannel) this.key.channel();
-        int readBytes = 0;
-        try {
-            readBytes = channel.read(inputBuffer);
-        } catch (IOException e) {
-            // I/O error (for example, connection reset by peer)
-            handleClose(this.key);
-        }
-        if (readBytes > 0) {
+        int readBudget = Configurations.getInstance().getReadBudget();
+        int totalReadBytes = 0;
+        do {
+            ByteBuffer inputBuffer = reactor.getReadBuffer(); // Already cleared
+            int readBytes;
+            try {
+                readBytes = channel.read(inputBuffer);
+            } catch (IOException e) {
+                // I/O error (for example, connection reset by peer)
+                handleClose(this.key);
+                return;
+            }
+            if (readBytes == -1) {
+                notifyClose();
+                return;
+            }
+            if (readBytes == 0) {
+                return;
+            }
             if (logger.isTraceEnabled()) {
-                logger.trace("<-- {}", new String(inputBuffer.array(), 0, readBytes));
+                logger.trace("<-- {}", new String(inputBuffer.array(), 0, readBytes, StandardCharsets.UTF_8));
             }
             processReadMessage(inputBuffer.array(), inputBuffer.position());
             metricsProvider.addReadBytes(readBytes);
-        } else if (readBytes == -1) {
-            notifyClose();
-        }
-        // TODO: should we clear the buffer? note that this method already sets the position and limit
+            totalReadBytes += readBytes;
+            if (readBytes < inputBuffer.capacity()) {
+                return; // The channel was drained (reading again would just return zero)
+            }
+        } while (totalReadBytes < readBudget && isReading());
+    }
+
+    /**
+     * Says if this handler keeps reading from its key's channel.
+     *
+     * @return {@code true} if this handler is in normal state, it's still attached to its key,
+     * and reading is enabled, or {@code false} otherwise.
+     */
+    private boolean isReading() {
+        return handlerState == HandlerState.NORMAL && key.isValid() && key.attachment() == this
+                && (key.interestOps() & SelectionKey.OP_READ) != 0;
     }
 
 
@@ -460,8 +584,7 @@ import java.util.Stack;
             throw new IllegalArgumentException();
         }
 
-        ByteBuffer outputBuffer = outputBuffers.pollFirst();
-        if (outputBuffer == null) {
+        if (outputBuffer.isEmpty()) {
             disableWriting(); // No data to be sent, so handler must disable its writing key.
             if (mustClose) {
                 // If reached this point, no data must be sent, but still the key is being selected as writable
@@ -471,31 +594,27 @@ import java.util.Stack;
             return; // No message to be sent
         }
 
-        outputBuffer.flip(); // Makes the buffer's limit be set to its position, and it position, to 0
-        int writtenBytes = 0;
-        SocketChannel channel = (SocketChannel) this.key.channel();
+        // Only in order to log what is written
+        byte[] data = logger.isTraceEnabled() ? outputBuffer.peek(MAX_WRITTEN_BYTES_PER_EVENT) : null;
+        int writtenBytes;
         try {
-            writtenBytes = channel.write(outputBuffer);
+            // Partial writes just advance the ring's head, so no bytes are moved.
+            writtenBytes = outputBuffer.writeTo((SocketChannel) this.key.channel(), MAX_WRITTEN_BYTES_PER_EVENT);
         } catch (IOException e) {
             handleClose(this.key);
+            return;
         }
-        if (outputBuffer.hasRemaining()) {
-            outputBuffer.compact(); // Moves position to limit - position and limit to the capacity
-            outputBuffers.offerFirst(outputBuffer); // Returns the buffer to de deque
-        } else {
-            ByteBuffersManager.returnByteBuffer(outputBuffer); // Buffer has been completely used.
-            if (outputBuffers.isEmpty()) {
-                // No more data to be written
-                disableWriting();
-                if (mustClose) {
-                    // If this handler mustClose field is true, it means that it has been requested to close
-                    // Up to this point, all stored data was already sent, so it's ready to be closed.
-                    handleClose(this.key);
-                }
-            }
+        if (writtenBytes > 0 && data != null) {
+            logger.trace("--> {}", new String(data, 0, writtenBytes, StandardCharsets.UTF_8));
         }
-        if (writtenBytes > 0 && logger.isTraceEnabled()) {
-            logger.trace("--> {}", new String(outputBuffer.array(), 0, writtenBytes));
+        if (outputBuffer.isEmpty()) {
+            // No more data to be written
+            disableWriting();
+            if (mustClose) {
+                // If this handler mustClose field is true, it means that it has been requested to close
+                // Up to this point, all stored data was already sent, so it's ready to be closed.
+                handleClose(this.key);
+            }
         }
 
         metricsProvider.addSentBytes(writtenBytes);
@@ -504,6 +623,15 @@ import java.util.Stack;
     }
 
 
+    @Override
+    public TimingWheel.Timeout getTimeout() {
+        return timeout;
+    }
+
+    @Override
+    public void setTimeout(TimingWheel.Timeout timeout) {
+        this.timeout = timeout;
+    }
 
     @Override
     public boolean handleClose(SelectionKey key) {
@@ -514,60 +642,14 @@ import java.util.Stack;
             this.key.channel().close();
         } catch (IOException e) {
             return false;
+        } finally {
+            outputBuffer.clear(); // Nothing else will be sent
+            TCPSelector.getInstance().notifyClose(this.key);
         }
         return true;
     }
 
 
-    /**
-     * This class is in charge of retrieving and storing instances of {@link ByteBuffer}.
-     */
-    private static class ByteBuffersManager {
-        /**
-         * A stack that contains non-used {@link ByteBuffer}s. It allows to re-use outputBuffers.
-         */
-        private static final Stack<ByteBuffer> buffersStack = new Stack<>();
-
-
-        /**
-         * Gets a {@link ByteBuffer} from the outputBuffers stack.
-         *
-         * @return An unused buffer.
-         */
-        private static ByteBuffer getByteBuffer() {
-
-            if (buffersStack.isEmpty()) {
-                return ByteBuffer.allocate(BUFFER_SIZE);
-            }
-            ByteBuffer buffer = buffersStack.pop();
-            buffer.clear();
-            return buffer;
-        }
-
-        /**
-         * Stores the given {@link ByteBuffer} in the outputBuffers stack.
-         * It will clear the buffer, so it will lose all its information.
-         *
-         * @param buffer The buffer to be stored.
-         */
-        private static void returnByteBuffer(ByteBuffer buffer) {
-            if (buffer == null) {
-                throw new IllegalArgumentException();
-            }
-            buffersStack.push(buffer);
-        }
-
-        /**
-         * Returns the capacity of the outputBuffers given by this manager.
-         *
-         * @return The capacity of the outputBuffers given by this manager.
-         */
-        private static int buffersSize() {
-            return BUFFER_SIZE;
-        }
-    }
-
-
     protected enum HandlerState {
         NORMAL,
         ERROR,
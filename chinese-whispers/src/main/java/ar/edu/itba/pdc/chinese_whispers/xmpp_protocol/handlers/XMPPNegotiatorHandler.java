@@ -6,6 +6,8 @@ import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.ApplicationProc
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors.BaseNegotiationProcessor;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors.ParserResponse;
 
+import java.nio.channels.SelectionKey;
+
 /**
  * Created by jbellini on 4/11/16.
  */
@@ -56,7 +58,7 @@ import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors.ParserResponse;
 
     @Override
     protected void checkReadingKeyAfterPosting() {
-        if (outputBuffers.size() >= MAX_AMOUNT_OF_BUFFERS_IN_THE_QUEUE) {
+        if (outputBuffer.size() >= MAX_AMOUNT_OF_OUTPUT_BYTES) {
             disableReading();
         }
     }
@@ -67,6 +69,28 @@ import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors.ParserResponse;
     abstract protected void finishXMPPNegotiation();
 
 
+    @Override
+    /* package */ void handOver(XMPPHandler newHandler) {
+        super.handOver(newHandler);
+        releaseNegotiationProcessor(); // Negotiation ended, so the parser can be reused
+    }
+
+    @Override
+    public boolean handleClose(SelectionKey key) {
+        boolean result = super.handleClose(key);
+        releaseNegotiationProcessor();
+        return result;
+    }
+
+    /**
+     * Gives the negotiation processor's parser back to the pool (its negotiated data is still available).
+     */
+    private void releaseNegotiationProcessor() {
+        if (negotiationProcessor != null) {
+            negotiationProcessor.release();
+        }
+    }
+
     @Override
     protected void afterNotifyingStreamError() {
         // Do nothing...
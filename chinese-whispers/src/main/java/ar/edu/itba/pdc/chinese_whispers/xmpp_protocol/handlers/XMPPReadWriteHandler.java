@@ -14,6 +14,8 @@ import java.nio.channels.SelectionKey;
  * and send it to its peerHandler (another {@link XMPPReadWriteHandler}).
  * When receiving a message from its peerHandler, it will write that message to the socket channel
  * given in the handler's {@link SelectionKey}.
+ * When the data waiting to be sent reaches a high watermark (in bytes), the peer handler stops reading,
+ * till that data goes down to a low watermark (i.e. backpressure with hysteresis).
  * Note: If the user is silenced, it won't receive or be able to receive any message.
  * <p>
  * Created by jbellini on 3/11/16.
@@ -36,13 +38,32 @@ public class XMPPReadWriteHandler extends XMPPHandler {
      */
     private long lastReadTimestamp;
 
+    /**
+     * Amount of bytes waiting to be sent that makes the peer handler stop reading.
+     */
+    private final int highWatermark;
+
+    /**
+     * Amount of bytes waiting to be sent that makes the peer handler read again.
+     */
+    private final int lowWatermark;
+
+    /**
+     * Holds the time in which the peer handler stopped reading because of backpressure,
+     * or zero if it is reading.
+     */
+    private long peerPausedTimestamp;
+
 
     /* package */ XMPPReadWriteHandler(ApplicationProcessor applicationProcessor,
                                        MetricsProvider metricsProvider,
                                        ConfigurationsConsumer configurationsConsumer,
                                        String clientJid,
-                                       SelectionKey key) {
-        this(applicationProcessor, metricsProvider, configurationsConsumer, clientJid, key, null);
+                                       SelectionKey key,
+                                       int highWatermark,
+                                       int lowWatermark) {
+        this(applicationProcessor, metricsProvider, configurationsConsumer, clientJid, key, highWatermark,
+                lowWatermark, null);
     }
 
     /* package */ XMPPReadWriteHandler(ApplicationProcessor applicationProcessor,
@@ -50,8 +71,16 @@ public class XMPPReadWriteHandler extends XMPPHandler {
                                        ConfigurationsConsumer configurationsConsumer,
                                        String clientJid,
                                        SelectionKey key,
+                                       int highWatermark,
+                                       int lowWatermark,
                                        XMPPReadWriteHandler peerHandler) {
         super(applicationProcessor, metricsProvider, configurationsConsumer);
+        if (highWatermark <= 0 || lowWatermark < 0 || lowWatermark > highWatermark) {
+            throw new IllegalArgumentException();
+        }
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.peerPausedTimestamp = 0;
         this.clientJid = clientJid;
         this.key = key;
         this.peerHandler = peerHandler;
@@ -118,19 +147,32 @@ public class XMPPReadWriteHandler extends XMPPHandler {
         if (this.peerHandler == null) {
             throw new IllegalStateException(); // Can't proxy if no peer handler.
         }
-        if (outputBuffers.size() <= (MAX_AMOUNT_OF_BUFFERS_IN_THE_QUEUE / 2)) {
-            peerHandler.enableReading();
+        if (peerPausedTimestamp != 0 && outputBuffer.size() <= lowWatermark) {
+            resumePeer();
         }
-
     }
 
     @Override
     protected void checkReadingKeyAfterPosting() {
-        if (outputBuffers.size() >= MAX_AMOUNT_OF_BUFFERS_IN_THE_QUEUE && peerHandler != null) {
+        if (peerPausedTimestamp == 0 && outputBuffer.size() >= highWatermark && peerHandler != null) {
             peerHandler.disableReading();
+            peerPausedTimestamp = System.currentTimeMillis();
+            metricsProvider.addBackpressurePauses(1);
+            logger.debug("Session of {} throttled ({} bytes waiting to be sent)", clientJid, outputBuffer.size());
         }
     }
 
+    /**
+     * Makes the peer handler read again, once the data waiting to be sent went down to the low watermark.
+     */
+    private void resumePeer() {
+        long pausedTime = System.currentTimeMillis() - peerPausedTimestamp;
+        peerPausedTimestamp = 0;
+        metricsProvider.addBackpressurePausedTime(pausedTime);
+        logger.debug("Session of {} was throttled for {} ms", clientJid, pausedTime);
+        peerHandler.enableReading();
+    }
+
     @Override
     public void handleRead(SelectionKey key) {
         super.handleRead(key);
@@ -192,6 +234,14 @@ public class XMPPReadWriteHandler extends XMPPHandler {
     @Override
     public boolean handleClose(SelectionKey key) {
         boolean result = super.handleClose(key);
+        if (xmlInterpreter != null) {
+            xmlInterpreter.release(); // Its parser can be reused by another stream
+        }
+        if (peerPausedTimestamp != 0) {
+            // The peer is being closed, so only the paused time is accounted
+            metricsProvider.addBackpressurePausedTime(System.currentTimeMillis() - peerPausedTimestamp);
+            peerPausedTimestamp = 0;
+        }
         peerHandler.notifyClose();
         return result;
     }
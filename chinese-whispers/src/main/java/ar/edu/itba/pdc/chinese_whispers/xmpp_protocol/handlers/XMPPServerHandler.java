@@ -3,12 +3,17 @@ package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.handlers;
 
 import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.ConfigurationsConsumer;
 import ar.edu.itba.pdc.chinese_whispers.administration_protocol.interfaces.MetricsProvider;
+import ar.edu.itba.pdc.chinese_whispers.application.Configurations;
 import ar.edu.itba.pdc.chinese_whispers.connection.TCPSelector;
+import ar.edu.itba.pdc.chinese_whispers.connection.Upstream;
+import ar.edu.itba.pdc.chinese_whispers.connection.UpstreamsManager;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.ApplicationProcessor;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors.ParserResponse;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors.ServerNegotiationProcessor;
 
+import java.net.InetSocketAddress;
 import java.nio.channels.SelectionKey;
+import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 
 /**
@@ -16,6 +21,9 @@ import java.util.Base64;
  * The process of negotiation is done by a {@link ServerNegotiationProcessor}. When this process finishes,
  * a connection with the origin server is tried. Upon success, an {@link XMPPClientHandler} is created,
  * in order to connect to the server, and negotiate with it.
+ * If the origin server doesn't depend on the user (i.e. none of the users of the requested domain is multiplexed),
+ * the connection is started speculatively as soon as the client's stream header is read,
+ * so it is (or is about to be) established when the client finishes authenticating.
  * Once the negotiation with the origin server ended, control is given to a new {@link XMPPReadWriteHandler},
  * which will be in charge of reading and writing to the connected client.
  * <p>
@@ -33,6 +41,21 @@ public class XMPPServerHandler extends XMPPNegotiatorHandler {
      */
     private int peerConnectionTries;
 
+    /**
+     * Says if a speculative connection with the origin server was already considered.
+     */
+    private boolean speculationTried;
+
+    /**
+     * Handler of the connection started before the client authenticated (if any).
+     */
+    private XMPPClientHandler speculativePeerHandler;
+
+    /**
+     * The origin server to which the speculative connection was started.
+     */
+    private InetSocketAddress speculativeRoute;
+
 
 
 
@@ -53,6 +76,8 @@ public class XMPPServerHandler extends XMPPNegotiatorHandler {
         super(applicationProcessor, metricsProvider, configurationsConsumer);
         setNegotiationProcessor(new ServerNegotiationProcessor(this));
         this.peerConnectionTries = 0;
+        this.speculationTried = false;
+        this.speculativePeerHandler = null;
         this.key = key;
     }
 
@@ -85,12 +110,13 @@ public class XMPPServerHandler extends XMPPNegotiatorHandler {
 
         // Create a read-write handler that will receive and send messages to the client connected to the proxy.
         XMPPReadWriteHandler xmppReadWriteHandler = new XMPPReadWriteHandler(applicationProcessor, metricsProvider,
-                configurationsConsumer, clientJid, this.key, newPeerHandler);
+                configurationsConsumer, clientJid, this.key, Configurations.getInstance().getClientHighWatermark(),
+                Configurations.getInstance().getClientLowWatermark(), newPeerHandler);
         newPeerHandler.setPeerHandler(xmppReadWriteHandler);
-        this.key.attach(xmppReadWriteHandler);
+        handOver(xmppReadWriteHandler);
 
         String response = "<success xmlns='urn:ietf:params:xml:ns:xmpp-sasl'/>";
-        xmppReadWriteHandler.postMessage(response.getBytes());
+        xmppReadWriteHandler.postMessage(response);
         xmppReadWriteHandler.enableReading();
     }
 
@@ -110,6 +136,60 @@ public class XMPPServerHandler extends XMPPNegotiatorHandler {
                 notifyStreamError(XMPPErrors.MALFORMED_REQUEST);
                 break;
         }
+        if (!speculationTried && handlerState == HandlerState.NORMAL) {
+            trySpeculativeConnect();
+        }
+    }
+
+    /**
+     * Starts connecting to the origin server before the client authenticates, if the client's route is known
+     * (i.e. the stream header was read, and the server doesn't depend on the user).
+     */
+    private void trySpeculativeConnect() {
+        String domain = getNegotiationProcessor().getInitialParameters().get("to");
+        if (domain == null) {
+            return; // Stream header not read yet
+        }
+        speculationTried = true;
+        if (!Configurations.getInstance().isSpeculativeConnectEnabled()) {
+            return;
+        }
+        InetSocketAddress route = configurationsConsumer.getDomainServer(domain);
+        if (route == null) {
+            return; // Must wait for the username in order to know the route
+        }
+        logger.trace("Speculatively connecting to origin server {}:{}...", route.getHostString(), route.getPort());
+        speculativeRoute = route;
+        speculativePeerHandler = new XMPPClientHandler(applicationProcessor, metricsProvider, configurationsConsumer,
+                this, getNegotiationProcessor().getInitialParameters());
+        startPeerConnection(speculativePeerHandler, route.getHostString(), route.getPort());
+    }
+
+    /**
+     * Notifies this handler that the given speculative handler closed its connection
+     * (e.g. connection failed, or timed out), so it won't be used.
+     *
+     * @param handler The speculative handler.
+     */
+    /* package */ void speculativeConnectionClosed(XMPPClientHandler handler) {
+        if (handler != speculativePeerHandler) {
+            return; // Already discarded
+        }
+        speculativePeerHandler = null;
+        metricsProvider.addSpeculativeConnectMisses(1);
+    }
+
+    /**
+     * Discards the speculative connection (if any), closing it.
+     */
+    private void discardSpeculativeConnection() {
+        XMPPClientHandler handler = speculativePeerHandler;
+        if (handler == null) {
+            return;
+        }
+        speculativePeerHandler = null;
+        metricsProvider.addSpeculativeConnectMisses(1);
+        handler.abort();
     }
 
     /**
@@ -128,7 +208,8 @@ public class XMPPServerHandler extends XMPPNegotiatorHandler {
 
         String[] authParameters;
         try {
-            authParameters = new String(Base64.getDecoder().decode(getNegotiationProcessor().getAuthentication()))
+            authParameters = new String(Base64.getDecoder().decode(getNegotiationProcessor().getAuthentication()),
+                    StandardCharsets.UTF_8)
                     .split("\0");
         } catch (IllegalArgumentException e) {
             // Shouldn't reach here, but in case...
@@ -156,8 +237,25 @@ public class XMPPServerHandler extends XMPPNegotiatorHandler {
                 return;
         }
 
-        // Create a client handler to connect to origin server
         clientJid = userName + "@" + getNegotiationProcessor().getInitialParameters().get("to");
+
+        // Uses the speculative connection if the user's route is the one it was started to
+        // (the user could have been multiplexed to another server while authenticating).
+        if (speculativePeerHandler != null) {
+            if (speculativeRoute.getHostString().equals(configurationsConsumer.getServer(clientJid))
+                    && speculativeRoute.getPort() == configurationsConsumer.getServerPort(clientJid)) {
+                metricsProvider.addSpeculativeConnectHits(1);
+                this.peerHandler = speculativePeerHandler;
+                speculativePeerHandler = null;
+                peerConnectionTries++;
+                ((XMPPClientHandler) this.peerHandler)
+                        .confirm(clientJid, getNegotiationProcessor().getAuthentication());
+                return;
+            }
+            discardSpeculativeConnection();
+        }
+
+        // Create a client handler to connect to origin server
         this.peerHandler = new XMPPClientHandler(applicationProcessor, metricsProvider, configurationsConsumer, this,
                 clientJid, getNegotiationProcessor().getInitialParameters(),
                 getNegotiationProcessor().getAuthentication());
@@ -179,25 +277,94 @@ public class XMPPServerHandler extends XMPPNegotiatorHandler {
             throw new IllegalStateException();
         }
 
-        // TODO: add some timestamp...
-
-        // TODO: Should we avoid trying to connect again for some seconds? We can mark the clientHandler with a timestamp and retry after some time has passed.
-        // TODO: We can save the key in a Map and update those timestamps before the select.
         if (peerConnectionTries >= MAX_PEER_CONNECTIONS_TRIES) {
             notifyStreamError(XMPPErrors.CONNECTION_REFUSED);
             return;
         }
         logger.trace("Trying to connect to origin server {}...", configurationsConsumer.getServer(clientJid) + ":" + configurationsConsumer.getServerPort(clientJid));
-        SelectionKey peerKey = TCPSelector.getInstance().
-                addClientSocketChannel(configurationsConsumer.getServer(clientJid),
-                        configurationsConsumer.getServerPort(clientJid),
-                        (XMPPClientHandler) this.peerHandler);
+        peerConnectionTries++;
+        String host = configurationsConsumer.getServer(clientJid);
+        int port = configurationsConsumer.getServerPort(clientJid);
+        startPeerConnection((XMPPClientHandler) this.peerHandler, host, port);
+    }
+
+    /**
+     * Starts connecting the given handler to the given origin server.
+     *
+     * @param handler The handler that will be connected.
+     * @param host    The origin server's host.
+     * @param port    The origin server's port.
+     */
+    private void startPeerConnection(XMPPClientHandler handler, String host, int port) {
+        // Takes a ready connection if the reactor has one, saving the TCP handshake.
+        SelectionKey pooledKey = TCPSelector.getInstance().takePooledConnection(host, port, handler);
+        if (pooledKey != null) {
+            handler.setKey(pooledKey);
+            handler.handleConnect(pooledKey); // Already connected, so starts negotiating (unless it's speculative).
+            return;
+        }
+        // The origin server's name is resolved asynchronously, so the callback might be run later.
+        TCPSelector.getInstance().addClientSocketChannel(host, port, handler,
+                peerKey -> afterStartingPeerConnection(handler, peerKey));
+    }
+
+    /**
+     * Continues the connection process with the origin server, once the connection started (or failed to start).
+     *
+     * @param handler The handler being connected.
+     * @param peerKey The {@link SelectionKey} of the new connection, or {@code null} if it couldn't start.
+     */
+    private void afterStartingPeerConnection(XMPPClientHandler handler, SelectionKey peerKey) {
+        if (handler != this.peerHandler && handler != this.speculativePeerHandler) {
+            // A speculative connection that was discarded while starting.
+            if (peerKey != null) {
+                handler.setKey(peerKey);
+                handler.handleClose(peerKey);
+            }
+            return;
+        }
         if (peerKey == null) {
-            // Start of connection failed ...
+            // Start of connection failed (e.g. the origin server's name couldn't be resolved, or it is down) ...
+            if (handler == this.speculativePeerHandler) {
+                speculativeConnectionClosed(handler); // Will be tried again once the client authenticates.
+            } else {
+                retryPeerConnection();
+            }
             return;
         }
-        peerHandler.setKey(peerKey);
-        peerConnectionTries++;
+        handler.setKey(peerKey);
+        if (!this.key.isValid()) {
+            // The client closed the connection while the origin server's name was being resolved.
+            handler.handleClose(peerKey);
+        }
+    }
+
+
+    /**
+     * Retries connecting to the origin server after a backoff delay (which depends on how many times connecting
+     * to that server failed, and is randomized so clients don't retry at the same time).
+     * If the origin server is known to be down, the client is notified right now (i.e. fails fast).
+     */
+    /* package */ void retryPeerConnection() {
+        Upstream upstream = UpstreamsManager.getInstance().getUpstream(configurationsConsumer.getServer(clientJid),
+                configurationsConsumer.getServerPort(clientJid));
+        if (upstream.isDown()) {
+            notifyStreamError(XMPPErrors.CONNECTION_REFUSED);
+            return;
+        }
+        TCPSelector.getInstance().schedule(() -> {
+            if (this.key.isValid()) {
+                connectClientHandler(); // Will notify the error when the max amount of tries is reached.
+            }
+        }, upstream.getBackoffDelay());
+    }
+
+
+    @Override
+    public boolean handleClose(SelectionKey key) {
+        boolean result = super.handleClose(key);
+        discardSpeculativeConnection(); // The client left before authenticating
+        return result;
     }
 
 
@@ -17,12 +17,26 @@ public interface ApplicationProcessor {
     /**
      * Method to be executed when parsing content that is part of a body.
      *
+     * The content is given as a range of a char array (e.g. the parser's internal buffer),
+     * so it must not be modified nor retained.
+     *
      * @param stringBuilder The string builder to build the final message.
-     * @param message       The message to be parsed.
+     * @param message       The array holding the message to be parsed.
+     * @param offset        Offset of the message's first char in the array.
+     * @param length        Length of the message.
      * @param isInBodyTag   Boolean telling if it is in a bodyTag.
      *
      */
-    void processMessageBody(StringBuilder stringBuilder, char[] message, boolean isInBodyTag);
+    void processMessageBody(StringBuilder stringBuilder, char[] message, int offset, int length, boolean isInBodyTag);
+
+    /**
+     * Says if bodies can be changed by this processor at this moment.
+     * If not, bodies can be forwarded as they were received, without calling
+     * {@link #processMessageBody(StringBuilder, char[], int, int, boolean)}.
+     *
+     * @return {@code true} if bodies must be processed, or {@code false} otherwise.
+     */
+    boolean isProcessingMessageBodies();
 
 
 }
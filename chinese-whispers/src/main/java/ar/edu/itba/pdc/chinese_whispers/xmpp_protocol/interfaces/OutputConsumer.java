@@ -16,4 +16,22 @@ public interface OutputConsumer {
      */
     void consumeMessage(byte[] message);
 
+    /**
+     * Consumes a message held in the given range of the given array.
+     * The message is consumed (or copied) before returning, so the caller can reuse the array afterwards.
+     *
+     * @param message The array holding the message to be consumed.
+     * @param offset  Offset of the message's first byte in the array.
+     * @param length  Length of the message.
+     */
+    void consumeMessage(byte[] message, int offset, int length);
+
+    /**
+     * Consumes the given text message, encoding it in UTF-8.
+     * The message is encoded before returning, so the caller can reuse the given sequence (e.g. a builder) afterwards.
+     *
+     * @param message The message to be consumed.
+     */
+    void consumeMessage(CharSequence message);
+
 }
@@ -0,0 +1,196 @@
+package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * This interface defines a non-blocking XML parser (i.e. an engine that turns fed bytes into XML events),
+ * so interpreters don't depend on a specific implementation.
+ * <p>
+ * Methods follow the semantics of Aalto's {@code AsyncXMLStreamReader} (i.e. StAX semantics),
+ * and event codes are those defined in {@link XMLStreamConstants}, plus {@link #EVENT_INCOMPLETE}.
+ * Data about the actual event (names, attributes, text, etc.) is only valid till {@link #next()} is called again.
+ * <p>
+ * Note: Implementations are not thread safe.
+ */
+public interface XMLEngine extends XMLStreamConstants {
+
+    /**
+     * Event returned when there is not enough data to complete the next event (the same code Aalto uses).
+     */
+    int EVENT_INCOMPLETE = 257;
+
+
+    /**
+     * Feeds the given bytes to the engine. This can only be done after {@link #next()} returned
+     * {@link #EVENT_INCOMPLETE} (i.e. once all the bytes fed before were consumed), or before any event was read.
+     * The given array is not copied, so it must not be changed till the bytes are consumed.
+     *
+     * @param data   The array holding the bytes.
+     * @param offset Offset of the first byte to be fed.
+     * @param length Amount of bytes to be fed.
+     * @throws XMLStreamException If there are still unconsumed bytes, or if the engine failed.
+     */
+    void feedInput(byte[] data, int offset, int length) throws XMLStreamException;
+
+    /**
+     * Says if there might be more events (i.e. the end of the document wasn't reached).
+     *
+     * @return {@code true} if more events can be read, or {@code false} otherwise.
+     * @throws XMLStreamException If the engine failed.
+     */
+    boolean hasNext() throws XMLStreamException;
+
+    /**
+     * Reads the next event.
+     *
+     * @return The code of the read event, or {@link #EVENT_INCOMPLETE} if more data is needed.
+     * @throws XMLStreamException If the fed data is not well-formed XML.
+     */
+    int next() throws XMLStreamException;
+
+    /**
+     * Returns the depth of the actual event. For start and end tags, the element itself is counted
+     * (i.e. the root element's tags have depth 1).
+     *
+     * @return The depth of the actual event.
+     */
+    int getDepth();
+
+    /**
+     * Returns the XML version declared in the document's XML declaration.
+     *
+     * @return The declared version, or {@code null} if there was no declaration.
+     */
+    String getVersion();
+
+    /**
+     * Returns the encoding of the document.
+     *
+     * @return The document's encoding.
+     */
+    String getEncoding();
+
+    /**
+     * Returns the local name of the actual element (for start and end tag events).
+     *
+     * @return The element's local name.
+     */
+    String getLocalName();
+
+    /**
+     * Returns the namespace prefix of the actual element (for start and end tag events).
+     *
+     * @return The element's prefix (empty or {@code null} if it has none).
+     */
+    String getPrefix();
+
+    /**
+     * Returns the amount of namespaces declared in the actual element (for start and end tag events).
+     *
+     * @return The amount of namespace declarations.
+     */
+    int getNamespaceCount();
+
+    /**
+     * Returns the prefix of the given namespace declaration of the actual element.
+     *
+     * @param index The declaration's index.
+     * @return The declared prefix (empty for the default namespace).
+     */
+    String getNamespacePrefix(int index);
+
+    /**
+     * Returns the URI of the given namespace declaration of the actual element.
+     *
+     * @param index The declaration's index.
+     * @return The declared URI.
+     */
+    String getNamespaceURI(int index);
+
+    /**
+     * Returns the amount of attributes of the actual element (for start tag events).
+     * Namespace declarations are not included.
+     *
+     * @return The amount of attributes.
+     */
+    int getAttributeCount();
+
+    /**
+     * Returns the local name of the given attribute of the actual element.
+     *
+     * @param index The attribute's index.
+     * @return The attribute's local name.
+     */
+    String getAttributeLocalName(int index);
+
+    /**
+     * Returns the namespace prefix of the given attribute of the actual element.
+     *
+     * @param index The attribute's index.
+     * @return The attribute's prefix (empty if it has none).
+     */
+    String getAttributePrefix(int index);
+
+    /**
+     * Returns the (unescaped and normalized) value of the given attribute of the actual element.
+     *
+     * @param index The attribute's index.
+     * @return The attribute's value.
+     */
+    String getAttributeValue(int index);
+
+    /**
+     * Returns the text of the actual event (for text, CDATA and comment events).
+     *
+     * @return The event's text.
+     */
+    String getText();
+
+    /**
+     * Returns an array holding the text of the actual event (for text, CDATA and comment events),
+     * without creating a {@link String}. The array is owned by the engine, so it must not be modified nor retained.
+     *
+     * @return The array holding the event's text (see {@link #getTextStart()} and {@link #getTextLength()}).
+     */
+    char[] getTextCharacters();
+
+    /**
+     * Returns the offset of the actual event's text in the array returned by {@link #getTextCharacters()}.
+     *
+     * @return The offset of the text.
+     */
+    int getTextStart();
+
+    /**
+     * Returns the length of the actual event's text.
+     *
+     * @return The length of the text.
+     */
+    int getTextLength();
+
+    /**
+     * Returns the offset (in the fed stream, i.e. counting all the fed bytes) of the actual event's first byte.
+     *
+     * @return The offset in which the actual event starts.
+     * @throws XMLStreamException If the offset can't be computed.
+     */
+    long getStartingByteOffset() throws XMLStreamException;
+
+    /**
+     * Returns the offset (in the fed stream, i.e. counting all the fed bytes) of the byte after the actual event.
+     *
+     * @return The offset in which the actual event ends.
+     * @throws XMLStreamException If the offset can't be computed.
+     */
+    long getEndingByteOffset() throws XMLStreamException;
+
+    /**
+     * Prepares the engine to parse a new document (i.e. it goes back to the state it had when it was created),
+     * so it can be reused by another stream. Fed arrays are not referenced anymore.
+     * If the engine can't be reused, its resources are released instead, and it must not be used anymore.
+     *
+     * @return {@code true} if the engine can be reused, or {@code false} otherwise.
+     */
+    boolean reset();
+}
@@ -0,0 +1,158 @@
+package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors;
+
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.XMLEngine;
+import com.fasterxml.aalto.AsyncByteArrayFeeder;
+import com.fasterxml.aalto.AsyncXMLStreamReader;
+import com.fasterxml.aalto.stax.InputFactoryImpl;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * An {@link XMLEngine} backed by Aalto's non-blocking parser.
+ * <p>
+ * Note: Aalto's byte offsets include the array offset of the data fed to it, so data must always be fed
+ * starting at index 0 of the given array for offsets to be counted from the first fed byte
+ * (see {@link BaseXMLInterpreter}).
+ * <p>
+ * Aalto's async readers can't be reset, so engines are not reused (see {@link #reset()}). Anyway, all of them are
+ * created by the same factory, so they share its symbol tables (names seen by a closed reader are merged into them,
+ * and not created again by the following ones), and their buffers are recycled by Aalto once they are closed.
+ */
+/* package */ final class AaltoXMLEngine implements XMLEngine {
+
+    /**
+     * The factory that creates all the parsers (it's thread safe once configured).
+     */
+    private static final InputFactoryImpl FACTORY = new InputFactoryImpl();
+
+    /**
+     * The wrapped parser.
+     */
+    private final AsyncXMLStreamReader<AsyncByteArrayFeeder> parser;
+
+
+    /* package */ AaltoXMLEngine() {
+        this.parser = FACTORY.createAsyncForByteArray();
+    }
+
+
+    @Override
+    public void feedInput(byte[] data, int offset, int length) throws XMLStreamException {
+        parser.getInputFeeder().feedInput(data, offset, length);
+    }
+
+    @Override
+    public boolean hasNext() throws XMLStreamException {
+        return parser.hasNext();
+    }
+
+    @Override
+    public int next() throws XMLStreamException {
+        return parser.next();
+    }
+
+    @Override
+    public int getDepth() {
+        return parser.getDepth();
+    }
+
+    @Override
+    public String getVersion() {
+        return parser.getVersion();
+    }
+
+    @Override
+    public String getEncoding() {
+        return parser.getEncoding();
+    }
+
+    @Override
+    public String getLocalName() {
+        return parser.getLocalName();
+    }
+
+    @Override
+    public String getPrefix() {
+        return parser.getPrefix();
+    }
+
+    @Override
+    public int getNamespaceCount() {
+        return parser.getNamespaceCount();
+    }
+
+    @Override
+    public String getNamespacePrefix(int index) {
+        return parser.getNamespacePrefix(index);
+    }
+
+    @Override
+    public String getNamespaceURI(int index) {
+        return parser.getNamespaceURI(index);
+    }
+
+    @Override
+    public int getAttributeCount() {
+        return parser.getAttributeCount();
+    }
+
+    @Override
+    public String getAttributeLocalName(int index) {
+        return parser.getAttributeLocalName(index);
+    }
+
+    @Override
+    public String getAttributePrefix(int index) {
+        return parser.getAttributePrefix(index);
+    }
+
+    @Override
+    public String getAttributeValue(int index) {
+        return parser.getAttributeValue(index);
+    }
+
+    @Override
+    public String getText() {
+        return parser.getText();
+    }
+
+    @Override
+    public char[] getTextCharacters() {
+        return parser.getTextCharacters();
+    }
+
+    @Override
+    public int getTextStart() {
+        return parser.getTextStart();
+    }
+
+    @Override
+    public int getTextLength() {
+        return parser.getTextLength();
+    }
+
+    @Override
+    public long getStartingByteOffset() throws XMLStreamException {
+        return parser.getLocationInfo().getStartingByteOffset();
+    }
+
+    @Override
+    public long getEndingByteOffset() throws XMLStreamException {
+        return parser.getLocationInfo().getEndingByteOffset();
+    }
+
+    /**
+     * Closes the parser, so its symbols are merged into the factory's tables, and its buffers are recycled.
+     *
+     * @return {@code false}, as Aalto's async readers can't be reused.
+     */
+    @Override
+    public boolean reset() {
+        try {
+            parser.close();
+        } catch (XMLStreamException ignored) {
+            // Nothing else can be done (buffers will be collected)
+        }
+        return false;
+    }
+}
@@ -2,8 +2,7 @@ package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors;
 
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.handlers.StreamErrorsManager;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.OutputConsumer;
-import com.fasterxml.aalto.AsyncByteArrayFeeder;
-import com.fasterxml.aalto.AsyncXMLStreamReader;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.XMLEngine;
 
 import javax.xml.stream.XMLStreamException;
 import java.util.HashMap;
@@ -100,7 +99,7 @@ public abstract class BaseNegotiationProcessor extends BaseXMLInterpreter {
         while (parser.hasNext()) {
             next();
             updateStoredBytes(getParserStatus());
-            if (getParserStatus() == AsyncXMLStreamReader.EVENT_INCOMPLETE) {
+            if (getParserStatus() == XMLEngine.EVENT_INCOMPLETE) {
                 break;
             } else if (getParserStatus() == -1) {
                 response = ParserResponse.XML_ERROR;
@@ -116,11 +115,11 @@ public abstract class BaseNegotiationProcessor extends BaseXMLInterpreter {
         return response;
     }
 
-    private AsyncXMLStreamReader<AsyncByteArrayFeeder> getParser() {
+    private XMLEngine getParser() {
         return parser;
     }
 
-    private void consumeOutput(byte[] message) {
+    private void consumeOutput(CharSequence message) {
         outputConsumer.consumeMessage(message);
     }
 
@@ -193,11 +192,11 @@ public abstract class BaseNegotiationProcessor extends BaseXMLInterpreter {
             return negotiationProcessor.getParserStatus();
         }
 
-        private AsyncXMLStreamReader<AsyncByteArrayFeeder> getParser() {
+        private XMLEngine getParser() {
             return negotiationProcessor.getParser();
         }
 
-        private void consumeOutput(byte[] message) {
+        private void consumeOutput(CharSequence message) {
             negotiationProcessor.consumeOutput(message);
         }
 
@@ -247,11 +246,11 @@ public abstract class BaseNegotiationProcessor extends BaseXMLInterpreter {
                 return stateMachine.getStringBuilder();
             }
 
-            protected AsyncXMLStreamReader<AsyncByteArrayFeeder> getParser() {
+            protected XMLEngine getParser() {
                 return stateMachine.getParser();
             }
 
-            protected void consumeOutput(byte[] message) {
+            protected void consumeOutput(CharSequence message) {
                 stateMachine.consumeOutput(message);
             }
 
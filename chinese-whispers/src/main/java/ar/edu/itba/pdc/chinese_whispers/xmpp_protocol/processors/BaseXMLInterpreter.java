@@ -1,10 +1,9 @@
 package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors;
 
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.handlers.StreamErrorsManager;
+import ar.edu.itba.pdc.chinese_whispers.application.Configurations;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.OutputConsumer;
-import com.fasterxml.aalto.AsyncByteArrayFeeder;
-import com.fasterxml.aalto.AsyncXMLStreamReader;
-import com.fasterxml.aalto.stax.InputFactoryImpl;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.XMLEngine;
 
 import javax.xml.stream.XMLStreamException;
 
@@ -19,17 +18,67 @@ public abstract class BaseXMLInterpreter {
     public final static int MAX_AMOUNT_OF_BYTES =  10 * 1024; // We allow up to 10 KiB data inside the parser.
 
     /**
-     * The XML parser.
+     * The XML parser (Aalto, or the built-in XMPP tokenizer, see {@link Configurations#isXmppTokenizerEnabled()}),
+     * taken from the {@link XMLEnginesPool} (or {@code null} once it was given back, see {@link #release()}).
      */
-    protected final AsyncXMLStreamReader<AsyncByteArrayFeeder> parser;
+    protected XMLEngine parser;
+    /**
+     * Says if data is being fed to the parser (i.e. if it can't be released right now).
+     */
+    private boolean feeding;
+    /**
+     * Says if the parser must be released once data stops being fed to it.
+     */
+    private boolean releaseRequested;
     /**
      * Holds the last parser's event
      */
     private int parserStatus;
     /**
-     * Holds how many bytes the parser has in its internal buffer.
+     * Holds how many bytes the parser has in its internal buffer
+     * (i.e. fed bytes that are not part of a complete event yet).
      */
     protected int amountOfStoredBytes;
+    /**
+     * Holds how many bytes were fed to the parser.
+     */
+    private long amountOfFedBytes;
+    /**
+     * Holds the offset (in the fed stream) in which the last complete event ends.
+     */
+    private long lastEventEndOffset;
+
+    /**
+     * Holds the array containing the chunk being processed, starting at index 0 (only set while processing it).
+     */
+    private byte[] chunk;
+    /**
+     * Offset (in the fed stream) of the chunk being processed.
+     */
+    private long chunkStartOffset;
+    /**
+     * Holds the fed bytes that were not part of a complete event when the last chunk was processed
+     * (i.e. those that come right before the chunk being processed). Only used if raw input is retained
+     * (see {@link #retainsRawInput()}).
+     */
+    private byte[] retainedInput;
+    /**
+     * Amount of bytes in the {@link #retainedInput} array.
+     */
+    private int retainedInputLength;
+    /**
+     * Holds a copy of the chunk being processed when it doesn't start at the beginning of the given array.
+     * Aalto's byte offsets include the array offset of the chunk fed to it, so parsers are always fed
+     * with chunks starting at index 0 (the copy is created on demand, as chunks usually start there).
+     */
+    private byte[] chunkCopy;
+
+    /**
+     * Max depth of the parser (the stream's element is counted, so it's one more than
+     * {@link Configurations#getMaxStanzaDepth()}). Interpreters that frame stanzas with a {@link StanzaScanner}
+     * reject deeper stanzas before feeding them, so this is only reached by the rest of them.
+     */
+    private final int maxDepth;
 
     /**
      * Object that will consume output.
@@ -43,36 +92,81 @@ public abstract class BaseXMLInterpreter {
      * @param outputConsumer An object that will consume output generated by this interpreter.
      */
     protected BaseXMLInterpreter(OutputConsumer outputConsumer) {
-        this.parser = new InputFactoryImpl().createAsyncForByteArray();
+        this.parser = XMLEnginesPool.getInstance().take();
+        this.feeding = false;
+        this.releaseRequested = false;
         this.outputConsumer = outputConsumer;
         this.amountOfStoredBytes = 0;
+        this.amountOfFedBytes = 0;
+        this.lastEventEndOffset = 0;
+        this.chunk = null;
+        this.chunkStartOffset = 0;
+        this.retainedInput = null;
+        this.retainedInputLength = 0;
+        this.chunkCopy = null;
+        this.maxDepth = Configurations.getInstance().getMaxStanzaDepth() + 1;
     }
 
     
     /**
      * Adds bytes to be processed by the interpreter.
+     * Data is fed to the parser in chunks as big as possible, and all the events each chunk completes are processed
+     * in one pass. In order to enforce size limits exactly, a chunk never exceeds the amount of bytes the parser
+     * can still store (which is computed using the parser's byte offsets).
      *
      * @param data   The data to process.
      * @param length The amount of data that will be processed.
      * @return The result of processing the given data.
-     * @throws XMLStreamException If this interpreter has unprocessed data. Be sure to call {@link #process()} between
-     *                            calls to this method, which ensures that all data is consumed.
      */
     public ParserResponse feed(byte[] data, int length) {
+        return feed(data, 0, length);
+    }
 
-        if (data == null || length < 0 || length > data.length) {
+    /**
+     * Adds the bytes in the given range of the given array to be processed by the interpreter
+     * (see {@link #feed(byte[], int)}).
+     *
+     * @param data   The array holding the data to process.
+     * @param offset Offset of the first byte to be processed.
+     * @param length The amount of data that will be processed.
+     * @return The result of processing the given data.
+     */
+    protected ParserResponse feed(byte[] data, int offset, int length) {
+
+        if (data == null || offset < 0 || length < 0 || offset + length > data.length) {
             throw new IllegalArgumentException(); // return internal server error?
         }
 
         ParserResponse response = ParserResponse.EVERYTHING_NORMAL;
-        
+        if (parser == null) {
+            return response; // Released (i.e. the handler is being closed), so data is just discarded
+        }
+
+        feeding = true;
         try {
-            for (int offset = 0; offset < length; offset++) {
-                parser.getInputFeeder().feedInput(data, offset, 1);
+            int end = offset + length;
+            while (offset < end) {
+                // The amount of stored bytes is always below the limit at this point.
+                int chunkLength = Math.min(end - offset, MAX_AMOUNT_OF_BYTES - amountOfStoredBytes);
+                if (offset == 0) {
+                    chunk = data;
+                } else {
+                    if (chunkCopy == null) {
+                        chunkCopy = new byte[MAX_AMOUNT_OF_BYTES];
+                    }
+                    System.arraycopy(data, offset, chunkCopy, 0, chunkLength);
+                    chunk = chunkCopy;
+                }
+                parser.feedInput(chunk, 0, chunkLength);
+                chunkStartOffset = amountOfFedBytes;
+                amountOfFedBytes += chunkLength;
+                offset += chunkLength;
                 response = process();
+                if (retainsRawInput()) {
+                    retainIncompleteEventInput();
+                }
 
-                // TODO: check order of this lines...
-                if (amountOfStoredBytes >= MAX_AMOUNT_OF_BYTES || parser.getDepth() > 10000) {
+                if (amountOfStoredBytes >= MAX_AMOUNT_OF_BYTES || parser.getDepth() > maxDepth) {
                     return ParserResponse.POLICY_VIOLATION;
                 }
                 if (StreamErrorsManager.getInstance().parserResponseErrors().contains(response)) {
@@ -81,24 +175,144 @@ public abstract class BaseXMLInterpreter {
             }
         } catch (XMLStreamException e) {
             response = ParserResponse.XML_ERROR;
+        } finally {
+            chunk = null; // The array is not owned by this interpreter
+            feeding = false;
+            if (releaseRequested) {
+                release(); // The handler was closed while processing
+            }
         }
         return response;
     }
 
-    
-    protected void updateStoredBytes(int status) {  //TODO transform also atributes.
-        if (status == AsyncXMLStreamReader.EVENT_INCOMPLETE) {
-            amountOfStoredBytes++;
-        }else{
-            amountOfStoredBytes=-1;
+    /**
+     * Gives the parser back to the {@link XMLEnginesPool}, so it can be reused by another stream.
+     * Must be called once the handler that uses this interpreter is closed (or stops using it), as data fed
+     * after calling this method is discarded. If data is being fed (e.g. the handler was closed because writing
+     * output failed), the parser is released once it stops being fed. Calling this method again has no effect.
+     */
+    public void release() {
+        if (parser == null) {
+            return;
+        }
+        if (feeding) {
+            releaseRequested = true;
+            return;
+        }
+        XMLEnginesPool.getInstance().release(parser);
+        parser = null;
+        releaseRequested = false;
+        retainedInput = null;
+        chunkCopy = null;
+    }
+
+    /**
+     * Says if this interpreter needs the raw bytes of the events it processes
+     * (see {@link #consumeRawInput(long, long)}). If so, those bytes that are not part of a complete event yet are retained when a chunk is processed
+     * (at most {@link #MAX_AMOUNT_OF_BYTES}).
+     *
+     * @return {@code true} if raw input must be retained, or {@code false} otherwise (the default).
+     */
+    protected boolean retainsRawInput() {
+        return false;
+    }
+
+    /**
+     * Returns the offset (in the fed stream) of the first byte of the actual event.
+     *
+     * @return The event's starting offset.
+     * @throws XMLStreamException If the parser's location can't be retrieved.
+     */
+    protected long getEventStartOffset() throws XMLStreamException {
+        return parser.getStartingByteOffset();
+    }
+
+    /**
+     * Returns the offset (in the fed stream) in which the last complete event ends
+     * (i.e. the offset of the byte that comes right after it).
+     *
+     * @return The last event's ending offset.
+     */
+    protected long getLastEventEndOffset() {
+        return lastEventEndOffset;
+    }
+
+    /**
+     * Sends the fed bytes between the given offsets to the output consumer, exactly as they were received.
+     * Only bytes of the chunk being processed, and those retained from previous ones, are available
+     * (see {@link #retainsRawInput()}).
+     *
+     * @param from Offset (in the fed stream) of the first byte to be consumed.
+     * @param to   Offset (in the fed stream) of the byte after the last one to be consumed.
+     */
+    protected void consumeRawInput(long from, long to) {
+        if (from >= to) {
+            return;
+        }
+        long retainedInputStartOffset = chunkStartOffset - retainedInputLength;
+        if (chunk == null || from < retainedInputStartOffset || to > amountOfFedBytes) {
+            throw new IllegalStateException("Bytes not available");
+        }
+        if (from < chunkStartOffset) {
+            int start = (int) (from - retainedInputStartOffset);
+            int end = (int) (Math.min(to, chunkStartOffset) - retainedInputStartOffset);
+            outputConsumer.consumeMessage(retainedInput, start, end - start);
+            from = chunkStartOffset;
+        }
+        if (from < to) {
+            outputConsumer.consumeMessage(chunk, (int) (from - chunkStartOffset), (int) (to - from));
+        }
+    }
+
+    /**
+     * Retains the bytes that are not part of a complete event (i.e. those after the last complete event),
+     * as they will be needed once the event is completed by the following chunks.
+     */
+    private void retainIncompleteEventInput() {
+        int length = (int) (amountOfFedBytes - lastEventEndOffset);
+        if (length == 0) {
+            retainedInputLength = 0;
+            return;
+        }
+        long retainedInputStartOffset = chunkStartOffset - retainedInputLength;
+        byte[] destination = retainedInput;
+        if (destination == null || destination.length < length) {
+            destination = new byte[Math.max(length, Math.min(2 * length, MAX_AMOUNT_OF_BYTES))];
+        }
+        int copied = 0;
+        if (lastEventEndOffset < chunkStartOffset) {
+            // Part of the bytes were already retained (moved to the beginning, as the array might be the same)
+            copied = (int) (chunkStartOffset - lastEventEndOffset);
+            System.arraycopy(retainedInput, (int) (lastEventEndOffset - retainedInputStartOffset),
+                    destination, 0, copied);
+        }
+        int chunkStart = (int) (Math.max(lastEventEndOffset, chunkStartOffset) - chunkStartOffset);
+        System.arraycopy(chunk, chunkStart, destination, copied, length - copied);
+        retainedInput = destination;
+        retainedInputLength = length;
+    }
+
+
+    /**
+     * Updates the amount of bytes stored in the parser, according to the given parser's event.
+     * Bytes that are not part of a complete event yet (i.e. those after the end of the last complete event)
+     * are the ones held by the parser.
+     *
+     * @param status The last parser's event.
+     * @throws XMLStreamException If the parser's location can't be retrieved.
+     */
+    protected void updateStoredBytes(int status) throws XMLStreamException {  //TODO transform also atributes.
+        if (status != XMLEngine.EVENT_INCOMPLETE) {
+            lastEventEndOffset = parser.getEndingByteOffset();
         }
+        amountOfStoredBytes = (int) (amountOfFedBytes - lastEventEndOffset);
     }
 
     protected abstract ParserResponse process() throws XMLStreamException;
 
 
     /**
-     * Reads until the next XML event, as specified by {@link AsyncXMLStreamReader#next()}.
+     * Reads until the next XML event, as specified by {@link XMLEngine#next()}.
      *
      * @return The current event code.
      */
@@ -123,7 +337,7 @@ public abstract class BaseXMLInterpreter {
      *                            calls to this method, which ensures that all data is consumed.
      */
     protected void ignoreText() throws XMLStreamException {
-        while (parserStatus == AsyncXMLStreamReader.CHARACTERS && parser.hasNext()) {
+        while (parserStatus == XMLEngine.CHARACTERS && parser.hasNext()) {
             next();
         }
     }
@@ -131,7 +345,8 @@ public abstract class BaseXMLInterpreter {
 
     protected static void appendEscapedCharacters(StringBuilder stringBuilder, String prefix) {
 
-        for(char c : prefix.toCharArray()){
+        for (int i = 0; i < prefix.length(); i++) { // Not using toCharArray(), as it copies the string
+            char c = prefix.charAt(i);
             switch (c){
                 case '<':
                     stringBuilder.append("&lt;");
@@ -2,7 +2,7 @@ package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors;
 
 import ar.edu.itba.pdc.chinese_whispers.application.LogHelper;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.OutputConsumer;
-import com.fasterxml.aalto.AsyncXMLStreamReader;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.XMLEngine;
 
 import java.util.Map;
 
@@ -34,6 +34,19 @@ public class ClientNegotiationProcessor extends BaseNegotiationProcessor {
         return initialMessageSent;
     }
 
+    /**
+     * Sets the authentication string, in case it wasn't known when this processor was created.
+     * Note: It must be set before sending the initial message.
+     *
+     * @param authentication The authentication string (i.e. text between the auth tags).
+     */
+    public void setAuthentication(String authentication) {
+        if (initialMessageSent) {
+            throw new IllegalStateException("Can't change the authentication once the negotiation started.");
+        }
+        setBuiltAuthentication(authentication);
+    }
+
 
     public void sendInitialMessage() {
         getStringBuilder().setLength(0); // Clears the string builder
@@ -48,7 +61,7 @@ public class ClientNegotiationProcessor extends BaseNegotiationProcessor {
             getStringBuilder().append("\'");
         }
         getStringBuilder().append(">");
-        outputConsumer.consumeMessage(getStringBuilder().toString().getBytes()); // TODO: check if enough space
+        outputConsumer.consumeMessage(getStringBuilder()); // TODO: check if enough space
         initialMessageSent = true;
         getStateMachine().negotiate();
     }
@@ -139,7 +152,7 @@ public class ClientNegotiationProcessor extends BaseNegotiationProcessor {
             ParserResponse action() {
                 ParserResponse response = ParserResponse.EVERYTHING_NORMAL;
                 switch (getProcessorStatus()) {
-                    case AsyncXMLStreamReader.START_DOCUMENT:
+                    case XMLEngine.START_DOCUMENT:
                         // We check xml version and encoding in order to log any issue.
 
                         String streamVersion = getParser().getVersion();
@@ -154,7 +167,7 @@ public class ClientNegotiationProcessor extends BaseNegotiationProcessor {
                             LogHelper.getLogger(ClientNegotiationProcessor.class).warn("Stream encoding is {}", streamEncoding);
                         }
                         break;
-                    case AsyncXMLStreamReader.START_ELEMENT:
+                    case XMLEngine.START_ELEMENT:
                         switch (getParser().getLocalName()) {
                             case "error":
                                 streamError = true;
@@ -168,12 +181,12 @@ public class ClientNegotiationProcessor extends BaseNegotiationProcessor {
                                 isMechanism = true;
                         }
                         break;
-                    case AsyncXMLStreamReader.CHARACTERS:
+                    case XMLEngine.CHARACTERS:
                         if (isMechanism) {
                             authMechanisms.append(getParser().getText());
                         }
                         break;
-                    case AsyncXMLStreamReader.END_ELEMENT:
+                    case XMLEngine.END_ELEMENT:
                         if (!isMechanism) {
                             break;
                         }
@@ -191,11 +204,11 @@ public class ClientNegotiationProcessor extends BaseNegotiationProcessor {
                         getStringBuilder().append(PARTIAL_AUTH_RESPONSE)
                                 .append(getAuthentication())
                                 .append("</auth>");
-                        consumeOutput(getStringBuilder().toString().getBytes());
+                        consumeOutput(getStringBuilder());
                         getStateMachine()
                                 .setState(new ChallengeState((ClientNegotiationStateMachine) getStateMachine()));
                         break;
-                    case AsyncXMLStreamReader.EVENT_INCOMPLETE:
+                    case XMLEngine.EVENT_INCOMPLETE:
                         return ParserResponse.EVENT_INCOMPLETE;
                     default:
                         response = ParserResponse.XML_ERROR;
@@ -216,7 +229,7 @@ public class ClientNegotiationProcessor extends BaseNegotiationProcessor {
                 ParserResponse response = ParserResponse.EVERYTHING_NORMAL;
 
                 switch (getProcessorStatus()) {
-                    case AsyncXMLStreamReader.START_ELEMENT:
+                    case XMLEngine.START_ELEMENT:
                         switch (getParser().getLocalName()) {
                             case "success":
                                 getStateMachine().setState(new FinalState());
@@ -232,10 +245,10 @@ public class ClientNegotiationProcessor extends BaseNegotiationProcessor {
                         }
                         break;
 
-                    case AsyncXMLStreamReader.END_ELEMENT:
-                    case AsyncXMLStreamReader.CHARACTERS:
+                    case XMLEngine.END_ELEMENT:
+                    case XMLEngine.CHARACTERS:
                         break;
-                    case AsyncXMLStreamReader.EVENT_INCOMPLETE:
+                    case XMLEngine.EVENT_INCOMPLETE:
                         return ParserResponse.EVENT_INCOMPLETE;
                     default:
                         response = ParserResponse.XML_ERROR;
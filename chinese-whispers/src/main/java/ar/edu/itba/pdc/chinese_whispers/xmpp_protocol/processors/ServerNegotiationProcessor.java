@@ -3,8 +3,9 @@ package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors;
 import ar.edu.itba.pdc.chinese_whispers.application.IdGenerator;
 import ar.edu.itba.pdc.chinese_whispers.application.LogHelper;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.OutputConsumer;
-import com.fasterxml.aalto.AsyncXMLStreamReader;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.XMLEngine;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 /**
@@ -85,7 +86,7 @@ public class ServerNegotiationProcessor extends BaseNegotiationProcessor {
             protected ParserResponse action() {
                 ParserResponse response = ParserResponse.EVERYTHING_NORMAL;
                 switch (getProcessorStatus()) {
-                    case AsyncXMLStreamReader.START_DOCUMENT:
+                    case XMLEngine.START_DOCUMENT:
                         // We check xml version and encoding in order to log any issue.
 
                         String streamVersion = getParser().getVersion();
@@ -100,10 +101,10 @@ public class ServerNegotiationProcessor extends BaseNegotiationProcessor {
                             LogHelper.getLogger(ServerNegotiationProcessor.class).warn("Stream encoding is {}", streamEncoding);
                         }
                         // After checking the document, proceed as if the status is a START_ELEMENT
-                    case AsyncXMLStreamReader.START_ELEMENT:
+                    case XMLEngine.START_ELEMENT:
                         getStateMachine().setState(new StreamState((ServerNegotiationStateMachine) getStateMachine()));
                         break;
-                    case AsyncXMLStreamReader.EVENT_INCOMPLETE:
+                    case XMLEngine.EVENT_INCOMPLETE:
                         return ParserResponse.EVENT_INCOMPLETE;
                     default:
                         response = ParserResponse.XML_ERROR;
@@ -148,7 +149,7 @@ public class ServerNegotiationProcessor extends BaseNegotiationProcessor {
                 ParserResponse response = ParserResponse.EVERYTHING_NORMAL;
 
                 switch (getProcessorStatus()) {
-                    case AsyncXMLStreamReader.START_ELEMENT:
+                    case XMLEngine.START_ELEMENT:
                         if (!getParser().getLocalName().equals("stream")) {
                             return ParserResponse.XML_ERROR;
                         }
@@ -203,10 +204,10 @@ public class ServerNegotiationProcessor extends BaseNegotiationProcessor {
                         getStringBuilder().append(END_OF_STREAM_TAG);    // The rest of the stream tag
                         getStringBuilder().append(FEATURES);             // Features
 
-                        consumeOutput(getStringBuilder().toString().getBytes());
+                        consumeOutput(getStringBuilder());
                         getStateMachine().setState(new AuthState((ServerNegotiationStateMachine) getStateMachine()));
                         break;
-                    case AsyncXMLStreamReader.EVENT_INCOMPLETE:
+                    case XMLEngine.EVENT_INCOMPLETE:
                         return ParserResponse.EVENT_INCOMPLETE;
                     default:
                         response = ParserResponse.XML_ERROR;
@@ -235,7 +236,7 @@ public class ServerNegotiationProcessor extends BaseNegotiationProcessor {
                 ParserResponse response = ParserResponse.EVERYTHING_NORMAL;
 
                 switch (getProcessorStatus()) {
-                    case AsyncXMLStreamReader.START_ELEMENT:
+                    case XMLEngine.START_ELEMENT:
                         if (!getParser().getLocalName().equals("auth")) {
                             return response;
                         }
@@ -264,12 +265,12 @@ public class ServerNegotiationProcessor extends BaseNegotiationProcessor {
                         }
                         authenticationBuilder.setLength(0);
                         break;
-                    case AsyncXMLStreamReader.CHARACTERS:
+                    case XMLEngine.CHARACTERS:
                         if (validMechanism) {
                             appendEscapedCharacters(authenticationBuilder,getParser().getText());
                         }
                         break;
-                    case AsyncXMLStreamReader.END_ELEMENT:
+                    case XMLEngine.END_ELEMENT:
                         String builtAuthentication = authenticationBuilder.toString().trim();
 
                         setBuiltAuthentication(builtAuthentication);
@@ -281,7 +282,7 @@ public class ServerNegotiationProcessor extends BaseNegotiationProcessor {
                         // Checks that the body has a correct base64 scheme
                         try {
                             // The authorization content might be invalid (i.e. not be a valid base64 scheme)
-                            decodedAuth = new String(Base64.getDecoder().decode(builtAuthentication));
+                            decodedAuth = new String(Base64.getDecoder().decode(builtAuthentication), StandardCharsets.UTF_8);
                         } catch (IllegalArgumentException e) {
                             return ParserResponse.MALFORMED_REQUEST;
                         }
@@ -294,7 +295,7 @@ public class ServerNegotiationProcessor extends BaseNegotiationProcessor {
                         getStateMachine().setState(new FinalState());
                         response = ParserResponse.NEGOTIATION_END;
                         break;
-                    case AsyncXMLStreamReader.EVENT_INCOMPLETE:
+                    case XMLEngine.EVENT_INCOMPLETE:
                         return ParserResponse.EVENT_INCOMPLETE;
                     default:
                         response = ParserResponse.XML_ERROR;
@@ -0,0 +1,376 @@
+package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Holds the metadata of a stanza (i.e. its kind, and its {@code from}, {@code to}, {@code id} and {@code type}
+ * attributes), taken from its start tag by a {@link StanzaScanner} while framing it.
+ * <p>
+ * The start tag's bytes are kept as they were received, and they are only processed when metadata is requested
+ * (values are decoded on demand, and cached till the next stanza starts), so stanzas that are relayed
+ * without being processed cost just a copy of their start tag.
+ * <p>
+ * Note: The scanner doesn't validate the tag (the parser does it), so values of malformed tags might be missing.
+ */
+/* package */ final class StanzaMetadata {
+
+    /**
+     * The kinds of stanzas.
+     */
+    /* package */ enum Kind {
+        MESSAGE,
+        PRESENCE,
+        IQ,
+        /**
+         * Any other top-level element (e.g. stream features or SASL elements).
+         */
+        OTHER,
+    }
+
+    /**
+     * Names of the attributes kept (their indexes are used in the values' arrays).
+     */
+    private static final byte[][] ATTRIBUTE_NAMES = {
+            "from".getBytes(StandardCharsets.US_ASCII),
+            "to".getBytes(StandardCharsets.US_ASCII),
+            "id".getBytes(StandardCharsets.US_ASCII),
+            "type".getBytes(StandardCharsets.US_ASCII),
+    };
+    private static final int FROM = 0;
+    private static final int TO = 1;
+    private static final int ID = 2;
+    private static final int TYPE = 3;
+
+    private static final byte[] MESSAGE = "message".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PRESENCE = "presence".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] IQ = "iq".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Holds the bytes of the stanza's start tag.
+     */
+    private byte[] tag;
+    /**
+     * Amount of bytes in the {@link #tag} array.
+     */
+    private int tagLength;
+    /**
+     * Says if the start tag is complete.
+     */
+    private boolean complete;
+    /**
+     * Says if the complete start tag was processed (i.e. if its kind and attributes were found).
+     */
+    private boolean processed;
+    private Kind kind;
+    /**
+     * Offsets (in the {@link #tag} array) in which the kept attributes' values start (-1 if missing).
+     */
+    private final int[] valuesStart;
+    /**
+     * Offsets (in the {@link #tag} array) in which the kept attributes' values end.
+     */
+    private final int[] valuesEnd;
+    /**
+     * Decoded values of the kept attributes (only set once requested).
+     */
+    private final String[] values;
+
+
+    /* package */ StanzaMetadata() {
+        this.tag = new byte[256];
+        this.tagLength = 0;
+        this.complete = false;
+        this.processed = false;
+        this.kind = null;
+        this.valuesStart = new int[ATTRIBUTE_NAMES.length];
+        this.valuesEnd = new int[ATTRIBUTE_NAMES.length];
+        this.values = new String[ATTRIBUTE_NAMES.length];
+    }
+
+
+    /**
+     * Says if the stanza's start tag is complete (i.e. if metadata is available).
+     *
+     * @return {@code true} if the start tag is complete, or {@code false} otherwise.
+     */
+    /* package */ boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Returns the kind of the stanza.
+     *
+     * @return The stanza's kind, or {@code null} if its start tag is not complete.
+     */
+    /* package */ Kind getKind() {
+        process();
+        return complete ? kind : null;
+    }
+
+    /**
+     * Returns the (unescaped) value of the stanza's {@code from} attribute.
+     *
+     * @return The attribute's value, or {@code null} if the stanza doesn't have it.
+     */
+    /* package */ String getFrom() {
+        return getValue(FROM);
+    }
+
+    /**
+     * Returns the (unescaped) value of the stanza's {@code to} attribute.
+     *
+     * @return The attribute's value, or {@code null} if the stanza doesn't have it.
+     */
+    /* package */ String getTo() {
+        return getValue(TO);
+    }
+
+    /**
+     * Returns the (unescaped) value of the stanza's {@code id} attribute.
+     *
+     * @return The attribute's value, or {@code null} if the stanza doesn't have it.
+     */
+    /* package */ String getId() {
+        return getValue(ID);
+    }
+
+    /**
+     * Returns the (unescaped) value of the stanza's {@code type} attribute.
+     *
+     * @return The attribute's value, or {@code null} if the stanza doesn't have it.
+     */
+    /* package */ String getType() {
+        return getValue(TYPE);
+    }
+
+    /**
+     * Starts a new stanza (whose start tag's {@code "<"} was scanned), discarding the metadata of the last one.
+     */
+    /* package */ void startTag() {
+        tag[0] = '<';
+        tagLength = 1;
+        complete = false;
+        processed = false;
+    }
+
+    /**
+     * Appends the given bytes to the stanza's start tag.
+     * The scanner limits the size of tags, so the array is not grown forever.
+     *
+     * @param data   The array holding the bytes.
+     * @param offset Offset of the first byte to be appended.
+     * @param length Amount of bytes to be appended.
+     */
+    /* package */ void append(byte[] data, int offset, int length) {
+        if (tagLength + length > tag.length) {
+            tag = Arrays.copyOf(tag, Math.max(tagLength + length, 2 * tag.length));
+        }
+        System.arraycopy(data, offset, tag, tagLength, length);
+        tagLength += length;
+    }
+
+    /**
+     * Finishes the stanza's start tag (i.e. its metadata is available from now on).
+     */
+    /* package */ void endTag() {
+        complete = true;
+    }
+
+
+    /**
+     * Processes the start tag (if it's complete and it wasn't processed yet), finding its name and the kept
+     * attributes. If the tag is malformed, it's processed till the malformed part (the parser will report it).
+     */
+    private void process() {
+        if (!complete || processed) {
+            return;
+        }
+        processed = true;
+        kind = null;
+        Arrays.fill(valuesStart, -1);
+        Arrays.fill(values, null);
+        int nameStart = 1; // After the '<'
+        int p = nameStart;
+        while (p < tagLength && !isNameEnd(tag[p])) {
+            if (tag[p] == ':') {
+                nameStart = p + 1; // Only the local name is checked
+            }
+            p++;
+        }
+        kind = kindOf(nameStart, p);
+        while (true) {
+            p = skipWhitespace(p);
+            if (p == tagLength || tag[p] == '/' || tag[p] == '>') {
+                return;
+            }
+            int attributeStart = p;
+            while (p < tagLength && !isNameEnd(tag[p]) && tag[p] != '=') {
+                p++;
+            }
+            int attributeEnd = p;
+            p = skipWhitespace(p);
+            if (p == tagLength || tag[p] != '=') {
+                return;
+            }
+            p = skipWhitespace(p + 1);
+            if (p == tagLength || (tag[p] != '\'' && tag[p] != '"')) {
+                return;
+            }
+            byte quote = tag[p++];
+            int valueStart = p;
+            while (p < tagLength && tag[p] != quote) {
+                p++;
+            }
+            if (p == tagLength) {
+                return;
+            }
+            for (int i = 0; i < ATTRIBUTE_NAMES.length; i++) {
+                if (valuesStart[i] < 0 && sameBytes(ATTRIBUTE_NAMES[i], attributeStart, attributeEnd)) {
+                    valuesStart[i] = valueStart;
+                    valuesEnd[i] = p;
+                    break;
+                }
+            }
+            p++; // Skips the closing quote
+        }
+    }
+
+    private String getValue(int index) {
+        process();
+        if (!complete) {
+            return null;
+        }
+        if (values[index] == null && valuesStart[index] >= 0) {
+            values[index] = decode(valuesStart[index], valuesEnd[index]);
+        }
+        return values[index];
+    }
+
+    private Kind kindOf(int from, int to) {
+        if (sameBytes(MESSAGE, from, to)) {
+            return Kind.MESSAGE;
+        }
+        if (sameBytes(PRESENCE, from, to)) {
+            return Kind.PRESENCE;
+        }
+        if (sameBytes(IQ, from, to)) {
+            return Kind.IQ;
+        }
+        return Kind.OTHER;
+    }
+
+    /**
+     * Decodes the attribute value held in the given range of the tag, replacing references and normalizing whitespace
+     * (as the parser does). Unknown or malformed references are kept as they are.
+     */
+    private String decode(int from, int to) {
+        StringBuilder builder = null;
+        int segmentStart = from;
+        for (int p = from; p < to; p++) {
+            byte b = tag[p];
+            if (b != '&' && b != '\t' && b != '\n' && b != '\r') {
+                continue;
+            }
+            if (builder == null) {
+                builder = new StringBuilder(to - from);
+            }
+            builder.append(new String(tag, segmentStart, p - segmentStart, StandardCharsets.UTF_8));
+            if (b == '&') {
+                int semicolon = p + 1;
+                while (semicolon < to && tag[semicolon] != ';') {
+                    semicolon++;
+                }
+                if (semicolon == to || !appendReference(builder, p + 1, semicolon)) {
+                    segmentStart = p; // Kept as it is
+                    continue;
+                }
+                p = semicolon;
+            } else {
+                if (b == '\r' && p + 1 < to && tag[p + 1] == '\n') {
+                    p++; // Line breaks are normalized first
+                }
+                builder.append(' ');
+            }
+            segmentStart = p + 1;
+        }
+        if (builder == null) {
+            return new String(tag, from, to - from, StandardCharsets.UTF_8);
+        }
+        return builder.append(new String(tag, segmentStart, to - segmentStart, StandardCharsets.UTF_8)).toString();
+    }
+
+    /**
+     * Appends the char referenced by the reference whose name is held in the given range.
+     *
+     * @return {@code true} if the reference is valid, or {@code false} otherwise.
+     */
+    private boolean appendReference(StringBuilder builder, int from, int to) {
+        int length = to - from;
+        if (length >= 2 && tag[from] == '#') {
+            boolean hexadecimal = tag[from + 1] == 'x';
+            int p = hexadecimal ? from + 2 : from + 1;
+            if (p == to || to - p > 8) {
+                return false;
+            }
+            int codePoint = 0;
+            for (; p < to; p++) {
+                int digit = Character.digit(tag[p], hexadecimal ? 16 : 10);
+                if (digit < 0) {
+                    return false;
+                }
+                codePoint = codePoint * (hexadecimal ? 16 : 10) + digit;
+            }
+            if (!Character.isValidCodePoint(codePoint)) {
+                return false;
+            }
+            builder.appendCodePoint(codePoint);
+            return true;
+        }
+        char c;
+        if (length == 2 && tag[from] == 'l' && tag[from + 1] == 't') {
+            c = '<';
+        } else if (length == 2 && tag[from] == 'g' && tag[from + 1] == 't') {
+            c = '>';
+        } else if (length == 3 && tag[from] == 'a' && tag[from + 1] == 'm' && tag[from + 2] == 'p') {
+            c = '&';
+        } else if (length == 4 && tag[from] == 'a' && tag[from + 1] == 'p' && tag[from + 2] == 'o'
+                && tag[from + 3] == 's') {
+            c = '\'';
+        } else if (length == 4 && tag[from] == 'q' && tag[from + 1] == 'u' && tag[from + 2] == 'o'
+                && tag[from + 3] == 't') {
+            c = '"';
+        } else {
+            return false;
+        }
+        builder.append(c);
+        return true;
+    }
+
+    private boolean sameBytes(byte[] bytes, int from, int to) {
+        if (to - from != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (tag[from + i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int skipWhitespace(int p) {
+        while (p < tagLength && isWhitespace(tag[p])) {
+            p++;
+        }
+        return p;
+    }
+
+    private static boolean isNameEnd(byte b) {
+        return isWhitespace(b) || b == '/' || b == '>';
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+}
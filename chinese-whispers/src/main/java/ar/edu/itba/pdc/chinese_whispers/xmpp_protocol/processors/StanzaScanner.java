@@ -0,0 +1,625 @@
+package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors;
+
+import ar.edu.itba.pdc.chinese_whispers.application.Configurations;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A lightweight non-blocking XML scanner that frames stanzas (i.e. children of the stream's root element),
+ * only tracking markup boundaries and depth, without parsing names, attributes nor entities.
+ * It tells where stanzas end (so they can be relayed without being parsed, see {@link XMLInterpreter}),
+ * and enforces size limits exactly:
+ * <ul>
+ * <li>A markup token (i.e. a tag, comment, CDATA section or processing instruction) can't exceed
+ * {@link BaseXMLInterpreter#MAX_AMOUNT_OF_BYTES}, as in the parser.</li>
+ * <li>A stanza can't exceed {@link Configurations#getMaxStanzaSize()} bytes, nor have elements deeper than
+ * {@link Configurations#getMaxStanzaDepth()}.</li>
+ * <li>An element can't have more than {@link Configurations#getMaxAttributes()} attributes.</li>
+ * </ul>
+ * Once the root element is closed (i.e. {@code </stream:stream>}), only whitespace is accepted.
+ * The start tag of each stanza can be kept, so its metadata is available without parsing it again
+ * (see {@link #getStanzaMetadata()}).
+ * <p>
+ * Note: Text, tag names, attribute values and the names in end tags are skipped a word (8 bytes) at a time till
+ * the byte that ends them, and the rest is scanned byte by byte. All markup characters are ASCII, so UTF-8 content
+ * needs no decoding (none of its bytes can be taken as markup). Token and stanza sizes are computed from offsets
+ * (instead of counting each byte), and checked where they end and where the given bytes end (scanning stops at the
+ * end of each stanza), so exactly those that exceed the limits are rejected, before the chunk in which they do
+ * is accepted.
+ */
+/* package */ final class StanzaScanner {
+
+    /**
+     * The scanner states (i.e. in which kind of token the last scanned byte is).
+     */
+    private enum State {
+        TEXT,
+        LESS_THAN,
+        START_TAG,
+        QUOTED_VALUE,
+        END_TAG,
+        BANG,
+        COMMENT,
+        CDATA,
+        PROCESSING_INSTRUCTION,
+    }
+
+    /**
+     * Chars that follow {@code "<!"} in a CDATA section start.
+     */
+    private static final byte[] CDATA_START = "[CDATA[".getBytes(StandardCharsets.US_ASCII);
+
+    // Constants used to check a word at once (each one holds the given byte in all its bytes)
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final long LESS_THANS = '<' * ONES;
+    private static final long GREATER_THANS = '>' * ONES;
+    private static final long SLASHES = '/' * ONES;
+    private static final long APOSTROPHES = '\'' * ONES;
+    private static final long QUOTATION_MARKS = '"' * ONES;
+
+    /**
+     * Max size (in bytes) of a stanza.
+     */
+    private final int maxStanzaSize;
+    /**
+     * Max depth of elements in a stanza (i.e. max depth of elements, not counting the root element).
+     */
+    private final int maxStanzaDepth;
+    /**
+     * Max amount of attributes of an element.
+     */
+    private final int maxAttributes;
+
+    /**
+     * The array being scanned (kept while the same one is scanned, as the reactor's read buffer is reused).
+     */
+    private byte[] input;
+    /**
+     * View of {@link #input} used to read a word at once.
+     */
+    private ByteBuffer inputWords;
+
+    private State state;
+    /**
+     * Depth of the actual position (i.e. amount of open elements).
+     */
+    private int depth;
+    /**
+     * Says if the actual position is inside a stanza (including its start and end tags).
+     */
+    private boolean inStanza;
+    /**
+     * Offset (in the scanned stream) of the first byte of the actual stanza.
+     */
+    private long stanzaStartOffset;
+    /**
+     * Amount of bytes scanned before the chunk being scanned.
+     */
+    private long scannedBytes;
+    /**
+     * Says if the start tags of stanzas are kept (see {@link #setStanzaMetadataKept(boolean)}).
+     */
+    private boolean stanzaMetadataKept;
+    /**
+     * Says if the start tag being scanned is the one of a stanza, and its bytes are kept.
+     */
+    private boolean inStanzaStartTag;
+    /**
+     * Index (in the chunk being scanned) of the first byte of the stanza's start tag that was not kept yet.
+     */
+    private int tagKeptUpTo;
+    /**
+     * Metadata of the actual stanza (or the last one, if not inside a stanza).
+     */
+    private final StanzaMetadata stanzaMetadata;
+    /**
+     * Amount of attributes of the start tag being scanned.
+     */
+    private int attributesCount;
+    /**
+     * Offset (in the scanned stream) of the first byte of the actual markup token.
+     */
+    private long tokenStartOffset;
+    /**
+     * The quote that opened the attribute value being scanned.
+     */
+    private byte quote;
+    /**
+     * Says if the last byte of a start tag (outside attribute values) was a slash (i.e. it might be an empty element).
+     */
+    private boolean slashSeen;
+    /**
+     * Amount of special chars seen at the end of the actual token
+     * (i.e. dashes in comments, square brackets in CDATA sections, or matched chars after {@code "<!"}).
+     */
+    private int matchedChars;
+    /**
+     * Says if the root element was opened.
+     */
+    private boolean rootOpened;
+    /**
+     * Says if the root element was closed.
+     */
+    private boolean rootClosed;
+    /**
+     * Says if the last scanned byte ended a top-level markup token (e.g. a stanza).
+     */
+    private boolean atBoundary;
+    /**
+     * Holds the error found when scanning (if any).
+     */
+    private ParserResponse error;
+
+
+    /* package */ StanzaScanner() {
+        Configurations configurations = Configurations.getInstance();
+        this.maxStanzaSize = configurations.getMaxStanzaSize();
+        this.maxStanzaDepth = configurations.getMaxStanzaDepth();
+        this.maxAttributes = configurations.getMaxAttributes();
+        this.state = State.TEXT;
+        this.depth = 0;
+        this.inStanza = false;
+        this.stanzaStartOffset = 0;
+        this.scannedBytes = 0;
+        this.stanzaMetadataKept = true;
+        this.inStanzaStartTag = false;
+        this.tagKeptUpTo = 0;
+        this.stanzaMetadata = new StanzaMetadata();
+        this.tokenStartOffset = 0;
+        this.rootOpened = false;
+        this.rootClosed = false;
+        this.atBoundary = false;
+        this.error = null;
+    }
+
+    /**
+     * Scans the given bytes till the end of a top-level markup token (i.e. a token after which the depth is 1,
+     * like the end of a stanza or the root's start tag), till the root element is closed, or till the end of the
+     * given bytes, whichever comes first.
+     *
+     * @param data   The array holding the bytes to be scanned.
+     * @param offset Offset of the first byte to be scanned.
+     * @param length Amount of bytes that can be scanned.
+     * @return The amount of scanned bytes. If an error is found, the rest of the bytes are not scanned
+     * (see {@link #getError()}).
+     */
+    /* package */ int scan(byte[] data, int offset, int length) {
+        if (data == null || offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IllegalArgumentException();
+        }
+        if (error != null) {
+            throw new IllegalStateException();
+        }
+        if (data != input) {
+            input = data;
+            // Words are little-endian (i.e. their first byte is the lowest one) in any platform, see firstByte
+            inputWords = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        atBoundary = false;
+        tagKeptUpTo = offset;
+        int scanned = scanMarkup(data, offset, length);
+        if (error != null) {
+            return scanned;
+        }
+        if (inStanzaStartTag) {
+            stanzaMetadata.append(data, tagKeptUpTo, offset + scanned - tagKeptUpTo); // The tag goes on
+        }
+        scannedBytes += scanned;
+        if (state != State.TEXT && isTokenTooLong(scannedBytes)) {
+            return scanned;
+        }
+        if (inStanza) {
+            if (scannedBytes - stanzaStartOffset > maxStanzaSize) {
+                error = ParserResponse.POLICY_VIOLATION;
+                return scanned;
+            }
+            if (atBoundary) {
+                inStanza = false; // Comments and processing instructions between stanzas don't start one
+            }
+        }
+        return scanned;
+    }
+
+    /**
+     * Scans the given bytes (as specified by {@link #scan(byte[], int, int)}), enforcing all the limits
+     * but the sizes of unfinished tokens and stanzas.
+     * Text is followed by markup, and a start tag by its attribute values, so those states fall through to the next
+     * one (or loop) while there are bytes, instead of going back to the state switch.
+     */
+    private int scanMarkup(byte[] data, int offset, int length) {
+        ByteBuffer words = inputWords;
+        int end = offset + length;
+        int position = offset;
+        byte b;
+        while (position < end) {
+            switch (state) {
+                case TEXT:
+                    if (rootClosed) {
+                        // Nothing but whitespace after the root element
+                        do {
+                            b = data[position++];
+                            if (b != '<' && !isWhitespace(b)) {
+                                error = ParserResponse.XML_ERROR;
+                                return position - offset;
+                            }
+                        } while (b != '<' && position < end);
+                        if (b != '<') {
+                            return length;
+                        }
+                    } else {
+                        position = indexOf(data, words, position, end, LESS_THANS);
+                        if (position == end) {
+                            return length;
+                        }
+                        position++;
+                    }
+                    state = State.LESS_THAN;
+                    tokenStartOffset = scannedBytes + position - offset - 1;
+                    if (position == end) {
+                        return length;
+                    }
+                    // Falls through
+                case LESS_THAN:
+                    b = data[position++];
+                    if (b == '/') {
+                        state = State.END_TAG;
+                        break;
+                    } else if (b == '!') {
+                        state = State.BANG;
+                        matchedChars = 0;
+                        break;
+                    } else if (b == '?') {
+                        state = State.PROCESSING_INSTRUCTION;
+                        matchedChars = 0;
+                        break;
+                    } else if (rootClosed) {
+                        error = ParserResponse.XML_ERROR; // Only one root element
+                        return position - offset;
+                    }
+                    state = State.START_TAG;
+                    slashSeen = false;
+                    attributesCount = 0;
+                    if (depth == 1) {
+                        startStanza(tokenStartOffset, position - 1);
+                    }
+                    position--; // The byte is the first one of the name
+                    // Falls through
+                case START_TAG:
+                    while (true) {
+                        // Names, whitespace and equal signs are skipped
+                        int special = indexOfTagSpecial(data, words, position, end);
+                        if (special != position) {
+                            slashSeen = false;
+                            position = special;
+                        }
+                        if (position == end) {
+                            return length;
+                        }
+                        b = data[position++];
+                        if (b == '>') {
+                            break;
+                        }
+                        if (b == '/') {
+                            slashSeen = true;
+                            continue;
+                        }
+                        if (++attributesCount > maxAttributes) {
+                            error = ParserResponse.POLICY_VIOLATION;
+                            return position - offset;
+                        }
+                        slashSeen = false;
+                        position = indexOf(data, words, position, end, b == '"' ? QUOTATION_MARKS : APOSTROPHES);
+                        if (position == end) {
+                            state = State.QUOTED_VALUE;
+                            quote = b;
+                            return length;
+                        }
+                        position++;
+                    }
+                    // The stanza's element has depth 1 (empty elements are also counted)
+                    if (depth > maxStanzaDepth) {
+                        error = ParserResponse.POLICY_VIOLATION;
+                        return position - offset;
+                    }
+                    if (!slashSeen) {
+                        depth++;
+                    }
+                    rootOpened = true;
+                    if (inStanzaStartTag) {
+                        inStanzaStartTag = false;
+                        stanzaMetadata.append(data, tagKeptUpTo, position - tagKeptUpTo);
+                        stanzaMetadata.endTag();
+                    }
+                    if (endToken(scannedBytes + position - offset)) {
+                        return position - offset;
+                    }
+                    break;
+                case QUOTED_VALUE:
+                    // The value is skipped till the closing quote
+                    position = indexOf(data, words, position, end, quote == '"' ? QUOTATION_MARKS : APOSTROPHES);
+                    if (position == end) {
+                        return length;
+                    }
+                    position++;
+                    state = State.START_TAG;
+                    break;
+                case END_TAG:
+                    // The name is skipped till the end of the tag
+                    position = indexOf(data, words, position, end, GREATER_THANS);
+                    if (position == end) {
+                        return length;
+                    }
+                    position++;
+                    if (isTokenTooLong(scannedBytes + position - offset)) {
+                        return position - offset;
+                    }
+                    if (depth == 0) {
+                        error = ParserResponse.XML_ERROR; // Nothing to close
+                        return position - offset;
+                    }
+                    if (--depth == 0) {
+                        rootClosed = true;
+                        state = State.TEXT;
+                        atBoundary = true;
+                        return position - offset;
+                    }
+                    if (endToken(scannedBytes + position - offset)) {
+                        return position - offset;
+                    }
+                    break;
+                case BANG:
+                    // Either a comment ("<!--") or a CDATA section ("<![CDATA["). DTDs are not allowed in XMPP.
+                    b = data[position++];
+                    if (matchedChars == 0 && b == '-') {
+                        matchedChars = -1; // Waiting for the second dash
+                    } else if (matchedChars == -1) {
+                        if (b != '-') {
+                            error = ParserResponse.XML_ERROR;
+                            return position - offset;
+                        }
+                        state = State.COMMENT;
+                        matchedChars = 0;
+                    } else if (matchedChars >= 0 && b == CDATA_START[matchedChars]) {
+                        if (++matchedChars == CDATA_START.length) {
+                            state = State.CDATA;
+                            matchedChars = 0;
+                        }
+                    } else {
+                        error = ParserResponse.XML_ERROR;
+                        return position - offset;
+                    }
+                    break;
+                case COMMENT:
+                    // Fast path: chars other than dashes are skipped
+                    b = data[position++];
+                    if (b != '-' && b != '>') {
+                        matchedChars = 0;
+                        do {
+                            if (position == end) {
+                                return length;
+                            }
+                            b = data[position++];
+                        } while (b != '-' && b != '>');
+                    }
+                    if (b == '>' && matchedChars >= 2) {
+                        if (endToken(scannedBytes + position - offset)) {
+                            return position - offset;
+                        }
+                    } else {
+                        matchedChars = b == '-' ? matchedChars + 1 : 0;
+                    }
+                    break;
+                case CDATA:
+                    // Fast path: chars other than right square brackets are skipped
+                    b = data[position++];
+                    if (b != ']' && b != '>') {
+                        matchedChars = 0;
+                        do {
+                            if (position == end) {
+                                return length;
+                            }
+                            b = data[position++];
+                        } while (b != ']' && b != '>');
+                    }
+                    if (b == '>' && matchedChars >= 2) {
+                        if (endToken(scannedBytes + position - offset)) {
+                            return position - offset;
+                        }
+                    } else {
+                        matchedChars = b == ']' ? matchedChars + 1 : 0;
+                    }
+                    break;
+                case PROCESSING_INSTRUCTION:
+                    b = data[position++];
+                    if (b == '>' && matchedChars == 1) {
+                        if (endToken(scannedBytes + position - offset)) {
+                            return position - offset;
+                        }
+                    } else {
+                        matchedChars = b == '?' ? 1 : 0;
+                    }
+                    break;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Says if the last scanned byte ended a top-level markup token (i.e. after it, the depth is 1, or the root
+     * element was closed). Only those positions are safe to stop relaying stanzas, or to start doing it.
+     *
+     * @return {@code true} if the scanner is at a top-level boundary, or {@code false} otherwise.
+     */
+    /* package */ boolean isAtBoundary() {
+        return atBoundary;
+    }
+
+    /**
+     * Says if the root element (i.e. the stream) was closed.
+     *
+     * @return {@code true} if the root element was closed, or {@code false} otherwise.
+     */
+    /* package */ boolean isRootClosed() {
+        return rootClosed;
+    }
+
+    /**
+     * Returns the metadata of the actual stanza (i.e. the one being scanned, or the last one if the scanner is
+     * between stanzas). It's complete once the stanza's start tag is scanned, and valid till the next stanza starts
+     * (scanning stops at the end of each stanza, so it's still valid while the stanza is being processed).
+     *
+     * @return The metadata of the actual stanza (the object is reused for all the stanzas).
+     */
+    /* package */ StanzaMetadata getStanzaMetadata() {
+        return stanzaMetadata;
+    }
+
+    /**
+     * Sets whether the start tags of the next stanzas are kept (they are by default). Metadata is only needed for
+     * stanzas that are parsed, so relayed stanzas are scanned without copying their start tags.
+     * Note: It must be called between stanzas (i.e. at a boundary), as it applies from the next stanza on.
+     * The metadata of stanzas whose start tag is not kept is never complete.
+     *
+     * @param kept {@code true} to keep the start tags of stanzas, or {@code false} otherwise.
+     */
+    /* package */ void setStanzaMetadataKept(boolean kept) {
+        this.stanzaMetadataKept = kept;
+    }
+
+    /**
+     * Returns the error found when scanning.
+     *
+     * @return {@link ParserResponse#XML_ERROR} or {@link ParserResponse#POLICY_VIOLATION},
+     * or {@code null} if no error was found.
+     */
+    /* package */ ParserResponse getError() {
+        return error;
+    }
+
+    /**
+     * Finishes the actual markup token.
+     *
+     * @param endOffset Offset (in the scanned stream) of the byte after the token.
+     * @return {@code true} if the token was a top-level one or it's too long (i.e. scanning must stop),
+     * or {@code false} otherwise.
+     */
+    private boolean endToken(long endOffset) {
+        if (isTokenTooLong(endOffset)) {
+            return true;
+        }
+        state = State.TEXT;
+        atBoundary = depth == 1 && rootOpened;
+        return atBoundary;
+    }
+
+    /**
+     * Says if the actual markup token exceeds {@link BaseXMLInterpreter#MAX_AMOUNT_OF_BYTES},
+     * setting the error if it does.
+     *
+     * @param endOffset Offset (in the scanned stream) of the byte after the last scanned byte of the token.
+     * @return {@code true} if the token is too long, or {@code false} otherwise.
+     */
+    private boolean isTokenTooLong(long endOffset) {
+        if (endOffset - tokenStartOffset > BaseXMLInterpreter.MAX_AMOUNT_OF_BYTES) {
+            error = ParserResponse.POLICY_VIOLATION;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Starts a new stanza, whose start tag is being scanned (the {@code "<"} and the byte after it were already
+     * scanned, but the {@code "<"} might be in the previous chunk).
+     *
+     * @param startOffset Offset (in the scanned stream) of the stanza's {@code "<"}.
+     * @param nameStart   Index (in the chunk being scanned) of the byte after the {@code "<"}.
+     */
+    private void startStanza(long startOffset, int nameStart) {
+        inStanza = true;
+        stanzaStartOffset = startOffset;
+        inStanzaStartTag = stanzaMetadataKept;
+        tagKeptUpTo = nameStart;
+        stanzaMetadata.startTag();
+    }
+
+    /**
+     * Returns the index of the first byte in the given range that equals the one in the given pattern.
+     *
+     * @param data    The array holding the bytes.
+     * @param words   A view of the array used to read a word at once.
+     * @param from    Index of the first byte to be checked.
+     * @param end     Index after the last byte to be checked.
+     * @param pattern A word holding the searched byte in all its bytes.
+     * @return The index of the byte, or {@code end} if it's not found.
+     */
+    private static int indexOf(byte[] data, ByteBuffer words, int from, int end, long pattern) {
+        int p = from;
+        while (p + 8 <= end) {
+            long found = matches(words.getLong(p), pattern);
+            if (found != 0) {
+                return p + firstByte(found);
+            }
+            p += 8;
+        }
+        byte special = (byte) pattern;
+        while (p < end && data[p] != special) {
+            p++;
+        }
+        return p;
+    }
+
+    /**
+     * Returns the index of the first byte in the given range that ends a name, whitespace or an equal sign
+     * in a start tag (i.e. a greater than sign, a slash or a quote).
+     *
+     * @param data  The array holding the bytes.
+     * @param words A view of the array used to read a word at once.
+     * @param from  Index of the first byte to be checked.
+     * @param end   Index after the last byte to be checked.
+     * @return The index of the byte, or {@code end} if it's not found.
+     */
+    private static int indexOfTagSpecial(byte[] data, ByteBuffer words, int from, int end) {
+        int p = from;
+        while (p + 8 <= end) {
+            long word = words.getLong(p);
+            long found = matches(word, GREATER_THANS) | matches(word, SLASHES) | matches(word, APOSTROPHES)
+                    | matches(word, QUOTATION_MARKS);
+            if (found != 0) {
+                return p + firstByte(found);
+            }
+            p += 8;
+        }
+        while (p < end) {
+            byte b = data[p];
+            if (b == '>' || b == '/' || b == '\'' || b == '"') {
+                break;
+            }
+            p++;
+        }
+        return p;
+    }
+
+    /**
+     * Sets the high bit of each byte of the given word that equals the corresponding byte of the given pattern
+     * (it might also set bits above a matching byte, but never below the first one, see {@link #firstByte(long)}).
+     */
+    private static long matches(long word, long pattern) {
+        long x = word ^ pattern;
+        return (x - ONES) & ~x & HIGH_BITS;
+    }
+
+    /**
+     * Returns the index (in its little-endian word) of the first byte whose high bit is set in the given matches.
+     * Bits set above a matching byte are in later bytes, so the lowest one is always a match.
+     */
+    private static int firstByte(long matches) {
+        return Long.numberOfTrailingZeros(matches) >>> 3;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+}
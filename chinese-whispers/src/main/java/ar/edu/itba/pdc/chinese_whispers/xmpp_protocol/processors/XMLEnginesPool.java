@@ -0,0 +1,129 @@
+package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors;
+
+import ar.edu.itba.pdc.chinese_whispers.application.Configurations;
+import ar.edu.itba.pdc.chinese_whispers.application.MetricsManager;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.XMLEngine;
+
+/**
+ * This class pools the {@link XMLEngine}s used by interpreters, so new streams reuse the parsers of closed ones
+ * instead of creating them (each proxied session needs four of them: one for each side's negotiation,
+ * and one for each direction once proxying).
+ * <p>
+ * Each reactor keeps a bounded stack of reset parsers, accessed with no synchronization at all, and a names table
+ * shared by all the tokenizers it creates (see {@link XMPPTokenizer}), so names that repeat across streams
+ * are not created again. Names tables only hold immutable strings that are checked before being used,
+ * so a tokenizer released by a reactor other than the one that created it is still safe to be reused.
+ * <p>
+ * Parsers that can't be reused (i.e. Aalto ones, see {@link AaltoXMLEngine}) are always created, and they release
+ * their resources when given back, so the pool (and its hits and misses metrics) only applies to tokenizers.
+ * Parsers given back when the stack is full are left to the garbage collector.
+ * <p>
+ * This class implements the singleton pattern.
+ */
+/* package */ final class XMLEnginesPool {
+
+    /**
+     * Says if the built-in XMPP tokenizer is used (instead of Aalto).
+     */
+    private final boolean xmppTokenizer;
+    /**
+     * Max amount of non-used parsers kept by each reactor.
+     */
+    private final int maxSize;
+    /**
+     * Holds each reactor's pool.
+     */
+    private final ThreadLocal<LocalPool> localPools;
+
+    /**
+     * Holds the singleton.
+     */
+    private static final XMLEnginesPool singleton = new XMLEnginesPool();
+
+
+    /**
+     * Private constructor (for singleton pattern).
+     */
+    private XMLEnginesPool() {
+        Configurations configurations = Configurations.getInstance();
+        this.xmppTokenizer = configurations.isXmppTokenizerEnabled();
+        this.maxSize = configurations.getParserPoolSize();
+        this.localPools = ThreadLocal.withInitial(() -> new LocalPool(maxSize));
+    }
+
+    /**
+     * Gets the singleton instance.
+     *
+     * @return The only instance of this class.
+     */
+    /* package */ static XMLEnginesPool getInstance() {
+        return singleton;
+    }
+
+    /**
+     * Takes a parser, ready to parse a new document.
+     * It must be given back with {@link #release(XMLEngine)} once it's not used anymore.
+     *
+     * @return The parser.
+     */
+    /* package */ XMLEngine take() {
+        if (!xmppTokenizer) {
+            return new AaltoXMLEngine(); // Can't be pooled, so it's not counted as a miss
+        }
+        LocalPool pool = localPools.get();
+        XMLEngine engine = pool.pop();
+        if (engine != null) {
+            MetricsManager.getInstance().addParserPoolHits(1);
+            return engine;
+        }
+        MetricsManager.getInstance().addParserPoolMisses(1);
+        return new XMPPTokenizer(pool.names);
+    }
+
+    /**
+     * Gives back a parser taken from this pool. It must not be used after calling this method.
+     *
+     * @param engine The parser to be released.
+     */
+    /* package */ void release(XMLEngine engine) {
+        if (engine == null) {
+            throw new IllegalArgumentException();
+        }
+        if (engine.reset()) {
+            localPools.get().push(engine); // Left to the garbage collector if the pool is full
+        }
+    }
+
+
+    /**
+     * A reactor's pool of parsers, holding a bounded stack of them and the names table of its tokenizers.
+     * It is only accessed by its reactor, so it needs no synchronization.
+     */
+    private static final class LocalPool {
+
+        private final XMLEngine[] engines;
+        private int size;
+        private final String[] names;
+
+        private LocalPool(int maxSize) {
+            this.engines = new XMLEngine[maxSize];
+            this.size = 0;
+            this.names = XMPPTokenizer.newNamesTable();
+        }
+
+        private void push(XMLEngine engine) {
+            if (size < engines.length) {
+                engines[size++] = engine;
+            }
+        }
+
+        private XMLEngine pop() {
+            if (size == 0) {
+                return null;
+            }
+            XMLEngine engine = engines[--size];
+            engines[size] = null;
+            return engine;
+        }
+    }
+}
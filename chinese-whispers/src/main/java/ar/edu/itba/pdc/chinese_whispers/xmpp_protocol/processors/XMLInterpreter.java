@@ -1,11 +1,13 @@
 package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors;
 
+import ar.edu.itba.pdc.chinese_whispers.application.Configurations;
 import ar.edu.itba.pdc.chinese_whispers.application.LogHelper;
 import ar.edu.itba.pdc.chinese_whispers.application.MetricsManager;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.handlers.StreamErrorsManager;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.handlers.XMPPReadWriteHandler;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.ApplicationProcessor;
 import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.OutputConsumer;
-import com.fasterxml.aalto.AsyncXMLStreamReader;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.XMLEngine;
 import org.slf4j.Logger;
 
 import javax.xml.stream.XMLStreamException;
@@ -13,9 +15,25 @@ import javax.xml.stream.XMLStreamException;
 /**
  * Basic byte-level XML interpreter. Handles reading incomplete and invalid XML, as well as "l33ting" messages when
  * appropriate, and ignoring messages when silenced.
+ * <p>
+ * When XML passthrough is enabled (see {@link Configurations#isXmlPassthroughEnabled()}), the parser's events are only
+ * used to know which parts of the input must be changed: the rest of it is forwarded exactly as it was received
+ * (using the events' byte offsets). Otherwise, XML is rebuilt from the parser's events.
+ * <p>
+ * Input is first framed by a {@link StanzaScanner}, which enforces per-stanza limits and keeps each stanza's metadata.
+ * When XML relay is enabled (see {@link Configurations#isXmlRelayEnabled()}), stanzas are relayed without being parsed
+ * while there is nothing to change in them (i.e. l33t is disabled and the user is not silenced). This is decided before
+ * each stanza, so the parser is fed one stanza at a time, and it only sees those stanzas that are processed.
+ * Otherwise, each chunk is framed as a whole before being fed to the parser (feeding it stanza by stanza is slower).
  */
 public class XMLInterpreter extends BaseXMLInterpreter {
 
+    /**
+     * Max capacity of the {@link #readXML} builder kept between calls to {@link #process()}
+     * (bigger builders are replaced, so a big stanza doesn't make this interpreter to hold memory forever).
+     */
+    private static final int MAX_RETAINED_BUILDER_CAPACITY = 16 * 1024;
+
     private int status = 0;
     private boolean isSilenced;
     private boolean silenceRequested;
@@ -33,6 +51,33 @@ public class XMLInterpreter extends BaseXMLInterpreter {
      */
     private final XMPPReadWriteHandler ownerHandler;
 
+    /**
+     * Says if XML that is not changed is forwarded as it was received (instead of being rebuilt).
+     */
+    private final boolean passthrough;
+    /**
+     * Offset (in the fed stream) of the first byte that was not forwarded nor discarded yet (only used in passthrough).
+     */
+    private long rawOutputOffset;
+
+    /**
+     * Scanner that frames stanzas (i.e. finds where they end, and enforces their limits).
+     */
+    private final StanzaScanner scanner;
+    /**
+     * Says if stanzas can be relayed without being parsed.
+     */
+    private final boolean relay;
+    /**
+     * Says if stanzas are being relayed without being parsed.
+     */
+    private boolean relaying;
+
+    /**
+     * Builder in which processed XML is written (reused in each call to {@link #process()}).
+     */
+    private StringBuilder readXML;
+
     private Logger logger;
 
     /**
@@ -47,6 +92,82 @@ public class XMLInterpreter extends BaseXMLInterpreter {
         this.applicationProcessor = applicationProcessor;
         logger = LogHelper.getLogger(getClass());
         this.ownerHandler = ownerHandler;
+        this.readXML = new StringBuilder();
+        this.passthrough = Configurations.getInstance().isXmlPassthroughEnabled();
+        this.rawOutputOffset = 0;
+        this.scanner = new StanzaScanner();
+        this.relay = Configurations.getInstance().isXmlRelayEnabled();
+        this.relaying = false; // The stream's start tag is always parsed
+        // Stanzas' metadata is only used for stanzas that are parsed while others can be relayed
+        this.scanner.setStanzaMetadataKept(relay);
+    }
+
+
+    /**
+     * Adds bytes to be processed by the interpreter. Data is framed first (so stanzas that exceed the limits are not
+     * even parsed). If stanzas can be relayed, data is fed to the parser up to the end of each stanza, and only those
+     * stanzas that might be changed are parsed (the rest are sent as they are to the output consumer, consecutive ones
+     * all at once).
+     *
+     * @param data   The data to process.
+     * @param length The amount of data that will be processed.
+     * @return The result of processing the given data.
+     */
+    @Override
+    public ParserResponse feed(byte[] data, int length) {
+        if (data == null || length < 0 || length > data.length) {
+            throw new IllegalArgumentException();
+        }
+        if (!relay) {
+            int offset = 0;
+            while (offset < length) {
+                offset += scanner.scan(data, offset, length - offset);
+                if (scanner.getError() != null) {
+                    return scanner.getError();
+                }
+            }
+            return super.feed(data, length);
+        }
+        ParserResponse response = ParserResponse.EVERYTHING_NORMAL;
+        int offset = 0;
+        int relayedFrom = 0; // Start of the relayed bytes that were not sent yet
+        while (offset < length) {
+            int scannedBytes = scanner.scan(data, offset, length - offset);
+            if (scanner.getError() != null) {
+                relay(data, relayedFrom, offset); // Stanzas before the wrong one are still sent
+                return scanner.getError();
+            }
+            if (!relaying) {
+                relay(data, relayedFrom, offset);
+                response = super.feed(data, offset, scannedBytes);
+                if (StreamErrorsManager.getInstance().parserResponseErrors().contains(response)) {
+                    return response;
+                }
+                relayedFrom = offset + scannedBytes;
+            }
+            offset += scannedBytes;
+            if (scanner.isAtBoundary()) {
+                // Between stanzas, so it's safe to switch (once the stream is closed, the scanner checks the rest)
+                relaying = scanner.isRootClosed()
+                        || (!silenceRequested && !applicationProcessor.isProcessingMessageBodies());
+                scanner.setStanzaMetadataKept(!relaying);
+            }
+        }
+        relay(data, relayedFrom, length);
+        return response;
+    }
+
+    /**
+     * Sends the given range of relayed bytes (if any) as they are to the output consumer.
+     *
+     * @param data The array holding the bytes.
+     * @param from Index of the first byte to be sent.
+     * @param to   Index after the last byte to be sent.
+     */
+    private void relay(byte[] data, int from, int to) {
+        if (from < to) {
+            outputConsumer.consumeMessage(data, from, to - from);
+        }
     }
 
 
@@ -61,13 +182,19 @@ public class XMLInterpreter extends BaseXMLInterpreter {
         if (!parser.hasNext()) {
             return ParserResponse.EVERYTHING_NORMAL;
         }
-        StringBuilder readXML = new StringBuilder();
+        if (passthrough) {
+            return passThrough();
+        }
+        if (readXML.capacity() > MAX_RETAINED_BUILDER_CAPACITY) {
+            readXML = new StringBuilder();
+        }
+        readXML.setLength(0);
         while (parser.hasNext()) {
             status = parser.next();
             updateStoredBytes(status);
 
             switch (status) {
-                case AsyncXMLStreamReader.START_ELEMENT:
+                case XMLEngine.START_ELEMENT:
                     //Update status when starting a non-nested element
                     if (parser.getDepth() <= 2) {
                         isSilenced = silenceRequested;
@@ -82,7 +209,7 @@ public class XMLInterpreter extends BaseXMLInterpreter {
                     if (!(isInMessageTag && isSilenced)) {
                         readXML.append("<");
                         //Name (and namespace prefix if necessary)
-                        if (!parser.getName().getPrefix().isEmpty()) {
+                        if (hasPrefix()) {
                             appendEscapedCharacters(readXML,parser.getPrefix());
                             readXML.append(":");
                         }
@@ -125,23 +252,25 @@ public class XMLInterpreter extends BaseXMLInterpreter {
                     } else {
                         if (parser.getLocalName().equals("message")) {
                             //ownerHandler.notifyStanzaError(generateErrorMessage());
-                            ownerHandler.consumeMessage(generateErrorMessage().getBytes());
+                            ownerHandler.consumeMessage(generateErrorMessage());
                             MetricsManager.getInstance().addNumSilencedMessages(1); //TODO user producer
                         }
                     }
                     break;
-                case AsyncXMLStreamReader.CHARACTERS:
+                case XMLEngine.CHARACTERS:
                     //Only process content if NOT message tag or NOT silenced
                     if (!(isInMessageTag && isSilenced)) {
                         //Append l337ed or normal characters as appropriate
-                        applicationProcessor.processMessageBody(readXML, parser.getText().toCharArray(), isInBodyTag);
+                        // The parser's internal buffer is used (instead of getText()) in order not to copy the text
+                        applicationProcessor.processMessageBody(readXML, parser.getTextCharacters(),
+                                parser.getTextStart(), parser.getTextLength(), isInBodyTag);
                     }
                     break;
-                case AsyncXMLStreamReader.END_ELEMENT:
+                case XMLEngine.END_ELEMENT:
                     //Only process content if NOT message tag or NOT silenced
                     if (!(isInMessageTag && isSilenced)) {
                         readXML.append("</");
-                        if (!parser.getName().getPrefix().isEmpty()) {
+                        if (hasPrefix()) {
                             readXML.append(parser.getPrefix()).append(":");
                         }
                         readXML.append(parser.getLocalName());
@@ -155,50 +284,181 @@ public class XMLInterpreter extends BaseXMLInterpreter {
                         isInMessageTag = false;
                     }
                     break;
-                case AsyncXMLStreamReader.EVENT_INCOMPLETE:
-                    String processedXML = readXML.toString();
-                    byte[] bytes = processedXML.getBytes();
-                    outputConsumer.consumeMessage(bytes);
+                case XMLEngine.EVENT_INCOMPLETE:
+                    consumeReadXML();
                     return ParserResponse.EVENT_INCOMPLETE;
                 case -1:
                     logger.warn("XML interpreter {} entered error state (invalid XML)", this);
                     return ParserResponse.XML_ERROR;
             }
         }
-        byte[] bytes = readXML.toString().getBytes();
-        outputConsumer.consumeMessage(bytes);
+        consumeReadXML();
+        return ParserResponse.EVERYTHING_NORMAL;
+    }
+
+    /**
+     * Processes all fed data, forwarding it as it was received, except for l33ted bodies (which are rewritten),
+     * and silenced messages (which are discarded). Data is forwarded in as few ranges as possible
+     * (i.e. a range is only cut where an event is changed or discarded, or at the end of the fed data).
+     *
+     * @return The result of processing the fed data.
+     * @throws XMLStreamException If the parser fails.
+     */
+    private ParserResponse passThrough() throws XMLStreamException {
+        while (parser.hasNext()) {
+            status = parser.next();
+            if (status == XMLEngine.EVENT_INCOMPLETE) {
+                updateStoredBytes(status);
+                forwardRawInput();
+                return ParserResponse.EVENT_INCOMPLETE;
+            }
+            if (status == -1) {
+                logger.warn("XML interpreter {} entered error state (invalid XML)", this);
+                return ParserResponse.XML_ERROR;
+            }
+            long eventStartOffset = getEventStartOffset();
+            updateStoredBytes(status);
+            boolean discarded = isInMessageTag && isSilenced; // Events of silenced messages are discarded
+            switch (status) {
+                case XMLEngine.START_ELEMENT:
+                    //Update status when starting a non-nested element
+                    if (parser.getDepth() <= 2) {
+                        isSilenced = silenceRequested;
+                    }
+                    if (parser.getLocalName().equals("body")) {
+                        isInBodyTag = true;
+                    } else if (parser.getLocalName().equals("message")) {
+                        isInMessageTag = true;
+                    }
+                    discarded = isInMessageTag && isSilenced;
+                    if (discarded && parser.getLocalName().equals("message")) {
+                        ownerHandler.consumeMessage(generateErrorMessage());
+                        MetricsManager.getInstance().addNumSilencedMessages(1);
+                    }
+                    break;
+                case XMLEngine.CHARACTERS:
+                case XMLEngine.CDATA:
+                    if (!discarded && isInBodyTag && applicationProcessor.isProcessingMessageBodies()) {
+                        discardRawEvent(eventStartOffset);
+                        readXML.setLength(0);
+                        applicationProcessor.processMessageBody(readXML, parser.getTextCharacters(),
+                                parser.getTextStart(), parser.getTextLength(), isInBodyTag);
+                        consumeReadXML();
+                    }
+                    break;
+                case XMLEngine.END_ELEMENT:
+                    //Update status
+                    if (parser.getLocalName().equals("body")) {
+                        isInBodyTag = false;
+                    } else if (parser.getLocalName().equals("message")) {
+                        isInMessageTag = false;
+                    }
+                    break;
+            }
+            if (discarded) {
+                discardRawEvent(eventStartOffset);
+            }
+        }
+        forwardRawInput();
         return ParserResponse.EVERYTHING_NORMAL;
     }
 
+    /**
+     * Forwards the input that was not forwarded nor discarded yet, up to the end of the last complete event.
+     */
+    private void forwardRawInput() {
+        consumeRawInput(rawOutputOffset, getLastEventEndOffset());
+        rawOutputOffset = getLastEventEndOffset();
+    }
+
+    /**
+     * Discards the input of the last complete event (i.e. it's not forwarded),
+     * forwarding first the input that comes before it.
+     *
+     * @param eventStartOffset The offset (in the fed stream) in which the event starts.
+     */
+    private void discardRawEvent(long eventStartOffset) {
+        consumeRawInput(rawOutputOffset, eventStartOffset);
+        rawOutputOffset = getLastEventEndOffset();
+    }
+
+    @Override
+    protected boolean retainsRawInput() {
+        return passthrough;
+    }
+
+    /**
+     * Sends the processed XML to the output consumer (if there is any).
+     * The builder is given as is (the consumer encodes it in UTF-8), so no {@link String} is created.
+     */
+    private void consumeReadXML() {
+        if (readXML.length() > 0) {
+            outputConsumer.consumeMessage(readXML);
+        }
+    }
+
+    /**
+     * Says if the actual element has a namespace prefix.
+     * Note: The prefix is taken directly from the parser, instead of building a {@link javax.xml.namespace.QName}.
+     *
+     * @return {@code true} if the element has a prefix, or {@code false} otherwise.
+     */
+    private boolean hasPrefix() {
+        String prefix = parser.getPrefix();
+        return prefix != null && !prefix.isEmpty();
+    }
+
 
+    /**
+     * Generates the error sent back to the sender of the actual message, when it's discarded because it's silenced.
+     * The message's addresses and id are taken from the stanza's metadata (kept by the scanner when framing it),
+     * or from the parser if the message is nested in a stanza, or if the chunk being parsed was framed as a whole
+     * (i.e. the metadata might be of a later stanza).
+     *
+     * @return The error stanza.
+     */
     private String generateErrorMessage() {
-        StringBuilder silencedErrorBuilder = new StringBuilder();
-        silencedErrorBuilder.append("<message");
-        int attrCount = parser.getAttributeCount();
-        for (int i = 0; i < attrCount; i++) {
-            if (parser.getAttributePrefix(i).isEmpty()) {
-                if (parser.getAttributeLocalName(i).equals("to")) {
-                    silencedErrorBuilder.append(" from='");
-                    appendEscapedCharacters(silencedErrorBuilder,parser.getAttributeValue(i));
-                           silencedErrorBuilder.append("'");
-                }
-                if (parser.getAttributeLocalName(i).equals("from")) {
-                    silencedErrorBuilder.append(" to='");
-                    appendEscapedCharacters(silencedErrorBuilder,parser.getAttributeValue(i));
-                    silencedErrorBuilder.append("'");
-                }
-                if (parser.getAttributeLocalName(i).equals("id")) {
-                    silencedErrorBuilder.append(" id='");
-                    appendEscapedCharacters(silencedErrorBuilder,parser.getAttributeValue(i));
-                    silencedErrorBuilder.append("'");
+        String from = null;
+        String to = null;
+        String id = null;
+        StanzaMetadata stanza = scanner.getStanzaMetadata();
+        if (relay && parser.getDepth() == 2 && stanza.isComplete()) {
+            from = stanza.getFrom();
+            to = stanza.getTo();
+            id = stanza.getId();
+        } else {
+            int attrCount = parser.getAttributeCount();
+            for (int i = 0; i < attrCount; i++) {
+                if (parser.getAttributePrefix(i).isEmpty()) {
+                    String name = parser.getAttributeLocalName(i);
+                    if (name.equals("from")) {
+                        from = parser.getAttributeValue(i);
+                    } else if (name.equals("to")) {
+                        to = parser.getAttributeValue(i);
+                    } else if (name.equals("id")) {
+                        id = parser.getAttributeValue(i);
+                    }
                 }
             }
         }
+        StringBuilder silencedErrorBuilder = new StringBuilder();
+        silencedErrorBuilder.append("<message");
+        appendErrorAttribute(silencedErrorBuilder, "from", to); // The error goes back to the sender
+        appendErrorAttribute(silencedErrorBuilder, "to", from);
+        appendErrorAttribute(silencedErrorBuilder, "id", id);
         silencedErrorBuilder.append("><error type='wait'><policy-violation xmlns='urn:ietf:params:xml:ns:xmpp-stanzas'/></error></message>");
 
         return silencedErrorBuilder.toString();
     }
 
+    private static void appendErrorAttribute(StringBuilder stringBuilder, String name, String value) {
+        if (value != null) {
+            stringBuilder.append(' ').append(name).append("='");
+            appendEscapedCharacters(stringBuilder, value);
+            stringBuilder.append("'");
+        }
+    }
+
 
 
     /**
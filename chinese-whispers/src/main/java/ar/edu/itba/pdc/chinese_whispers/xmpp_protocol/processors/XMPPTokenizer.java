@@ -0,0 +1,1978 @@
+package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors;
+
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.XMLEngine;
+
+import javax.xml.stream.XMLStreamException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A non-blocking XML tokenizer that only accepts the subset of XML that XMPP allows (see RFC 6120, section 11.1):
+ * no DTDs, no processing instructions after the prolog, and no entities but the predefined ones
+ * (and character references). It's an alternative to Aalto (see {@link AaltoXMLEngine}),
+ * and it reports the same events Aalto reports for XMPP streams (e.g. text is reported up to the end of the fed data,
+ * the prolog's whitespace is skipped, and namespaces are checked).
+ * <p>
+ * Text, attribute values, comments and CDATA sections are scanned a word (i.e. eight bytes) at a time:
+ * each {@code long} is checked at once for the bytes that need attention (i.e. markup chars, the closing quote,
+ * control chars and non-ASCII bytes), and they are only decoded when requested (e.g. text passed through
+ * as it was received is never decoded). Names are taken from a small table, so no strings are created for those
+ * that repeat in a stream.
+ * <p>
+ * A token that is not complete at the end of the fed data is copied into an internal buffer, which is completed
+ * with the following data. Its end is searched incrementally, so each byte is checked once till the token
+ * is complete (it's only tokenized then).
+ * <p>
+ * Note: This class is not thread safe.
+ */
+/* package */ final class XMPPTokenizer implements XMLEngine {
+
+    /**
+     * Internal result saying that the token being read is not complete.
+     */
+    private static final int NEED_MORE = -2;
+    /**
+     * Internal result saying that bytes were consumed without generating an event (e.g. whitespace in the prolog).
+     */
+    private static final int NO_EVENT = -3;
+
+    /**
+     * Max length of an entity or character reference (including the ampersand and the semicolon).
+     */
+    private static final int MAX_ENTITY_LENGTH = 16;
+    /**
+     * Size of the names table (must be a power of two).
+     */
+    private static final int NAMES_TABLE_SIZE = 128;
+    // Initial capacities of the arrays that grow with the input (arrays that grow bigger are replaced when reset)
+    private static final int INITIAL_ELEMENTS_CAPACITY = 16;
+    private static final int INITIAL_BINDINGS_CAPACITY = 8;
+    private static final int INITIAL_ATTRIBUTES_CAPACITY = 8;
+    private static final int INITIAL_CHARS_CAPACITY = 64;
+    /**
+     * Max capacity of the pending token's array (and of the decoded chars' arrays) kept when reset.
+     */
+    private static final int MAX_RETAINED_CAPACITY = 1024;
+    /**
+     * The namespace bound to the {@code xml} prefix.
+     */
+    private static final String XML_NAMESPACE = "http://www.w3.org/XML/1998/namespace";
+    /**
+     * The chars that start a CDATA section.
+     */
+    private static final byte[] CDATA_START = "<![CDATA[".getBytes(StandardCharsets.US_ASCII);
+
+    // Constants used to check a word at once (each one holds the given byte in all its bytes)
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final long SPACES = ' ' * ONES;
+    private static final long LESS_THANS = '<' * ONES;
+    private static final long AMPERSANDS = '&' * ONES;
+    private static final long RIGHT_BRACKETS = ']' * ONES;
+    private static final long DASHES = '-' * ONES;
+    private static final long QUESTION_MARKS = '?' * ONES;
+
+    // Kinds of ASCII name chars
+    private static final byte NAME_START = 1;
+    private static final byte NAME_PART = 2;
+    /**
+     * Says which ASCII chars can start a name, and which ones can be part of it.
+     */
+    private static final byte[] NAME_CHARS = new byte[128];
+
+    static {
+        for (int c = 'a'; c <= 'z'; c++) {
+            NAME_CHARS[c] = NAME_START | NAME_PART;
+            NAME_CHARS[c - 'a' + 'A'] = NAME_START | NAME_PART;
+        }
+        for (int c = '0'; c <= '9'; c++) {
+            NAME_CHARS[c] = NAME_PART;
+        }
+        NAME_CHARS['_'] = NAME_START | NAME_PART;
+        NAME_CHARS[':'] = NAME_START | NAME_PART;
+        NAME_CHARS['-'] = NAME_PART;
+        NAME_CHARS['.'] = NAME_PART;
+    }
+
+    /**
+     * Modes in which bytes are decoded.
+     */
+    private enum DecodingMode {
+        /**
+         * Entities are replaced, and line breaks are normalized.
+         */
+        TEXT,
+        /**
+         * Line breaks are normalized (i.e. comments and CDATA sections).
+         */
+        RAW,
+        /**
+         * Entities are replaced, and whitespace chars are normalized to spaces.
+         */
+        ATTRIBUTE,
+    }
+
+    /**
+     * States of the search of the end of an incomplete token (see {@link #findTokenEnd(byte[], int, int)}).
+     */
+    private enum FinderState {
+        LESS_THAN,
+        TAG,
+        BANG,
+        BANG_DASH,
+        COMMENT,
+        CDATA,
+        PROCESSING_INSTRUCTION,
+        ENTITY,
+        MULTI_BYTE_CHAR,
+        CARRIAGE_RETURN,
+    }
+
+
+    // Fed data
+
+    /**
+     * The last fed array.
+     */
+    private byte[] input;
+    /**
+     * Word view of the {@link #input} array.
+     */
+    private ByteBuffer inputWords;
+    /**
+     * Index of the next byte of the {@link #input} array to be read.
+     */
+    private int inputPtr;
+    /**
+     * Index after the last fed byte of the {@link #input} array.
+     */
+    private int inputEnd;
+    /**
+     * Offset (in the fed stream) of the first byte of the {@link #input} array.
+     */
+    private long inputBase;
+    /**
+     * Amount of fed bytes.
+     */
+    private long amountOfFedBytes;
+
+    // Incomplete token
+
+    /**
+     * Holds the bytes of a token that was not complete at the end of the fed data.
+     */
+    private byte[] pending;
+    /**
+     * Word view of the {@link #pending} array.
+     */
+    private ByteBuffer pendingWords;
+    /**
+     * Amount of bytes in the {@link #pending} array.
+     */
+    private int pendingLength;
+    /**
+     * Offset (in the fed stream) of the first byte of the {@link #pending} array.
+     */
+    private long pendingBase;
+    /**
+     * Says if the token in the {@link #pending} array is complete.
+     */
+    private boolean pendingComplete;
+    /**
+     * State of the search of the pending token's end.
+     */
+    private FinderState finderState;
+    /**
+     * Counter used by the search of the pending token's end (its meaning depends on the state).
+     */
+    private int finderCount;
+    /**
+     * The quote that opened the attribute value in which the pending token's end search is (or 0 if none).
+     */
+    private byte finderQuote;
+
+    // Bytes being tokenized (either the input or the pending token)
+
+    private byte[] buf;
+    private ByteBuffer words;
+    private int ptr;
+    private int end;
+    private long base;
+
+    // Document state
+
+    private boolean documentStarted;
+    private String version;
+    private String encoding;
+    /**
+     * Amount of open elements.
+     */
+    private int depth;
+    private boolean rootClosed;
+    private String[] elementPrefixes;
+    private String[] elementLocalNames;
+    /**
+     * Index (in the bindings arrays) of the first namespace declared by each open element.
+     */
+    private int[] elementBindingsStart;
+    private String[] bindingPrefixes;
+    private String[] bindingURIs;
+    private int bindingsCount;
+    /**
+     * Amount of right brackets at the end of the last text event (to detect {@code "]]>"} across events).
+     */
+    private int rightBrackets;
+    /**
+     * Says if the last start tag was an empty element's one (i.e. its end tag event is reported next).
+     */
+    private boolean emptyElement;
+    /**
+     * Holds the error that made this tokenizer fail (if any).
+     */
+    private XMLStreamException failure;
+
+    // Actual event
+
+    private int eventType;
+    private int eventDepth;
+    private long eventStart;
+    private long eventEnd;
+    /**
+     * The array holding the actual event's bytes (i.e. from which text and attribute values are decoded).
+     */
+    private byte[] eventSource;
+    private String prefix;
+    private String localName;
+    private int namespacesStart;
+    private int namespacesEnd;
+    private int attributesCount;
+    private String[] attributePrefixes;
+    private String[] attributeLocalNames;
+    private String[] attributeURIs;
+    private String[] attributeValues;
+    // Raw attributes of the start tag being tokenized (namespace declarations included)
+    private int[] rawNamesStart;
+    private int[] rawNamesEnd;
+    private int[] rawNamesColon;
+    private int[] rawPrefixHashes;
+    private int[] rawLocalHashes;
+    private boolean[] rawNamesAscii;
+    private int[] valuesStart;
+    private int[] valuesEnd;
+    private DecodingMode textMode;
+    private int textFrom;
+    private int textTo;
+    private boolean textDecoded;
+    private char[] textChars;
+    private int textLength;
+    private char[] valueChars;
+    /**
+     * Index of the colon of the last scanned name (or -1 if it has none).
+     */
+    private int lastColon;
+    /**
+     * Hash of the prefix of the last scanned name (see {@link #tableString(int, int, int)}).
+     */
+    private int lastPrefixHash;
+    /**
+     * Hash of the local part of the last scanned name (see {@link #tableString(int, int, int)}).
+     */
+    private int lastLocalHash;
+    /**
+     * Says if the last scanned name only holds ASCII chars.
+     */
+    private boolean lastNameAscii;
+
+    /**
+     * Holds the names (and namespace URIs) already created, indexed by their hash.
+     */
+    private final String[] names;
+
+
+    /**
+     * Constructor.
+     *
+     * @param names The names table (see {@link #newNamesTable()}). It can be shared by tokenizers used by the same
+     *              thread, so names that repeat across streams are not created again.
+     */
+    /* package */ XMPPTokenizer(String[] names) {
+        if (names == null || names.length != NAMES_TABLE_SIZE) {
+            throw new IllegalArgumentException();
+        }
+        this.names = names;
+        reset(); // Sets the initial state
+    }
+
+    /**
+     * Creates an empty names table, to be given to tokenizers.
+     *
+     * @return A new names table.
+     */
+    /* package */ static String[] newNamesTable() {
+        return new String[NAMES_TABLE_SIZE];
+    }
+
+
+    @Override
+    public void feedInput(byte[] data, int offset, int length) throws XMLStreamException {
+        if (data == null || offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IllegalArgumentException();
+        }
+        if (failure != null) {
+            throw new XMLStreamException(failure.getMessage());
+        }
+        if (inputPtr < inputEnd) {
+            throw new XMLStreamException("Still have " + (inputEnd - inputPtr) + " unread bytes");
+        }
+        if (data != input) {
+            input = data;
+            inputWords = ByteBuffer.wrap(data).order(ByteOrder.nativeOrder());
+        }
+        inputPtr = offset;
+        inputEnd = offset + length;
+        inputBase = amountOfFedBytes - offset;
+        amountOfFedBytes += length;
+    }
+
+    @Override
+    public boolean hasNext() throws XMLStreamException {
+        return true; // The end of the document is never reached, as the end of the input is never signaled
+    }
+
+    @Override
+    public int next() throws XMLStreamException {
+        if (failure != null) {
+            throw new XMLStreamException(failure.getMessage());
+        }
+        if (eventType == END_ELEMENT && !emptyElement) {
+            // The element is closed once its end tag event was read
+            depth--;
+            bindingsCount = elementBindingsStart[depth];
+            rootClosed = depth == 0;
+        }
+        attributesCount = 0;
+        textMode = null;
+        textDecoded = false;
+        try {
+            eventType = nextToken();
+        } catch (XMLStreamException e) {
+            failure = e;
+            throw e;
+        }
+        if (eventType == EVENT_INCOMPLETE) {
+            eventDepth = depth;
+        } else if (eventType != CHARACTERS) {
+            rightBrackets = 0;
+        }
+        return eventType;
+    }
+
+    @Override
+    public int getDepth() {
+        return eventDepth;
+    }
+
+    @Override
+    public String getVersion() {
+        return version;
+    }
+
+    @Override
+    public String getEncoding() {
+        return encoding;
+    }
+
+    @Override
+    public String getLocalName() {
+        return localName;
+    }
+
+    @Override
+    public String getPrefix() {
+        return prefix;
+    }
+
+    @Override
+    public int getNamespaceCount() {
+        return eventType == START_ELEMENT || eventType == END_ELEMENT ? namespacesEnd - namespacesStart : 0;
+    }
+
+    @Override
+    public String getNamespacePrefix(int index) {
+        return bindingPrefixes[bindingIndex(index)];
+    }
+
+    @Override
+    public String getNamespaceURI(int index) {
+        return bindingURIs[bindingIndex(index)];
+    }
+
+    @Override
+    public int getAttributeCount() {
+        return attributesCount;
+    }
+
+    @Override
+    public String getAttributeLocalName(int index) {
+        return attributeLocalNames[checkIndex(index, attributesCount)];
+    }
+
+    @Override
+    public String getAttributePrefix(int index) {
+        return attributePrefixes[checkIndex(index, attributesCount)];
+    }
+
+    @Override
+    public String getAttributeValue(int index) {
+        checkIndex(index, attributesCount);
+        if (attributeValues[index] == null) {
+            attributeValues[index] = decodeString(eventSource, valuesStart[index], valuesEnd[index]);
+        }
+        return attributeValues[index];
+    }
+
+    @Override
+    public String getText() {
+        return new String(getTextCharacters(), 0, getTextLength());
+    }
+
+    @Override
+    public char[] getTextCharacters() {
+        if (!textDecoded) {
+            decodeText();
+        }
+        return textChars;
+    }
+
+    @Override
+    public int getTextStart() {
+        return 0;
+    }
+
+    @Override
+    public int getTextLength() {
+        if (!textDecoded) {
+            decodeText();
+        }
+        return textLength;
+    }
+
+    @Override
+    public long getStartingByteOffset() {
+        return eventStart;
+    }
+
+    @Override
+    public long getEndingByteOffset() {
+        return eventEnd;
+    }
+
+    @Override
+    public boolean reset() {
+        input = null;
+        inputWords = null;
+        inputPtr = 0;
+        inputEnd = 0;
+        inputBase = 0;
+        amountOfFedBytes = 0;
+        if (pending != null && pending.length > MAX_RETAINED_CAPACITY) {
+            pending = null;
+            pendingWords = null;
+        }
+        pendingLength = 0;
+        pendingBase = 0;
+        pendingComplete = false;
+        finderState = null;
+        finderCount = 0;
+        finderQuote = 0;
+        buf = null;
+        words = null;
+        ptr = 0;
+        end = 0;
+        base = 0;
+        documentStarted = false;
+        version = null;
+        encoding = "UTF-8";
+        depth = 0;
+        rootClosed = false;
+        if (elementPrefixes == null || elementPrefixes.length > INITIAL_ELEMENTS_CAPACITY) {
+            elementPrefixes = new String[INITIAL_ELEMENTS_CAPACITY];
+            elementLocalNames = new String[INITIAL_ELEMENTS_CAPACITY];
+            elementBindingsStart = new int[INITIAL_ELEMENTS_CAPACITY];
+        } else {
+            Arrays.fill(elementPrefixes, null);
+            Arrays.fill(elementLocalNames, null);
+        }
+        if (bindingPrefixes == null || bindingPrefixes.length > INITIAL_BINDINGS_CAPACITY) {
+            bindingPrefixes = new String[INITIAL_BINDINGS_CAPACITY];
+            bindingURIs = new String[INITIAL_BINDINGS_CAPACITY];
+        } else {
+            Arrays.fill(bindingPrefixes, null);
+            Arrays.fill(bindingURIs, null);
+        }
+        bindingsCount = 0;
+        rightBrackets = 0;
+        emptyElement = false;
+        failure = null;
+        eventType = EVENT_INCOMPLETE;
+        eventDepth = 0;
+        eventStart = 0;
+        eventEnd = 0;
+        eventSource = null;
+        prefix = null;
+        localName = null;
+        namespacesStart = 0;
+        namespacesEnd = 0;
+        attributesCount = 0;
+        if (attributePrefixes == null || attributePrefixes.length > INITIAL_ATTRIBUTES_CAPACITY) {
+            attributePrefixes = new String[INITIAL_ATTRIBUTES_CAPACITY];
+            attributeLocalNames = new String[INITIAL_ATTRIBUTES_CAPACITY];
+            attributeURIs = new String[INITIAL_ATTRIBUTES_CAPACITY];
+            attributeValues = new String[INITIAL_ATTRIBUTES_CAPACITY];
+        } else {
+            Arrays.fill(attributePrefixes, null);
+            Arrays.fill(attributeLocalNames, null);
+            Arrays.fill(attributeURIs, null);
+            Arrays.fill(attributeValues, null);
+        }
+        if (rawNamesStart == null || rawNamesStart.length > INITIAL_ATTRIBUTES_CAPACITY) {
+            rawNamesStart = new int[INITIAL_ATTRIBUTES_CAPACITY];
+            rawNamesEnd = new int[INITIAL_ATTRIBUTES_CAPACITY];
+            rawNamesColon = new int[INITIAL_ATTRIBUTES_CAPACITY];
+            rawPrefixHashes = new int[INITIAL_ATTRIBUTES_CAPACITY];
+            rawLocalHashes = new int[INITIAL_ATTRIBUTES_CAPACITY];
+            rawNamesAscii = new boolean[INITIAL_ATTRIBUTES_CAPACITY];
+            valuesStart = new int[INITIAL_ATTRIBUTES_CAPACITY];
+            valuesEnd = new int[INITIAL_ATTRIBUTES_CAPACITY];
+        }
+        textMode = null;
+        textFrom = 0;
+        textTo = 0;
+        textDecoded = false;
+        textLength = 0;
+        if (textChars == null || textChars.length > MAX_RETAINED_CAPACITY) {
+            textChars = new char[INITIAL_CHARS_CAPACITY];
+        }
+        if (valueChars == null || valueChars.length > MAX_RETAINED_CAPACITY) {
+            valueChars = new char[INITIAL_CHARS_CAPACITY];
+        }
+        lastColon = -1;
+        lastPrefixHash = 0;
+        lastLocalHash = 0;
+        lastNameAscii = false;
+        return true;
+    }
+
+
+    /**
+     * Reads the next token that generates an event, completing the pending token first (if any).
+     *
+     * @return The event's type, or {@link #EVENT_INCOMPLETE} if all fed bytes were consumed.
+     * @throws XMLStreamException If the fed data is not well-formed (or not allowed in XMPP).
+     */
+    private int nextToken() throws XMLStreamException {
+        if (emptyElement) {
+            // Names, namespaces and offsets are those of the start tag
+            emptyElement = false;
+            return END_ELEMENT;
+        }
+        while (true) {
+            int type;
+            if (pendingLength > 0) {
+                if (!documentStarted && pending[0] == '<') {
+                    // The document starts as soon as it's known that it doesn't start with a declaration
+                    byte second = pendingLength > 1 ? pending[1] : inputPtr < inputEnd ? input[inputPtr] : (byte) '?';
+                    if (second != '?') {
+                        documentStarted = true;
+                        eventDepth = 0;
+                        eventStart = pendingBase;
+                        eventEnd = pendingBase;
+                        return START_DOCUMENT;
+                    }
+                }
+                if (!completePendingToken()) {
+                    return EVENT_INCOMPLETE;
+                }
+                setSource(pending, pendingWords, 0, pendingLength, pendingBase);
+                type = parseToken();
+                if (ptr == end) {
+                    pendingLength = 0;
+                    pendingComplete = false;
+                } else if (ptr != 0 || type != START_DOCUMENT) {
+                    // The token is complete, so it must be consumed at once (except for the document's start)
+                    throw new XMLStreamException("Malformed token at byte " + pendingBase);
+                }
+            } else {
+                if (inputPtr == inputEnd) {
+                    return EVENT_INCOMPLETE;
+                }
+                setSource(input, inputWords, inputPtr, inputEnd, inputBase);
+                int tokenStart = ptr;
+                type = parseToken();
+                if (type == NEED_MORE) {
+                    savePendingToken(tokenStart);
+                    return EVENT_INCOMPLETE;
+                }
+                inputPtr = ptr;
+            }
+            if (type != NO_EVENT) {
+                return type;
+            }
+        }
+    }
+
+    /**
+     * Sets the bytes to be tokenized.
+     */
+    private void setSource(byte[] buf, ByteBuffer words, int ptr, int end, long base) {
+        this.buf = buf;
+        this.words = words;
+        this.ptr = ptr;
+        this.end = end;
+        this.base = base;
+    }
+
+    /**
+     * Tokenizes the token that starts at {@link #ptr}. If it's complete, {@link #ptr} is moved after it.
+     *
+     * @return The type of the generated event, {@link #NEED_MORE} if the token is not complete,
+     * or {@link #NO_EVENT} if bytes were consumed without generating an event.
+     * @throws XMLStreamException If the token is not well-formed.
+     */
+    private int parseToken() throws XMLStreamException {
+        if (!documentStarted) {
+            return parseDocumentStart();
+        }
+        byte b = buf[ptr];
+        if (b == '<') {
+            if (ptr + 1 == end) {
+                return NEED_MORE;
+            }
+            switch (buf[ptr + 1]) {
+                case '/':
+                    return parseEndTag();
+                case '!':
+                    return parseBang();
+                case '?':
+                    return parseProcessingInstruction();
+                default:
+                    return parseStartTag();
+            }
+        }
+        if (depth == 0) {
+            // Only whitespace is allowed outside the root element (and it's not reported)
+            int p = skipWhitespace(ptr, end);
+            if (p == ptr) {
+                throw error("Unexpected character in " + (rootClosed ? "epilog" : "prolog"), p);
+            }
+            ptr = p;
+            return NO_EVENT;
+        }
+        return parseText();
+    }
+
+    /**
+     * Starts the document, reading the byte order mark and the XML declaration (if any).
+     */
+    private int parseDocumentStart() throws XMLStreamException {
+        int p = ptr;
+        if (buf[p] == (byte) 0xEF) {
+            // Byte order mark
+            if (end - p < 3) {
+                return NEED_MORE;
+            }
+            if (buf[p + 1] != (byte) 0xBB || buf[p + 2] != (byte) 0xBF) {
+                throw error("Invalid byte order mark", p);
+            }
+            ptr = p + 3;
+            return NO_EVENT;
+        }
+        eventDepth = 0;
+        if (buf[p] == '<') {
+            if (p + 1 == end) {
+                return NEED_MORE;
+            }
+            if (buf[p + 1] == '?') {
+                int tokenEnd = skipProcessingInstruction(p + 2);
+                if (tokenEnd < 0) {
+                    return NEED_MORE;
+                }
+                if (tokenEnd - p >= 7 && (buf[p + 2] | 0x20) == 'x' && (buf[p + 3] | 0x20) == 'm'
+                        && (buf[p + 4] | 0x20) == 'l' && (isWhitespace(buf[p + 5]) || buf[p + 5] == '?')) {
+                    if (buf[p + 2] != 'x' || buf[p + 3] != 'm' || buf[p + 4] != 'l') {
+                        throw error("Illegal processing instruction target: 'xml' is reserved", p);
+                    }
+                    parseDeclaration(p + 5, tokenEnd - 2);
+                    documentStarted = true;
+                    setEvent(p, tokenEnd);
+                    ptr = tokenEnd;
+                    return START_DOCUMENT;
+                }
+            }
+        }
+        // No declaration (nothing is consumed)
+        documentStarted = true;
+        setEvent(p, p);
+        return START_DOCUMENT;
+    }
+
+    /**
+     * Reads the XML declaration's pseudo-attributes (i.e. version, encoding and standalone, in that order).
+     *
+     * @param from Index right after {@code "<?xml"}.
+     * @param to   Index of the declaration's {@code "?>"}.
+     */
+    private void parseDeclaration(int from, int to) throws XMLStreamException {
+        int p = from;
+        int field = 0; // The next pseudo-attribute that can be read (version, encoding or standalone)
+        while (true) {
+            int nameStart = skipWhitespace(p, to);
+            if (nameStart == to) {
+                break;
+            }
+            if (nameStart == p) {
+                throw error("Expected whitespace in XML declaration", p);
+            }
+            int nameEnd = nameStart;
+            while (nameEnd < to && buf[nameEnd] >= 'a' && buf[nameEnd] <= 'z') {
+                nameEnd++;
+            }
+            p = skipWhitespace(nameEnd, to);
+            if (p == to || buf[p] != '=') {
+                throw error("Expected '=' in XML declaration", p);
+            }
+            p = skipWhitespace(p + 1, to);
+            if (p == to || (buf[p] != '\'' && buf[p] != '"')) {
+                throw error("Expected a quote in XML declaration", p);
+            }
+            int valueEnd = p + 1;
+            while (valueEnd < to && buf[valueEnd] != buf[p]) {
+                valueEnd++;
+            }
+            if (valueEnd == to) {
+                throw error("Unclosed value in XML declaration", p);
+            }
+            String name = new String(buf, nameStart, nameEnd - nameStart, StandardCharsets.US_ASCII);
+            String value = new String(buf, p + 1, valueEnd - p - 1, StandardCharsets.US_ASCII);
+            if (field == 0) {
+                if (!name.equals("version")) {
+                    throw error("Expected 'version' in XML declaration", nameStart);
+                }
+                if (value.length() < 3 || !value.startsWith("1.") || !isDigits(value, 2)) {
+                    throw error("Unsupported XML version '" + value + "'", p);
+                }
+                version = value;
+                field = 1;
+            } else if (field == 1 && name.equals("encoding")) {
+                if (value.equalsIgnoreCase("UTF-8") || value.equalsIgnoreCase("UTF8")) {
+                    encoding = "UTF-8";
+                } else if (value.equalsIgnoreCase("US-ASCII") || value.equalsIgnoreCase("ASCII")) {
+                    encoding = "US-ASCII";
+                } else {
+                    throw error("Unsupported encoding '" + value + "': only UTF-8 and US-ASCII are supported", p);
+                }
+                field = 2;
+            } else if (field <= 2 && name.equals("standalone")) {
+                if (!value.equals("yes") && !value.equals("no")) {
+                    throw error("Invalid standalone value '" + value + "'", p);
+                }
+                field = 3;
+            } else {
+                throw error("Unexpected keyword '" + name + "' in XML declaration", nameStart);
+            }
+            p = valueEnd + 1;
+        }
+        if (field == 0) {
+            throw error("Missing version in XML declaration", to);
+        }
+    }
+
+    /**
+     * Reads a start tag.
+     */
+    private int parseStartTag() throws XMLStreamException {
+        if (rootClosed) {
+            throw error("Only one root element is allowed", ptr);
+        }
+        int nameStart = ptr + 1;
+        int nameEnd = scanName(nameStart);
+        if (nameEnd < 0) {
+            return NEED_MORE;
+        }
+        int nameColon = lastColon;
+        int namePrefixHash = lastPrefixHash;
+        int nameLocalHash = lastLocalHash;
+        boolean nameAscii = lastNameAscii;
+        int rawCount = 0;
+        boolean empty = false;
+        int p = nameEnd;
+        while (true) {
+            if (p == end) {
+                return NEED_MORE;
+            }
+            byte b = buf[p];
+            if (b == '>') {
+                p++;
+                break;
+            }
+            if (b == '/') {
+                if (p + 1 == end) {
+                    return NEED_MORE;
+                }
+                if (buf[p + 1] != '>') {
+                    throw error("Expected '>' after '/'", p + 1);
+                }
+                p += 2;
+                empty = true;
+                break;
+            }
+            if (!isWhitespace(b)) {
+                throw error("Expected whitespace, '>' or '/>'", p);
+            }
+            p = skipWhitespace(p, end);
+            if (p == end) {
+                return NEED_MORE;
+            }
+            if (buf[p] == '>' || buf[p] == '/') {
+                continue;
+            }
+            // An attribute
+            int attributeNameEnd = scanName(p);
+            if (attributeNameEnd < 0) {
+                return NEED_MORE;
+            }
+            int attributeColon = lastColon;
+            int attributePrefixHash = lastPrefixHash;
+            int attributeLocalHash = lastLocalHash;
+            boolean attributeAscii = lastNameAscii;
+            int q = skipWhitespace(attributeNameEnd, end);
+            if (q == end) {
+                return NEED_MORE;
+            }
+            if (buf[q] != '=') {
+                throw error("Expected '='", q);
+            }
+            q = skipWhitespace(q + 1, end);
+            if (q == end) {
+                return NEED_MORE;
+            }
+            byte quote = buf[q];
+            if (quote != '\'' && quote != '"') {
+                throw error("Expected a quote", q);
+            }
+            int valueEnd = scanAttributeValue(q + 1, quote);
+            if (valueEnd < 0) {
+                return NEED_MORE;
+            }
+            ensureRawAttributesCapacity(rawCount + 1);
+            rawNamesStart[rawCount] = p;
+            rawNamesEnd[rawCount] = attributeNameEnd;
+            rawNamesColon[rawCount] = attributeColon;
+            rawPrefixHashes[rawCount] = attributePrefixHash;
+            rawLocalHashes[rawCount] = attributeLocalHash;
+            rawNamesAscii[rawCount] = attributeAscii;
+            valuesStart[rawCount] = q + 1;
+            valuesEnd[rawCount] = valueEnd;
+            rawCount++;
+            p = valueEnd + 1;
+        }
+        // The tag is complete
+        String elementPrefix = nameColon < 0 ? "" : name(nameStart, nameColon, namePrefixHash, nameAscii);
+        String elementLocalName = name(nameColon < 0 ? nameStart : nameColon + 1, nameEnd, nameLocalHash, nameAscii);
+        int bindingsStart = bindingsCount;
+        int bindingsEnd = bindingsStart;
+        int count = 0;
+        for (int i = 0; i < rawCount; i++) {
+            int start = rawNamesStart[i];
+            int colon = rawNamesColon[i];
+            boolean defaultDeclaration = colon < 0 && isXmlns(start, rawNamesEnd[i]);
+            if (defaultDeclaration || (colon >= 0 && isXmlns(start, colon))) {
+                String declaredPrefix = defaultDeclaration ? ""
+                        : name(colon + 1, rawNamesEnd[i], rawLocalHashes[i], rawNamesAscii[i]);
+                String uri = namespaceURI(valuesStart[i], valuesEnd[i]);
+                checkDeclaration(declaredPrefix, uri, bindingsStart, bindingsEnd, start);
+                ensureBindingsCapacity(bindingsEnd + 1);
+                bindingPrefixes[bindingsEnd] = declaredPrefix;
+                bindingURIs[bindingsEnd] = uri;
+                bindingsEnd++;
+                continue;
+            }
+            // Attributes are compacted (namespace declarations are not reported as attributes)
+            ensureAttributesCapacity(count + 1);
+            attributePrefixes[count] = colon < 0 ? "" : name(start, colon, rawPrefixHashes[i], rawNamesAscii[i]);
+            attributeLocalNames[count] = name(colon < 0 ? start : colon + 1, rawNamesEnd[i], rawLocalHashes[i],
+                    rawNamesAscii[i]);
+            attributeValues[count] = null;
+            valuesStart[count] = valuesStart[i];
+            valuesEnd[count] = valuesEnd[i];
+            count++;
+        }
+        if (!elementPrefix.isEmpty() && resolve(elementPrefix, bindingsEnd) == null) {
+            throw error("Unbound namespace prefix '" + elementPrefix + "'", nameStart);
+        }
+        for (int i = 0; i < count; i++) {
+            String attributePrefix = attributePrefixes[i];
+            String uri = null;
+            if (!attributePrefix.isEmpty()) {
+                uri = resolve(attributePrefix, bindingsEnd);
+                if (uri == null) {
+                    throw error("Unbound namespace prefix '" + attributePrefix + "'", nameStart);
+                }
+            }
+            attributeURIs[i] = uri;
+            for (int j = 0; j < i; j++) {
+                if (attributeLocalNames[j].equals(attributeLocalNames[i])
+                        && (uri == null ? attributeURIs[j] == null : uri.equals(attributeURIs[j]))) {
+                    throw error("Duplicate attribute '" + attributeLocalNames[i] + "'", nameStart);
+                }
+            }
+        }
+        // The element is opened
+        bindingsCount = bindingsEnd;
+        ensureElementsCapacity(depth + 1);
+        elementPrefixes[depth] = elementPrefix;
+        elementLocalNames[depth] = elementLocalName;
+        elementBindingsStart[depth] = bindingsStart;
+        depth++;
+
+        prefix = elementPrefix;
+        localName = elementLocalName;
+        namespacesStart = bindingsStart;
+        namespacesEnd = bindingsEnd;
+        attributesCount = count;
+        eventDepth = depth;
+        emptyElement = empty;
+        setEvent(ptr, p);
+        ptr = p;
+        return START_ELEMENT;
+    }
+
+    /**
+     * Reads an end tag.
+     */
+    private int parseEndTag() throws XMLStreamException {
+        if (depth == 0) {
+            throw error("Unexpected end tag", ptr);
+        }
+        int nameStart = ptr + 2;
+        int nameEnd = scanName(nameStart);
+        if (nameEnd < 0) {
+            return NEED_MORE;
+        }
+        int colon = lastColon;
+        int p = skipWhitespace(nameEnd, end);
+        if (p == end) {
+            return NEED_MORE;
+        }
+        if (buf[p] != '>') {
+            throw error("Expected '>'", p);
+        }
+        String expectedPrefix = elementPrefixes[depth - 1];
+        String expectedLocalName = elementLocalNames[depth - 1];
+        if (!(colon < 0 ? expectedPrefix.isEmpty() : sameName(expectedPrefix, nameStart, colon))
+                || !sameName(expectedLocalName, colon < 0 ? nameStart : colon + 1, nameEnd)) {
+            throw error("Unexpected end tag: expected </"
+                    + (expectedPrefix.isEmpty() ? "" : expectedPrefix + ":") + expectedLocalName + ">", ptr);
+        }
+        prefix = expectedPrefix;
+        localName = expectedLocalName;
+        namespacesStart = elementBindingsStart[depth - 1];
+        namespacesEnd = bindingsCount;
+        eventDepth = depth;
+        setEvent(ptr, p + 1);
+        ptr = p + 1;
+        return END_ELEMENT;
+    }
+
+    /**
+     * Reads a token that starts with {@code "<!"} (i.e. a comment or a CDATA section, as DTDs are not allowed).
+     */
+    private int parseBang() throws XMLStreamException {
+        int p = ptr;
+        if (p + 2 == end) {
+            return NEED_MORE;
+        }
+        if (buf[p + 2] == '-') {
+            if (p + 3 == end) {
+                return NEED_MORE;
+            }
+            if (buf[p + 3] != '-') {
+                throw error("Invalid comment start", p);
+            }
+            return parseComment(p + 4);
+        }
+        if (buf[p + 2] != '[') {
+            throw error("DTDs are not allowed", p);
+        }
+        for (int i = 3; i < CDATA_START.length; i++) {
+            if (p + i == end) {
+                return NEED_MORE;
+            }
+            if (buf[p + i] != CDATA_START[i]) {
+                throw error("Invalid CDATA section start", p);
+            }
+        }
+        if (depth == 0) {
+            throw error("CDATA sections are not allowed outside the root element", p);
+        }
+        return parseCData(p + CDATA_START.length);
+    }
+
+    /**
+     * Reads a comment.
+     *
+     * @param from Index right after {@code "<!--"}.
+     */
+    private int parseComment(int from) throws XMLStreamException {
+        int p = from;
+        while (true) {
+            p = skipPlain(p, DASHES);
+            if (p == end) {
+                return NEED_MORE;
+            }
+            if (buf[p] == '-') {
+                if (p + 1 == end) {
+                    return NEED_MORE;
+                }
+                if (buf[p + 1] != '-') {
+                    p++;
+                    continue;
+                }
+                if (p + 2 == end) {
+                    return NEED_MORE;
+                }
+                if (buf[p + 2] != '>') {
+                    throw error("'--' is not allowed in comments", p);
+                }
+                setText(DecodingMode.RAW, from, p);
+                eventDepth = depth;
+                setEvent(ptr, p + 3);
+                ptr = p + 3;
+                return COMMENT;
+            }
+            p = validateChar(p);
+            if (p < 0) {
+                return NEED_MORE;
+            }
+        }
+    }
+
+    /**
+     * Reads a CDATA section.
+     *
+     * @param from Index right after {@code "<![CDATA["}.
+     */
+    private int parseCData(int from) throws XMLStreamException {
+        int p = from;
+        while (true) {
+            p = skipPlain(p, RIGHT_BRACKETS);
+            if (p == end) {
+                return NEED_MORE;
+            }
+            if (buf[p] == ']') {
+                if (end - p < 3) {
+                    return NEED_MORE;
+                }
+                if (buf[p + 1] != ']' || buf[p + 2] != '>') {
+                    p++;
+                    continue;
+                }
+                setText(DecodingMode.RAW, from, p);
+                eventDepth = depth;
+                setEvent(ptr, p + 3);
+                ptr = p + 3;
+                return CDATA;
+            }
+            p = validateChar(p);
+            if (p < 0) {
+                return NEED_MORE;
+            }
+        }
+    }
+
+    /**
+     * Reads a processing instruction (only allowed in the prolog).
+     */
+    private int parseProcessingInstruction() throws XMLStreamException {
+        if (depth > 0 || rootClosed) {
+            throw error("Processing instructions are not allowed after the prolog", ptr);
+        }
+        int tokenEnd = skipProcessingInstruction(ptr + 2);
+        if (tokenEnd < 0) {
+            return NEED_MORE;
+        }
+        int targetEnd = scanName(ptr + 2);
+        if (targetEnd < 0 || targetEnd > tokenEnd - 2) {
+            throw error("Invalid processing instruction target", ptr);
+        }
+        if (targetEnd - ptr - 2 == 3 && (buf[ptr + 2] | 0x20) == 'x' && (buf[ptr + 3] | 0x20) == 'm'
+                && (buf[ptr + 4] | 0x20) == 'l') {
+            throw error("Illegal processing instruction target: 'xml' is reserved", ptr);
+        }
+        if (targetEnd < tokenEnd - 2 && !isWhitespace(buf[targetEnd])) {
+            throw error("Expected whitespace after processing instruction target", targetEnd);
+        }
+        eventDepth = 0;
+        setEvent(ptr, tokenEnd);
+        ptr = tokenEnd;
+        return PROCESSING_INSTRUCTION;
+    }
+
+    /**
+     * Finds the end of a processing instruction (validating its chars).
+     *
+     * @param from Index right after {@code "<?"}.
+     * @return The index after the closing {@code "?>"}, or -1 if it's not complete.
+     */
+    private int skipProcessingInstruction(int from) throws XMLStreamException {
+        int p = from;
+        while (true) {
+            p = skipPlain(p, QUESTION_MARKS);
+            if (p == end) {
+                return -1;
+            }
+            if (buf[p] == '?') {
+                if (p + 1 == end) {
+                    return -1;
+                }
+                if (buf[p + 1] == '>') {
+                    return p + 2;
+                }
+                p++;
+                continue;
+            }
+            p = validateChar(p);
+            if (p < 0) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Reads text, till the next markup or the end of the bytes being tokenized.
+     */
+    private int parseText() throws XMLStreamException {
+        int start = ptr;
+        int p = start;
+        if (rightBrackets >= 2 && buf[p] == '>') {
+            throw error("']]>' is not allowed in text", p);
+        }
+        while (true) {
+            int q = skipText(p);
+            if (q != p) {
+                rightBrackets = 0;
+                p = q;
+            }
+            if (p == end) {
+                break;
+            }
+            byte b = buf[p];
+            if (b == '<') {
+                break;
+            }
+            if (b == ']') {
+                rightBrackets++;
+                p++;
+                if (p < end && buf[p] == '>' && rightBrackets >= 2) {
+                    throw error("']]>' is not allowed in text", p);
+                }
+                continue;
+            }
+            q = b == '&' ? validateEntity(p) : validateChar(p);
+            if (q < 0) {
+                break; // Incomplete entity or char (the text before it is reported)
+            }
+            rightBrackets = 0;
+            p = q;
+        }
+        if (p == start) {
+            return NEED_MORE;
+        }
+        setText(DecodingMode.TEXT, start, p);
+        eventDepth = depth;
+        setEvent(start, p);
+        ptr = p;
+        return CHARACTERS;
+    }
+
+    /**
+     * Scans an attribute value (validating its chars and entities).
+     *
+     * @param from  Index of the value's first byte.
+     * @param quote The quote that closes the value.
+     * @return The index of the closing quote, or -1 if the value is not complete.
+     */
+    private int scanAttributeValue(int from, byte quote) throws XMLStreamException {
+        long quotes = (quote & 0xFF) * ONES;
+        int p = from;
+        while (true) {
+            // Word at a time, while there are no quotes, ampersands, less than signs, control chars nor non-ASCII bytes
+            p = skipValue(p, quote, quotes);
+            if (p == end) {
+                return -1;
+            }
+            byte b = buf[p];
+            if (b == quote) {
+                return p;
+            }
+            if (b == '<') {
+                throw error("'<' is not allowed in attribute values", p);
+            }
+            p = b == '&' ? validateEntity(p) : validateChar(p);
+            if (p < 0) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Skips attribute value bytes that need no attention (i.e. ASCII chars that are not the closing quote,
+     * ampersands, less than signs nor control chars).
+     *
+     * @param from   Index of the first byte to be checked.
+     * @param quote  The quote that closes the value.
+     * @param quotes A word holding the quote in all its bytes.
+     * @return The index of the first byte that needs attention (or the end of the bytes being tokenized).
+     */
+    private int skipValue(int from, byte quote, long quotes) {
+        byte[] data = buf;
+        ByteBuffer view = words;
+        int limit = end;
+        int p = from;
+        while (p + 8 <= limit) {
+            long word = view.getLong(p);
+            if (((matches(word, quotes) | matches(word, AMPERSANDS) | matches(word, LESS_THANS)
+                    | belowSpace(word) | word) & HIGH_BITS) != 0) {
+                break;
+            }
+            p += 8;
+        }
+        while (p < limit) {
+            byte b = data[p];
+            if (b < ' ' || b == quote || b == '&' || b == '<') {
+                break;
+            }
+            p++;
+        }
+        return p;
+    }
+
+    /**
+     * Skips text bytes that need no attention (i.e. ASCII chars that are not markup, control chars nor brackets).
+     *
+     * @param from Index of the first byte to be checked.
+     * @return The index of the first byte that needs attention (or the end of the bytes being tokenized).
+     */
+    private int skipText(int from) {
+        byte[] data = buf;
+        ByteBuffer view = words;
+        int limit = end;
+        int p = from;
+        while (p + 8 <= limit) {
+            long word = view.getLong(p);
+            if (((matches(word, LESS_THANS) | matches(word, AMPERSANDS) | matches(word, RIGHT_BRACKETS)
+                    | belowSpace(word) | word) & HIGH_BITS) != 0) {
+                break;
+            }
+            p += 8;
+        }
+        while (p < limit) {
+            byte b = data[p];
+            if (b < ' ' || b == '<' || b == '&' || b == ']') {
+                break;
+            }
+            p++;
+        }
+        return p;
+    }
+
+    /**
+     * Skips bytes that are plain ASCII chars (i.e. not control chars), other than the one in the given pattern.
+     *
+     * @param from    Index of the first byte to be checked.
+     * @param pattern A word holding the byte to be found in all its bytes.
+     * @return The index of the first byte that needs attention (or the end of the bytes being tokenized).
+     */
+    private int skipPlain(int from, long pattern) {
+        byte special = (byte) pattern;
+        byte[] data = buf;
+        ByteBuffer view = words;
+        int limit = end;
+        int p = from;
+        while (p + 8 <= limit) {
+            long word = view.getLong(p);
+            if (((matches(word, pattern) | belowSpace(word) | word) & HIGH_BITS) != 0) {
+                break;
+            }
+            p += 8;
+        }
+        while (p < limit && data[p] >= ' ' && data[p] != special) {
+            p++;
+        }
+        return p;
+    }
+
+    /**
+     * Sets the high bit of each byte of the given word that equals the corresponding byte of the given pattern
+     * (it might also set bits above a matching byte, so it's only useful to know if there is any match).
+     */
+    private static long matches(long word, long pattern) {
+        long x = word ^ pattern;
+        return (x - ONES) & ~x & HIGH_BITS;
+    }
+
+    /**
+     * Sets the high bit of each byte of the given word that is below a space (i.e. a control char),
+     * as long as the word holds no non-ASCII bytes (it's only useful to know if there is any).
+     */
+    private static long belowSpace(long word) {
+        return (word - SPACES) & ~word & HIGH_BITS;
+    }
+
+    /**
+     * Scans a name (validating its chars).
+     *
+     * @param from Index of the name's first byte.
+     * @return The index after the name, or -1 if it's not complete. The index of its colon (if any) is stored
+     * in {@link #lastColon}, and the hashes of its parts in {@link #lastPrefixHash} and {@link #lastLocalHash}.
+     */
+    private int scanName(int from) throws XMLStreamException {
+        if (from == end) {
+            return -1;
+        }
+        byte b = buf[from];
+        if (b >= 0 && (NAME_CHARS[b] & NAME_START) == 0) {
+            throw error("Invalid name start character", from);
+        }
+        int colon = -1;
+        int hash = 0;
+        int prefixHash = 0;
+        boolean ascii = true;
+        int p = from;
+        while (p < end) {
+            b = buf[p];
+            if (b >= 0) {
+                if ((NAME_CHARS[b] & NAME_PART) == 0) {
+                    break;
+                }
+                if (b == ':') {
+                    if (colon >= 0) {
+                        throw error("Multiple colons are not allowed in names", p);
+                    }
+                    colon = p;
+                    prefixHash = hash;
+                    hash = 0;
+                } else {
+                    hash = 31 * hash + b;
+                }
+                p++;
+            } else {
+                p = validateMultiByteChar(p);
+                if (p < 0) {
+                    return -1;
+                }
+                ascii = false;
+            }
+        }
+        if (p == end) {
+            return -1; // The name might go on
+        }
+        if (colon == from || colon == p - 1) {
+            throw error("Invalid qualified name", from);
+        }
+        lastColon = colon;
+        lastPrefixHash = prefixHash;
+        lastLocalHash = hash;
+        lastNameAscii = ascii;
+        return p;
+    }
+
+    /**
+     * Validates the entity (or character reference) that starts at the given index.
+     *
+     * @return The index after the entity, or -1 if it's not complete.
+     */
+    private int validateEntity(int from) throws XMLStreamException {
+        int limit = Math.min(end, from + MAX_ENTITY_LENGTH);
+        int p = from + 1;
+        while (p < limit && buf[p] != ';') {
+            if (!isEntityChar(buf[p])) {
+                throw error("Invalid entity", from);
+            }
+            p++;
+        }
+        if (p == limit) {
+            if (p == end && p - from < MAX_ENTITY_LENGTH) {
+                return -1;
+            }
+            throw error("Invalid entity", from);
+        }
+        if (entityCodePoint(buf, from + 1, p) < 0) {
+            throw error("Undefined entity or invalid character reference", from);
+        }
+        return p + 1;
+    }
+
+    /**
+     * Returns the code point of the given entity (or character reference).
+     *
+     * @param from Index right after the ampersand.
+     * @param to   Index of the semicolon.
+     * @return The entity's code point, or -1 if it's not allowed (e.g. an undefined entity).
+     */
+    private static int entityCodePoint(byte[] data, int from, int to) {
+        int length = to - from;
+        if (length > 1 && data[from] == '#') {
+            boolean hex = data[from + 1] == 'x';
+            int p = hex ? from + 2 : from + 1;
+            if (p == to) {
+                return -1;
+            }
+            int codePoint = 0;
+            for (; p < to; p++) {
+                int digit = Character.digit(data[p], hex ? 16 : 10);
+                if (digit < 0) {
+                    return -1;
+                }
+                codePoint = codePoint * (hex ? 16 : 10) + digit;
+                if (codePoint > Character.MAX_CODE_POINT) {
+                    return -1;
+                }
+            }
+            return isXmlChar(codePoint) ? codePoint : -1;
+        }
+        if (length == 2 && data[from + 1] == 't') {
+            return data[from] == 'l' ? '<' : data[from] == 'g' ? '>' : -1;
+        }
+        if (length == 3 && data[from] == 'a' && data[from + 1] == 'm' && data[from + 2] == 'p') {
+            return '&';
+        }
+        if (length == 4 && data[from] == 'a' && data[from + 1] == 'p' && data[from + 2] == 'o'
+                && data[from + 3] == 's') {
+            return '\'';
+        }
+        if (length == 4 && data[from] == 'q' && data[from + 1] == 'u' && data[from + 2] == 'o'
+                && data[from + 3] == 't') {
+            return '"';
+        }
+        return -1;
+    }
+
+    /**
+     * Validates the char that starts at the given index (i.e. a control char or a non-ASCII one).
+     * A carriage return is not complete till the next byte is available (as it might be part of a line break),
+     * unless it's a pending token's last byte (those are complete once they are tokenized).
+     *
+     * @return The index after the char, or -1 if it's not complete.
+     */
+    private int validateChar(int p) throws XMLStreamException {
+        byte b = buf[p];
+        if (b == '\r') {
+            return p + 1 < end || buf == pending ? p + 1 : -1;
+        }
+        if (b >= ' ' || b == '\t' || b == '\n') {
+            return p + 1;
+        }
+        if (b >= 0) {
+            throw error("Illegal XML character (code " + b + ")", p);
+        }
+        return validateMultiByteChar(p);
+    }
+
+    /**
+     * Validates the UTF-8 encoded char that starts at the given index (i.e. its first byte is not ASCII).
+     *
+     * @return The index after the char, or -1 if it's not complete.
+     */
+    private int validateMultiByteChar(int p) throws XMLStreamException {
+        int lead = buf[p] & 0xFF;
+        int length = multiByteCharLength(lead);
+        if (length == 0) {
+            throw error("Invalid UTF-8 byte", p);
+        }
+        if (end - p < length) {
+            return -1;
+        }
+        int codePoint = lead & (0xFF >> (length + 1));
+        for (int i = 1; i < length; i++) {
+            int b = buf[p + i];
+            if ((b & 0xC0) != 0x80) {
+                throw error("Invalid UTF-8 sequence", p);
+            }
+            codePoint = (codePoint << 6) | (b & 0x3F);
+        }
+        if ((length == 3 && codePoint < 0x800) || (length == 4 && codePoint < 0x10000) || !isXmlChar(codePoint)) {
+            throw error("Invalid XML character (code " + codePoint + ")", p);
+        }
+        return p + length;
+    }
+
+    /**
+     * Returns the length of the UTF-8 sequence that starts with the given (non-ASCII) byte.
+     *
+     * @return The sequence's length, or 0 if the byte can't start a sequence.
+     */
+    private static int multiByteCharLength(int lead) {
+        if (lead >= 0xC2 && lead <= 0xDF) {
+            return 2;
+        }
+        if (lead >= 0xE0 && lead <= 0xEF) {
+            return 3;
+        }
+        if (lead >= 0xF0 && lead <= 0xF4) {
+            return 4;
+        }
+        return 0;
+    }
+
+    private static boolean isXmlChar(int codePoint) {
+        return codePoint >= 0x20 ? codePoint <= 0xD7FF || (codePoint >= 0xE000 && codePoint <= 0xFFFD)
+                || (codePoint >= 0x10000 && codePoint <= Character.MAX_CODE_POINT)
+                : codePoint == '\t' || codePoint == '\n' || codePoint == '\r';
+    }
+
+    private static boolean isEntityChar(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '#';
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\t' || b == '\r';
+    }
+
+    private static boolean isDigits(String s, int from) {
+        for (int i = from; i < s.length(); i++) {
+            if (s.charAt(i) < '0' || s.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int skipWhitespace(int from, int to) {
+        int p = from;
+        while (p < to && isWhitespace(buf[p])) {
+            p++;
+        }
+        return p;
+    }
+
+    /**
+     * Says if the given name is {@code "xmlns"}.
+     */
+    private boolean isXmlns(int from, int to) {
+        return to - from == 5 && buf[from] == 'x' && buf[from + 1] == 'm' && buf[from + 2] == 'l'
+                && buf[from + 3] == 'n' && buf[from + 4] == 's';
+    }
+
+    /**
+     * Checks the given namespace declaration (i.e. reserved prefixes and namespaces, and duplicates).
+     */
+    private void checkDeclaration(String declaredPrefix, String uri, int bindingsStart, int bindingsEnd, int p)
+            throws XMLStreamException {
+        if (declaredPrefix.equals("xmlns")) {
+            throw error("Illegal namespace declaration: can not re-bind prefix 'xmlns'", p);
+        }
+        if (declaredPrefix.equals("xml") != uri.equals(XML_NAMESPACE)) {
+            throw error("Illegal namespace declaration: prefix 'xml' can only be bound to " + XML_NAMESPACE, p);
+        }
+        for (int i = bindingsStart; i < bindingsEnd; i++) {
+            if (bindingPrefixes[i].equals(declaredPrefix)) {
+                throw error("Duplicate namespace declaration for prefix '" + declaredPrefix + "'", p);
+            }
+        }
+    }
+
+    /**
+     * Returns the namespace bound to the given prefix.
+     *
+     * @param bindingsEnd Index after the last binding in scope.
+     * @return The bound namespace, or {@code null} if the prefix is not bound.
+     */
+    private String resolve(String boundPrefix, int bindingsEnd) {
+        for (int i = bindingsEnd - 1; i >= 0; i--) {
+            if (bindingPrefixes[i].equals(boundPrefix)) {
+                return bindingURIs[i];
+            }
+        }
+        return boundPrefix.equals("xml") ? XML_NAMESPACE : null;
+    }
+
+    /**
+     * Returns the name held in the given range (which was already validated by {@link #scanName(int)}),
+     * taking it from the names table if it only holds ASCII chars.
+     *
+     * @param hash  The name's hash (computed when scanning it).
+     * @param ascii Says if the name only holds ASCII chars.
+     */
+    private String name(int from, int to, int hash, boolean ascii) {
+        return ascii ? tableString(from, to, hash) : new String(buf, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the string held in the given range (which must only hold ASCII chars) from the names table,
+     * adding it if it's not there.
+     *
+     * @param hash The range's hash (i.e. {@code 31 * hash + b} for each byte).
+     */
+    private String tableString(int from, int to, int hash) {
+        int index = (hash ^ (hash >>> 7)) & (NAMES_TABLE_SIZE - 1);
+        String name = names[index];
+        if (name == null || !sameChars(name, from, to)) {
+            name = new String(buf, from, to - from, StandardCharsets.US_ASCII);
+            names[index] = name;
+        }
+        return name;
+    }
+
+    /**
+     * Says if the given string holds the same chars as the given range (assuming it holds ASCII chars).
+     */
+    private boolean sameChars(String s, int from, int to) {
+        if (s.length() != to - from) {
+            return false;
+        }
+        byte[] data = buf;
+        for (int i = from; i < to; i++) {
+            if (s.charAt(i - from) != data[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Says if the given name is the one held in the given range.
+     */
+    private boolean sameName(String name, int from, int to) {
+        return sameChars(name, from, to)
+                || name.equals(new String(buf, from, to - from, StandardCharsets.UTF_8)); // Non-ASCII names
+    }
+
+    /**
+     * Returns the namespace URI held in the given attribute value range.
+     * URIs with no entities nor chars to be normalized are taken from the names table.
+     */
+    private String namespaceURI(int from, int to) {
+        byte[] data = buf;
+        int hash = 0;
+        for (int i = from; i < to; i++) {
+            byte b = data[i];
+            if (b <= ' ' || b == '&') {
+                return decodeString(data, from, to); // Non-ASCII bytes are negative
+            }
+            hash = 31 * hash + b;
+        }
+        return tableString(from, to, hash);
+    }
+
+    /**
+     * Sets the actual event's text (it's decoded when requested).
+     */
+    private void setText(DecodingMode mode, int from, int to) {
+        textMode = mode;
+        textFrom = from;
+        textTo = to;
+        eventSource = buf;
+    }
+
+    /**
+     * Sets the actual event's offsets (and the array holding its bytes).
+     */
+    private void setEvent(int from, int to) {
+        eventStart = base + from;
+        eventEnd = base + to;
+        eventSource = buf;
+    }
+
+    /**
+     * Decodes the actual event's text.
+     */
+    private void decodeText() {
+        textDecoded = true;
+        if (textMode == null) {
+            textLength = 0;
+            return;
+        }
+        if (textChars.length < textTo - textFrom) {
+            textChars = new char[Math.max(textTo - textFrom, 2 * textChars.length)];
+        }
+        textLength = decode(eventSource, textFrom, textTo, textMode, textChars);
+    }
+
+    /**
+     * Decodes the given attribute value range of the given array into a string.
+     */
+    private String decodeString(byte[] source, int from, int to) {
+        if (valueChars.length < to - from) {
+            valueChars = new char[Math.max(to - from, 2 * valueChars.length)];
+        }
+        int length = decode(source, from, to, DecodingMode.ATTRIBUTE, valueChars);
+        return new String(valueChars, 0, length);
+    }
+
+    /**
+     * Decodes the given range (which was already validated) into the given array.
+     * Each byte produces at most one char, so the array must be at least as long as the range.
+     *
+     * @return The amount of decoded chars.
+     */
+    private static int decode(byte[] source, int from, int to, DecodingMode mode, char[] destination) {
+        int length = 0;
+        int p = from;
+        while (p < to) {
+            byte b = source[p];
+            if (b >= ' ' && b != '&') {
+                destination[length++] = (char) b;
+                p++;
+            } else if (b == '&' && mode != DecodingMode.RAW) {
+                int semicolon = p + 1;
+                while (source[semicolon] != ';') {
+                    semicolon++;
+                }
+                length += Character.toChars(entityCodePoint(source, p + 1, semicolon), destination, length);
+                p = semicolon + 1;
+            } else if (b == '&') {
+                destination[length++] = '&';
+                p++;
+            } else if (b == '\r') {
+                destination[length++] = mode == DecodingMode.ATTRIBUTE ? ' ' : '\n';
+                p++;
+                if (p < to && source[p] == '\n') {
+                    p++;
+                }
+            } else if (b >= 0) {
+                destination[length++] = mode == DecodingMode.ATTRIBUTE ? ' ' : (char) b; // Tab or line feed
+                p++;
+            } else {
+                int lead = b & 0xFF;
+                int charLength = multiByteCharLength(lead);
+                int codePoint = lead & (0xFF >> (charLength + 1));
+                for (int i = 1; i < charLength; i++) {
+                    codePoint = (codePoint << 6) | (source[p + i] & 0x3F);
+                }
+                length += Character.toChars(codePoint, destination, length);
+                p += charLength;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Copies the incomplete token that starts at the given index of the input into the pending array,
+     * and starts searching its end.
+     */
+    private void savePendingToken(int tokenStart) throws XMLStreamException {
+        int length = inputEnd - tokenStart;
+        ensurePendingCapacity(length);
+        System.arraycopy(input, tokenStart, pending, 0, length);
+        pendingLength = length;
+        pendingBase = inputBase + tokenStart;
+        pendingComplete = false;
+        inputPtr = inputEnd;
+        byte first = pending[0];
+        if (first == '<') {
+            finderState = FinderState.LESS_THAN;
+        } else if (first == '&') {
+            finderState = FinderState.ENTITY;
+            finderCount = 1;
+        } else if (first == '\r') {
+            finderState = FinderState.CARRIAGE_RETURN;
+        } else {
+            finderState = FinderState.MULTI_BYTE_CHAR;
+            finderCount = multiByteCharLength(first & 0xFF) - 1;
+        }
+        finderQuote = 0;
+        if (finderCount < 0 || findTokenEnd(pending, 1, length) >= 0) {
+            throw new XMLStreamException("Malformed token at byte " + pendingBase);
+        }
+    }
+
+    /**
+     * Completes the pending token with the input, up to the token's end.
+     *
+     * @return {@code true} if the pending token is complete, or {@code false} if all the input was consumed.
+     */
+    private boolean completePendingToken() {
+        if (pendingComplete) {
+            return true;
+        }
+        if (inputPtr == inputEnd) {
+            return false;
+        }
+        int tokenEnd = findTokenEnd(input, inputPtr, inputEnd);
+        int copyEnd = tokenEnd < 0 ? inputEnd : tokenEnd;
+        int length = copyEnd - inputPtr;
+        ensurePendingCapacity(pendingLength + length);
+        System.arraycopy(input, inputPtr, pending, pendingLength, length);
+        pendingLength += length;
+        inputPtr = copyEnd;
+        pendingComplete = tokenEnd >= 0;
+        return pendingComplete;
+    }
+
+    /**
+     * Searches the end of the pending token in the given bytes, going on from where the last search stopped.
+     * Tokens are considered complete as soon as it can be known that they are invalid (so errors are reported
+     * by the tokenizer).
+     *
+     * @return The index after the token's last byte, or -1 if the token doesn't end in the given bytes.
+     */
+    private int findTokenEnd(byte[] data, int from, int to) {
+        int p = from;
+        while (p < to) {
+            byte b = data[p++];
+            switch (finderState) {
+                case LESS_THAN:
+                    if (b == '!') {
+                        finderState = FinderState.BANG;
+                        finderCount = 2; // Amount of matched bytes of "<![CDATA["
+                        break;
+                    }
+                    if (b == '?') {
+                        finderState = FinderState.PROCESSING_INSTRUCTION;
+                        finderCount = 0;
+                        break;
+                    }
+                    finderState = FinderState.TAG;
+                    p--; // Checked again as part of the tag
+                    break;
+                case TAG:
+                    if (finderQuote != 0) {
+                        if (b == finderQuote) {
+                            finderQuote = 0;
+                        } else if (b == '<') {
+                            return p;
+                        }
+                    } else if (b == '>' || b == '<') {
+                        return p;
+                    } else if (b == '\'' || b == '"') {
+                        finderQuote = b;
+                    }
+                    break;
+                case BANG:
+                    if (finderCount == 2 && b == '-') {
+                        finderState = FinderState.BANG_DASH;
+                    } else if (b == CDATA_START[finderCount]) {
+                        if (++finderCount == CDATA_START.length) {
+                            finderState = FinderState.CDATA;
+                            finderCount = 0;
+                        }
+                    } else {
+                        return p;
+                    }
+                    break;
+                case BANG_DASH:
+                    if (b != '-') {
+                        return p;
+                    }
+                    finderState = FinderState.COMMENT;
+                    finderCount = 0; // Amount of consecutive dashes
+                    break;
+                case COMMENT:
+                    if (finderCount >= 2) {
+                        return p; // Either the comment's end, or an invalid "--"
+                    }
+                    finderCount = b == '-' ? finderCount + 1 : 0;
+                    break;
+                case CDATA:
+                    if (b == '>' && finderCount >= 2) {
+                        return p;
+                    }
+                    finderCount = b == ']' ? finderCount + 1 : 0;
+                    break;
+                case PROCESSING_INSTRUCTION:
+                    if (b == '>' && finderCount == 1) {
+                        return p;
+                    }
+                    finderCount = b == '?' ? 1 : 0;
+                    break;
+                case ENTITY:
+                    if (b == ';' || !isEntityChar(b) || ++finderCount == MAX_ENTITY_LENGTH) {
+                        return p;
+                    }
+                    break;
+                case MULTI_BYTE_CHAR:
+                    if (--finderCount <= 0) {
+                        return p;
+                    }
+                    break;
+                case CARRIAGE_RETURN:
+                    return b == '\n' ? p : p - 1; // Only a line feed is part of the line break
+
+            }
+        }
+        return -1;
+    }
+
+    private void ensurePendingCapacity(int capacity) {
+        if (pending != null && pending.length >= capacity) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, pending == null ? 256 : 2 * pending.length);
+        pending = pending == null ? new byte[newCapacity] : Arrays.copyOf(pending, newCapacity);
+        pendingWords = ByteBuffer.wrap(pending).order(ByteOrder.nativeOrder());
+    }
+
+    private void ensureElementsCapacity(int capacity) {
+        if (elementPrefixes.length < capacity) {
+            int newCapacity = 2 * elementPrefixes.length;
+            elementPrefixes = Arrays.copyOf(elementPrefixes, newCapacity);
+            elementLocalNames = Arrays.copyOf(elementLocalNames, newCapacity);
+            elementBindingsStart = Arrays.copyOf(elementBindingsStart, newCapacity);
+        }
+    }
+
+    private void ensureBindingsCapacity(int capacity) {
+        if (bindingPrefixes.length < capacity) {
+            int newCapacity = 2 * bindingPrefixes.length;
+            bindingPrefixes = Arrays.copyOf(bindingPrefixes, newCapacity);
+            bindingURIs = Arrays.copyOf(bindingURIs, newCapacity);
+        }
+    }
+
+    private void ensureRawAttributesCapacity(int capacity) {
+        if (rawNamesStart.length < capacity) {
+            int newCapacity = 2 * rawNamesStart.length;
+            rawNamesStart = Arrays.copyOf(rawNamesStart, newCapacity);
+            rawNamesEnd = Arrays.copyOf(rawNamesEnd, newCapacity);
+            rawNamesColon = Arrays.copyOf(rawNamesColon, newCapacity);
+            rawPrefixHashes = Arrays.copyOf(rawPrefixHashes, newCapacity);
+            rawLocalHashes = Arrays.copyOf(rawLocalHashes, newCapacity);
+            rawNamesAscii = Arrays.copyOf(rawNamesAscii, newCapacity);
+            valuesStart = Arrays.copyOf(valuesStart, newCapacity);
+            valuesEnd = Arrays.copyOf(valuesEnd, newCapacity);
+        }
+    }
+
+    private void ensureAttributesCapacity(int capacity) {
+        if (attributePrefixes.length < capacity) {
+            int newCapacity = 2 * attributePrefixes.length;
+            attributePrefixes = Arrays.copyOf(attributePrefixes, newCapacity);
+            attributeLocalNames = Arrays.copyOf(attributeLocalNames, newCapacity);
+            attributeURIs = Arrays.copyOf(attributeURIs, newCapacity);
+            attributeValues = Arrays.copyOf(attributeValues, newCapacity);
+        }
+    }
+
+    /**
+     * Returns the index (in the bindings arrays) of the given namespace declaration of the actual element.
+     * Like Aalto, declarations are reported in reverse order in end tag events (i.e. as they go out of scope).
+     */
+    private int bindingIndex(int index) {
+        checkIndex(index, getNamespaceCount());
+        return eventType == END_ELEMENT ? namespacesEnd - 1 - index : namespacesStart + index;
+    }
+
+    private static int checkIndex(int index, int count) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", count: " + count);
+        }
+        return index;
+    }
+
+    private XMLStreamException error(String message, int p) {
+        return new XMLStreamException(message + " (at byte " + (base + p) + ")");
+    }
+}
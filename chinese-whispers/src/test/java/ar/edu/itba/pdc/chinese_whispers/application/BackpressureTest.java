@@ -0,0 +1,141 @@
+package ar.edu.itba.pdc.chinese_whispers.application;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that backpressure never stalls a session through the proxy, with clients that send stanzas without
+ * waiting for their echoes (i.e. pipelining). With a stand-in server that echoes them slowly (see {@link ProxyFixture}),
+ * the proxy stops reading the client when the server doesn't keep up, and it must read it again later.
+ * A client that never reads can block itself: the echoes it doesn't read make the proxy stop reading the server,
+ * so the server stops reading the proxy, and so on. That stall is the client's own doing, and the session must go on
+ * as soon as the client reads.
+ */
+public class BackpressureTest {
+
+    /**
+     * Amount of messages sent to the slow server (much more than fits in the proxy's buffers and sockets).
+     */
+    private static final int MESSAGES = 8 * 1024;
+    /**
+     * Max. amount of messages sent by a client that doesn't read, before it's blocked.
+     */
+    private static final int MAX_UNREAD_MESSAGES = 256 * 1024;
+    /**
+     * Size of the body of the sent messages.
+     */
+    private static final int BODY_SIZE = 1024;
+    /**
+     * Time (in milliseconds) without sending anything after which the client is considered blocked.
+     */
+    private static final long STALL_TIME = 1000;
+
+    private static final AtomicInteger SESSIONS = new AtomicInteger(0);
+
+
+    @Test(timeout = 120_000)
+    public void testPipeliningClientGetsEveryEchoFromSlowServer() throws Exception {
+        long pauses = backpressurePauses();
+        try (ProxyFixture.Client client = ProxyFixture.start().newClient(ProxyFixture.SLOW_USER_PREFIX
+                + SESSIONS.getAndIncrement())) {
+            Sender sender = new Sender(client, MESSAGES);
+            sender.start();
+            for (int i = 0; i < MESSAGES; i++) {
+                client.receive("</message>");
+            }
+            sender.join();
+            assertNull(sender.error.get());
+            assertEquals(MESSAGES, sender.sent.get());
+        }
+        assertTrue("The proxy never stopped reading the client", backpressurePauses() > pauses);
+    }
+
+    @Test(timeout = 120_000)
+    public void testClientThatDoesNotReadBlocksItselfTillItReads() throws Exception {
+        try (ProxyFixture.Client client = ProxyFixture.start().newClient("unread" + SESSIONS.getAndIncrement())) {
+            Sender sender = new Sender(client, MAX_UNREAD_MESSAGES);
+            sender.start();
+
+            // Waits till the client can't send anymore
+            int sent;
+            do {
+                sent = sender.sent.get();
+                Thread.sleep(STALL_TIME);
+            } while (sender.sent.get() != sent && sender.isAlive());
+            assertTrue("The client was never blocked", sender.isAlive());
+
+            // Once the client reads, the session goes on (the sender finishes the message it's sending)
+            sender.stopSending();
+            int received = 0;
+            for (; received < sender.sent.get(); received++) {
+                client.receive("</message>");
+            }
+            sender.join();
+            for (; received < sender.sent.get(); received++) {
+                client.receive("</message>");
+            }
+            assertNull(sender.error.get());
+        }
+    }
+
+
+    private static long backpressurePauses() {
+        return Long.parseLong(MetricsManager.getInstance().getMetrics().get("numBackpressurePauses"));
+    }
+
+    /**
+     * Sends messages through the client without reading anything, till the given amount is sent or it's stopped.
+     */
+    private static final class Sender extends Thread {
+
+        private final ProxyFixture.Client client;
+        private final int messages;
+        /**
+         * Amount of messages that were started to be sent (each one is sent completely).
+         */
+        private final AtomicInteger sent;
+        private final AtomicReference<IOException> error;
+        private volatile boolean stopped;
+
+        private Sender(ProxyFixture.Client client, int messages) {
+            super("pipelining-client");
+            setDaemon(true);
+            this.client = client;
+            this.messages = messages;
+            this.sent = new AtomicInteger(0);
+            this.error = new AtomicReference<>();
+            this.stopped = false;
+        }
+
+        private void stopSending() {
+            stopped = true;
+        }
+
+        @Override
+        public void run() {
+            char[] body = new char[BODY_SIZE];
+            Arrays.fill(body, 'x');
+            ByteBuffer message = ByteBuffer.wrap(("<message to='someone@localhost' type='chat'><body>"
+                    + new String(body) + "</body></message>").getBytes(StandardCharsets.UTF_8));
+            try {
+                while (sent.get() < messages && !stopped) {
+                    sent.incrementAndGet();
+                    message.rewind();
+                    client.send(message);
+                }
+            } catch (IOException e) {
+                error.set(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package ar.edu.itba.pdc.chinese_whispers.application;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the latency of forwarding stanzas through the proxy (i.e. the time it takes to read, process
+ * and flush them). Each operation sends a message through an established session, and waits till the stand-in
+ * server's echo comes back, so the stanza crosses the proxy in both directions.
+ * <p>
+ * The XML engine and the forwarding mode can be chosen with the proxy's system properties, e.g.
+ * {@code -Djmh.args="ForwardLatency -jvmArgsAppend -Dchinese_whispers.xmpp_tokenizer=1"}.
+ * <p>
+ * Run with: {@code mvn -Pjmh test-compile exec:exec -Djmh.args="ForwardLatencyBenchmark"}
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ForwardLatencyBenchmark {
+
+    @Param({"16", "1024"})
+    private int bodySize;
+
+    private ProxyFixture.Client client;
+    private ByteBuffer message;
+
+    @Setup
+    public void setup() throws IOException {
+        client = ProxyFixture.start().newClient("latency");
+        char[] body = new char[bodySize];
+        Arrays.fill(body, 'x');
+        message = ByteBuffer.wrap(("<message to='someone@localhost' type='chat'><body>" + new String(body)
+                + "</body></message>").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+    }
+
+    @Benchmark
+    public void roundTrip() throws IOException {
+        message.rewind();
+        client.send(message);
+        client.receive("</message>");
+    }
+}
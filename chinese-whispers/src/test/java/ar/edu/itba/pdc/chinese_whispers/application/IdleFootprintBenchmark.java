@@ -0,0 +1,115 @@
+package ar.edu.itba.pdc.chinese_whispers.application;
+
+import ar.edu.itba.pdc.chinese_whispers.connection.BuffersManager;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the memory held by the proxy for each idle session (i.e. negotiated, and then silent),
+ * when holding many of them. Each operation opens the given amount of sessions through the proxy,
+ * and reports (as auxiliary counters) the heap, direct memory and pooled buffers retained per session.
+ * The operation's time is the time it took to open all of them.
+ * <p>
+ * The stand-in server and the clients run in this JVM, so the memory retained by the same amount of sessions
+ * opened straight to the server (measured before) is subtracted. Each proxied session takes four file descriptors,
+ * so the open files limit must be above four times the amount of sessions (the proxy's connections limit is raised).
+ * <p>
+ * Run with: {@code mvn -Pjmh test-compile exec:exec -Djmh.args="IdleFootprintBenchmark"}
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dchinese_whispers.max_connections=10000")
+@State(Scope.Thread)
+public class IdleFootprintBenchmark {
+
+    @Param({"1000", "3000"})
+    private int sessions;
+
+    private ProxyFixture fixture;
+    private long baselineHeapPerSession;
+    private long baselineDirectPerSession;
+    private final List<ProxyFixture.Client> clients = new ArrayList<>();
+
+    /**
+     * The footprint of each idle session.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+        public long heapBytesPerSession;
+        public long directBytesPerSession;
+        public long pooledBufferBytesPerSession;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        fixture = ProxyFixture.start();
+        // Warms up the proxy and the fixture (classes, pools, compiled code), so they are not measured
+        openSessions(100, false);
+        openSessions(100, true);
+        closeSessions();
+
+        long heap = usedHeap();
+        long direct = usedDirectMemory();
+        openSessions(sessions, false);
+        baselineHeapPerSession = (usedHeap() - heap) / sessions;
+        baselineDirectPerSession = (usedDirectMemory() - direct) / sessions;
+        closeSessions();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, InterruptedException {
+        closeSessions();
+    }
+
+    @Benchmark
+    public void openIdleSessions(Footprint footprint) throws IOException {
+        long heap = usedHeap();
+        long direct = usedDirectMemory();
+        long pooledBuffers = BuffersManager.getInstance().getUsedBytes();
+        openSessions(sessions, true);
+        footprint.heapBytesPerSession = (usedHeap() - heap) / sessions - baselineHeapPerSession;
+        footprint.directBytesPerSession = (usedDirectMemory() - direct) / sessions - baselineDirectPerSession;
+        footprint.pooledBufferBytesPerSession = (BuffersManager.getInstance().getUsedBytes() - pooledBuffers)
+                / sessions;
+    }
+
+    private void openSessions(int amount, boolean proxied) throws IOException {
+        for (int i = 0; i < amount; i++) {
+            clients.add(proxied ? fixture.newClient("idle" + i) : fixture.newDirectClient("idle" + i));
+        }
+    }
+
+    private void closeSessions() throws IOException, InterruptedException {
+        for (ProxyFixture.Client each : clients) {
+            each.close();
+        }
+        clients.clear();
+        Thread.sleep(1000); // The proxy and the server close their sides
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long usedDirectMemory() {
+        long used = 0;
+        for (BufferPoolMXBean each : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(each.getName())) {
+                used += each.getMemoryUsed();
+            }
+        }
+        return used;
+    }
+}
@@ -0,0 +1,321 @@
+package ar.edu.itba.pdc.chinese_whispers.application;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Runs the whole proxy in this JVM, in front of a stand-in XMPP server, so end-to-end benchmarks can open
+ * sessions through it (see {@link Client}).
+ * <p>
+ * The stand-in server performs a minimal negotiation (any credentials are accepted), and then echoes everything
+ * it receives, so each stanza sent by a client comes back to it after crossing the proxy in both directions.
+ * It serves each connection with its own thread. Sessions of users whose name starts with {@link #SLOW_USER_PREFIX}
+ * are echoed slowly (i.e. the server is a slow consumer for them).
+ * <p>
+ * The proxy is made of singletons, so it can be started only once per JVM (JMH forks a JVM for each benchmark).
+ * Configurations must be set as system properties before starting it.
+ */
+/* package */ final class ProxyFixture {
+
+    private static final String STREAM_HEADER = "<?xml version='1.0'?><stream:stream"
+            + " xmlns:stream='http://etherx.jabber.org/streams' xmlns='jabber:client' from='localhost' version='1.0'";
+    private static final String CLIENT_STREAM_HEADER = "<?xml version='1.0'?><stream:stream to='localhost'"
+            + " xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams' version='1.0'>";
+
+    /**
+     * Prefix of the users whose sessions are echoed slowly.
+     */
+    /* package */ static final String SLOW_USER_PREFIX = "slow";
+    /**
+     * Max amount of bytes echoed at a time in slow sessions.
+     */
+    private static final int SLOW_ECHO_CHUNK_SIZE = 4 * 1024;
+    /**
+     * Time (in milliseconds) the server waits before each chunk it echoes in slow sessions.
+     */
+    private static final long SLOW_ECHO_PAUSE = 1;
+    /**
+     * Size of the server's socket buffers in slow sessions (so the proxy notices the slow consumer sooner).
+     * Smaller buffers than the loopback's segments can make TCP wait for its persist timer.
+     */
+    private static final int SLOW_SOCKET_BUFFER_SIZE = 256 * 1024;
+
+    private static ProxyFixture singleton;
+
+    private final int proxyPort;
+    private final int serverPort;
+
+
+    private ProxyFixture(int proxyPort, int serverPort) {
+        this.proxyPort = proxyPort;
+        this.serverPort = serverPort;
+    }
+
+    /**
+     * Starts the stand-in server and the proxy (only the first time it's called).
+     *
+     * @return The started fixture.
+     * @throws IOException If any of them couldn't be started.
+     */
+    /* package */ static synchronized ProxyFixture start() throws IOException {
+        if (singleton != null) {
+            return singleton;
+        }
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        Thread acceptor = new Thread(() -> acceptLoop(serverChannel), "echo-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        int proxyPort = freePort();
+        String[] args = {String.valueOf(proxyPort), String.valueOf(freePort()),
+                "127.0.0.1", String.valueOf(serverChannel.socket().getLocalPort())};
+        Thread proxy = new Thread(() -> Main.main(args), "proxy");
+        proxy.setDaemon(true);
+        proxy.start();
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (true) {
+            try (SocketChannel probe = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                    proxyPort))) {
+                break;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("The proxy didn't start", e);
+                }
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException interrupted) {
+                    throw new IOException(interrupted);
+                }
+            }
+        }
+        singleton = new ProxyFixture(proxyPort, serverChannel.socket().getLocalPort());
+        return singleton;
+    }
+
+    /**
+     * Opens a new session through the proxy, and performs the stream negotiation.
+     *
+     * @param user The user's name.
+     * @return The client, ready to send stanzas.
+     * @throws IOException If the session couldn't be opened.
+     */
+    /* package */ Client newClient(String user) throws IOException {
+        return new Client(proxyPort, user);
+    }
+
+    /**
+     * Opens a new session straight to the stand-in server (i.e. not through the proxy), which can be used
+     * as a baseline of what the fixture itself costs.
+     *
+     * @param user The user's name.
+     * @return The client, ready to send stanzas.
+     * @throws IOException If the session couldn't be opened.
+     */
+    /* package */ Client newDirectClient(String user) throws IOException {
+        return new Client(serverPort, user);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void acceptLoop(ServerSocketChannel serverChannel) {
+        try {
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                Thread thread = new Thread(null, () -> serve(channel), "echo-server-connection", 256 * 1024);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException ignored) {
+            // The server stops
+        }
+    }
+
+    /**
+     * Negotiates a stream with the proxy (as a server), and then echoes everything.
+     */
+    private static void serve(SocketChannel channel) {
+        try (Connection connection = new Connection(channel)) {
+            connection.skipPast("<stream:stream");
+            connection.skipPast(">");
+            connection.write(STREAM_HEADER + " id='1'><stream:features><mechanisms"
+                    + " xmlns='urn:ietf:params:xml:ns:xmpp-sasl'><mechanism>PLAIN</mechanism></mechanisms>"
+                    + "</stream:features>");
+            connection.skipPast("'PLAIN'>");
+            String user = new String(Base64.getDecoder().decode(connection.readTill("</auth>")),
+                    StandardCharsets.UTF_8).split("\0")[1];
+            boolean slow = user.startsWith(SLOW_USER_PREFIX);
+            if (slow) {
+                channel.socket().setReceiveBufferSize(SLOW_SOCKET_BUFFER_SIZE);
+                channel.socket().setSendBufferSize(SLOW_SOCKET_BUFFER_SIZE);
+            }
+            connection.write("<success xmlns='urn:ietf:params:xml:ns:xmpp-sasl'/>");
+            connection.skipPast("<stream:stream");
+            connection.skipPast(">");
+            connection.write(STREAM_HEADER + " id='2'><stream:features/>");
+            connection.echo(slow);
+        } catch (InterruptedException ignored) {
+            // The server stops
+        } catch (IOException ignored) {
+            // Connection closed
+        }
+    }
+
+
+    /**
+     * A session opened through the proxy. Operations block.
+     */
+    /* package */ static final class Client implements Closeable {
+
+        private final Connection connection;
+
+        private Client(int port, String user) throws IOException {
+            connection = new Connection(SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                    port)));
+            connection.write(CLIENT_STREAM_HEADER);
+            connection.skipPast("</stream:features>");
+            connection.write("<auth xmlns='urn:ietf:params:xml:ns:xmpp-sasl' mechanism='PLAIN'>"
+                    + Base64.getEncoder().encodeToString(("\0" + user + "\0password").getBytes(StandardCharsets.UTF_8))
+                    + "</auth>");
+            connection.skipPast("<success");
+            connection.skipPast(">");
+            connection.write(CLIENT_STREAM_HEADER);
+            connection.skipPast("<stream:features");
+            connection.skipPast(">");
+        }
+
+        /**
+         * Sends the given data.
+         *
+         * @param data The data to be sent.
+         * @throws IOException If an I/O error occurs.
+         */
+        /* package */ void send(ByteBuffer data) throws IOException {
+            connection.write(data);
+        }
+
+        /**
+         * Blocks till the given text is received, discarding everything till its end.
+         *
+         * @param text The awaited text (ASCII).
+         * @throws IOException If an I/O error occurs, or the connection is closed before receiving it.
+         */
+        /* package */ void receive(String text) throws IOException {
+            connection.skipPast(text);
+        }
+
+        @Override
+        public void close() throws IOException {
+            connection.close();
+        }
+    }
+
+    /**
+     * A blocking connection that can wait for a given text.
+     */
+    private static final class Connection implements Closeable {
+
+        private final SocketChannel channel;
+        private final ByteBuffer input;
+
+        private Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.channel.socket().setTcpNoDelay(true);
+            this.input = ByteBuffer.allocateDirect(16 * 1024); // Heap ones would make each thread cache a direct one
+            this.input.flip();
+        }
+
+        private void write(String text) throws IOException {
+            write(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        private void write(ByteBuffer data) throws IOException {
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        }
+
+        /**
+         * Reads till the given text is found, leaving what follows it in the input buffer.
+         */
+        private void skipPast(String text) throws IOException {
+            byte[] pattern = text.getBytes(StandardCharsets.US_ASCII);
+            int matched = 0;
+            while (true) {
+                while (input.hasRemaining()) {
+                    byte each = input.get();
+                    if (each == pattern[matched]) {
+                        if (++matched == pattern.length) {
+                            return;
+                        }
+                    } else {
+                        // Patterns have no repeated prefixes, so a mismatch only needs to check the first byte again
+                        matched = each == pattern[0] ? 1 : 0;
+                    }
+                }
+                input.clear();
+                int read = channel.read(input);
+                input.flip();
+                if (read < 0) {
+                    throw new IOException("Connection closed while waiting for " + text);
+                }
+            }
+        }
+
+        /**
+         * Reads till the given text is found, returning what was read before it (ASCII),
+         * and leaving what follows it in the input buffer.
+         */
+        private String readTill(String text) throws IOException {
+            StringBuilder read = new StringBuilder();
+            while (read.length() < text.length() || read.indexOf(text, read.length() - text.length()) < 0) {
+                if (!input.hasRemaining()) {
+                    input.clear();
+                    int readBytes = channel.read(input);
+                    input.flip();
+                    if (readBytes < 0) {
+                        throw new IOException("Connection closed while waiting for " + text);
+                    }
+                }
+                read.append((char) input.get());
+            }
+            return read.substring(0, read.length() - text.length());
+        }
+
+        /**
+         * Writes back everything read (including what was already in the input buffer) till the connection closes.
+         * If it must be slow, it waits before echoing each chunk, and echoes small ones.
+         */
+        private void echo(boolean slow) throws IOException, InterruptedException {
+            while (true) {
+                write(input);
+                input.clear();
+                if (slow) {
+                    Thread.sleep(SLOW_ECHO_PAUSE);
+                    input.limit(SLOW_ECHO_CHUNK_SIZE);
+                }
+                if (channel.read(input) < 0) {
+                    return;
+                }
+                input.flip();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
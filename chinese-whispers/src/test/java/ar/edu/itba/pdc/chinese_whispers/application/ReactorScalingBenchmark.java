@@ -0,0 +1,89 @@
+package ar.edu.itba.pdc.chinese_whispers.application;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures how the proxy's throughput scales with the amount of reactors. Each benchmark thread opens its own
+ * session (sessions are spread among reactors), and keeps sending messages, each one waiting for its echo before
+ * sending the next. The total operations per second (i.e. round trips) should grow with the amount of reactors
+ * till the machine's processors (shared with the stand-in server and the benchmark threads) are exhausted.
+ * <p>
+ * JMH forks a JVM for each amount of reactors, and the amount is set before the proxy is started there.
+ * <p>
+ * Run with: {@code mvn -Pjmh test-compile exec:exec -Djmh.args="ReactorScalingBenchmark"}
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class ReactorScalingBenchmark {
+
+    /**
+     * Size of the body of the sent messages.
+     */
+    private static final int BODY_SIZE = 1024;
+
+    private static final AtomicInteger SESSIONS = new AtomicInteger(0);
+
+
+    /**
+     * The proxy, started with the given amount of reactors.
+     */
+    @State(Scope.Benchmark)
+    public static class Proxy {
+
+        @Param({"1", "2", "4"})
+        private int reactors;
+
+        private ProxyFixture fixture;
+
+        @Setup
+        public void setup() throws IOException {
+            System.setProperty("chinese_whispers.reactors", String.valueOf(reactors));
+            fixture = ProxyFixture.start();
+            if (Configurations.getInstance().getAmountOfReactors() != reactors) {
+                throw new IllegalStateException("The proxy was started with another amount of reactors");
+            }
+        }
+    }
+
+    /**
+     * A session opened by a benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Session {
+
+        private ProxyFixture.Client client;
+        private ByteBuffer message;
+
+        @Setup
+        public void setup(Proxy proxy) throws IOException {
+            client = proxy.fixture.newClient("session" + SESSIONS.getAndIncrement());
+            char[] body = new char[BODY_SIZE];
+            Arrays.fill(body, 'x');
+            message = ByteBuffer.wrap(("<message to='someone@localhost' type='chat'><body>" + new String(body)
+                    + "</body></message>").getBytes(StandardCharsets.UTF_8));
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            client.close();
+        }
+    }
+
+    @Benchmark
+    public void roundTrip(Session session) throws IOException {
+        session.message.rewind();
+        session.client.send(session.message);
+        session.client.receive("</message>");
+    }
+}
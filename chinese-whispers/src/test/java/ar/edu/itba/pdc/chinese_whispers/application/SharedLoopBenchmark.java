@@ -0,0 +1,94 @@
+package ar.edu.itba.pdc.chinese_whispers.application;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures how a bulk transfer and small senders share a reactor's loop (the proxy runs only one reactor).
+ * In the {@code shared} group, one session keeps sending big messages while another one sends small ones,
+ * each one waiting for its echo before sending the next. The bulk session's time per operation gives its throughput
+ * ({@link #BULK_BODY_SIZE} bytes each way), and the small session's one gives the latency that small senders get
+ * (its percentiles show the tail latency). The {@code alone} benchmark is the small sender's baseline.
+ * <p>
+ * Run with: {@code mvn -Pjmh test-compile exec:exec -Djmh.args="SharedLoopBenchmark"}
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dchinese_whispers.reactors=1")
+public class SharedLoopBenchmark {
+
+    /**
+     * Size of the body of the bulk session's messages.
+     */
+    private static final int BULK_BODY_SIZE = 32 * 1024;
+    /**
+     * Size of the body of the small sessions' messages.
+     */
+    private static final int SMALL_BODY_SIZE = 64;
+
+    private static final AtomicInteger SESSIONS = new AtomicInteger(0);
+
+
+    /**
+     * A session opened by a benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Session {
+
+        private ProxyFixture.Client client;
+        private ByteBuffer bulkMessage;
+        private ByteBuffer smallMessage;
+
+        @Setup
+        public void setup() throws IOException {
+            client = ProxyFixture.start().newClient("session" + SESSIONS.getAndIncrement());
+            bulkMessage = message(BULK_BODY_SIZE);
+            smallMessage = message(SMALL_BODY_SIZE);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            client.close();
+        }
+
+        private void roundTrip(ByteBuffer message) throws IOException {
+            message.rewind();
+            client.send(message);
+            client.receive("</message>");
+        }
+
+        private static ByteBuffer message(int bodySize) {
+            char[] body = new char[bodySize];
+            Arrays.fill(body, 'x');
+            return ByteBuffer.wrap(("<message to='someone@localhost' type='chat'><body>" + new String(body)
+                    + "</body></message>").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Benchmark
+    @Group("shared")
+    @GroupThreads(1)
+    public void bulk(Session session) throws IOException {
+        session.roundTrip(session.bulkMessage);
+    }
+
+    @Benchmark
+    @Group("shared")
+    @GroupThreads(1)
+    public void small(Session session) throws IOException {
+        session.roundTrip(session.smallMessage);
+    }
+
+    @Benchmark
+    public void alone(Session session) throws IOException {
+        session.roundTrip(session.smallMessage);
+    }
+}
@@ -0,0 +1,203 @@
+package ar.edu.itba.pdc.chinese_whispers.connection;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link DNSResolver} cache, using a fake {@link HostResolver} and a fake clock.
+ * Resolutions are performed by only one thread, so resolving another host after a background refresh
+ * is a barrier that waits for the refresh to finish.
+ */
+public class DNSResolverTest {
+
+    private static final long TTL = 1000;
+    private static final long NEGATIVE_TTL = 100;
+    private static final String HOST = "xmpp.example.com";
+
+    private AtomicLong clock;
+    private FakeHostResolver hostResolver;
+    private DNSResolver resolver;
+    private int barriers;
+
+    @Before
+    public void setUp() {
+        clock = new AtomicLong(10_000);
+        hostResolver = new FakeHostResolver();
+        resolver = new DNSResolver(hostResolver, TTL, NEGATIVE_TTL, 1, clock::get);
+    }
+
+    @Test
+    public void positiveResultsAreCachedTillTheyExpire() throws Exception {
+        hostResolver.willResolve(HOST, address(1), address(2));
+        assertEquals(address(1), resolver.resolve(HOST).get());
+
+        clock.addAndGet(TTL / 2);
+        CompletableFuture<InetAddress> cached = resolver.resolve(HOST);
+        assertTrue(cached.isDone());
+        assertEquals(address(1), cached.get());
+        assertEquals(1, hostResolver.calls(HOST));
+
+        clock.addAndGet(TTL / 2);
+        assertEquals(address(2), resolver.resolve(HOST).get());
+        assertEquals(2, hostResolver.calls(HOST));
+    }
+
+    @Test
+    public void negativeResultsAreCachedForTheirOwnTtl() throws Exception {
+        hostResolver.willFail(HOST);
+        assertUnknownHost(resolver.resolve(HOST));
+
+        clock.addAndGet(NEGATIVE_TTL - 1);
+        CompletableFuture<InetAddress> cached = resolver.resolve(HOST);
+        assertTrue(cached.isDone());
+        assertUnknownHost(cached);
+        assertEquals(1, hostResolver.calls(HOST));
+
+        clock.addAndGet(1);
+        hostResolver.willResolve(HOST, address(1));
+        assertEquals(address(1), resolver.resolve(HOST).get());
+        assertEquals(2, hostResolver.calls(HOST));
+    }
+
+    @Test
+    public void resultsAboutToExpireAreRefreshedInTheBackground() throws Exception {
+        hostResolver.willResolve(HOST, address(1), address(2));
+        resolver.resolve(HOST).get();
+
+        clock.addAndGet(TTL * 3 / 4);
+        CompletableFuture<InetAddress> cached = resolver.resolve(HOST);
+        assertTrue(cached.isDone());
+        assertEquals(address(1), cached.get()); // Returned while being refreshed
+        waitForResolutions();
+        assertEquals(2, hostResolver.calls(HOST));
+
+        // The refreshed result lives a whole time to live since it was refreshed
+        clock.addAndGet(TTL / 2);
+        assertEquals(address(2), resolver.resolve(HOST).get());
+        assertEquals(2, hostResolver.calls(HOST));
+    }
+
+    @Test
+    public void failedRefreshesKeepThePreviousResultTillItExpires() throws Exception {
+        hostResolver.willResolve(HOST, address(1));
+        resolver.resolve(HOST).get();
+
+        hostResolver.willFail(HOST);
+        clock.addAndGet(TTL * 3 / 4);
+        assertEquals(address(1), resolver.resolve(HOST).get());
+        waitForResolutions();
+        assertEquals(2, hostResolver.calls(HOST));
+        assertEquals(address(1), resolver.resolve(HOST).get());
+        waitForResolutions();
+
+        clock.addAndGet(TTL / 4);
+        assertUnknownHost(resolver.resolve(HOST));
+    }
+
+    @Test
+    public void concurrentResolutionsOfTheSameHostAreMerged() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        hostResolver.willResolve(HOST, address(1));
+        hostResolver.blockUntil(release);
+        CompletableFuture<InetAddress> first = resolver.resolve(HOST);
+        CompletableFuture<InetAddress> second = resolver.resolve(HOST);
+        assertSame(first, second);
+        release.countDown();
+        assertEquals(address(1), first.get(5, TimeUnit.SECONDS));
+        assertEquals(1, hostResolver.calls(HOST));
+        // Once finished, a new resolution can start
+        clock.addAndGet(TTL);
+        hostResolver.willResolve(HOST, address(2));
+        assertEquals(address(2), resolver.resolve(HOST).get());
+        assertEquals(2, hostResolver.calls(HOST));
+    }
+
+    /**
+     * Waits for the resolutions that were started (resolutions are performed by only one thread, in order).
+     */
+    private void waitForResolutions() throws Exception {
+        String barrierHost = "barrier-" + barriers++ + ".example.com"; // Never cached
+        hostResolver.willResolve(barrierHost, address(0));
+        resolver.resolve(barrierHost).get(5, TimeUnit.SECONDS);
+    }
+
+    private static void assertUnknownHost(CompletableFuture<InetAddress> future) throws InterruptedException {
+        try {
+            future.get();
+            fail("Resolution should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof UnknownHostException);
+        }
+    }
+
+    private static InetAddress address(int lastByte) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[]{10, 0, 0, (byte) lastByte});
+    }
+
+
+    /**
+     * A {@link HostResolver} that gives scripted results (the last one is repeated).
+     */
+    private static final class FakeHostResolver implements HostResolver {
+
+        private final Map<String, Deque<InetAddress>> results = new HashMap<>();
+        private final Map<String, AtomicInteger> calls = new HashMap<>();
+        private volatile CountDownLatch latch;
+
+        private synchronized void willResolve(String host, InetAddress... addresses) {
+            Deque<InetAddress> hostResults = new ArrayDeque<>();
+            for (InetAddress each : addresses) {
+                hostResults.offer(each);
+            }
+            results.put(host, hostResults);
+        }
+
+        private synchronized void willFail(String host) {
+            results.put(host, new ArrayDeque<>());
+        }
+
+        private void blockUntil(CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        private synchronized int calls(String host) {
+            AtomicInteger hostCalls = calls.get(host);
+            return hostCalls == null ? 0 : hostCalls.get();
+        }
+
+        @Override
+        public InetAddress resolve(String host) throws UnknownHostException {
+            CountDownLatch latch = this.latch;
+            if (latch != null) {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    throw new UnknownHostException(host);
+                }
+            }
+            synchronized (this) {
+                calls.computeIfAbsent(host, key -> new AtomicInteger()).incrementAndGet();
+                Deque<InetAddress> hostResults = results.get(host);
+                if (hostResults == null || hostResults.isEmpty()) {
+                    throw new UnknownHostException(host);
+                }
+                return hostResults.size() == 1 ? hostResults.peek() : hostResults.poll();
+            }
+        }
+    }
+}
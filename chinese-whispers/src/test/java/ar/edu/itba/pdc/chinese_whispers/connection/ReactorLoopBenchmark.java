@@ -0,0 +1,172 @@
+package ar.edu.itba.pdc.chinese_whispers.connection;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the reactor's loop overhead against the amount of idle connections it holds.
+ * Each operation sends one byte through an active connection and runs the reactor's loop till it is read,
+ * while the rest of the registered connections (all of them with a timeout being tracked) stay idle.
+ * <p>
+ * The reactor is not started: the benchmark's thread runs its loop (see {@link TCPSelector#doSelect()}).
+ * Each connection takes two file descriptors, so the open files limit must be above twice the amount of idle ones.
+ * <p>
+ * Run with: {@code mvn -Pjmh test-compile exec:exec -Djmh.args="ReactorLoopBenchmark"}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ReactorLoopBenchmark {
+
+    @Param({"0", "1000", "5000"})
+    private int idleConnections;
+
+    private TCPSelector reactor;
+    private ServerSocketChannel serverChannel;
+    private final List<SocketChannel> clients = new ArrayList<>();
+    private final List<ReadCountingHandler> handlers = new ArrayList<>();
+    private SocketChannel activeClient;
+    private final ByteBuffer ping = ByteBuffer.allocateDirect(1);
+    private ReadCountingHandler activeHandler;
+
+    @Setup
+    public void setup() throws IOException {
+        reactor = TCPSelectorsManager.getInstance().getMainSelector();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        for (int i = 0; i < idleConnections; i++) {
+            connect(new ReadCountingHandler());
+        }
+        activeHandler = new ReadCountingHandler();
+        activeClient = connect(activeHandler);
+        while (activeHandler.key == null) {
+            reactor.doSelect(); // Registers the accepted channels
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (ReadCountingHandler each : handlers) {
+            each.handleClose(each.key);
+        }
+        for (SocketChannel each : clients) {
+            each.close();
+        }
+        handlers.clear();
+        clients.clear();
+        serverChannel.close();
+        reactor.doSelect(); // Cancelled keys are deregistered
+    }
+
+    @Benchmark
+    public long readOneByte() throws IOException {
+        long reads = activeHandler.reads;
+        ping.clear();
+        activeClient.write(ping);
+        while (activeHandler.reads == reads) {
+            reactor.doSelect();
+        }
+        return activeHandler.reads;
+    }
+
+    /**
+     * Opens a connection, handing the accepted side to the reactor.
+     *
+     * @param handler The handler of the accepted side.
+     * @return The client side.
+     */
+    private SocketChannel connect(ReadCountingHandler handler) throws IOException {
+        SocketChannel client = SocketChannel.open(serverChannel.getLocalAddress());
+        SocketChannel accepted = serverChannel.accept();
+        accepted.configureBlocking(false);
+        clients.add(client);
+        handlers.add(handler);
+        reactor.addAcceptedSocketChannel(accepted, new TCPAcceptorHandler() {
+            @Override
+            public SelectionKey handleAccept(SelectionKey key) {
+                handler.key = key;
+                key.attach(handler);
+                key.interestOps(SelectionKey.OP_READ);
+                return key;
+            }
+
+            @Override
+            public boolean handleClose(SelectionKey key) {
+                return true;
+            }
+        });
+        return client;
+    }
+
+
+    /**
+     * Handles accepted connections, just counting reads.
+     */
+    private final class ReadCountingHandler implements TCPReadWriteHandler {
+
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(1024);
+        private SelectionKey key;
+        private TimingWheel.Timeout timeout;
+        private long reads;
+
+        @Override
+        public void handleRead(SelectionKey key) {
+            try {
+                readBuffer.clear();
+                if (((SocketChannel) key.channel()).read(readBuffer) < 0) {
+                    handleClose(key);
+                    return;
+                }
+            } catch (IOException e) {
+                handleClose(key);
+                return;
+            }
+            reads++;
+        }
+
+        @Override
+        public void handleWrite(SelectionKey key) {
+            // Nothing is written
+        }
+
+        @Override
+        public void handleTimeout(SelectionKey key) {
+            // Idle connections are kept
+        }
+
+        @Override
+        public TimingWheel.Timeout getTimeout() {
+            return timeout;
+        }
+
+        @Override
+        public void setTimeout(TimingWheel.Timeout timeout) {
+            this.timeout = timeout;
+        }
+
+        @Override
+        public boolean handleClose(SelectionKey key) {
+            try {
+                key.channel().close();
+            } catch (IOException ignored) {
+                // Nothing else can be done
+            } finally {
+                reactor.notifyClose(key);
+            }
+            return true;
+        }
+    }
+}
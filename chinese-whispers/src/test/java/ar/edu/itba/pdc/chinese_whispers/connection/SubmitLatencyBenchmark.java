@@ -0,0 +1,60 @@
+package ar.edu.itba.pdc.chinese_whispers.connection;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures the latency from submitting tasks to a running reactor (from another thread) till they are executed.
+ * The reactor is idle (i.e. blocked in the select operation), so each operation includes waking it up.
+ * Each operation submits a batch of tasks, and waits till the last one is run (which unparks the benchmark's thread),
+ * so batches show how coalesced wakeups amortize.
+ * <p>
+ * Run with: {@code mvn -Pjmh test-compile exec:exec -Djmh.args="SubmitLatencyBenchmark"}
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SubmitLatencyBenchmark {
+
+    @Param({"1", "16"})
+    private int batchSize;
+
+    private TCPSelector reactor;
+    private volatile Thread waiter;
+    private volatile long executed;
+    private long submitted;
+    private Runnable task;
+    private Runnable lastTask;
+
+    @Setup
+    public void setup() {
+        reactor = TCPSelectorsManager.getInstance().getMainSelector();
+        Thread thread = new Thread(reactor, "reactor-0");
+        thread.setDaemon(true);
+        thread.start();
+        task = () -> executed++;
+        lastTask = () -> {
+            executed++;
+            LockSupport.unpark(waiter);
+        };
+    }
+
+    @Benchmark
+    public long submitAndWait() {
+        waiter = Thread.currentThread();
+        for (int i = 1; i < batchSize; i++) {
+            reactor.submit(task);
+        }
+        reactor.submit(lastTask);
+        submitted += batchSize;
+        while (executed != submitted) {
+            LockSupport.park(this);
+        }
+        return submitted;
+    }
+}
@@ -0,0 +1,155 @@
+package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.handlers;
+
+import ar.edu.itba.pdc.chinese_whispers.application.L337Processor;
+import ar.edu.itba.pdc.chinese_whispers.application.MetricsManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the backpressure of an {@link XMPPReadWriteHandler} (i.e. its peer stops reading when the data waiting
+ * to be sent reaches the high watermark, and reads again only once it goes down to the low watermark),
+ * and the backpressure metrics.
+ * <p>
+ * Handlers are driven by hand (data is put straight in the output buffer, and written to a connected socket),
+ * so the test doesn't need a reactor.
+ */
+public class XMPPReadWriteHandlerTest {
+
+    private static final int HIGH_WATERMARK = 4 * 1024;
+    private static final int LOW_WATERMARK = 1024;
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private SocketChannel writingChannel;
+    private SocketChannel peerChannel;
+    private SelectionKey peerKey;
+    private XMPPReadWriteHandler handler;
+
+
+    @Before
+    public void setUp() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        writingChannel = SocketChannel.open(serverChannel.getLocalAddress());
+        peerChannel = serverChannel.accept();
+        writingChannel.configureBlocking(false);
+        peerChannel.configureBlocking(false);
+        SelectionKey key = writingChannel.register(selector, SelectionKey.OP_READ);
+        peerKey = peerChannel.register(selector, SelectionKey.OP_READ);
+
+        XMPPReadWriteHandler peerHandler = new XMPPReadWriteHandler(L337Processor.getInstance(),
+                MetricsManager.getInstance(), null, "romeo@example.net", peerKey, HIGH_WATERMARK, LOW_WATERMARK);
+        handler = new XMPPReadWriteHandler(L337Processor.getInstance(), MetricsManager.getInstance(), null,
+                "juliet@example.com", key, HIGH_WATERMARK, LOW_WATERMARK, peerHandler);
+        peerHandler.setPeerHandler(handler);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        writingChannel.close();
+        peerChannel.close();
+        serverChannel.close();
+        selector.close();
+    }
+
+    @Test
+    public void testPeerIsPausedAtHighWatermark() {
+        long pauses = metric("numBackpressurePauses");
+        post(HIGH_WATERMARK - 1);
+        assertTrue(isPeerReading());
+        assertEquals(pauses, metric("numBackpressurePauses"));
+
+        post(1);
+        assertFalse(isPeerReading());
+        assertEquals(pauses + 1, metric("numBackpressurePauses"));
+
+        // Posting more while paused is the same pause
+        post(HIGH_WATERMARK);
+        assertFalse(isPeerReading());
+        assertEquals(pauses + 1, metric("numBackpressurePauses"));
+    }
+
+    @Test
+    public void testPeerIsResumedOnlyAtLowWatermark() throws Exception {
+        long pausedTime = metric("backpressurePausedTime");
+        post(HIGH_WATERMARK);
+        assertFalse(isPeerReading());
+        Thread.sleep(20);
+
+        // Below the high watermark, but above the low one
+        write(HIGH_WATERMARK - LOW_WATERMARK - 1);
+        assertFalse(isPeerReading());
+        post(1); // Still paused, but not paused again
+        write(1);
+        assertFalse(isPeerReading());
+        assertEquals(pausedTime, metric("backpressurePausedTime"));
+
+        write(1);
+        assertEquals(LOW_WATERMARK, handler.outputBuffer.size());
+        assertTrue(isPeerReading());
+        assertTrue(metric("backpressurePausedTime") >= pausedTime + 20);
+
+        // Writing the rest doesn't resume the peer again
+        long resumedPausedTime = metric("backpressurePausedTime");
+        write(LOW_WATERMARK);
+        assertTrue(isPeerReading());
+        assertEquals(resumedPausedTime, metric("backpressurePausedTime"));
+    }
+
+    @Test
+    public void testPeerIsPausedAgainAfterBeingResumed() {
+        long pauses = metric("numBackpressurePauses");
+        post(HIGH_WATERMARK);
+        write(HIGH_WATERMARK - LOW_WATERMARK);
+        assertTrue(isPeerReading());
+
+        post(HIGH_WATERMARK - LOW_WATERMARK - 1);
+        assertTrue(isPeerReading());
+        post(1);
+        assertFalse(isPeerReading());
+        assertEquals(pauses + 2, metric("numBackpressurePauses"));
+    }
+
+
+    /**
+     * Saves the given amount of bytes to be sent, as posting a message does (without requesting the flush).
+     */
+    private void post(int length) {
+        handler.outputBuffer.put(new byte[length], 0, length);
+        handler.checkReadingKeyAfterPosting();
+    }
+
+    /**
+     * Writes the given amount of bytes (little enough to fit in the socket), as a write event does.
+     */
+    private void write(int length) {
+        try {
+            assertEquals(length, handler.outputBuffer.writeTo(writingChannel, length));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        handler.afterWrite();
+    }
+
+    private boolean isPeerReading() {
+        return (peerKey.interestOps() & SelectionKey.OP_READ) != 0;
+    }
+
+    private static long metric(String name) {
+        return Long.parseLong(MetricsManager.getInstance().getMetrics().get(name));
+    }
+}
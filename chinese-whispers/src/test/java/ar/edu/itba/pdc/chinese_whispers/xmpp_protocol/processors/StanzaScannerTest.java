@@ -0,0 +1,254 @@
+package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors;
+
+import ar.edu.itba.pdc.chinese_whispers.application.Configurations;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the {@link StanzaScanner} enforces its limits exactly (i.e. stanzas at a limit are accepted, and
+ * the ones a byte, a level or an attribute beyond it are rejected), wherever the scanned data is split.
+ * Limits are the configured ones (see {@link Configurations}).
+ */
+public class StanzaScannerTest {
+
+    private static final String STREAM_HEADER = "<stream:stream xmlns='jabber:client'"
+            + " xmlns:stream='http://etherx.jabber.org/streams' to='example.com' version='1.0'>";
+    private static final String MESSAGE_START = "<message to='juliet@example.com' type='chat'><body>";
+    private static final String MESSAGE_END = "</body></message>";
+
+
+    @Test
+    public void testStanzaAtMaxSizeIsAccepted() {
+        byte[] stanza = message(Configurations.getInstance().getMaxStanzaSize());
+        for (int[] split : splits(stanza.length)) {
+            StanzaScanner scanner = scanner();
+            scan(scanner, stanza, split);
+            assertNull(describe(split), scanner.getError());
+            assertTrue(describe(split), scanner.isAtBoundary());
+        }
+    }
+
+    @Test
+    public void testStanzaOverMaxSizeIsRejected() {
+        int maxStanzaSize = Configurations.getInstance().getMaxStanzaSize();
+        byte[] stanza = message(maxStanzaSize + 1);
+        for (int[] split : splits(stanza.length)) {
+            StanzaScanner scanner = scanner();
+            scan(scanner, stanza, split);
+            assertEquals(describe(split), ParserResponse.POLICY_VIOLATION, scanner.getError());
+        }
+
+        // The stanza is accepted till the byte that exceeds the limit is scanned
+        StanzaScanner scanner = scanner();
+        scan(scanner, Arrays.copyOf(stanza, maxStanzaSize), new int[0]);
+        assertNull(scanner.getError());
+        scan(scanner, Arrays.copyOfRange(stanza, maxStanzaSize, stanza.length), new int[0]);
+        assertEquals(ParserResponse.POLICY_VIOLATION, scanner.getError());
+    }
+
+    @Test
+    public void testElementsAtMaxDepthAreAccepted() {
+        byte[] stanza = nestedElements(Configurations.getInstance().getMaxStanzaDepth(), "<a>");
+        for (int[] split : splits(stanza.length)) {
+            StanzaScanner scanner = scanner();
+            scan(scanner, stanza, split);
+            assertNull(describe(split), scanner.getError());
+        }
+    }
+
+    @Test
+    public void testElementsOverMaxDepthAreRejected() {
+        int maxStanzaDepth = Configurations.getInstance().getMaxStanzaDepth();
+        for (String deepest : new String[]{"<a>", "<a/>"}) { // Empty elements are also counted
+            byte[] stanza = nestedElements(maxStanzaDepth + 1, deepest);
+            for (int[] split : splits(stanza.length)) {
+                StanzaScanner scanner = scanner();
+                scan(scanner, stanza, split);
+                assertEquals(describe(split), ParserResponse.POLICY_VIOLATION, scanner.getError());
+            }
+
+            // The deepest tag is accepted till it's complete
+            StanzaScanner scanner = scanner();
+            scan(scanner, Arrays.copyOf(stanza, stanza.length - 1), new int[0]);
+            assertNull(scanner.getError());
+            scan(scanner, Arrays.copyOfRange(stanza, stanza.length - 1, stanza.length), new int[0]);
+            assertEquals(ParserResponse.POLICY_VIOLATION, scanner.getError());
+        }
+    }
+
+    @Test
+    public void testElementWithMaxAttributesIsAccepted() {
+        byte[] stanza = presence(Configurations.getInstance().getMaxAttributes());
+        for (int[] split : splits(stanza.length)) {
+            StanzaScanner scanner = scanner();
+            scan(scanner, stanza, split);
+            assertNull(describe(split), scanner.getError());
+            assertTrue(describe(split), scanner.isAtBoundary());
+        }
+    }
+
+    @Test
+    public void testElementOverMaxAttributesIsRejected() {
+        byte[] stanza = presence(Configurations.getInstance().getMaxAttributes() + 1);
+        for (int[] split : splits(stanza.length)) {
+            StanzaScanner scanner = scanner();
+            scan(scanner, stanza, split);
+            assertEquals(describe(split), ParserResponse.POLICY_VIOLATION, scanner.getError());
+        }
+    }
+
+    @Test
+    public void testTagAtMaxTokenSizeIsAccepted() {
+        byte[] stanza = presenceWithTagSize(BaseXMLInterpreter.MAX_AMOUNT_OF_BYTES);
+        for (int[] split : splits(stanza.length)) {
+            StanzaScanner scanner = scanner();
+            scan(scanner, stanza, split);
+            assertNull(describe(split), scanner.getError());
+            assertTrue(describe(split), scanner.isAtBoundary());
+        }
+    }
+
+    @Test
+    public void testTagOverMaxTokenSizeIsRejected() {
+        byte[] stanza = presenceWithTagSize(BaseXMLInterpreter.MAX_AMOUNT_OF_BYTES + 1);
+        for (int[] split : splits(stanza.length)) {
+            StanzaScanner scanner = scanner();
+            scan(scanner, stanza, split);
+            assertEquals(describe(split), ParserResponse.POLICY_VIOLATION, scanner.getError());
+        }
+    }
+
+    @Test
+    public void testMarkupCharsInValuesAndTextDontEndTokens() {
+        // Values hold greater than signs, slashes and the other quote, and text holds greater than signs
+        byte[] stanzas = ("<message to='juliet@example.com/>balcony\"' id=\"it's/>\"><body>" + "Romeo > Tybalt "
+                + "Wherefore art thou Romeo? Deny thy father and refuse thy name; or if thou wilt not, be but sworn"
+                + "</body></message><presence from='a/b' type=\"x'y\"/>").getBytes(StandardCharsets.UTF_8);
+        for (int[] split : splits(stanzas.length)) {
+            StanzaScanner scanner = scanner();
+            scan(scanner, stanzas, split);
+            assertNull(describe(split), scanner.getError());
+            assertTrue(describe(split), scanner.isAtBoundary());
+        }
+
+        // The first stanza ends where its end tag does
+        StanzaScanner scanner = scanner();
+        int firstStanzaLength = new String(stanzas, StandardCharsets.UTF_8).indexOf("<presence");
+        assertEquals(firstStanzaLength, scanner.scan(stanzas, 0, stanzas.length));
+        assertTrue(scanner.isAtBoundary());
+    }
+
+
+    /**
+     * Returns a scanner that already scanned the stream's start tag.
+     */
+    private static StanzaScanner scanner() {
+        StanzaScanner scanner = new StanzaScanner();
+        byte[] header = STREAM_HEADER.getBytes(StandardCharsets.UTF_8);
+        scan(scanner, header, new int[0]);
+        assertNull(scanner.getError());
+        assertTrue(scanner.isAtBoundary());
+        return scanner;
+    }
+
+    /**
+     * Scans the given data in chunks (ending at the given offsets, but the last one), as the interpreter does
+     * (i.e. each chunk is scanned till its end, as scanning stops at the end of each stanza), till an error is found.
+     */
+    private static void scan(StanzaScanner scanner, byte[] data, int[] split) {
+        int from = 0;
+        for (int i = 0; i <= split.length; i++) {
+            int to = i < split.length ? split[i] : data.length;
+            byte[] chunk = Arrays.copyOfRange(data, from, to);
+            from = to;
+            int offset = 0;
+            while (offset < chunk.length) {
+                offset += scanner.scan(chunk, offset, chunk.length - offset);
+                if (scanner.getError() != null) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the ways the data is split: whole, in two at each of the first and last bytes, and in the middle,
+     * and in chunks of some sizes (including a byte at a time).
+     */
+    private static List<int[]> splits(int length) {
+        List<int[]> splits = new ArrayList<>();
+        splits.add(new int[0]);
+        for (int i = 1; i < Math.min(16, length); i++) {
+            splits.add(new int[]{i});
+            splits.add(new int[]{length - i});
+        }
+        splits.add(new int[]{length / 2});
+        for (int chunkSize : new int[]{1, 7, 1024, 8192}) {
+            int[] split = new int[(length - 1) / chunkSize];
+            for (int i = 0; i < split.length; i++) {
+                split[i] = (i + 1) * chunkSize;
+            }
+            splits.add(split);
+        }
+        return splits;
+    }
+
+    private static String describe(int[] split) {
+        return "Split at " + (split.length > 16 ? split.length + " offsets" : Arrays.toString(split));
+    }
+
+    /**
+     * Returns a message stanza of the given size (in bytes).
+     */
+    private static byte[] message(int size) {
+        char[] body = new char[size - MESSAGE_START.length() - MESSAGE_END.length()];
+        Arrays.fill(body, 'x');
+        byte[] stanza = (MESSAGE_START + new String(body) + MESSAGE_END).getBytes(StandardCharsets.UTF_8);
+        assertEquals(size, stanza.length);
+        return stanza;
+    }
+
+    /**
+     * Returns the start of a stanza with the given amount of nested elements (including the stanza's element),
+     * the deepest one being the given tag.
+     */
+    private static byte[] nestedElements(int depth, String deepest) {
+        StringBuilder stanza = new StringBuilder("<message>");
+        for (int i = 2; i < depth; i++) {
+            stanza.append("<a>");
+        }
+        return stanza.append(deepest).toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns a presence stanza with the given amount of attributes in its start tag.
+     */
+    private static byte[] presence(int attributes) {
+        StringBuilder stanza = new StringBuilder("<presence");
+        for (int i = 0; i < attributes; i++) {
+            stanza.append(" a").append(i).append("='").append(i).append('\'');
+        }
+        return stanza.append("/>").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns a presence stanza whose start tag has the given size (in bytes).
+     */
+    private static byte[] presenceWithTagSize(int size) {
+        String start = "<presence id='";
+        String end = "'/>";
+        char[] id = new char[size - start.length() - end.length()];
+        Arrays.fill(id, 'x');
+        byte[] stanza = (start + new String(id) + end).getBytes(StandardCharsets.UTF_8);
+        assertEquals(size, stanza.length);
+        return stanza;
+    }
+}
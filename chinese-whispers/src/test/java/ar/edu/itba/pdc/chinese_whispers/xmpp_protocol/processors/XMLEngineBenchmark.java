@@ -0,0 +1,97 @@
+package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors;
+
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.XMLEngine;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.xml.stream.XMLStreamException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the XML engines (Aalto and the built-in XMPP tokenizer) by themselves, i.e. without an interpreter.
+ * Each operation reads all the events of a stanza (fed in reads holding many of them), and requests what
+ * the interpreters use: names of elements, attributes and text.
+ * <p>
+ * Run with: {@code mvn -Pjmh test-compile exec:exec -Djmh.args="XMLEngineBenchmark -prof gc"}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+@OperationsPerInvocation(XMLEngineBenchmark.STANZAS_PER_READ)
+public class XMLEngineBenchmark {
+
+    /**
+     * Amount of stanzas in each read.
+     */
+    /* package */ static final int STANZAS_PER_READ = 40;
+
+    private static final String STREAM_HEADER = "<stream:stream xmlns='jabber:client'"
+            + " xmlns:stream='http://etherx.jabber.org/streams' to='example.com' version='1.0'>";
+    private static final String MESSAGE = "<message to='juliet@example.com' from='romeo@example.net/orchard'"
+            + " id='ktx72v49' type='chat'><body>Art thou not Romeo, and a Montague?"
+            + " Neither, fair saint, if either thee dislike.</body></message>";
+    private static final String PRESENCE = "<presence from='romeo@example.net/orchard' to='juliet@example.com'"
+            + " id='pr1'><show>away</show><status>Wherefore art thou</status><c xmlns='http://jabber.org/protocol/caps'"
+            + " hash='sha-1' node='http://psi-im.org' ver='q07IKJEyjvHSyhy//CH0CxmKi8w='/></presence>";
+
+    @Param({"aalto", "tokenizer"})
+    private String engineName;
+
+    @Param({"message", "presence"})
+    private String stanza;
+
+    private XMLEngine engine;
+    private byte[] read;
+
+    @Setup
+    public void setup() throws XMLStreamException {
+        engine = "tokenizer".equals(engineName) ? new XMPPTokenizer(XMPPTokenizer.newNamesTable())
+                : new AaltoXMLEngine();
+        byte[] header = STREAM_HEADER.getBytes(StandardCharsets.UTF_8);
+        engine.feedInput(header, 0, header.length);
+        while (engine.next() != XMLEngine.EVENT_INCOMPLETE) {
+            // The stream's start tag is skipped
+        }
+        StringBuilder stanzas = new StringBuilder();
+        for (int i = 0; i < STANZAS_PER_READ; i++) {
+            stanzas.append("message".equals(stanza) ? MESSAGE : PRESENCE);
+        }
+        read = stanzas.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @TearDown
+    public void tearDown() {
+        engine.reset();
+    }
+
+    @Benchmark
+    public void parse(Blackhole blackhole) throws XMLStreamException {
+        engine.feedInput(read, 0, read.length);
+        int event;
+        while ((event = engine.next()) != XMLEngine.EVENT_INCOMPLETE) {
+            switch (event) {
+                case XMLEngine.START_ELEMENT:
+                    blackhole.consume(engine.getLocalName());
+                    for (int i = 0; i < engine.getAttributeCount(); i++) {
+                        blackhole.consume(engine.getAttributeLocalName(i));
+                        blackhole.consume(engine.getAttributeValue(i));
+                    }
+                    break;
+                case XMLEngine.END_ELEMENT:
+                    blackhole.consume(engine.getLocalName());
+                    break;
+                case XMLEngine.CHARACTERS:
+                    blackhole.consume(engine.getTextCharacters());
+                    blackhole.consume(engine.getTextLength());
+                    break;
+                default:
+                    break;
+            }
+            blackhole.consume(engine.getEndingByteOffset());
+        }
+    }
+}
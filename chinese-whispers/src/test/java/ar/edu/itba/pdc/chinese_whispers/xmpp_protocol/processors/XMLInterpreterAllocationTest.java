@@ -0,0 +1,125 @@
+package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors;
+
+import ar.edu.itba.pdc.chinese_whispers.application.Configurations;
+import ar.edu.itba.pdc.chinese_whispers.application.L337Processor;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.handlers.StreamErrorsManager;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.OutputConsumer;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the bytes allocated by an {@link XMLInterpreter} for each forwarded stanza (once the JIT compiled the path),
+ * with the allocated bytes counted by the JVM for the test's thread.
+ * <p>
+ * Relayed stanzas (the default, see {@link Configurations#isXmlRelayEnabled()}), and stanzas parsed by the built-in
+ * tokenizer must allocate nothing. Aalto builds a {@link String} for each attribute value read, so stanzas parsed
+ * by it are allowed a small budget. The build runs this test once for each of those configurations
+ * (see the surefire executions in the pom).
+ */
+public class XMLInterpreterAllocationTest {
+
+    /**
+     * Allowed bytes per stanza when stanzas are parsed by Aalto.
+     */
+    private static final long AALTO_BUDGET = 256;
+    /**
+     * Amount of stanzas in each read chunk.
+     */
+    private static final int STANZAS_PER_READ = 40;
+    /**
+     * Amount of reads fed in each round.
+     */
+    private static final int READS_PER_ROUND = 2000;
+    /**
+     * Max. amount of rounds (the first ones may run before the path is compiled, so the best one is taken).
+     */
+    private static final int MAX_ROUNDS = 20;
+
+    private static final String STREAM_HEADER = "<stream:stream xmlns='jabber:client'"
+            + " xmlns:stream='http://etherx.jabber.org/streams' to='example.com' version='1.0'>";
+    private static final String MESSAGE = "<message to='juliet@example.com' from='romeo@example.net/orchard'"
+            + " id='ktx72v49' type='chat'><body>Art thou not Romeo, and a Montague?"
+            + " Neither, fair saint, if either thee dislike.</body></message>";
+    private static final String PRESENCE = "<presence from='romeo@example.net/orchard' to='juliet@example.com'"
+            + " id='pr1'><show>away</show><status>Wherefore art thou</status><c xmlns='http://jabber.org/protocol/caps'"
+            + " hash='sha-1' node='http://psi-im.org' ver='q07IKJEyjvHSyhy//CH0CxmKi8w='/></presence>";
+
+    private com.sun.management.ThreadMXBean threadMXBean;
+    private XMLInterpreter interpreter;
+    private long forwardedLength;
+
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        interpreter = new XMLInterpreter(L337Processor.getInstance(), new OutputConsumer() {
+            @Override
+            public void consumeMessage(byte[] message) {
+                forwardedLength += message.length;
+            }
+
+            @Override
+            public void consumeMessage(byte[] message, int offset, int length) {
+                forwardedLength += length;
+            }
+
+            @Override
+            public void consumeMessage(CharSequence message) {
+                forwardedLength += message.length();
+            }
+        }, null);
+        feed(STREAM_HEADER.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @After
+    public void tearDown() {
+        if (interpreter != null) {
+            interpreter.release();
+        }
+    }
+
+    @Test
+    public void testForwardingAllocationsAreWithinBudget() {
+        Configurations configurations = Configurations.getInstance();
+        long budget = configurations.isXmlRelayEnabled() || configurations.isXmppTokenizerEnabled()
+                ? 0 : AALTO_BUDGET;
+
+        StringBuilder stanzas = new StringBuilder();
+        for (int i = 0; i < STANZAS_PER_READ; i++) {
+            stanzas.append(i % 2 == 0 ? MESSAGE : PRESENCE);
+        }
+        byte[] read = stanzas.toString().getBytes(StandardCharsets.UTF_8);
+
+        long threadId = Thread.currentThread().getId();
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < MAX_ROUNDS && best > budget; round++) {
+            long allocated = threadMXBean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < READS_PER_ROUND; i++) {
+                feed(read);
+            }
+            allocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocated;
+            best = Math.min(best, allocated / ((long) READS_PER_ROUND * STANZAS_PER_READ));
+        }
+        assertTrue("Forwarded nothing", forwardedLength > 0);
+        assertTrue("Allocated " + best + " bytes per stanza (budget: " + budget + ")", best <= budget);
+    }
+
+    private void feed(byte[] data) {
+        ParserResponse response = interpreter.feed(data, data.length);
+        if (StreamErrorsManager.getInstance().parserResponseErrors().contains(response)) {
+            fail("The stream was rejected: " + response); // Built only on failure, so it is not counted
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors;
+
+import ar.edu.itba.pdc.chinese_whispers.application.L337Processor;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.handlers.StreamErrorsManager;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.OutputConsumer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of an {@link XMLInterpreter} when fed with read chunks of different sizes.
+ * Chunks of one byte reproduce the old interpreter's granularity (one byte fed, and processed, per call),
+ * and the rest are the sizes of reads of small, medium and big messages.
+ * Each operation feeds a byte of a stream of chat messages, so the score is in bytes per microsecond (i.e. MB/s).
+ * <p>
+ * Stanzas are relayed without being parsed by default (see {@code chinese_whispers.xml_relay}).
+ * The XML engine and the forwarding mode can be chosen with the proxy's system properties, e.g.
+ * {@code -Djmh.args="XMLInterpreterFeed -jvmArgsAppend -Dchinese_whispers.xmpp_tokenizer=1"}.
+ * <p>
+ * Run with: {@code mvn -Pjmh test-compile exec:exec -Djmh.args="XMLInterpreterFeedBenchmark"}
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+@OperationsPerInvocation(XMLInterpreterFeedBenchmark.STREAM_SIZE)
+public class XMLInterpreterFeedBenchmark {
+
+    /**
+     * Amount of bytes fed by each invocation.
+     */
+    /* package */ static final int STREAM_SIZE = 64 * 1024;
+    /**
+     * Amount of bytes taken by each message (padded with whitespace between stanzas), so the stream holds
+     * a whole amount of them.
+     */
+    private static final int MESSAGE_SIZE = 256;
+
+    private static final String STREAM_HEADER = "<stream:stream xmlns='jabber:client'"
+            + " xmlns:stream='http://etherx.jabber.org/streams' to='example.com' version='1.0'>";
+    private static final String MESSAGE = "<message to='juliet@example.com' from='romeo@example.net/orchard'"
+            + " id='ktx72v49' type='chat'><body>Art thou not Romeo, and a Montague?"
+            + " Neither, fair saint, if either thee dislike.</body></message>";
+
+    @Param({"1", "64", "1024", "8192"})
+    private int chunkSize;
+
+    private XMLInterpreter interpreter;
+    private byte[] stream;
+    private byte[] readBuffer;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        interpreter = new XMLInterpreter(L337Processor.getInstance(), new OutputConsumer() {
+            @Override
+            public void consumeMessage(byte[] message) {
+                blackhole.consume(message);
+            }
+
+            @Override
+            public void consumeMessage(byte[] message, int offset, int length) {
+                blackhole.consume(message);
+            }
+
+            @Override
+            public void consumeMessage(CharSequence message) {
+                blackhole.consume(message);
+            }
+        }, null);
+        byte[] header = STREAM_HEADER.getBytes(StandardCharsets.UTF_8);
+        interpreter.feed(header, header.length);
+
+        // The stream holds whole messages, so each invocation continues the stream where the last one left it.
+        byte[] message = MESSAGE.getBytes(StandardCharsets.UTF_8);
+        if (message.length > MESSAGE_SIZE) {
+            throw new IllegalStateException();
+        }
+        stream = new byte[STREAM_SIZE];
+        for (int i = 0; i < STREAM_SIZE; i++) {
+            int index = i % MESSAGE_SIZE;
+            stream[i] = index < message.length ? message[index] : (byte) ' ';
+        }
+        readBuffer = new byte[chunkSize];
+        ParserResponse response = feed();
+        if (StreamErrorsManager.getInstance().parserResponseErrors().contains(response)) {
+            throw new IllegalStateException("The stream was rejected: " + response);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        interpreter.release();
+    }
+
+    @Benchmark
+    public ParserResponse feed() {
+        ParserResponse response = ParserResponse.EVERYTHING_NORMAL;
+        for (int offset = 0; offset < STREAM_SIZE; offset += chunkSize) {
+            int length = Math.min(chunkSize, STREAM_SIZE - offset);
+            System.arraycopy(stream, offset, readBuffer, 0, length); // As if it was read from a channel
+            response = interpreter.feed(readBuffer, length);
+        }
+        return response;
+    }
+}
@@ -0,0 +1,94 @@
+package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors;
+
+import ar.edu.itba.pdc.chinese_whispers.application.L337Processor;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.handlers.StreamErrorsManager;
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.OutputConsumer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time and the allocations taken by an {@link XMLInterpreter} to forward each stanza, when fed
+ * with reads holding many of them. Each operation is a stanza, so with {@code -prof gc} the
+ * {@code gc.alloc.rate.norm} metric is the amount of bytes allocated per forwarded stanza
+ * (see also {@link XMLInterpreterAllocationTest}, which checks it in the build).
+ * <p>
+ * Stanzas are relayed without being parsed by default (see {@code chinese_whispers.xml_relay}).
+ * The XML engine and the forwarding mode can be chosen with the proxy's system properties, e.g.
+ * {@code -Djmh.args="XMLInterpreterForward -prof gc -jvmArgsAppend -Dchinese_whispers.xml_relay=0"}.
+ * <p>
+ * Run with: {@code mvn -Pjmh test-compile exec:exec -Djmh.args="XMLInterpreterForwardBenchmark -prof gc"}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+@OperationsPerInvocation(XMLInterpreterForwardBenchmark.STANZAS_PER_READ)
+public class XMLInterpreterForwardBenchmark {
+
+    /**
+     * Amount of stanzas in each read.
+     */
+    /* package */ static final int STANZAS_PER_READ = 40;
+
+    private static final String STREAM_HEADER = "<stream:stream xmlns='jabber:client'"
+            + " xmlns:stream='http://etherx.jabber.org/streams' to='example.com' version='1.0'>";
+    private static final String MESSAGE = "<message to='juliet@example.com' from='romeo@example.net/orchard'"
+            + " id='ktx72v49' type='chat'><body>Art thou not Romeo, and a Montague?"
+            + " Neither, fair saint, if either thee dislike.</body></message>";
+    private static final String PRESENCE = "<presence from='romeo@example.net/orchard' to='juliet@example.com'"
+            + " id='pr1'><show>away</show><status>Wherefore art thou</status><c xmlns='http://jabber.org/protocol/caps'"
+            + " hash='sha-1' node='http://psi-im.org' ver='q07IKJEyjvHSyhy//CH0CxmKi8w='/></presence>";
+
+    @Param({"message", "presence"})
+    private String stanza;
+
+    private XMLInterpreter interpreter;
+    private byte[] read;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        interpreter = new XMLInterpreter(L337Processor.getInstance(), new OutputConsumer() {
+            @Override
+            public void consumeMessage(byte[] message) {
+                blackhole.consume(message);
+            }
+
+            @Override
+            public void consumeMessage(byte[] message, int offset, int length) {
+                blackhole.consume(message);
+            }
+
+            @Override
+            public void consumeMessage(CharSequence message) {
+                blackhole.consume(message);
+            }
+        }, null);
+        byte[] header = STREAM_HEADER.getBytes(StandardCharsets.UTF_8);
+        interpreter.feed(header, header.length);
+
+        StringBuilder stanzas = new StringBuilder();
+        for (int i = 0; i < STANZAS_PER_READ; i++) {
+            stanzas.append("message".equals(stanza) ? MESSAGE : PRESENCE);
+        }
+        read = stanzas.toString().getBytes(StandardCharsets.UTF_8);
+        ParserResponse response = forward();
+        if (StreamErrorsManager.getInstance().parserResponseErrors().contains(response)) {
+            throw new IllegalStateException("The stream was rejected: " + response);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        interpreter.release();
+    }
+
+    @Benchmark
+    public ParserResponse forward() {
+        return interpreter.feed(read, read.length);
+    }
+}
@@ -0,0 +1,381 @@
+package ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.processors;
+
+import ar.edu.itba.pdc.chinese_whispers.xmpp_protocol.interfaces.XMLEngine;
+import com.fasterxml.aalto.UncheckedStreamException;
+import org.junit.Test;
+
+import javax.xml.stream.XMLStreamException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the {@link XMPPTokenizer} reports the same events as Aalto (see {@link AaltoXMLEngine}), comparing
+ * their types, depths, names, namespaces, attributes, text and byte offsets. Each document is fed whole,
+ * split in two at every offset, and a byte at a time.
+ * <p>
+ * The tokenizer only accepts what XMPP allows, so it rejects some documents Aalto accepts (DTDs, undefined entities,
+ * processing instructions after the prolog and {@code ]]>} in text). For those, it must report the same events
+ * as Aalto up to the offending token, and then fail.
+ */
+public class XMPPTokenizerEquivalenceTest {
+
+    /**
+     * Line that ends the events of a document that was rejected.
+     */
+    private static final String ERROR = "ERROR";
+
+    /**
+     * Documents both engines must read alike (including the ones both reject). Mismatched end tags are followed
+     * by another tag, as Aalto only reports them once the next token starts (the tokenizer does it right away).
+     */
+    private static final String[] DOCUMENTS = {
+            "<?xml version='1.0'?><stream:stream xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams'"
+                    + " to='example.com' version='1.0'><message to='juliet@example.com' id=\"ktx72v49\" type='chat'>"
+                    + "<body>hello &amp; &lt;world&gt; &#65;&#x42;</body></message><presence/></stream:stream>",
+            "<stream:stream xmlns:stream='s' xmlns='c'>text</stream:stream>",
+            "<a>x\r\ny\rz\n</a>",
+            "<a>x\r<b/>y\r\nz\r\r\n\r</a>",
+            "<a b='1\t2\n3\r\n4\r5'/>",
+            "<a b=\"1\r\n2\"/>",
+            "<a b=\"&lt;&amp;&#9;&#10;\"/>",
+            "<a>]]x]]</a>",
+            "<a>] ]>]]</a>",
+            "<a><![CDATA[x]]]]></a>",
+            "<a><![CDATA[<&>]]>t</a>",
+            "<a><!-- hi --></a>",
+            "<a><!-- \r\n --></a>",
+            "<a><!-- a--b --></a>",
+            "<a><!-- x---></a>",
+            "<!-- pro --><a/><!-- epi -->",
+            "  <a/>  ",
+            "x<a/>",
+            "<a/>x",
+            "<a/><b/>",
+            "<a></b><c/>",
+            "<a></ a><c/>",
+            "<p:a xmlns:p='u'></p:a>",
+            "<p:a xmlns:p='u'></a><c/>",
+            "<p:a/>",
+            "<a p:b='1'/>",
+            "<a b='1' b='2'/>",
+            "<a xmlns:p='u' xmlns:q='u' p:b='1' q:b='2'/>",
+            "<a xmlns:p='u' xmlns:p='v'/>",
+            "<a xmlns='u' xmlns='v'/>",
+            "<a xmlns:xml='http://www.w3.org/XML/1998/namespace'/>",
+            "<a xmlns:p='http://www.w3.org/XML/1998/namespace'/>",
+            "<a xmlns:xmlns='u'/>",
+            "<a xml:lang='en'/>",
+            "<a:b:c/>",
+            "<a b='1'c='2'/>",
+            "<a b='1/>",
+            "<a b='<'/>",
+            "<a/ >",
+            "<stream a='x' />",
+            "<a>&#0;</a>",
+            "<a>&#55357;</a>",
+            "<a>&#x;</a>",
+            "<a>&#0065;</a>",
+            "<a>&#x1F600;</a>",
+            "<a>ñandú € 😀</a>",
+            "<a>\u0001</a>",
+            "<?xml version='1.1'?><a/>",
+            "<?xml version='1.0' encoding='UTF-8' standalone='yes'?><a/>",
+            "<?xml version='1.0' encoding='ISO-8859-1'?><a/>",
+            "<?xml encoding='UTF-8'?><a/>",
+            "<?XML version='1.0'?><a/>",
+            "<?xml version=\"1.0\"?>\n<a/>",
+            "<?pi x?><a/>",
+            "<a><b><c>deep</c></b><b/></a>",
+            "<a xmlns='x'><b xmlns='y'/><c/></a>",
+            "<a>--</a>",
+            "<a>&amp;&apos;&quot;</a>",
+            "<a>text</a>\n\n",
+            "<a b = '1' c= \"2\" ></a >",
+            "<a>é</a>",
+            "<é/>",
+    };
+
+    /**
+     * Documents the tokenizer rejects, but Aalto accepts.
+     */
+    private static final String[] REJECTED_DOCUMENTS = {
+            "<!DOCTYPE a><a/>",
+            "<a>&foo;</a>",
+            "<a><?pi x?></a>",
+            "<a>]]></a>",
+            "<a>]]]]></a>",
+    };
+
+    /**
+     * Documents with supplementary chars in attribute values, which Aalto decodes wrongly when their bytes are
+     * split between feeds (so the tokenizer's events are compared with Aalto's ones when fed whole).
+     */
+    private static final String[] SUPPLEMENTARY_ATTRIBUTE_DOCUMENTS = {
+            "<a b='ñ😀'/>",
+    };
+
+
+    @Test
+    public void testSameEventsAsAalto() {
+        for (String document : DOCUMENTS) {
+            byte[] data = document.getBytes(StandardCharsets.UTF_8);
+            for (int[] split : splits(data.length)) {
+                assertEquals(describe(document, split), read(new AaltoXMLEngine(), data, split),
+                        read(newTokenizer(), data, split));
+            }
+        }
+    }
+
+    @Test
+    public void testRejectsWhatXMPPDoesNotAllow() {
+        for (String document : REJECTED_DOCUMENTS) {
+            byte[] data = document.getBytes(StandardCharsets.UTF_8);
+            for (int[] split : splits(data.length)) {
+                String events = read(newTokenizer(), data, split);
+                assertTrue(describe(document, split) + " was accepted:\n" + events, events.endsWith(ERROR + "\n"));
+                String aaltoEvents = read(new AaltoXMLEngine(), data, split);
+                assertTrue(describe(document, split) + " differs before failing:\n" + aaltoEvents + "--\n" + events,
+                        readsTheSameTillFailing(events, aaltoEvents));
+            }
+        }
+    }
+
+    @Test
+    public void testSupplementaryCharsInAttributesAtEverySplit() {
+        for (String document : SUPPLEMENTARY_ATTRIBUTE_DOCUMENTS) {
+            byte[] data = document.getBytes(StandardCharsets.UTF_8);
+            String expected = read(new AaltoXMLEngine(), data, new int[0]);
+            for (int[] split : splits(data.length)) {
+                assertEquals(describe(document, split), expected, read(newTokenizer(), data, split));
+            }
+        }
+    }
+
+    /**
+     * Aalto's starting offsets are off for the root element's tag (they include the XML declaration, or skip
+     * the {@code <}), and for the event that follows a CDATA section, so the tokenizer's ones are checked by themselves:
+     * inside the root element, each event must start where the previous one ended.
+     */
+    @Test
+    public void testEventsStartWhereThePreviousOnesEnded() throws XMLStreamException {
+        for (String document : DOCUMENTS) {
+            byte[] data = document.getBytes(StandardCharsets.UTF_8);
+            for (int[] split : splits(data.length)) {
+                XMPPTokenizer tokenizer = newTokenizer();
+                long previousStart = -1;
+                long previousEnd = -1;
+                int from = 0;
+                try {
+                    for (int i = 0; i <= split.length; i++) {
+                        int to = i < split.length ? split[i] : data.length;
+                        byte[] chunk = Arrays.copyOfRange(data, from, to);
+                        from = to;
+                        tokenizer.feedInput(chunk, 0, chunk.length);
+                        int event;
+                        while ((event = tokenizer.next()) != XMLEngine.EVENT_INCOMPLETE) {
+                            long start = tokenizer.getStartingByteOffset();
+                            long end = tokenizer.getEndingByteOffset();
+                            // The end tag event of an empty element comes from the same tag as the start tag one
+                            boolean emptyElementEnd = event == XMLEngine.END_ELEMENT && start == previousStart
+                                    && end == previousEnd;
+                            if (previousEnd >= 0 && !emptyElementEnd) {
+                                assertEquals(describe(document, split), previousEnd, start);
+                            }
+                            boolean inRoot = event != XMLEngine.START_DOCUMENT
+                                    && !(event == XMLEngine.END_ELEMENT && tokenizer.getDepth() == 1);
+                            previousStart = inRoot ? start : -1;
+                            previousEnd = inRoot && tokenizer.getDepth() > 0 ? end : -1;
+                        }
+                    }
+                } catch (XMLStreamException e) {
+                    // Rejected documents are checked till they fail
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testResetTokenizerReadsTheSameEvents() {
+        XMPPTokenizer tokenizer = newTokenizer();
+        String[][] rounds = {DOCUMENTS, REJECTED_DOCUMENTS, DOCUMENTS};
+        for (String[] documents : rounds) {
+            for (String document : documents) {
+                byte[] data = document.getBytes(StandardCharsets.UTF_8);
+                for (int[] split : splits(data.length)) {
+                    assertTrue(tokenizer.reset());
+                    assertEquals(describe(document, split), read(newTokenizer(), data, split),
+                            read(tokenizer, data, split));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testResetDropsPendingTokens() {
+        XMPPTokenizer tokenizer = newTokenizer();
+        byte[] data = "<a><b c='unfinished".getBytes(StandardCharsets.UTF_8);
+        read(tokenizer, data, new int[0]);
+        assertTrue(tokenizer.reset());
+
+        byte[] document = DOCUMENTS[0].getBytes(StandardCharsets.UTF_8);
+        assertEquals(read(newTokenizer(), document, new int[0]), read(tokenizer, document, new int[0]));
+    }
+
+
+    private static XMPPTokenizer newTokenizer() {
+        return new XMPPTokenizer(XMPPTokenizer.newNamesTable());
+    }
+
+    /**
+     * Returns the ways each document is split: whole, in two at every offset, and a byte at a time.
+     * Each split holds the offsets where chunks end (but the last one).
+     */
+    private static int[][] splits(int length) {
+        int[][] splits = new int[length + 1][];
+        splits[0] = new int[0];
+        for (int i = 1; i < length; i++) {
+            splits[i] = new int[]{i};
+        }
+        splits[length] = new int[Math.max(0, length - 1)];
+        for (int i = 0; i < length - 1; i++) {
+            splits[length][i] = i + 1;
+        }
+        return splits;
+    }
+
+    /**
+     * Says if the events read by the tokenizer before failing are the ones Aalto read (the last text event
+     * may hold only the text before the offending token).
+     */
+    private static boolean readsTheSameTillFailing(String events, String aaltoEvents) {
+        String[] read = events.split("\n");
+        String[] expected = aaltoEvents.split("\n");
+        int last = read.length - 2; // The last one is the error
+        if (last >= expected.length) {
+            return false;
+        }
+        for (int i = 0; i < last; i++) {
+            if (!read[i].equals(expected[i])) {
+                return false;
+            }
+        }
+        if (last < 0 || read[last].equals(expected[last])) {
+            return true;
+        }
+        String textEvent = XMLEngine.CHARACTERS + " text=";
+        return read[last].startsWith(textEvent) && expected[last].startsWith(textEvent)
+                && expected[last].startsWith(read[last].substring(0, read[last].lastIndexOf(" end=")));
+    }
+
+    private static String describe(String document, int[] split) {
+        return "Document " + document + " split at " + Arrays.toString(split);
+    }
+
+    /**
+     * Feeds the given data to the engine, and describes all the read events (a line each), ending with
+     * {@link #ERROR} if the data was rejected. Each chunk is fed in a new array, starting at its index 0
+     * (see {@link AaltoXMLEngine}).
+     */
+    private static String read(XMLEngine engine, byte[] data, int[] split) {
+        Events events = new Events();
+        int from = 0;
+        try {
+            for (int i = 0; i <= split.length; i++) {
+                int to = i < split.length ? split[i] : data.length;
+                byte[] chunk = Arrays.copyOfRange(data, from, to);
+                from = to;
+                engine.feedInput(chunk, 0, chunk.length);
+                int event;
+                while ((event = engine.next()) != XMLEngine.EVENT_INCOMPLETE) {
+                    events.add(engine, event);
+                }
+            }
+        } catch (XMLStreamException | UncheckedStreamException e) { // Aalto may fail when text is requested
+            events.fail();
+        }
+        return events.toString();
+    }
+
+
+    /**
+     * Describes the events read by an engine.
+     * <p>
+     * Engines may split text in different events (Aalto splits it at references, and both of them at the end
+     * of the fed data), so consecutive text events are described as a single one. Only ending offsets are described,
+     * as Aalto's starting offsets are off in some cases (see {@link #testEventsStartWhereThePreviousOnesEnded()}).
+     */
+    private static final class Events {
+
+        private final StringBuilder events = new StringBuilder();
+        private final StringBuilder text = new StringBuilder();
+        private boolean inText;
+        private long textEnd;
+
+        private void add(XMLEngine engine, int event) throws XMLStreamException {
+            if (event == XMLEngine.CHARACTERS) {
+                inText = true;
+                text.append(engine.getTextCharacters(), engine.getTextStart(), engine.getTextLength());
+                textEnd = engine.getEndingByteOffset();
+                return;
+            }
+            flushText();
+            events.append(event).append(" depth=").append(engine.getDepth());
+            switch (event) {
+                case XMLEngine.START_DOCUMENT:
+                    events.append(" version=").append(engine.getVersion());
+                    break;
+                case XMLEngine.START_ELEMENT:
+                case XMLEngine.END_ELEMENT:
+                    events.append(' ').append(engine.getPrefix()).append('|').append(engine.getLocalName());
+                    for (int i = 0; i < engine.getNamespaceCount(); i++) {
+                        events.append(" xmlns:").append(engine.getNamespacePrefix(i))
+                                .append('=').append(engine.getNamespaceURI(i));
+                    }
+                    if (event == XMLEngine.START_ELEMENT) {
+                        for (int i = 0; i < engine.getAttributeCount(); i++) {
+                            events.append(" @").append(engine.getAttributePrefix(i)).append('|')
+                                    .append(engine.getAttributeLocalName(i)).append('=')
+                                    .append(engine.getAttributeValue(i));
+                        }
+                    }
+                    break;
+                case XMLEngine.CDATA:
+                    events.append(" text=").append(engine.getTextCharacters(), engine.getTextStart(),
+                            engine.getTextLength());
+                    break;
+                case XMLEngine.COMMENT:
+                    events.append(" text=").append(engine.getText());
+                    break;
+                default:
+                    break;
+            }
+            if (event != XMLEngine.START_DOCUMENT) {
+                events.append(" end=").append(engine.getEndingByteOffset());
+            }
+            events.append('\n');
+        }
+
+        private void fail() {
+            flushText();
+            events.append(ERROR).append('\n');
+        }
+
+        private void flushText() {
+            if (inText) {
+                events.append(XMLEngine.CHARACTERS).append(" text=").append(text)
+                        .append(" end=").append(textEnd).append('\n');
+                text.setLength(0);
+                inText = false;
+            }
+        }
+
+        @Override
+        public String toString() {
+            flushText();
+            return events.toString();
+        }
+    }
+}